@@ -0,0 +1,73 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A task that retrieves content through a {@link BackendClient}. Interrupting
+ * a thread does not fail a read from a host that it is blocked on, so
+ * cancelling this task with interruption also closes every connection that
+ * its thread opened while running it.
+ *
+ * @param <V> the type of the result
+ */
+public class AbortableTask<V> extends FutureTask<V> {
+  private final BackendClient backendClient;
+
+  // Guarded by this.
+  private Thread runner;
+
+  /**
+   * Creates a task that runs the given callable.
+   *
+   * @param backendClient the client through which the callable retrieves
+   *        content
+   * @param callable the callable
+   */
+  public AbortableTask(BackendClient backendClient, Callable<V> callable) {
+    super(callable);
+    this.backendClient = backendClient;
+  }
+
+  @Override
+  public void run() {
+    synchronized (this) {
+      runner = Thread.currentThread();
+    }
+    try {
+      super.run();
+    } finally {
+      // Once cleared, connections of this thread belong to another task.
+      synchronized (this) {
+        runner = null;
+      }
+    }
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    boolean cancelled = super.cancel(mayInterruptIfRunning);
+    if (cancelled && mayInterruptIfRunning) {
+      synchronized (this) {
+        if (runner != null) {
+          backendClient.abortConnections(runner);
+        }
+      }
+    }
+    return cancelled;
+  }
+}
@@ -0,0 +1,1041 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse;
+
+import com.google.common.base.Preconditions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The client through which a {@link QueryFormatter} retrieves results from the
+ * hosts of scoring policy profiles. Connections to a host are kept alive and
+ * reused by later requests to that host, and the number of connections open to
+ * any one host at a time is capped. A request waiting for a connection, or
+ * waiting on an open connection, gives up once its abort time passes. The
+ * abort time bounds all reads of a response together, so a host that sends a
+ * response slowly cannot hold a connection past it.
+ *
+ * A request for more results than a host returns in one page is split into
+ * requests for consecutive pages, which this client retrieves concurrently.
+ *
+ * The rate of requests to each host may be limited, so that assessors do not
+ * overload a production host. Each host has a bucket of tokens, refilled at a
+ * sustained rate up to a maximum burst, and each request takes one token. A
+ * request that cannot take a token before its abort time passes times out.
+ *
+ * Hosts are asked to compress their responses, which are decompressed as they
+ * are read. The number of bytes transferred from each host, and the time spent
+ * decompressing them, are recorded in its {@link TransferStats}.
+ *
+ * This class is thread-safe.
+ */
+public final class BackendClient {
+  /**
+   * The default maximum number of connections open to any one host.
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+
+  /**
+   * The default maximum number of results requested in one page, which is the
+   * most that a search appliance returns for a single request.
+   */
+  public static final int DEFAULT_MAX_RESULTS_PER_PAGE = 100;
+
+  /**
+   * The default maximum number of requests to any one host in a burst, when
+   * the rate of requests is limited.
+   */
+  public static final int DEFAULT_MAX_BURST_PER_HOST = 10;
+
+  // The prefix of the name of each thread retrieving a page of results.
+  private static final String PAGE_THREAD_NAME_PREFIX = "BackendClient-page-";
+
+  // The number of seconds that an idle thread retrieving pages is kept.
+  private static final long PAGE_THREAD_KEEP_ALIVE_SECONDS = 60L;
+
+  // The name of the thread closing connections whose abort time has passed.
+  private static final String DEADLINE_THREAD_NAME = "BackendClient-deadline";
+
+  // The compressed encodings accepted from hosts.
+  private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  // The number of bytes in the header of the zlib format.
+  private static final int ZLIB_HEADER_SIZE = 2;
+
+  private final ConcurrentMap<String, Semaphore> hostPermits;
+  private final Set<ConnectionDeadline> openConnections;
+  private final ConcurrentMap<String, TransferStats> hostTransferStats;
+  private final ConcurrentMap<String, TokenBucket> hostTokenBuckets;
+  private volatile double maxQueriesPerSecondPerHost;
+  private volatile int maxBurstPerHost;
+  private volatile int maxConnectionsPerHost;
+  private volatile int maxResultsPerPage;
+  private final ConcurrentMap<String, ThreadPoolExecutor> hostPageExecutors;
+  private volatile ThreadFactory pageThreadFactory;
+  private volatile boolean usingVirtualThreads;
+  private final ScheduledExecutorService deadlineExecutor;
+
+  /**
+   * Creates a new client that allows at most the given number of connections
+   * to be open to any one host.
+   *
+   * @param maxConnectionsPerHost the maximum number of connections per host
+   */
+  public BackendClient(int maxConnectionsPerHost) {
+    hostPermits = new ConcurrentHashMap<String, Semaphore>();
+    openConnections = Collections.newSetFromMap(
+        new ConcurrentHashMap<ConnectionDeadline, Boolean>());
+    hostTransferStats = new ConcurrentHashMap<String, TransferStats>();
+    hostTokenBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    hostPageExecutors = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+    maxBurstPerHost = DEFAULT_MAX_BURST_PER_HOST;
+    setMaxConnectionsPerHost(maxConnectionsPerHost);
+    maxResultsPerPage = DEFAULT_MAX_RESULTS_PER_PAGE;
+
+    pageThreadFactory = new ThreadFactory() {
+      private final AtomicInteger threadCount = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r,
+            PAGE_THREAD_NAME_PREFIX + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+
+    ScheduledThreadPoolExecutor deadlineThreadPool =
+        new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, DEADLINE_THREAD_NAME);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    // Most requests finish before their abort time, so discard their tasks.
+    deadlineThreadPool.setRemoveOnCancelPolicy(true);
+    deadlineExecutor = deadlineThreadPool;
+  }
+
+  /**
+   * @return {@code true} if pages of results are retrieved on virtual
+   *         threads, {@code false} otherwise
+   */
+  public boolean isUsingVirtualThreads() {
+    return usingVirtualThreads;
+  }
+
+  /**
+   * Retrieves later pages of results on virtual threads, if the runtime
+   * supports them. Otherwise pages are still retrieved on platform threads.
+   *
+   * @return {@code true} if pages are now retrieved on virtual threads,
+   *         {@code false} otherwise
+   */
+  public synchronized boolean useVirtualThreads() {
+    if (!usingVirtualThreads) {
+      ThreadFactory threadFactory =
+          VirtualThreads.newThreadFactory(PAGE_THREAD_NAME_PREFIX);
+      if (threadFactory != null) {
+        pageThreadFactory = threadFactory;
+        usingVirtualThreads = true;
+        // Idle platform threads time out, and are replaced by virtual threads.
+        for (ThreadPoolExecutor pageExecutor : hostPageExecutors.values()) {
+          pageExecutor.setThreadFactory(threadFactory);
+        }
+      }
+    }
+    return usingVirtualThreads;
+  }
+
+  /**
+   * @return the maximum number of connections open to any one host
+   */
+  public int getMaxConnectionsPerHost() {
+    return maxConnectionsPerHost;
+  }
+
+  /**
+   * Sets the maximum number of connections open to any one host. This only
+   * applies to hosts that have not yet been contacted.
+   *
+   * @param maxConnectionsPerHost the maximum number of connections per host
+   */
+  public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+    Preconditions.checkArgument(maxConnectionsPerHost > 0,
+        "maxConnectionsPerHost must be positive");
+
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+  }
+
+  /**
+   * @return the maximum number of results requested in one page
+   */
+  public int getMaxResultsPerPage() {
+    return maxResultsPerPage;
+  }
+
+  /**
+   * Sets the maximum number of results requested in one page. A request for
+   * more results is split into requests for consecutive pages.
+   *
+   * @param maxResultsPerPage the maximum number of results per page
+   */
+  public void setMaxResultsPerPage(int maxResultsPerPage) {
+    Preconditions.checkArgument(maxResultsPerPage > 0,
+        "maxResultsPerPage must be positive");
+
+    this.maxResultsPerPage = maxResultsPerPage;
+  }
+
+  /**
+   * Retrieves a page of results in another thread, so that it is retrieved
+   * concurrently with the other pages of the same request. The task should
+   * stop waiting for its host at the abort time of the request.
+   *
+   * Pages from each host are retrieved by at most as many threads as there
+   * are connections to that host, and the remaining pages wait in a queue.
+   * Cancelling the returned future with interruption closes the connection
+   * retrieving the page.
+   *
+   * @param uri the URI of the page
+   * @param pageTask the task retrieving the page
+   * @return the future page of results
+   */
+  public <T> Future<T> submitPage(URI uri, Callable<T> pageTask) {
+    AbortableTask<T> task = new AbortableTask<T>(this, pageTask);
+    getPageExecutor(uri).execute(task);
+    return task;
+  }
+
+  private ThreadPoolExecutor getPageExecutor(URI uri) {
+    String host = uri.getAuthority();
+    ThreadPoolExecutor pageExecutor = hostPageExecutors.get(host);
+    if (pageExecutor == null) {
+      int maxThreads = maxConnectionsPerHost;
+      ThreadPoolExecutor newPageExecutor = new ThreadPoolExecutor(
+          maxThreads, maxThreads, PAGE_THREAD_KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          pageThreadFactory);
+      newPageExecutor.allowCoreThreadTimeOut(true);
+      pageExecutor = hostPageExecutors.putIfAbsent(host, newPageExecutor);
+      if (pageExecutor == null) {
+        pageExecutor = newPageExecutor;
+      } else {
+        newPageExecutor.shutdown();
+      }
+    }
+    return pageExecutor;
+  }
+
+  /**
+   * @return the sustained number of requests per second allowed to any one
+   *         host, or {@code 0} if the rate of requests is not limited
+   */
+  public double getMaxQueriesPerSecondPerHost() {
+    return maxQueriesPerSecondPerHost;
+  }
+
+  /**
+   * @return the maximum number of requests to any one host in a burst
+   */
+  public int getMaxBurstPerHost() {
+    return maxBurstPerHost;
+  }
+
+  /**
+   * Sets the rate of requests allowed to any one host. This applies to all
+   * hosts immediately.
+   *
+   * @param maxQueriesPerSecond the sustained number of requests per second, or
+   *        {@code 0} if the rate of requests is not limited
+   * @param maxBurst the maximum number of requests in a burst
+   */
+  public void setRateLimit(double maxQueriesPerSecond, int maxBurst) {
+    Preconditions.checkArgument(maxQueriesPerSecond >= 0.0,
+        "maxQueriesPerSecond must not be negative");
+    Preconditions.checkArgument(maxBurst > 0, "maxBurst must be positive");
+
+    maxBurstPerHost = maxBurst;
+    maxQueriesPerSecondPerHost = maxQueriesPerSecond;
+  }
+
+  /**
+   * @return the statistics of transfers from each host contacted, ordered by
+   *         host
+   */
+  public Map<String, TransferStats> getTransferStats() {
+    return new TreeMap<String, TransferStats>(hostTransferStats);
+  }
+
+  /**
+   * Opens a stream to read the content at the given URI. The caller must close
+   * the returned stream, which returns its connection for reuse by the next
+   * request to the same host. If the host compressed the content, the stream
+   * decompresses it as it is read.
+   *
+   * @param uri the URI of the content
+   * @param abortTime the time, in milliseconds since the epoch, after which to
+   *        stop waiting for the host, or {@code 0} to wait indefinitely
+   * @return the stream of content
+   * @throws SocketTimeoutException if the abort time passes before the content
+   *         is available
+   * @throws IOException if the content could not be retrieved
+   */
+  public InputStream open(URI uri, long abortTime) throws IOException {
+    return open(uri, abortTime, new String[1]);
+  }
+
+  /**
+   * Reads all content at the given URI, such as a page of results displayed
+   * to an assessor.
+   *
+   * @param uri the URI of the content
+   * @param abortTime the time, in milliseconds since the epoch, after which to
+   *        stop waiting for the host, or {@code 0} to wait indefinitely
+   * @param maxBytes the maximum number of bytes of content read
+   * @return the content
+   * @throws SocketTimeoutException if the abort time passes before the content
+   *         is read
+   * @throws IOException if the content could not be read, or exceeds the
+   *         maximum number of bytes
+   */
+  public Content read(URI uri, long abortTime, int maxBytes)
+      throws IOException {
+    String[] contentType = new String[1];
+    InputStream in = open(uri, abortTime, contentType);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int numRead;
+      while ((numRead = in.read(buffer)) != -1) {
+        if (out.size() + numRead > maxBytes) {
+          throw new IOException("content exceeds " + maxBytes + " bytes");
+        }
+        out.write(buffer, 0, numRead);
+      }
+      return new Content(out.toByteArray(), contentType[0]);
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * Opens a stream to read the content at the given URI, storing the type of
+   * the content as the only element of the given array.
+   */
+  private InputStream open(URI uri, long abortTime, String[] contentType)
+      throws IOException {
+    takeToken(uri, abortTime);
+    Semaphore permits = getPermits(uri);
+    acquire(permits, abortTime);
+
+    boolean opened = false;
+    ConnectionDeadline deadline = null;
+    try {
+      URLConnection connection = uri.toURL().openConnection();
+      int timeout = getTimeout(abortTime);
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+      deadline = new ConnectionDeadline(connection, openConnections);
+      if (Thread.currentThread().isInterrupted()) {
+        // Aborted before the connection could be found by abortConnections.
+        throw new InterruptedIOException("request aborted");
+      }
+      if (abortTime != 0L) {
+        deadline.schedule(deadlineExecutor, timeout);
+      }
+
+      InputStream in;
+      try {
+        in = getInputStream(connection);
+      } catch (IOException e) {
+        throw deadline.translate(e);
+      }
+      in = new DeadlineInputStream(in, deadline);
+      contentType[0] = connection.getContentType();
+      InputStream content = decode(connection.getContentEncoding(), in,
+          getTransferStats(uri));
+      opened = true;
+      return new PermitReleasingInputStream(content, permits);
+    } finally {
+      if (!opened) {
+        if (deadline != null) {
+          deadline.cancel();
+        }
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Closes every connection opened by the given thread that is not yet closed,
+   * so that a read from its host blocked on such a connection fails with an
+   * {@link InterruptedIOException}. Interrupting the thread alone does not
+   * fail such a read.
+   *
+   * @param thread the thread that opened the connections
+   */
+  public void abortConnections(Thread thread) {
+    for (ConnectionDeadline deadline : openConnections) {
+      if (deadline.owner == thread) {
+        deadline.abort();
+      }
+    }
+  }
+
+  private Semaphore getPermits(URI uri) {
+    String host = uri.getAuthority();
+    Semaphore permits = hostPermits.get(host);
+    if (permits == null) {
+      Semaphore newPermits = new Semaphore(maxConnectionsPerHost, true);
+      permits = hostPermits.putIfAbsent(host, newPermits);
+      if (permits == null) {
+        permits = newPermits;
+      }
+    }
+    return permits;
+  }
+
+  /*
+   * Waits until a request may be sent to the host of the given URI without
+   * exceeding its rate limit.
+   */
+  private void takeToken(URI uri, long abortTime) throws IOException {
+    double maxQueriesPerSecond = maxQueriesPerSecondPerHost;
+    if (maxQueriesPerSecond == 0.0) {
+      return;
+    }
+
+    String host = uri.getAuthority();
+    TokenBucket tokenBucket = hostTokenBuckets.get(host);
+    if (tokenBucket == null) {
+      TokenBucket newTokenBucket = new TokenBucket(maxBurstPerHost);
+      tokenBucket = hostTokenBuckets.putIfAbsent(host, newTokenBucket);
+      if (tokenBucket == null) {
+        tokenBucket = newTokenBucket;
+      }
+    }
+
+    long maxWaitNanos = (abortTime == 0L) ? Long.MAX_VALUE :
+        TimeUnit.MILLISECONDS.toNanos(getTimeout(abortTime));
+    long waitNanos = tokenBucket.reserve(
+        maxQueriesPerSecond, maxBurstPerHost, maxWaitNanos);
+    if (waitNanos < 0L) {
+      getTransferStats(uri).rateLimitedCount.incrementAndGet();
+      throw new SocketTimeoutException(
+          "timed out waiting for the rate limit of the host");
+    } else if (waitNanos > 0L) {
+      getTransferStats(uri).delayedCount.incrementAndGet();
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "interrupted waiting for the rate limit of the host");
+      }
+    }
+  }
+
+  private TransferStats getTransferStats(URI uri) {
+    String host = uri.getAuthority();
+    TransferStats stats = hostTransferStats.get(host);
+    if (stats == null) {
+      TransferStats newStats = new TransferStats();
+      stats = hostTransferStats.putIfAbsent(host, newStats);
+      if (stats == null) {
+        stats = newStats;
+      }
+    }
+    return stats;
+  }
+
+  /*
+   * Returns a stream that decompresses the given stream of the given content
+   * encoding, and records the transfer with the given statistics once closed.
+   * If the header of compressed content cannot be read, the stream is closed.
+   */
+  private static InputStream decode(String contentEncoding, InputStream in,
+      TransferStats stats) throws IOException {
+    WireInputStream wireIn = new WireInputStream(in);
+    boolean compressed = true;
+    InputStream decodedIn = null;
+    try {
+      if ("gzip".equalsIgnoreCase(contentEncoding)
+          || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+        // Reads the gzip header from the host.
+        decodedIn = new GZIPInputStream(wireIn);
+      } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+        decodedIn = inflate(wireIn);
+      } else {
+        compressed = false;
+        decodedIn = wireIn;
+      }
+    } finally {
+      if (decodedIn == null) {
+        wireIn.close();
+      }
+    }
+    return new ContentInputStream(decodedIn, wireIn, compressed, stats);
+  }
+
+  /*
+   * Returns a stream that inflates the given stream of the deflate content
+   * encoding. This should be in the zlib format, but some hosts send raw
+   * deflate data instead, so the format is detected from the zlib header.
+   */
+  private static InputStream inflate(InputStream in) throws IOException {
+    PushbackInputStream pushbackIn =
+        new PushbackInputStream(in, ZLIB_HEADER_SIZE);
+    byte[] header = new byte[ZLIB_HEADER_SIZE];
+    int headerSize = 0;
+    while (headerSize < header.length) {
+      int numRead = pushbackIn.read(
+          header, headerSize, header.length - headerSize);
+      if (numRead == -1) {
+        break;
+      }
+      headerSize += numRead;
+    }
+    pushbackIn.unread(header, 0, headerSize);
+
+    // The compression method is 8, and the header is a multiple of 31.
+    boolean zlibWrapped = (headerSize == ZLIB_HEADER_SIZE)
+        && ((header[0] & 0x0F) == 8)
+        && ((((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0);
+    final Inflater inflater = new Inflater(!zlibWrapped);
+    return new InflaterInputStream(pushbackIn, inflater) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          // Not done by close when the inflater is given.
+          inflater.end();
+        }
+      }
+    };
+  }
+
+  private static void acquire(Semaphore permits, long abortTime)
+      throws IOException {
+    try {
+      if (abortTime == 0L) {
+        permits.acquire();
+      } else if (!permits.tryAcquire(
+          getTimeout(abortTime), TimeUnit.MILLISECONDS)) {
+        throw new SocketTimeoutException(
+            "timed out waiting for a connection to the host");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "interrupted waiting for a connection to the host");
+    }
+  }
+
+  /*
+   * Returns the timeout in milliseconds for the given abort time, or 0 if
+   * there is no abort time.
+   */
+  private static int getTimeout(long abortTime) throws SocketTimeoutException {
+    if (abortTime == 0L) {
+      return 0;
+    }
+
+    long timeRemaining = abortTime - System.currentTimeMillis();
+    if (timeRemaining <= 0L) {
+      throw new SocketTimeoutException("abort time passed");
+    }
+    return (int) Math.min(timeRemaining, Integer.MAX_VALUE);
+  }
+
+  private static InputStream getInputStream(URLConnection connection)
+      throws IOException {
+    try {
+      return connection.getInputStream();
+    } catch (IOException e) {
+      if (connection instanceof HttpURLConnection) {
+        // Read the error response so that the connection can be reused.
+        drainAndClose(((HttpURLConnection) connection).getErrorStream());
+      }
+      throw e;
+    }
+  }
+
+  private static void drainAndClose(InputStream in) {
+    if (in == null) {
+      return;
+    }
+
+    try {
+      byte[] buffer = new byte[4096];
+      while (in.read(buffer) != -1) {
+        // Discard the error response.
+      }
+      in.close();
+    } catch (IOException e) {
+      // Connection will not be reused, but there is nothing else to do.
+    }
+  }
+
+  /**
+   * Content read in full from a host.
+   */
+  public static final class Content {
+    private final byte[] bytes;
+    private final String contentType;
+
+    private Content(byte[] bytes, String contentType) {
+      this.bytes = bytes;
+      this.contentType = contentType;
+    }
+
+    /**
+     * @return the decompressed bytes of the content
+     */
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return the type of the content returned by the host, or {@code null}
+     *         if not known
+     */
+    public String getContentType() {
+      return contentType;
+    }
+  }
+
+  /**
+   * The statistics of the requests to, and responses read from, a single
+   * host.
+   */
+  public static final class TransferStats {
+    private final AtomicLong responseCount;
+    private final AtomicLong compressedCount;
+    private final AtomicLong transferredBytes;
+    private final AtomicLong contentBytes;
+    private final AtomicLong decompressNanos;
+    private final AtomicLong delayedCount;
+    private final AtomicLong rateLimitedCount;
+
+    private TransferStats() {
+      responseCount = new AtomicLong();
+      compressedCount = new AtomicLong();
+      transferredBytes = new AtomicLong();
+      contentBytes = new AtomicLong();
+      decompressNanos = new AtomicLong();
+      delayedCount = new AtomicLong();
+      rateLimitedCount = new AtomicLong();
+    }
+
+    /**
+     * @return the number of requests delayed by the rate limit of the host
+     */
+    public long getDelayedCount() {
+      return delayedCount.get();
+    }
+
+    /**
+     * @return the number of requests that timed out waiting for the rate
+     *         limit of the host
+     */
+    public long getRateLimitedCount() {
+      return rateLimitedCount.get();
+    }
+
+    /**
+     * @return the number of responses read
+     */
+    public long getResponseCount() {
+      return responseCount.get();
+    }
+
+    /**
+     * @return the number of responses that the host compressed
+     */
+    public long getCompressedCount() {
+      return compressedCount.get();
+    }
+
+    /**
+     * @return the number of bytes transferred from the host
+     */
+    public long getTransferredBytes() {
+      return transferredBytes.get();
+    }
+
+    /**
+     * @return the number of bytes of content read, after decompression
+     */
+    public long getContentBytes() {
+      return contentBytes.get();
+    }
+
+    /**
+     * @return the time spent decompressing responses, in milliseconds
+     */
+    public long getDecompressMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(decompressNanos.get());
+    }
+
+    private void record(boolean compressed, long transferred, long content,
+        long decompressTime) {
+      responseCount.incrementAndGet();
+      if (compressed) {
+        compressedCount.incrementAndGet();
+        decompressNanos.addAndGet(decompressTime);
+      }
+      transferredBytes.addAndGet(transferred);
+      contentBytes.addAndGet(content);
+    }
+  }
+
+  /*
+   * The tokens allowing requests to a single host. A request reserves a token
+   * that may not yet exist, and then waits until it would have been added, so
+   * that waiting requests take tokens in the order they arrive.
+   */
+  static final class TokenBucket {
+    // All fields below are guarded by this.
+    private double tokens;
+    private long refillTime;
+
+    TokenBucket(int maxBurst) {
+      this(maxBurst, System.nanoTime());
+    }
+
+    /*
+     * Creates a full bucket at the given time, as returned by nanoTime.
+     */
+    TokenBucket(int maxBurst, long now) {
+      tokens = maxBurst;
+      refillTime = now;
+    }
+
+    /*
+     * Reserves a token, returning the time in nanoseconds until it may be
+     * used, or -1 if that exceeds the given maximum and it was not reserved.
+     */
+    synchronized long reserve(double tokensPerSecond, int maxBurst,
+        long maxWaitNanos) {
+      return reserve(tokensPerSecond, maxBurst, maxWaitNanos,
+          System.nanoTime());
+    }
+
+    /*
+     * Reserves a token at the given time, as returned by nanoTime.
+     */
+    synchronized long reserve(double tokensPerSecond, int maxBurst,
+        long maxWaitNanos, long now) {
+      tokens = Math.min(
+          tokens + ((now - refillTime) * tokensPerSecond / 1e9), maxBurst);
+      refillTime = now;
+
+      long waitNanos = (tokens >= 1.0) ?
+          0L : (long) Math.ceil((1.0 - tokens) * 1e9 / tokensPerSecond);
+      if (waitNanos > maxWaitNanos) {
+        return -1L;
+      }
+      tokens -= 1.0;
+      return waitNanos;
+    }
+  }
+
+  /*
+   * Closes a connection once its abort time passes. The read timeout of a
+   * connection only bounds each read from it, so without this a host sending
+   * a few bytes at a time could hold the connection indefinitely. The
+   * connection is also closed if the task of the thread that opened it is
+   * aborted. Until closed, the deadline is in the given set of open
+   * connections.
+   */
+  private static final class ConnectionDeadline implements Runnable {
+    private final URLConnection connection;
+    private final Thread owner;
+    private final Set<ConnectionDeadline> openConnections;
+    private volatile Future<?> future;
+    private volatile boolean passed;
+    private volatile boolean aborted;
+
+    private ConnectionDeadline(URLConnection connection,
+        Set<ConnectionDeadline> openConnections) {
+      this.connection = connection;
+      this.openConnections = openConnections;
+      owner = Thread.currentThread();
+      openConnections.add(this);
+    }
+
+    private void schedule(ScheduledExecutorService executor, long delayMillis) {
+      future = executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void run() {
+      passed = true;
+      disconnect();
+    }
+
+    private void abort() {
+      aborted = true;
+      disconnect();
+    }
+
+    private void disconnect() {
+      if (connection instanceof HttpURLConnection) {
+        // Closes the socket, which fails any read blocked on it.
+        ((HttpURLConnection) connection).disconnect();
+      }
+    }
+
+    private void cancel() {
+      openConnections.remove(this);
+      Future<?> scheduled = future;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+    }
+
+    private void check() throws InterruptedIOException {
+      if (aborted) {
+        throw new InterruptedIOException("request aborted");
+      } else if (passed) {
+        throw new SocketTimeoutException("abort time passed");
+      }
+    }
+
+    /*
+     * Returns the exception to throw for the given exception reading from the
+     * connection, which was likely caused by closing it if the abort time has
+     * passed or it was aborted.
+     */
+    private IOException translate(IOException e) {
+      if (aborted && !(e instanceof InterruptedIOException)) {
+        InterruptedIOException abort =
+            new InterruptedIOException("request aborted");
+        abort.initCause(e);
+        return abort;
+      } else if (passed && !(e instanceof SocketTimeoutException)) {
+        SocketTimeoutException timeout =
+            new SocketTimeoutException("abort time passed");
+        timeout.initCause(e);
+        return timeout;
+      }
+      return e;
+    }
+  }
+
+  /*
+   * Fails every read from a connection once its abort time passes or it is
+   * aborted, and stops the deadline of the connection once closed.
+   */
+  private static final class DeadlineInputStream extends FilterInputStream {
+    private final ConnectionDeadline deadline;
+
+    private DeadlineInputStream(InputStream in, ConnectionDeadline deadline) {
+      super(in);
+      this.deadline = deadline;
+    }
+
+    @Override
+    public int read() throws IOException {
+      deadline.check();
+      try {
+        return super.read();
+      } catch (IOException e) {
+        throw deadline.translate(e);
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      deadline.check();
+      try {
+        return super.read(b, off, len);
+      } catch (IOException e) {
+        throw deadline.translate(e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      deadline.cancel();
+      super.close();
+    }
+  }
+
+  /*
+   * Counts the bytes read from the connection to the host, and the time spent
+   * waiting for them.
+   */
+  private static final class WireInputStream extends FilterInputStream {
+    private long byteCount;
+    private long readNanos;
+
+    private WireInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      long startTime = System.nanoTime();
+      try {
+        int b = super.read();
+        if (b != -1) {
+          ++byteCount;
+        }
+        return b;
+      } finally {
+        readNanos += System.nanoTime() - startTime;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long startTime = System.nanoTime();
+      try {
+        int numRead = super.read(b, off, len);
+        if (numRead > 0) {
+          byteCount += numRead;
+        }
+        return numRead;
+      } finally {
+        readNanos += System.nanoTime() - startTime;
+      }
+    }
+  }
+
+  /*
+   * Counts the bytes of content read, and records the transfer once closed.
+   * The time spent decompressing is the time spent reading content, less the
+   * time spent waiting for bytes from the host.
+   */
+  private static final class ContentInputStream extends FilterInputStream {
+    private final WireInputStream wireIn;
+    private final boolean compressed;
+    private final TransferStats stats;
+    private long byteCount;
+    private long readNanos;
+    private boolean recorded;
+
+    private ContentInputStream(InputStream in, WireInputStream wireIn,
+        boolean compressed, TransferStats stats) {
+      super(in);
+      this.wireIn = wireIn;
+      this.compressed = compressed;
+      this.stats = stats;
+    }
+
+    @Override
+    public int read() throws IOException {
+      long startTime = System.nanoTime();
+      try {
+        int b = super.read();
+        if (b != -1) {
+          ++byteCount;
+        }
+        return b;
+      } finally {
+        readNanos += System.nanoTime() - startTime;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long startTime = System.nanoTime();
+      try {
+        int numRead = super.read(b, off, len);
+        if (numRead > 0) {
+          byteCount += numRead;
+        }
+        return numRead;
+      } finally {
+        readNanos += System.nanoTime() - startTime;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!recorded) {
+          recorded = true;
+          stats.record(compressed, wireIn.byteCount, byteCount,
+              Math.max(readNanos - wireIn.readNanos, 0L));
+        }
+      }
+    }
+  }
+
+  /*
+   * Releases the permit for a connection to the host once the stream is
+   * closed. Closing the stream returns the connection to the pool of idle
+   * connections kept alive by the JRE.
+   */
+  private static final class PermitReleasingInputStream
+      extends FilterInputStream {
+    private final Semaphore permits;
+    private boolean released;
+
+    private PermitReleasingInputStream(InputStream in, Semaphore permits) {
+      super(in);
+      this.permits = permits;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        synchronized (this) {
+          if (!released) {
+            released = true;
+            permits.release();
+          }
+        }
+      }
+    }
+  }
+}
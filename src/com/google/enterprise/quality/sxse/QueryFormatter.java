@@ -17,47 +17,65 @@ package com.google.enterprise.quality.sxse;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 
-import org.jdom.Attribute;
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.CharBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * Formats queries to some index of search results.
  */
 public abstract class QueryFormatter {
+  private static final Logger LOGGER = Logger.getLogger(
+      QueryFormatter.class.getName());
+
   /**
    * Options used with a {@link QueryFormatter} to complete a query.
    */
   public static final class QueryOptions {
     private final String query;
     private final int numResults;
+    private final long abortTime;
 
     /**
-     * Creates new search options.
+     * Creates new search options that wait indefinitely for results.
      * 
      * @param query the query of the search
      * @param numResults the number of results to return
      */
     public QueryOptions(String query, int numResults) {
+      this(query, numResults, 0L);
+    }
+
+    /**
+     * Creates new search options.
+     * 
+     * @param query the query of the search
+     * @param numResults the number of results to return
+     * @param abortTime the time, in milliseconds since the epoch, after which
+     *        to stop waiting for results, or {@code 0} to wait indefinitely
+     */
+    public QueryOptions(String query, int numResults, long abortTime) {
       Preconditions.checkNotNull(numResults > 0);
 
       this.query = Preconditions.checkNotNull(query);
       this.numResults = numResults;
+      this.abortTime = abortTime;
     }
 
     /**
@@ -73,6 +91,14 @@ public abstract class QueryFormatter {
     public int getNumResults() {
       return numResults;
     }
+
+    /**
+     * @return the time, in milliseconds since the epoch, after which to stop
+     *         waiting for results, or {@code 0} to wait indefinitely
+     */
+    public long getAbortTime() {
+      return abortTime;
+    }
   }
 
   /**
@@ -97,6 +123,19 @@ public abstract class QueryFormatter {
     GSA,
   }
 
+  /*
+   * The client through which all query formatters retrieve results.
+   */
+  private static final BackendClient BACKEND_CLIENT =
+      new BackendClient(BackendClient.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+
+  /**
+   * @return the client through which all query formatters retrieve results
+   */
+  public static BackendClient getBackendClient() {
+    return BACKEND_CLIENT;
+  }
+
   /**
    * The empty query formatter, only to be used with
    * {@link ScoringPolicyProfile#EMPTY_PROFILE}.
@@ -190,6 +229,26 @@ public abstract class QueryFormatter {
     return new GsaFormatter(Preconditions.checkNotNull(hostQueryArgsPair));
   }
 
+  /**
+   * Parses the results in the XML returned by a GSA, so that the parser can be
+   * used without a host.
+   *
+   * @param in the stream of XML results
+   * @param maxResults the maximum number of results to parse
+   * @return the list of search results
+   * @throws XMLStreamException if the XML is malformed
+   */
+  static List<SearchResult> parseGsaResults(InputStream in, int maxResults)
+      throws XMLStreamException {
+    XMLStreamReader reader =
+        GsaFormatter.XML_INPUT_FACTORY.createXMLStreamReader(in);
+    try {
+      return GsaFormatter.buildResultList(reader, maxResults);
+    } finally {
+      reader.close();
+    }
+  }
+
   private QueryFormatter() {
     // Only allow private inner classes to subclass.
   }
@@ -270,7 +329,7 @@ public abstract class QueryFormatter {
     static final String ENCODED_DEFAULT_COLLECTION =
         SxseUtil.urlEncode("default_collection");
 
-    // XML element and attribute names traversed in the DOM hierarchy.
+    // XML element and attribute names traversed in the results.
     private static final String RESULTS = "RES";
     private static final String RESULT = "R";
     private static final String HAS = "HAS";
@@ -282,6 +341,18 @@ public abstract class QueryFormatter {
     private static final String SIZE = "SZ";
     private static final String INDENT = "L";
 
+    /*
+     * The factory for readers of XML results. Results are never validated, and
+     * we do not resolve any DTD or external entities they reference.
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+    static {
+      XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+      XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      XML_INPUT_FACTORY.setProperty(
+          XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
     private final HostQueryArgsPair hostQueryArgsPair;
 
     private GsaFormatter(HostQueryArgsPair hostQueryArgsPair) {
@@ -302,13 +373,15 @@ public abstract class QueryFormatter {
 
     public URI createQueryUri(QueryOptions queryOptions) {
       try {
-        return new URI(createUri(queryOptions, false));
+        return new URI(createUri(queryOptions, false,
+            0, queryOptions.getNumResults()));
       } catch (URISyntaxException e) {
         throw new RuntimeException("should never happen");
       }
     }
 
-    private String createUri(QueryOptions queryOptions, boolean useXml) {
+    private String createUri(QueryOptions queryOptions, boolean useXml,
+        int start, int numResults) {
       StringBuilder sb = new StringBuilder();
       String host = hostQueryArgsPair.getHost();
       if (!host.startsWith("http://")) {
@@ -325,8 +398,11 @@ public abstract class QueryFormatter {
           SxseUtil.urlEncode(frontend) : ENCODED_DEFAULT_FRONTEND);
       sb.append("&site=").append((collection.length() > 0) ?
           SxseUtil.urlEncode(collection) : ENCODED_DEFAULT_COLLECTION);
-      // Specify the maximum number of results to return.
-      sb.append("&num=").append(queryOptions.getNumResults());
+      // Specify the offset of the first result, and how many to return.
+      if (start > 0) {
+        sb.append("&start=").append(start);
+      }
+      sb.append("&num=").append(numResults);
       // Specify XML results if necessary.
       sb.append("&output=xml_no_dtd");
       if (!useXml) {
@@ -345,111 +421,240 @@ public abstract class QueryFormatter {
     }
 
     public List<SearchResult> getSearchResults(QueryOptions queryOptions) {
+      int numResults = queryOptions.getNumResults();
+      int pageSize = BACKEND_CLIENT.getMaxResultsPerPage();
+      if (numResults <= pageSize) {
+        return SearchResultList.copyOf(
+            getPage(queryOptions, 0, numResults));
+      }
+      return getPages(queryOptions, pageSize);
+    }
+
+    /*
+     * Retrieves the results one page at a time, requesting all pages at once
+     * and merging them in order. If a page after the first fails or is not
+     * retrieved by the abort time, then the results of all earlier pages are
+     * returned.
+     */
+    private List<SearchResult> getPages(final QueryOptions queryOptions,
+        int pageSize) {
+      int numResults = queryOptions.getNumResults();
+      List<Future<List<SearchResult>>> pageFutures =
+          new ArrayList<Future<List<SearchResult>>>();
+      List<Integer> pageSizes = new ArrayList<Integer>();
+      for (int start = pageSize; start < numResults; start += pageSize) {
+        final int pageStart = start;
+        final int pageNumResults = Math.min(pageSize, numResults - start);
+        pageFutures.add(BACKEND_CLIENT.submitPage(
+            createPageUri(queryOptions, pageStart, pageNumResults),
+            new Callable<List<SearchResult>>() {
+              public List<SearchResult> call() {
+                return getPage(queryOptions, pageStart, pageNumResults);
+              }
+            }));
+        pageSizes.add(pageNumResults);
+      }
+
+      try {
+        // Retrieve the first page in this thread; if it fails, so do all.
+        List<SearchResult> page = getPage(queryOptions, 0, pageSize);
+        SearchResultList.Builder results =
+            new SearchResultList.Builder(numResults);
+        addAll(results, page);
+        int expectedSize = pageSize;
+        for (int i = 0; i < pageFutures.size(); ++i) {
+          if (page.size() < expectedSize) {
+            // The last page was not full, so no results follow it.
+            break;
+          }
+          page = getPage(pageFutures.get(i), queryOptions.getAbortTime());
+          if (page == null) {
+            break;
+          }
+          addAll(results, page);
+          expectedSize = pageSizes.get(i);
+        }
+        return results.build();
+      } finally {
+        // Stop retrieving any pages that are no longer needed.
+        for (Future<List<SearchResult>> pageFuture : pageFutures) {
+          pageFuture.cancel(true);
+        }
+      }
+    }
+
+    private static void addAll(SearchResultList.Builder builder,
+        List<SearchResult> results) {
+      for (SearchResult result : results) {
+        builder.add(result);
+      }
+    }
+
+    /*
+     * Returns the page retrieved by the given future, or null if it failed or
+     * was not retrieved by the abort time.
+     */
+    private static List<SearchResult> getPage(
+        Future<List<SearchResult>> pageFuture, long abortTime) {
+      try {
+        if (abortTime == 0L) {
+          return pageFuture.get();
+        }
+        long timeRemaining = Math.max(
+            abortTime - System.currentTimeMillis(), 0L);
+        return pageFuture.get(timeRemaining, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        // Every request waiting on these results was cancelled.
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(new InterruptedIOException(
+            "interrupted waiting for a page of results"));
+      } catch (ExecutionException e) {
+        LOGGER.log(Level.FINE, "getPage failed, returning earlier pages",
+            e.getCause());
+      } catch (TimeoutException e) {
+        LOGGER.fine("getPage timed out, returning earlier pages");
+      }
+      return null;
+    }
+
+    private URI createPageUri(QueryOptions queryOptions, int start,
+        int numResults) {
       // Constructed string should force returning XML results.
-      String getString = createUri(queryOptions, true);
-      URI getUrl = null;
+      String getString = createUri(queryOptions, true, start, numResults);
       try {
-        getUrl = new URI(getString);
+        return new URI(getString);
       } catch (URISyntaxException e) {
         throw new RuntimeException(e);
       }
+    }
 
-      // First, retrieve XML results from the given URL.
-      String xmlResults = getXmlResults(getUrl);
-      if (xmlResults == null) {
-        return null;
-      }
+    private List<SearchResult> getPage(QueryOptions queryOptions, int start,
+        int numResults) {
+      URI getUrl = createPageUri(queryOptions, start, numResults);
 
-      // Convert XML results from string form to a native Document object.
-      StringReader sr = new StringReader(xmlResults);
-      Document doc = null;
+      // Parse the XML results as they are read from the host, instead of
+      // buffering the response and building a document from it first.
+      InputStream in = null;
+      XMLStreamReader reader = null;
       try {
-        doc = new SAXBuilder(false).build(sr);
+        in = BACKEND_CLIENT.open(getUrl, queryOptions.getAbortTime());
+        reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+        return buildResultList(reader, numResults);
       } catch (IOException e) {
+        // Could not retrieve all results, so fail the retrieval.
         throw new RuntimeException(e);
-      } catch (JDOMException e) {
+      } catch (XMLStreamException e) {
         throw new RuntimeException(e);
+      } finally {
+        close(reader, in);
       }
-
-      // Create a list of SearchResult objects from the Document object.
-      return buildResultList(doc);
     }
 
-    private static String getXmlResults(URI url) {
+    private static void close(XMLStreamReader reader, InputStream in) {
       try {
-        BufferedReader reader = new BufferedReader(
-            new InputStreamReader(url.toURL().openStream()));
-        StringWriter writer = new StringWriter();
-        
-        CharBuffer buffer = CharBuffer.allocate(16 * 1024);
-        while (true) {
-          int bytesRead = reader.read(buffer);
-          if (bytesRead == -1) {
-            break;
-          }
-          buffer.flip();
-          writer.append(buffer, 0, bytesRead);
+        if (reader != null) {
+          reader.close();
+        }
+      } catch (XMLStreamException e) {
+        // Closing the reader does not close the stream, so continue.
+      }
+      try {
+        if (in != null) {
+          in.close();
         }
-
-        return writer.toString();
       } catch (IOException e) {
-        // Could not retrieve all results, so will return null.
-        throw new RuntimeException(e);
+        // Already have the results or failed, so ignore.
       }
     }
 
     /*
-     * Convert all result elements in the given document into a list of
-     * <code>SearchResult</code> instances.
+     * Convert the result elements read from the given reader into a list of
+     * <code>SearchResult</code> instances. Reading stops once the given
+     * maximum number of results are built, so the remainder of the response is
+     * never parsed.
      */
-    public static List<SearchResult> buildResultList(Document doc) {
-      Element rootElement = doc.getRootElement().getChild(RESULTS);
-      if (rootElement == null) {
-        // If no RES tag, no results.
-        return Collections.emptyList();
-      }
-
-      List<?> resElements = rootElement.getChildren(RESULT);
-      if (resElements.isEmpty()) {
-        // No results.
-        return Collections.emptyList();
-      }
-
-      // Build results elements.
-      List<SearchResult> results =
-          new ArrayList<SearchResult>(resElements.size());
-      for (Iterator<?> i = resElements.iterator(); i.hasNext(); ) {
-        SearchResult nextResult = buildResult((Element) i.next());
-        if (nextResult != null) {
-          results.add(nextResult);
+    static List<SearchResult> buildResultList(XMLStreamReader reader,
+        int maxResults) throws XMLStreamException {
+      List<SearchResult> results = new ArrayList<SearchResult>(maxResults);
+      // The depth of the current element, where the root element is 1.
+      int depth = 0;
+      boolean inResults = false;
+      while (reader.hasNext() && (results.size() < maxResults)) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          ++depth;
+          String name = reader.getLocalName();
+          if ((depth == 2) && RESULTS.equals(name)) {
+            inResults = true;
+          } else if (inResults && (depth == 3) && RESULT.equals(name)) {
+            // Reads up to and including the closing tag of the result.
+            results.add(buildResult(reader));
+            --depth;
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          if (inResults && (depth == 2)) {
+            // Closed the RES tag, so no more results.
+            break;
+          }
+          --depth;
         }
       }
+      // If no RES tag or R tags, no results.
       return results;
     }
 
     /*
      * Convert a single result element into a <code>SearchResult</code>
-     * instance.
+     * instance. The reader must be positioned at the start of the result
+     * element, and is left positioned at its end.
      */
-    private static SearchResult buildResult(Element resElement) {
-      // Get title.
-      String title = null;
-      Element titleChild = resElement.getChild(TITLE);
-      if (titleChild != null) {
-        title = titleChild.getValue();
+    private static SearchResult buildResult(XMLStreamReader reader)
+        throws XMLStreamException {
+      // Get whether crowded or not.
+      boolean crowded = false;
+      String indentValue = reader.getAttributeValue(null, INDENT);
+      if (indentValue != null) {
+        crowded = (Integer.valueOf(indentValue) > 1);
       }
 
-      // Get snippet.
+      String title = null;
       String snippet = null;
-      Element snippetChild = resElement.getChild(SNIPPET);
-      if (snippetChild != null) {
-        snippet = snippetChild.getValue();
-      } else {
-        snippet = "";
+      String urlString = null;
+      String size = null;
+      // The depth of the current element, where the result element is 1.
+      int depth = 1;
+      boolean inHas = false;
+      while (depth > 0) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String name = reader.getLocalName();
+          if ((depth == 1) && (title == null) && TITLE.equals(name)) {
+            title = readText(reader);
+          } else if ((depth == 1) && (snippet == null) &&
+              SNIPPET.equals(name)) {
+            snippet = readText(reader);
+          } else if ((depth == 1) && (urlString == null) &&
+              URL.equals(name)) {
+            urlString = readText(reader);
+          } else {
+            ++depth;
+            if (depth == 2) {
+              inHas = HAS.equals(name);
+            } else if ((depth == 3) && inHas && (size == null) &&
+                CACHE.equals(name)) {
+              // Get size.
+              size = reader.getAttributeValue(null, SIZE);
+            }
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          --depth;
+        }
       }
 
       // Get URL.
-      String urlString = resElement.getChild(URL).getValue();
+      if (urlString == null) {
+        throw new XMLStreamException("result has no URL", reader.getLocation());
+      }
       URI url = null;
       try {
         url = new URI(urlString);
@@ -459,31 +664,46 @@ public abstract class QueryFormatter {
       if (title == null) {
         title = urlString;
       }
-
-      // Get size.
-      String size = null;
-      Element hasChild = resElement.getChild(HAS);
-      if (hasChild != null) {
-        Element cacheChild = hasChild.getChild(CACHE);
-        if (cacheChild != null) {
-          size = cacheChild.getAttributeValue(SIZE);
-        }
+      if (snippet == null) {
+        snippet = "";
       }
       if (size == null) {
         size = "Size unknown";
       }
 
-      // Get whether crowded or not.
-      boolean crowded = false;
-      Attribute indentAttr = resElement.getAttribute(INDENT);
-      if (indentAttr != null) {
-        String indentValue = indentAttr.getValue();
-        crowded = (indentValue != null) && (Integer.valueOf(indentValue) > 1);
-      }
-
       return new SearchResult(url, title, snippet, size, crowded);
     }
 
+    /*
+     * Returns the text content of the element at which the reader is
+     * positioned, including the text of all descendant elements. The reader is
+     * left positioned at the end of the element.
+     */
+    private static String readText(XMLStreamReader reader)
+        throws XMLStreamException {
+      StringBuilder sb = new StringBuilder();
+      int depth = 1;
+      while (depth > 0) {
+        switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          ++depth;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          --depth;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          sb.append(reader.getTextCharacters(),
+              reader.getTextStart(), reader.getTextLength());
+          break;
+        default:
+          // Ignore comments and processing instructions.
+        }
+      }
+      return sb.toString();
+    }
+
     @Override
     public boolean equals(Object obj) {
       if (obj == this) {
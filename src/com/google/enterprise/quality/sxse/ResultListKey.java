@@ -0,0 +1,70 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Identifies a list of results by the query formatter that retrieves it, the
+ * query, and the maximum number of results requested.
+ */
+public final class ResultListKey {
+  private final QueryFormatter queryFormatter;
+  private final String query;
+  private final int numResults;
+
+  /**
+   * Creates a new key for a list of results.
+   *
+   * @param queryFormatter the query formatter that retrieves the results
+   * @param query the query
+   * @param numResults the maximum number of results requested
+   */
+  public ResultListKey(QueryFormatter queryFormatter, String query,
+      int numResults) {
+    this.queryFormatter = Preconditions.checkNotNull(queryFormatter);
+    this.query = Preconditions.checkNotNull(query);
+    this.numResults = numResults;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    } else if (obj instanceof ResultListKey) {
+      ResultListKey key = (ResultListKey) obj;
+      return (queryFormatter.equals(key.queryFormatter)
+          && query.equals(key.query) && (numResults == key.numResults));
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(queryFormatter, query, numResults);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append('{');
+    sb.append("queryFormatter=").append(queryFormatter);
+    sb.append(", query=").append(query);
+    sb.append(", numResults=").append(numResults);
+    sb.append('}');
+    return sb.toString();
+  }
+}
@@ -0,0 +1,184 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse;
+
+import com.google.common.base.Preconditions;
+import com.google.enterprise.quality.sxse.hashers.Hasher;
+import com.google.enterprise.quality.sxse.hashers.HasherFactorySha1;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of search results that carries its fingerprint, which is
+ * the SHA-1 hash of every result as computed by
+ * {@link SearchResult#updateHasher(Hasher)}. The fingerprint is computed once
+ * as the list is built, typically while the results are parsed, and is then
+ * reused to compare lists and as the key under which the list is stored.
+ *
+ * Two lists of this type with different fingerprints are unequal without
+ * comparing their results. The fingerprint does not separate the fields of a
+ * result, so lists with equal fingerprints still compare their results. A list
+ * of this type is equal to any other list containing equal results in the same
+ * order, as required by {@link List#equals(Object)}.
+ */
+public final class SearchResultList extends AbstractList<SearchResult>
+    implements RandomAccess {
+  private static final char[] HEX_CHARS = {
+    '0', '1', '2', '3', '4', '5', '6', '7',
+    '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+  };
+
+  private final SearchResult[] results;
+  private final String fingerprint;
+  private final int hashCode;
+
+  private SearchResultList(SearchResult[] results, byte[] fingerprint) {
+    this.results = results;
+    this.fingerprint = toHexString(fingerprint);
+    // Precompute the hash code required by List, as the list is immutable.
+    hashCode = super.hashCode();
+  }
+
+  /**
+   * Returns a list containing the given search results. If the given list is
+   * already a {@code SearchResultList}, it is returned, and its fingerprint is
+   * not computed again.
+   *
+   * @param results the search results
+   * @return the list of search results
+   */
+  public static SearchResultList copyOf(List<SearchResult> results) {
+    if (results instanceof SearchResultList) {
+      return (SearchResultList) results;
+    }
+
+    Builder builder = new Builder(results.size());
+    for (SearchResult result : results) {
+      builder.add(result);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the fingerprint of the given list of search results, reusing the
+   * fingerprint of a {@code SearchResultList}.
+   *
+   * @param results the search results
+   * @return the fingerprint, as a lowercase hexadecimal string
+   */
+  public static String getFingerprint(List<SearchResult> results) {
+    return copyOf(results).getFingerprint();
+  }
+
+  /**
+   * @return the fingerprint of this list, as a lowercase hexadecimal string
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  @Override
+  public SearchResult get(int index) {
+    Preconditions.checkElementIndex(index, results.length);
+    return results[index];
+  }
+
+  @Override
+  public int size() {
+    return results.length;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    } else if ((obj instanceof SearchResultList)
+        && !fingerprint.equals(((SearchResultList) obj).fingerprint)) {
+      return false;
+    }
+    return super.equals(obj);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  private static String toHexString(byte[] array) {
+    char[] chars = new char[array.length * 2];
+    for (int i = 0; i < array.length; ++i) {
+      chars[2 * i] = HEX_CHARS[(array[i] >>> 4) & 0xF];
+      chars[2 * i + 1] = HEX_CHARS[array[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Builds a {@link SearchResultList}, updating its fingerprint as each result
+   * is added.
+   */
+  public static final class Builder {
+    private final List<SearchResult> results;
+    private final Hasher hasher;
+    private boolean built;
+
+    /**
+     * Creates a new builder.
+     *
+     * @param expectedSize the expected number of results
+     */
+    public Builder(int expectedSize) {
+      results = new ArrayList<SearchResult>(expectedSize);
+      hasher = HasherFactorySha1.INSTANCE.getHasher();
+    }
+
+    /**
+     * Adds the given result to the end of the list.
+     *
+     * @param result the search result
+     * @return this builder
+     */
+    public Builder add(SearchResult result) {
+      Preconditions.checkState(!built, "list already built");
+      Preconditions.checkNotNull(result);
+      result.updateHasher(hasher);
+      results.add(result);
+      return this;
+    }
+
+    /**
+     * @return the number of results added
+     */
+    public int size() {
+      return results.size();
+    }
+
+    /**
+     * Returns the list of all results added. This builder cannot be used
+     * afterward.
+     *
+     * @return the list of search results
+     */
+    public SearchResultList build() {
+      Preconditions.checkState(!built, "list already built");
+      built = true;
+      return new SearchResultList(
+          results.toArray(new SearchResult[results.size()]), hasher.finish());
+    }
+  }
+}
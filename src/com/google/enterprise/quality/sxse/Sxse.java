@@ -18,6 +18,8 @@ import com.google.enterprise.quality.sxse.servlet.AdministratorUserTypeFilter;
 import com.google.enterprise.quality.sxse.servlet.AnalyticsServlet;
 import com.google.enterprise.quality.sxse.servlet.AssessorUserTypeFilter;
 import com.google.enterprise.quality.sxse.servlet.Banner;
+import com.google.enterprise.quality.sxse.servlet.FrameProxy;
+import com.google.enterprise.quality.sxse.servlet.FrameProxyServlet;
 import com.google.enterprise.quality.sxse.servlet.HistoryServlet;
 import com.google.enterprise.quality.sxse.servlet.JudgmentServlet;
 import com.google.enterprise.quality.sxse.servlet.LoginServlet;
@@ -25,8 +27,15 @@ import com.google.enterprise.quality.sxse.servlet.LogoutServlet;
 import com.google.enterprise.quality.sxse.servlet.PasswordServlet;
 import com.google.enterprise.quality.sxse.servlet.PolicyProfilesServlet;
 import com.google.enterprise.quality.sxse.servlet.PreferencesQueryChooser;
+import com.google.enterprise.quality.sxse.servlet.PrescreenJob;
+import com.google.enterprise.quality.sxse.servlet.PrescreenedQueryChooser;
 import com.google.enterprise.quality.sxse.servlet.QueryChooser;
 import com.google.enterprise.quality.sxse.servlet.QuerySetsServlet;
+import com.google.enterprise.quality.sxse.servlet.ResultRetriever;
+import com.google.enterprise.quality.sxse.servlet.ResultSnapshotsServlet;
+import com.google.enterprise.quality.sxse.servlet.SearchResultCache;
+import com.google.enterprise.quality.sxse.servlet.ServerJudgmentStrategy;
+import com.google.enterprise.quality.sxse.servlet.SnapshotJob;
 import com.google.enterprise.quality.sxse.servlet.UnjudgedStorageManager;
 import com.google.enterprise.quality.sxse.servlet.UsersServlet;
 import com.google.enterprise.quality.sxse.storage.CachingStorageManager;
@@ -43,8 +52,10 @@ import org.mortbay.jetty.servlet.DefaultServlet;
 import org.mortbay.jetty.servlet.FilterHolder;
 import org.mortbay.jetty.servlet.ServletHolder;
 import org.mortbay.servlet.MultiPartFilter;
+import org.mortbay.thread.QueuedThreadPool;
 
 import java.io.File;
+import java.util.logging.Logger;
 
 import javax.servlet.Filter;
 
@@ -52,17 +63,95 @@ import javax.servlet.Filter;
  * Driver program for SxSE.
  */
 public class Sxse {
+  private static final Logger LOGGER = Logger.getLogger(Sxse.class.getName());
+
   public static void main(String[] args) throws Exception {
     int port = 8000;
+    int httpThreads = 0;
+    boolean virtualHttpThreads = false;
+    boolean virtualRetrievalThreads = false;
     String storageDir = null;
+    int retrievalThreadsPerHost = ResultRetriever.DEFAULT_THREADS_PER_HOST;
+    int retrievalQueueDepthPerHost =
+        ResultRetriever.DEFAULT_QUEUE_DEPTH_PER_HOST;
+    long resultCacheTtlMillis = SearchResultCache.DEFAULT_TTL_MILLIS;
+    long resultCacheSizeBytes = SearchResultCache.DEFAULT_MAX_SIZE_BYTES;
+    boolean prefetchNextQuery = false;
+    boolean streamJudgmentPages = false;
+    boolean proxyFrames = false;
+    long frameCacheTtlMillis = FrameProxy.DEFAULT_TTL_MILLIS;
+    long frameCacheSizeBytes = FrameProxy.DEFAULT_MAX_SIZE_BYTES;
+    int adaptiveTimeoutPercentile = 0;
+    long adaptiveTimeoutMarginMillis =
+        ResultRetriever.DEFAULT_ADAPTIVE_TIMEOUT_MARGIN_MILLIS;
+    int hedgePercentile = 0;
+    int maxHedgePercent = ResultRetriever.DEFAULT_MAX_HEDGE_PERCENT;
+    double maxQueriesPerSecondPerHost = 0.0;
+    int maxBurstPerHost = BackendClient.DEFAULT_MAX_BURST_PER_HOST;
+    int snapshotParallelism = SnapshotJob.DEFAULT_PARALLELISM;
+    int snapshotQueriesPerSecond = SnapshotJob.DEFAULT_QUERIES_PER_SECOND;
+    int prescreenParallelism = PrescreenJob.DEFAULT_PARALLELISM;
+    int prescreenQueriesPerSecond = PrescreenJob.DEFAULT_QUERIES_PER_SECOND;
 
     for (String arg : args) {
       String[] tokens = arg.split("=", 2);
       System.out.println("key = " + tokens[0]);
       if (tokens[0].equals("--port")) {
         port = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--http_threads")) {
+        httpThreads = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--virtual_http_threads")) {
+        virtualHttpThreads = Boolean.valueOf(tokens[1]).booleanValue();
+      } else if (tokens[0].equals("--virtual_retrieval_threads")) {
+        virtualRetrievalThreads = Boolean.valueOf(tokens[1]).booleanValue();
       } else if (tokens[0].equals("--storage")) {
         storageDir = tokens[1];
+      } else if (tokens[0].equals("--max_connections_per_host")) {
+        QueryFormatter.getBackendClient().setMaxConnectionsPerHost(
+            Integer.valueOf(tokens[1]).intValue());
+      } else if (tokens[0].equals("--max_results_per_page")) {
+        QueryFormatter.getBackendClient().setMaxResultsPerPage(
+            Integer.valueOf(tokens[1]).intValue());
+      } else if (tokens[0].equals("--max_queries_per_sec_per_host")) {
+        maxQueriesPerSecondPerHost = Double.valueOf(tokens[1]).doubleValue();
+      } else if (tokens[0].equals("--max_burst_per_host")) {
+        maxBurstPerHost = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--retrieval_threads_per_host")) {
+        retrievalThreadsPerHost = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--retrieval_queue_depth_per_host")) {
+        retrievalQueueDepthPerHost = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--result_cache_ttl_secs")) {
+        resultCacheTtlMillis = 1000L * Long.valueOf(tokens[1]).longValue();
+      } else if (tokens[0].equals("--result_cache_size_mb")) {
+        resultCacheSizeBytes =
+            1024L * 1024L * Long.valueOf(tokens[1]).longValue();
+      } else if (tokens[0].equals("--prefetch_next_query")) {
+        prefetchNextQuery = Boolean.valueOf(tokens[1]).booleanValue();
+      } else if (tokens[0].equals("--stream_judgment_pages")) {
+        streamJudgmentPages = Boolean.valueOf(tokens[1]).booleanValue();
+      } else if (tokens[0].equals("--proxy_frames")) {
+        proxyFrames = Boolean.valueOf(tokens[1]).booleanValue();
+      } else if (tokens[0].equals("--frame_cache_ttl_secs")) {
+        frameCacheTtlMillis = 1000L * Long.valueOf(tokens[1]).longValue();
+      } else if (tokens[0].equals("--frame_cache_size_mb")) {
+        frameCacheSizeBytes =
+            1024L * 1024L * Long.valueOf(tokens[1]).longValue();
+      } else if (tokens[0].equals("--adaptive_timeout_percentile")) {
+        adaptiveTimeoutPercentile = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--adaptive_timeout_margin_ms")) {
+        adaptiveTimeoutMarginMillis = Long.valueOf(tokens[1]).longValue();
+      } else if (tokens[0].equals("--hedge_percentile")) {
+        hedgePercentile = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--max_hedge_percent")) {
+        maxHedgePercent = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--snapshot_parallelism")) {
+        snapshotParallelism = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--snapshot_queries_per_sec")) {
+        snapshotQueriesPerSecond = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--prescreen_parallelism")) {
+        prescreenParallelism = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--prescreen_queries_per_sec")) {
+        prescreenQueriesPerSecond = Integer.valueOf(tokens[1]).intValue();
       }
     }
 
@@ -71,27 +160,122 @@ public class Sxse {
       return;
     }
 
-    Sxse sxse = new Sxse(port);
-    sxse.setup(new File(storageDir));
+    // Keep alive as many idle connections to each host as may be open at
+    // once. The JRE reads this property for all connections of the process,
+    // and only before the first connection is made, so it is set here.
+    System.setProperty("http.maxConnections", String.valueOf(
+        QueryFormatter.getBackendClient().getMaxConnectionsPerHost()));
+    QueryFormatter.getBackendClient().setRateLimit(
+        maxQueriesPerSecondPerHost, maxBurstPerHost);
+    ResultRetriever resultRetriever = new ResultRetriever(
+        retrievalThreadsPerHost, retrievalQueueDepthPerHost,
+        new SearchResultCache(resultCacheTtlMillis, resultCacheSizeBytes));
+    if (virtualRetrievalThreads) {
+      if (resultRetriever.useVirtualThreads()) {
+        QueryFormatter.getBackendClient().useVirtualThreads();
+      } else {
+        LOGGER.warning("virtual threads are not supported by this runtime, "
+            + "retrieving results on platform threads");
+      }
+    }
+    resultRetriever.setAdaptiveTimeout(
+        adaptiveTimeoutPercentile, adaptiveTimeoutMarginMillis);
+    resultRetriever.setHedging(hedgePercentile, maxHedgePercent);
+
+    Sxse sxse = new Sxse(port, httpThreads, virtualHttpThreads);
+    FrameProxy frameProxy = proxyFrames ?
+        new FrameProxy(frameCacheTtlMillis, frameCacheSizeBytes) : null;
+    sxse.setup(new File(storageDir), resultRetriever, frameProxy,
+        prefetchNextQuery, streamJudgmentPages, snapshotParallelism,
+        snapshotQueriesPerSecond, prescreenParallelism,
+        prescreenQueriesPerSecond);
     sxse.start();
   }
 
   private static void printUsage() {
     System.err.println("Command line arguments:\n"
         + "--port: port number to listen for HTTP requests on\n"
-        + "--storage_dir: directory where data should be saved\n");
+        + "--storage_dir: directory where data should be saved\n"
+        + "--http_threads: maximum number of threads handling HTTP requests; "
+        + "judgment requests waiting for results do not hold a thread\n"
+        + "--virtual_http_threads: whether to handle each HTTP request on a "
+        + "virtual thread, if supported by the runtime\n"
+        + "--virtual_retrieval_threads: whether to retrieve results on virtual "
+        + "threads, if supported by the runtime\n"
+        + "--max_connections_per_host: maximum number of connections open to "
+        + "each host returning results\n"
+        + "--max_results_per_page: maximum number of results requested at "
+        + "once; more results are requested as concurrent pages\n"
+        + "--max_queries_per_sec_per_host: maximum sustained number of "
+        + "requests per second to each host, or 0 if unlimited\n"
+        + "--max_burst_per_host: maximum number of requests to each host in "
+        + "a burst when requests are rate limited\n"
+        + "--retrieval_threads_per_host: number of threads retrieving results "
+        + "from each host\n"
+        + "--retrieval_queue_depth_per_host: number of requests that may wait "
+        + "for a thread retrieving results from each host\n"
+        + "--result_cache_ttl_secs: seconds for which retrieved results are "
+        + "cached, or 0 to disable caching\n"
+        + "--result_cache_size_mb: maximum size of cached results in "
+        + "megabytes\n"
+        + "--prefetch_next_query: whether to retrieve results for the next "
+        + "query while the assessor judges the current query\n"
+        + "--stream_judgment_pages: whether to write the judgment page before "
+        + "its results are retrieved, displaying each list of results once it "
+        + "is retrieved\n"
+        + "--proxy_frames: whether pages displayed in iframes when results "
+        + "are not stored are retrieved through SxSE, instead of directly by "
+        + "the browser of the assessor; such pages cannot run scripts, so "
+        + "result pages that rely on JavaScript will not display correctly\n"
+        + "--frame_cache_ttl_secs: seconds for which pages retrieved through "
+        + "SxSE are cached, or 0 to disable caching\n"
+        + "--frame_cache_size_mb: maximum size of cached pages in megabytes\n"
+        + "--adaptive_timeout_percentile: if not 0, wait for results from "
+        + "each profile for this percentile of its recent latencies, at most "
+        + "the result retrieval timeout\n"
+        + "--adaptive_timeout_margin_ms: milliseconds added to the percentile "
+        + "of latencies when timeouts are adaptive\n"
+        + "--hedge_percentile: if not 0, retry a retrieval that has not "
+        + "finished after this percentile of its profile's recent latencies\n"
+        + "--max_hedge_percent: maximum percentage of retrievals that are "
+        + "retried\n"
+        + "--snapshot_parallelism: number of results retrieved at once when "
+        + "saving snapshots of results\n"
+        + "--snapshot_queries_per_sec: maximum number of results retrieved "
+        + "per second when saving snapshots of results\n"
+        + "--prescreen_parallelism: number of queries whose results are "
+        + "compared at once when finding queries with identical results\n"
+        + "--prescreen_queries_per_sec: maximum number of queries whose "
+        + "results are compared per second\n");
   }
 
   private final Server server;
   private final ContextHandlerCollection contexts;
 
-  private Sxse(int port) {
+  private Sxse(int port, int httpThreads, boolean virtualHttpThreads) {
+    // Uses a non-blocking connector, so requests can be suspended.
     server = new Server(port);
+    VirtualThreadPool virtualThreadPool =
+        virtualHttpThreads ? VirtualThreadPool.create() : null;
+    if (virtualThreadPool != null) {
+      server.setThreadPool(virtualThreadPool);
+    } else if (virtualHttpThreads) {
+      LOGGER.warning("virtual threads are not supported by this runtime, "
+          + "handling requests on platform threads");
+    }
+    if ((virtualThreadPool == null) && (httpThreads > 0)) {
+      server.setThreadPool(new QueuedThreadPool(httpThreads));
+    }
     contexts = new ContextHandlerCollection();
     server.setHandler(contexts);
   }
 
-  private void setup(File storageDir) throws SxseStorageException {
+  private void setup(File storageDir, ResultRetriever resultRetriever,
+      FrameProxy frameProxy, boolean prefetchNextQuery,
+      boolean streamJudgmentPages, int snapshotParallelism,
+      int snapshotQueriesPerSecond, int prescreenParallelism,
+      int prescreenQueriesPerSecond)
+      throws SxseStorageException {
     // Create the storage manager that prefers unjudged queries.
     UnjudgedStorageManager unjudgedStorageManager =
         new UnjudgedStorageManager(
@@ -100,9 +284,14 @@ public class Sxse {
     // Apply a synchronized wrapper around this storage manager.
     StorageManager storageManager = new SynchronizedStorageManager(
         unjudgedStorageManager);
-    QueryChooser queryChooser = new PreferencesQueryChooser(
-        storageManager.getQueryStorage(),
-        unjudgedStorageManager.getQueryChooser());
+    // Skip queries for which both profiles return identical results.
+    PrescreenJob prescreenJob = new PrescreenJob(storageManager,
+        resultRetriever, prescreenParallelism, prescreenQueriesPerSecond);
+    QueryChooser queryChooser = new PrescreenedQueryChooser(
+        new PreferencesQueryChooser(
+          storageManager.getQueryStorage(),
+          unjudgedStorageManager.getQueryChooser()),
+        prescreenJob);
 
     Context rootContext = new Context(contexts, "/", Context.SESSIONS);
     addServlet(rootContext, LoginServlet.PATH,
@@ -116,9 +305,19 @@ public class Sxse {
     addServlet(rootContext, HistoryServlet.PATH,
         new ServletHolder(new HistoryServlet(Banner.ASSESSOR_BANNER,
           storageManager)), assessorUserTypeFilter);
+    JudgmentServlet judgmentServlet = new JudgmentServlet(
+        Banner.ASSESSOR_BANNER, storageManager, queryChooser, resultRetriever,
+        frameProxy);
+    ServerJudgmentStrategy serverStrategy = judgmentServlet.getServerStrategy();
+    serverStrategy.setPrefetching(prefetchNextQuery);
+    serverStrategy.setStreaming(streamJudgmentPages);
     addServlet(rootContext, JudgmentServlet.PATH,
-        new ServletHolder(new JudgmentServlet(Banner.ASSESSOR_BANNER,
-          storageManager, queryChooser)), assessorUserTypeFilter);
+        new ServletHolder(judgmentServlet), assessorUserTypeFilter);
+    if (frameProxy != null) {
+      addServlet(rootContext, FrameProxyServlet.PATH,
+          new ServletHolder(new FrameProxyServlet(storageManager, frameProxy)),
+          assessorUserTypeFilter);
+    }
 
     // Configure the administrator servlets.
     AdministratorUserTypeFilter adminUserTypeFilter =
@@ -131,7 +330,13 @@ public class Sxse {
           storageManager)), adminUserTypeFilter);
     addServlet(rootContext, PolicyProfilesServlet.PATH,
         new ServletHolder(new PolicyProfilesServlet(Banner.ADMIN_BANNER,
-          storageManager)), adminUserTypeFilter);
+          storageManager, resultRetriever, serverStrategy, frameProxy)),
+        adminUserTypeFilter);
+    addServlet(rootContext, ResultSnapshotsServlet.PATH,
+        new ServletHolder(new ResultSnapshotsServlet(Banner.ADMIN_BANNER,
+          storageManager, new SnapshotJob(storageManager, resultRetriever,
+            snapshotParallelism, snapshotQueriesPerSecond), prescreenJob)),
+        adminUserTypeFilter);
     addServlet(rootContext, UsersServlet.PATH,
         new ServletHolder(new UsersServlet(Banner.ADMIN_BANNER,
           storageManager)), adminUserTypeFilter);
@@ -167,5 +372,7 @@ public class Sxse {
 
   private void start() throws Exception {
     server.start();
+    // Virtual threads do not keep the JVM alive, so wait for the server.
+    server.join();
   }
 }
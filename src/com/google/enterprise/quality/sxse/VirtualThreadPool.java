@@ -0,0 +1,102 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse;
+
+import com.google.common.base.Preconditions;
+
+import org.mortbay.component.AbstractLifeCycle;
+import org.mortbay.thread.ThreadPool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Jetty thread pool that runs each job on a new virtual thread, so that
+ * a request blocking on storage or on a host does not hold an operating
+ * system thread. There is no maximum number of threads, so the pool is never
+ * low on threads, and no thread is ever idle. The server starts and stops
+ * this pool with itself.
+ */
+final class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+  private final ThreadFactory threadFactory;
+  private final AtomicInteger threadCount;
+  // Counted down once the pool is stopped, releasing the threads joining it.
+  private final CountDownLatch stopped;
+
+  /**
+   * Returns a new pool of virtual threads, or {@code null} if the runtime
+   * does not support virtual threads.
+   *
+   * @return the pool of virtual threads, or {@code null}
+   */
+  static VirtualThreadPool create() {
+    ThreadFactory threadFactory = VirtualThreads.newThreadFactory("http-");
+    return (threadFactory != null) ?
+        new VirtualThreadPool(threadFactory) : null;
+  }
+
+  private VirtualThreadPool(ThreadFactory threadFactory) {
+    this.threadFactory = Preconditions.checkNotNull(threadFactory);
+    threadCount = new AtomicInteger();
+    stopped = new CountDownLatch(1);
+  }
+
+  public boolean dispatch(final Runnable job) {
+    Thread thread = threadFactory.newThread(new Runnable() {
+      public void run() {
+        try {
+          job.run();
+        } finally {
+          threadCount.decrementAndGet();
+        }
+      }
+    });
+    threadCount.incrementAndGet();
+    try {
+      thread.start();
+    } catch (RuntimeException e) {
+      threadCount.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    // Jobs already dispatched run to completion on their own threads.
+    stopped.countDown();
+  }
+
+  /**
+   * Blocks until this pool is stopped. Virtual threads do not keep the JVM
+   * alive, so the thread starting the server joins it instead.
+   */
+  public void join() throws InterruptedException {
+    stopped.await();
+  }
+
+  public int getThreads() {
+    return threadCount.get();
+  }
+
+  public int getIdleThreads() {
+    return 0;
+  }
+
+  public boolean isLowOnThreads() {
+    return false;
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates virtual threads on runtimes that support them, which are JDK 21 and
+ * later. A virtual thread that blocks on a socket releases its carrier
+ * thread, so thousands of retrievals may wait on hosts without an operating
+ * system thread each. Virtual threads are found by reflection, so SxSE still
+ * compiles and runs on earlier runtimes, which use platform threads instead.
+ */
+public final class VirtualThreads {
+  private static final Logger LOGGER = Logger.getLogger(
+      VirtualThreads.class.getName());
+
+  // The methods creating a factory of virtual threads, or null if the runtime
+  // does not support virtual threads.
+  private static final Method OF_VIRTUAL_METHOD;
+  private static final Method NAME_METHOD;
+  private static final Method FACTORY_METHOD;
+
+  static {
+    Method ofVirtualMethod = null;
+    Method nameMethod = null;
+    Method factoryMethod = null;
+    try {
+      ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      nameMethod = builderClass.getMethod("name", String.class, long.class);
+      factoryMethod = builderClass.getMethod("factory");
+    } catch (NoSuchMethodException e) {
+      ofVirtualMethod = null;
+    } catch (ClassNotFoundException e) {
+      ofVirtualMethod = null;
+    }
+    OF_VIRTUAL_METHOD = ofVirtualMethod;
+    NAME_METHOD = nameMethod;
+    FACTORY_METHOD = factoryMethod;
+  }
+
+  // Do not allow instantiation.
+  private VirtualThreads() {
+  }
+
+  /**
+   * Returns a factory of virtual threads, which are named with the given
+   * prefix followed by a counter, or {@code null} if the runtime does not
+   * support virtual threads.
+   *
+   * @param namePrefix the prefix of the name of each thread
+   * @return the factory of virtual threads, or {@code null}
+   */
+  public static ThreadFactory newThreadFactory(String namePrefix) {
+    if (OF_VIRTUAL_METHOD == null) {
+      return null;
+    }
+
+    try {
+      Object builder = OF_VIRTUAL_METHOD.invoke(null);
+      builder = NAME_METHOD.invoke(builder, namePrefix, 1L);
+      return (ThreadFactory) FACTORY_METHOD.invoke(builder);
+    } catch (IllegalAccessException e) {
+      LOGGER.log(Level.WARNING, "could not create virtual threads", e);
+    } catch (InvocationTargetException e) {
+      // Thrown if virtual threads are a preview feature not enabled.
+      LOGGER.log(Level.WARNING, "could not create virtual threads",
+          e.getCause());
+    }
+    return null;
+  }
+
+  /**
+   * @return {@code true} if the runtime supports virtual threads,
+   *         {@code false} otherwise
+   */
+  public static boolean isSupported() {
+    return (newThreadFactory("VirtualThreads-") != null);
+  }
+}
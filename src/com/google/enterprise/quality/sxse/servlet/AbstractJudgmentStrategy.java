@@ -170,15 +170,15 @@ abstract class AbstractJudgmentStrategy implements JudgmentServletStrategy {
       switch (action) {
       case RATE_A:
         saveJudgment(req, Judgment.FIRST_BETTER);
-        writeResults(req, res, chooseQuery(req));
+        writeResults(req, res, chooseNextQuery(req));
         return;
       case RATE_B:
         saveJudgment(req, Judgment.SECOND_BETTER);
-        writeResults(req, res, chooseQuery(req));
+        writeResults(req, res, chooseNextQuery(req));
         return;
       case RATE_EQUAL:
         saveJudgment(req, Judgment.EQUAL);
-        writeResults(req, res, chooseQuery(req));
+        writeResults(req, res, chooseNextQuery(req));
         return;
       default:
         // It's okay to pass through.
@@ -230,7 +230,7 @@ abstract class AbstractJudgmentStrategy implements JudgmentServletStrategy {
 
       if (query == null) {
         // Must ensure query is not null.
-        query = chooseQuery(req);
+        query = chooseNextQuery(req);
       }
       writeResults(req, res, query);
     } catch (SxseStorageException e) {
@@ -243,6 +243,21 @@ abstract class AbstractJudgmentStrategy implements JudgmentServletStrategy {
     return queryChooser.choose(storageManager, User.getUser(req));
   }
 
+  /**
+   * Chooses the next query for the assessor to judge, after the assessor
+   * judges or passes on the current query. By default this is equivalent to
+   * {@link #chooseQuery(HttpServletRequest)}, but subclasses may return a
+   * query chosen earlier.
+   * 
+   * @param req the request the client made of the servlet
+   * @return the next query to judge
+   * @throws SxseStorageException if an error occurs
+   */
+  protected String chooseNextQuery(HttpServletRequest req)
+      throws SxseStorageException {
+    return chooseQuery(req);
+  }
+
   protected String chooseQuery(HttpServletRequest req, String querySetName)
       throws SxseStorageException {
     return queryChooser.choose(storageManager, User.getUser(req),
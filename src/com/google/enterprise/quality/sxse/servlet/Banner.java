@@ -49,6 +49,7 @@ public abstract class Banner {
       PasswordServlet.BANNER_LINK,
       PolicyProfilesServlet.BANNER_LINK,
       QuerySetsServlet.BANNER_LINK,
+      ResultSnapshotsServlet.BANNER_LINK,
       UsersServlet.BANNER_LINK
   );
 
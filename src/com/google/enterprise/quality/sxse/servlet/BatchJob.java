@@ -0,0 +1,464 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
+import com.google.enterprise.quality.sxse.SearchResult;
+import com.google.enterprise.quality.sxse.QueryFormatter.QueryOptions;
+import com.google.enterprise.quality.sxse.storage.QueryStorage;
+import com.google.enterprise.quality.sxse.storage.StorageManager;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A batch job that retrieves results for the queries in the active query
+ * sets. Each run of the job schedules its tasks on a fixed number of threads,
+ * starting at most that many tasks at once and at most a fixed number of
+ * tasks per second. Results are retrieved through a {@link ResultRetriever},
+ * so the job shares the threads, queue, and circuit breaker of each host with
+ * assessors, and a failing host fails the job's retrievals quickly instead of
+ * being retried.
+ *
+ * This class is thread-safe.
+ */
+public abstract class BatchJob {
+  private static final Logger LOGGER = Logger.getLogger(
+      BatchJob.class.getName());
+
+  // The maximum number of failures kept for display.
+  private static final int MAX_FAILURES = 100;
+
+  /**
+   * The state of a job.
+   */
+  public static enum State {
+    /**
+     * The job has never run.
+     */
+    IDLE,
+
+    /**
+     * The job is running.
+     */
+    RUNNING,
+
+    /**
+     * The job was cancelled before finishing.
+     */
+    CANCELLED,
+
+    /**
+     * The job did all that it could.
+     */
+    FINISHED,
+  }
+
+  private final String name;
+  private final StorageManager storageManager;
+  private final ResultRetriever resultRetriever;
+  private final int parallelism;
+  private final int queriesPerSecond;
+
+  // The state, the thread running the job, and failures are guarded by this.
+  private State state;
+  private Thread jobThread;
+  private ExecutorService executor;
+  private final List<Failure> failures;
+  private long startTime;
+  private long finishTime;
+
+  private final AtomicInteger failedCount;
+
+  /**
+   * Creates a new batch job.
+   *
+   * @param name the name of the job, which also names its threads
+   * @param storageManager the storage manager
+   * @param resultRetriever the retriever of results from each host
+   * @param parallelism the number of tasks run at once
+   * @param queriesPerSecond the maximum number of tasks started per second
+   */
+  BatchJob(String name, StorageManager storageManager,
+      ResultRetriever resultRetriever, int parallelism, int queriesPerSecond) {
+    Preconditions.checkArgument(parallelism > 0,
+        "parallelism must be positive");
+    Preconditions.checkArgument(queriesPerSecond > 0,
+        "queriesPerSecond must be positive");
+
+    this.name = Preconditions.checkNotNull(name);
+    this.storageManager = Preconditions.checkNotNull(storageManager);
+    this.resultRetriever = Preconditions.checkNotNull(resultRetriever);
+    this.parallelism = parallelism;
+    this.queriesPerSecond = queriesPerSecond;
+
+    state = State.IDLE;
+    failures = new ArrayList<Failure>();
+    failedCount = new AtomicInteger();
+  }
+
+  /**
+   * Starts the job if it is not already running.
+   *
+   * @return {@code true} if the job started, {@code false} if it was already
+   *         running
+   */
+  public synchronized boolean start() {
+    if (state == State.RUNNING) {
+      return false;
+    }
+
+    state = State.RUNNING;
+    failures.clear();
+    failedCount.set(0);
+    resetCounts();
+    startTime = System.currentTimeMillis();
+    finishTime = 0L;
+
+    executor = Executors.newFixedThreadPool(parallelism,
+        new JobThreadFactory(name));
+    jobThread = new Thread(new Runnable() {
+      public void run() {
+        runJob();
+      }
+    }, name);
+    jobThread.setDaemon(true);
+    jobThread.start();
+    return true;
+  }
+
+  /**
+   * Cancels the job if it is running. Results already saved are kept.
+   */
+  public synchronized void cancel() {
+    if (state != State.RUNNING) {
+      return;
+    }
+
+    state = State.CANCELLED;
+    jobThread.interrupt();
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return the state of the job
+   */
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return the number of tasks run at once
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * @return the maximum number of tasks started per second
+   */
+  public int getQueriesPerSecond() {
+    return queriesPerSecond;
+  }
+
+  /**
+   * @return the number of failures of the last run of the job
+   */
+  public int getFailedCount() {
+    return failedCount.get();
+  }
+
+  /**
+   * @return the first failures of the last run of the job
+   */
+  public synchronized List<Failure> getFailures() {
+    return ImmutableList.copyOf(failures);
+  }
+
+  /**
+   * @return the time, in milliseconds, the last run of the job took, or has
+   *         taken so far if it is still running
+   */
+  public synchronized long getElapsedMillis() {
+    if (startTime == 0L) {
+      return 0L;
+    }
+    long endTime = (finishTime != 0L) ? finishTime : System.currentTimeMillis();
+    return endTime - startTime;
+  }
+
+  /**
+   * @return the storage manager
+   */
+  StorageManager getStorageManager() {
+    return storageManager;
+  }
+
+  /**
+   * Resets the counts of the subclass when the job starts.
+   */
+  abstract void resetCounts();
+
+  /**
+   * Runs the job, passing each of its tasks to the given scheduler. The job
+   * is cancelled by interrupting the thread calling this method.
+   *
+   * @param scheduler the scheduler running the tasks
+   * @throws InterruptedException if the job was cancelled
+   * @throws SxseStorageException if an error occurs
+   */
+  abstract void run(TaskScheduler scheduler)
+      throws InterruptedException, SxseStorageException;
+
+  /**
+   * @return a summary of the counts of the last run, which is logged once
+   *         it finishes
+   */
+  abstract String getSummary();
+
+  private void runJob() {
+    ExecutorService jobExecutor;
+    synchronized (this) {
+      jobExecutor = executor;
+    }
+
+    try {
+      run(new TaskScheduler(jobExecutor));
+
+      // Wait for the last tasks to finish.
+      jobExecutor.shutdown();
+      jobExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      // The job was cancelled.
+      LOGGER.info(name + " cancelled");
+    } catch (SxseStorageException e) {
+      LOGGER.log(Level.SEVERE, name + " caught SxseStorageException", e);
+      addFailure(new Failure("", "", e.toString()));
+    } catch (RuntimeException e) {
+      // Thrown if the executor was shut down by cancel.
+      LOGGER.log(Level.FINE, name + " stopped", e);
+    } finally {
+      jobExecutor.shutdownNow();
+      synchronized (this) {
+        // Do not update the state if cancelled and then started again.
+        if (executor == jobExecutor) {
+          if (state == State.RUNNING) {
+            state = State.FINISHED;
+          }
+          finishTime = System.currentTimeMillis();
+        }
+      }
+      LOGGER.info(name + " " + getSummary());
+    }
+  }
+
+  /**
+   * Returns the queries in all active query sets, without duplicates.
+   *
+   * @return the active queries
+   * @throws SxseStorageException if an error occurs
+   */
+  Set<String> getActiveQueries() throws SxseStorageException {
+    QueryStorage queryStorage = storageManager.getQueryStorage();
+    Set<String> queries = new LinkedHashSet<String>();
+    for (String setName : queryStorage.getQuerySetNames()) {
+      if (queryStorage.isActive(setName)) {
+        queries.addAll(queryStorage.getQuerySet(setName));
+      }
+    }
+    return queries;
+  }
+
+  /**
+   * Retrieves the results of the given profile for the given query, waiting
+   * for them until the given timeout. If they are not retrieved, a failure
+   * saying why is added.
+   *
+   * @param profile the scoring policy profile
+   * @param query the query
+   * @param maxResults the maximum number of results
+   * @param timeout the time, in milliseconds, to wait for the results
+   * @return the results, or {@code null} if they were not retrieved
+   * @throws InterruptedException if the job was cancelled
+   */
+  List<SearchResult> retrieve(ScoringPolicyProfile profile, String query,
+      int maxResults, int timeout) throws InterruptedException {
+    QueryFormatter queryFormatter = profile.getQueryFormatter();
+    Future<List<SearchResult>> resultsFuture = resultRetriever.submit(
+        queryFormatter, new QueryOptions(query, maxResults,
+          System.currentTimeMillis() + timeout));
+    try {
+      List<SearchResult> results =
+          resultsFuture.get(timeout, TimeUnit.MILLISECONDS);
+      if (results == null) {
+        addFailure(new Failure(query, profile.getName(),
+            resultRetriever.isBackendAvailable(queryFormatter) ?
+              "profile does not return results" :
+              "host is failing, circuit breaker is open"));
+      }
+      return results;
+    } catch (ExecutionException e) {
+      // Thrown if the results could not be retrieved.
+      Throwable cause = e.getCause();
+      if ((cause instanceof RuntimeException) && (cause.getCause() != null)) {
+        cause = cause.getCause();
+      }
+      addFailure(new Failure(query, profile.getName(), cause.toString()));
+    } catch (CancellationException e) {
+      addFailure(new Failure(query, profile.getName(),
+          "host is overloaded, retrieval rejected"));
+    } catch (TimeoutException e) {
+      resultsFuture.cancel(true);
+      addFailure(new Failure(query, profile.getName(),
+          "timed out retrieving results"));
+    } catch (InterruptedException e) {
+      resultsFuture.cancel(true);
+      throw e;
+    }
+    return null;
+  }
+
+  /**
+   * Adds a failure of the last run of the job.
+   *
+   * @param failure the failure
+   */
+  void addFailure(Failure failure) {
+    failedCount.incrementAndGet();
+    synchronized (this) {
+      if (failures.size() < MAX_FAILURES) {
+        failures.add(failure);
+      }
+    }
+  }
+
+  /**
+   * Runs the tasks of one run of a job on its threads. The tasks started but
+   * not finished are bounded, so the rate limit applies to when tasks start
+   * instead of when they are queued.
+   */
+  final class TaskScheduler {
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final long intervalNanos;
+    private long nextStartNanos;
+
+    private TaskScheduler(ExecutorService executor) {
+      this.executor = executor;
+      permits = new Semaphore(parallelism);
+      intervalNanos = TimeUnit.SECONDS.toNanos(1) / queriesPerSecond;
+      nextStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Runs the given task once a thread is free and the rate limit allows.
+     *
+     * @param task the task
+     * @throws InterruptedException if the job was cancelled while waiting
+     */
+    void execute(final Runnable task) throws InterruptedException {
+      permits.acquire();
+      long sleepNanos = nextStartNanos - System.nanoTime();
+      if (sleepNanos > 0L) {
+        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+      }
+      nextStartNanos =
+          Math.max(nextStartNanos, System.nanoTime()) + intervalNanos;
+
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            permits.release();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * A query, and possibly the profile, that a job failed on.
+   */
+  public static final class Failure {
+    private final String query;
+    private final String profileName;
+    private final String message;
+
+    Failure(String query, String profileName, String message) {
+      this.query = query;
+      this.profileName = profileName;
+      this.message = message;
+    }
+
+    /**
+     * @return the query
+     */
+    public String getQuery() {
+      return query;
+    }
+
+    /**
+     * @return the name of the scoring policy profile, or an empty string if
+     *         the failure is not of one profile
+     */
+    public String getProfileName() {
+      return profileName;
+    }
+
+    /**
+     * @return the reason for the failure
+     */
+    public String getMessage() {
+      return message;
+    }
+  }
+
+  /*
+   * Creates daemon threads for running tasks.
+   */
+  private static final class JobThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private JobThreadFactory(String name) {
+      this.name = name;
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,322 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A circuit breaker for retrieving results from a single host. The breaker
+ * records whether each of the most recent retrievals succeeded, failed with an
+ * error, or timed out. Once enough of them failed, the breaker opens, and
+ * retrievals are refused without contacting the host. After a delay, the
+ * breaker is half-open and allows a single trial retrieval: if it succeeds,
+ * the breaker closes, and otherwise it opens again.
+ *
+ * Each allowed retrieval is given a {@link Permit}, with which its outcome is
+ * recorded. While the breaker is half-open, only the outcome recorded with the
+ * permit of the trial retrieval is counted, and not the late outcomes of
+ * retrievals allowed while the breaker was closed.
+ *
+ * This class is thread-safe.
+ */
+public final class CircuitBreaker {
+  /**
+   * The default number of most recent retrievals used to compute the rate of
+   * failures.
+   */
+  public static final int DEFAULT_WINDOW_SIZE = 20;
+
+  /**
+   * The default minimum number of recent retrievals before the breaker may
+   * open.
+   */
+  public static final int DEFAULT_MIN_RETRIEVALS = 10;
+
+  /**
+   * The default percentage of recent retrievals that must fail for the breaker
+   * to open.
+   */
+  public static final int DEFAULT_FAILURE_PERCENT = 50;
+
+  /**
+   * The default time, in milliseconds, for which the breaker stays open
+   * before allowing a trial retrieval.
+   */
+  public static final long DEFAULT_OPEN_MILLIS = 30 * 1000L;
+
+  /**
+   * The state of the breaker.
+   */
+  public static enum State {
+    /**
+     * Retrievals are allowed.
+     */
+    CLOSED,
+
+    /**
+     * Retrievals are refused.
+     */
+    OPEN,
+
+    /**
+     * A single trial retrieval is allowed.
+     */
+    HALF_OPEN,
+  }
+
+  /**
+   * The permission given to a retrieval to contact the host, with which the
+   * outcome of the retrieval is recorded.
+   */
+  public static final class Permit {
+    private Permit() {
+    }
+  }
+
+  /*
+   * The outcome of a retrieval.
+   */
+  private static enum Outcome {
+    SUCCESS,
+    ERROR,
+    TIMEOUT,
+  }
+
+  private final int minRetrievals;
+  private final int failurePercent;
+  private final long openMillis;
+  // The permit shared by all retrievals allowed while closed.
+  private final Permit closedPermit;
+
+  // All fields below are guarded by this.
+  private State state;
+  private final Outcome[] outcomes;
+  private int nextOutcome;
+  private int outcomeCount;
+  private int errorCount;
+  private int timeoutCount;
+  private long openTime;
+  // The permit of the trial retrieval, or null if none is in progress.
+  private Permit trialPermit;
+  private long trialTime;
+  private long refusedCount;
+
+  /**
+   * Creates a new circuit breaker with the default settings.
+   */
+  public CircuitBreaker() {
+    this(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_RETRIEVALS, DEFAULT_FAILURE_PERCENT,
+        DEFAULT_OPEN_MILLIS);
+  }
+
+  /**
+   * Creates a new circuit breaker.
+   *
+   * @param windowSize the number of most recent retrievals used to compute
+   *        the rate of failures
+   * @param minRetrievals the minimum number of recent retrievals before the
+   *        breaker may open
+   * @param failurePercent the percentage of recent retrievals that must fail
+   *        for the breaker to open
+   * @param openMillis the time, in milliseconds, for which the breaker stays
+   *        open before allowing a trial retrieval
+   */
+  public CircuitBreaker(int windowSize, int minRetrievals, int failurePercent,
+      long openMillis) {
+    Preconditions.checkArgument(windowSize > 0,
+        "windowSize must be positive");
+    Preconditions.checkArgument(
+        (minRetrievals > 0) && (minRetrievals <= windowSize),
+        "minRetrievals must be positive and at most windowSize");
+    Preconditions.checkArgument(
+        (failurePercent > 0) && (failurePercent <= 100),
+        "failurePercent must be between 1 and 100");
+    Preconditions.checkArgument(openMillis > 0L,
+        "openMillis must be positive");
+
+    this.minRetrievals = minRetrievals;
+    this.failurePercent = failurePercent;
+    this.openMillis = openMillis;
+
+    state = State.CLOSED;
+    outcomes = new Outcome[windowSize];
+    closedPermit = new Permit();
+  }
+
+  /**
+   * Returns the permit for a retrieval to contact the host, or {@code null} if
+   * the retrieval must be refused. If the breaker is half-open, only the first
+   * caller is given a permit, and it must record the outcome of its retrieval.
+   *
+   * @return the permit with which to record the outcome of the retrieval, or
+   *         {@code null} if the retrieval must be refused
+   */
+  public synchronized Permit allowRetrieval() {
+    long now = System.currentTimeMillis();
+    if ((state == State.OPEN) && (now - openTime >= openMillis)) {
+      state = State.HALF_OPEN;
+      trialPermit = null;
+    }
+
+    switch (state) {
+    case CLOSED:
+      return closedPermit;
+    case HALF_OPEN:
+      // Allow another trial if the last one never recorded its outcome.
+      if ((trialPermit == null) || (now - trialTime >= openMillis)) {
+        trialPermit = new Permit();
+        trialTime = now;
+        return trialPermit;
+      }
+      break;
+    default:
+      // It's okay to pass through.
+    }
+    ++refusedCount;
+    return null;
+  }
+
+  /**
+   * Records that a retrieval succeeded.
+   *
+   * @param permit the permit returned for the retrieval
+   */
+  public synchronized void recordSuccess(Permit permit) {
+    Preconditions.checkNotNull(permit);
+    if (state == State.HALF_OPEN) {
+      if (permit == trialPermit) {
+        // The host recovered, so forget its earlier failures.
+        close();
+      }
+      return;
+    }
+    addOutcome(Outcome.SUCCESS);
+  }
+
+  /**
+   * Records that a retrieval failed with an error.
+   *
+   * @param permit the permit returned for the retrieval
+   */
+  public synchronized void recordError(Permit permit) {
+    recordFailure(Preconditions.checkNotNull(permit), Outcome.ERROR);
+  }
+
+  /**
+   * Records that a retrieval timed out.
+   *
+   * @param permit the permit returned for the retrieval
+   */
+  public synchronized void recordTimeout(Permit permit) {
+    recordFailure(Preconditions.checkNotNull(permit), Outcome.TIMEOUT);
+  }
+
+  /**
+   * @return the state of the breaker
+   */
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return {@code true} if the breaker is open and still refusing all
+   *         retrievals, {@code false} otherwise
+   */
+  public synchronized boolean isRefusing() {
+    return (state == State.OPEN)
+        && (System.currentTimeMillis() - openTime < openMillis);
+  }
+
+  /**
+   * @return the percentage of recent retrievals that failed with an error
+   */
+  public synchronized int getErrorPercent() {
+    return (outcomeCount == 0) ? 0 : (100 * errorCount) / outcomeCount;
+  }
+
+  /**
+   * @return the percentage of recent retrievals that timed out
+   */
+  public synchronized int getTimeoutPercent() {
+    return (outcomeCount == 0) ? 0 : (100 * timeoutCount) / outcomeCount;
+  }
+
+  /**
+   * @return the number of retrievals refused
+   */
+  public synchronized long getRefusedCount() {
+    return refusedCount;
+  }
+
+  private void recordFailure(Permit permit, Outcome outcome) {
+    if (state == State.HALF_OPEN) {
+      if (permit == trialPermit) {
+        // The trial failed, so refuse retrievals again.
+        open();
+      }
+      return;
+    }
+
+    addOutcome(outcome);
+    if ((state == State.CLOSED) && (outcomeCount >= minRetrievals)
+        && (100 * (errorCount + timeoutCount)
+            >= failurePercent * outcomeCount)) {
+      open();
+    }
+  }
+
+  private void addOutcome(Outcome outcome) {
+    Outcome evicted = outcomes[nextOutcome];
+    if (evicted != null) {
+      removeCount(evicted);
+    } else {
+      ++outcomeCount;
+    }
+
+    outcomes[nextOutcome] = outcome;
+    nextOutcome = (nextOutcome + 1) % outcomes.length;
+    if (outcome == Outcome.ERROR) {
+      ++errorCount;
+    } else if (outcome == Outcome.TIMEOUT) {
+      ++timeoutCount;
+    }
+  }
+
+  private void removeCount(Outcome outcome) {
+    if (outcome == Outcome.ERROR) {
+      --errorCount;
+    } else if (outcome == Outcome.TIMEOUT) {
+      --timeoutCount;
+    }
+  }
+
+  private void open() {
+    state = State.OPEN;
+    openTime = System.currentTimeMillis();
+    trialPermit = null;
+  }
+
+  private void close() {
+    state = State.CLOSED;
+    trialPermit = null;
+    for (int i = 0; i < outcomes.length; ++i) {
+      outcomes[i] = null;
+    }
+    nextOutcome = 0;
+    outcomeCount = 0;
+    errorCount = 0;
+    timeoutCount = 0;
+  }
+}
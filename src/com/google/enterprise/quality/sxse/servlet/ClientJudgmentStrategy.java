@@ -58,6 +58,8 @@ final class ClientJudgmentStrategy extends AbstractJudgmentStrategy {
   private static final Logger LOGGER = Logger.getLogger(
       ClientJudgmentStrategy.class.getName());
 
+  private final FrameProxy frameProxy;
+
   /**
    * Creates a new servlet through which an assessor makes judgments.
    * 
@@ -65,10 +67,15 @@ final class ClientJudgmentStrategy extends AbstractJudgmentStrategy {
    * @param storageManager the storage from which this servlet can store
    *        judgments
    * @param queryChooser the chooser for the queries
+   * @param frameProxy the proxy returning the pages displayed in iframes, or
+   *        {@code null} if the browser of each assessor retrieves them
+   *        directly from the hosts
    */
   public ClientJudgmentStrategy(Banner banner,
-      StorageManager storageManager, QueryChooser queryChooser) {
+      StorageManager storageManager, QueryChooser queryChooser,
+      FrameProxy frameProxy) {
     super(banner, storageManager, queryChooser);
+    this.frameProxy = frameProxy;
   }
 
   /**
@@ -78,13 +85,17 @@ final class ClientJudgmentStrategy extends AbstractJudgmentStrategy {
    * @param profile the scoring policy profile returning the results
    * @param query the query
    * @param maxResults the maximum number of results to display
+   * @param side whether the results are displayed first or second
    * @return the frame URI
    */
   private String getFrameUri(ScoringPolicyProfile profile, String query,
-      int maxResults) {
+      int maxResults, StreamedResults.Part side) {
     if (profile == ScoringPolicyProfile.EMPTY_PROFILE) {
       // No profile was set in preferences, so display a blank page.
       return "about:blank";
+    } else if ((query != null) && (frameProxy != null)) {
+      // Retrieve the results through SxSE, which may have cached them.
+      return FrameProxyServlet.getFrameUri(query, side);
     } else if (query != null) {
       // Profile and query specified, so construct the query URL.
       QueryFormatter queryFormatter = profile.getQueryFormatter();
@@ -122,8 +133,10 @@ final class ClientJudgmentStrategy extends AbstractJudgmentStrategy {
     }
 
     int maxResults = judgmentStorage.getMaxResults();
-    String firstFrameUri = getFrameUri(firstProfile, query, maxResults);
-    String secondFrameUri = getFrameUri(secondProfile, query, maxResults);
+    String firstFrameUri = getFrameUri(firstProfile, query, maxResults,
+        StreamedResults.Part.FIRST);
+    String secondFrameUri = getFrameUri(secondProfile, query, maxResults,
+        StreamedResults.Part.SECOND);
 
     // Get the query set names to display, if allowed.
     Set<String> querySetNames = getDisplayedQuerySetNames();
@@ -135,7 +148,7 @@ final class ClientJudgmentStrategy extends AbstractJudgmentStrategy {
     Writer writer = res.getWriter();
     Judge.write(writer, new GxpContext(req.getLocale()),
         User.getUser(req), banner, query, lastJudgment, servletDetails,
-        querySetNames, null);
+        querySetNames, null, null);
   }
 
   private static class ServletDetails implements JudgmentServletDetails {
@@ -0,0 +1,452 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Preconditions;
+import com.google.enterprise.quality.sxse.BackendClient;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.ResultListKey;
+import com.google.enterprise.quality.sxse.QueryFormatter.QueryOptions;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Retrieves the pages of results that are displayed in iframes when results
+ * are not stored, so that the browser of each assessor does not contact the
+ * hosts directly. A page is identified by the query formatter that retrieves
+ * it, the query, and the maximum number of results requested. Each page is
+ * cached for a fixed time after it was retrieved, so that reloading a page, or
+ * another assessor judging the same query, does not contact the host again,
+ * and concurrent requests for the same page share one retrieval. Requests to
+ * each host are subject to the connection and rate limits of the
+ * {@link BackendClient}.
+ *
+ * A base URI is added to each HTML page, so that its relative URIs of images,
+ * style sheets, scripts and links refer to the host instead of SxSE.
+ *
+ * This class is thread-safe.
+ */
+public final class FrameProxy {
+  /**
+   * The default time, in milliseconds, for which a page is cached.
+   */
+  public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000L;
+
+  /**
+   * The default maximum size, in bytes, of all cached pages.
+   */
+  public static final long DEFAULT_MAX_SIZE_BYTES = 16 * 1024 * 1024L;
+
+  // The maximum size in bytes of any one page.
+  private static final int MAX_PAGE_BYTES = 2 * 1024 * 1024;
+
+  private static final Pattern HEAD_PATTERN =
+      Pattern.compile("<head(\\s[^>]*)?>", Pattern.CASE_INSENSITIVE);
+  private static final Pattern BASE_PATTERN =
+      Pattern.compile("<base\\s", Pattern.CASE_INSENSITIVE);
+
+  private final long ttlMillis;
+  private final long maxSizeBytes;
+
+  // The cached pages and their total size are guarded by entries.
+  private final LinkedHashMap<ResultListKey, Entry> entries;
+  private long sizeBytes;
+
+  // The retrievals of pages not yet cached.
+  private final ConcurrentMap<ResultListKey, FutureTask<Page>> retrievals;
+  // The latencies of retrievals from each host.
+  private final ConcurrentMap<String, LatencyTracker> latencyTrackers;
+
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+  private final AtomicLong sharedCount;
+  private final AtomicLong errorCount;
+  private final AtomicLong evictionCount;
+
+  /**
+   * Creates a new proxy for pages of results.
+   *
+   * @param ttlMillis the time, in milliseconds, for which a page is cached, or
+   *        {@code 0} if pages are not cached
+   * @param maxSizeBytes the maximum size, in bytes, of all cached pages
+   */
+  public FrameProxy(long ttlMillis, long maxSizeBytes) {
+    Preconditions.checkArgument(ttlMillis >= 0L,
+        "ttlMillis must not be negative");
+    Preconditions.checkArgument(maxSizeBytes >= 0L,
+        "maxSizeBytes must not be negative");
+
+    this.ttlMillis = ttlMillis;
+    this.maxSizeBytes = maxSizeBytes;
+    // Iterate in access order so the least recently used page comes first.
+    entries = new LinkedHashMap<ResultListKey, Entry>(16, 0.75f, true);
+
+    retrievals = new ConcurrentHashMap<ResultListKey, FutureTask<Page>>();
+    latencyTrackers = new ConcurrentHashMap<String, LatencyTracker>();
+
+    hitCount = new AtomicLong();
+    missCount = new AtomicLong();
+    sharedCount = new AtomicLong();
+    errorCount = new AtomicLong();
+    evictionCount = new AtomicLong();
+  }
+
+  /**
+   * Returns the page of results for the given query, retrieving it from the
+   * host if it is not cached.
+   *
+   * @param queryFormatter the query formatter that creates the page URI
+   * @param queryOptions the query, maximum number of results, and the time
+   *        after which to stop waiting for the host
+   * @return the page of results
+   * @throws IOException if the page could not be retrieved
+   */
+  public Page get(final QueryFormatter queryFormatter,
+      final QueryOptions queryOptions) throws IOException {
+    ResultListKey key = new ResultListKey(queryFormatter,
+        queryOptions.getQuery(), queryOptions.getNumResults());
+    Page page = getCached(key);
+    if (page != null) {
+      hitCount.incrementAndGet();
+      return page;
+    }
+    missCount.incrementAndGet();
+
+    FutureTask<Page> retrieval = new FutureTask<Page>(new Callable<Page>() {
+      public Page call() throws IOException {
+        return retrieve(queryFormatter, queryOptions);
+      }
+    });
+    FutureTask<Page> prevRetrieval = retrievals.putIfAbsent(key, retrieval);
+    if (prevRetrieval != null) {
+      // Another request is retrieving the same page.
+      sharedCount.incrementAndGet();
+      return getPage(prevRetrieval, queryOptions.getAbortTime());
+    }
+
+    try {
+      retrieval.run();
+      page = getPage(retrieval, 0L);
+      // Cache the page before others can start retrieving it again.
+      put(key, page);
+      return page;
+    } finally {
+      retrievals.remove(key);
+    }
+  }
+
+  /*
+   * Returns the page retrieved by the given retrieval, waiting for it until
+   * the given abort time, or indefinitely if the abort time is 0.
+   */
+  private static Page getPage(FutureTask<Page> retrieval, long abortTime)
+      throws IOException {
+    try {
+      if (abortTime == 0L) {
+        return retrieval.get();
+      }
+      long timeRemaining = Math.max(
+          abortTime - System.currentTimeMillis(), 0L);
+      return retrieval.get(timeRemaining, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new SocketTimeoutException("timed out waiting for shared page");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted retrieving page");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause().toString());
+    }
+  }
+
+  /*
+   * Retrieves the page for the given query from its host.
+   */
+  private Page retrieve(QueryFormatter queryFormatter,
+      QueryOptions queryOptions) throws IOException {
+    URI uri = queryFormatter.createQueryUri(queryOptions);
+    LatencyTracker latencyTracker =
+        getLatencyTracker(ResultRetriever.getBackendName(queryFormatter));
+    long startTime = System.currentTimeMillis();
+    BackendClient.Content content;
+    try {
+      content = QueryFormatter.getBackendClient().read(
+          uri, queryOptions.getAbortTime(), MAX_PAGE_BYTES);
+    } catch (IOException e) {
+      errorCount.incrementAndGet();
+      throw e;
+    }
+    latencyTracker.record(System.currentTimeMillis() - startTime);
+
+    String contentType = content.getContentType();
+    byte[] bytes = content.getBytes();
+    if ((contentType != null) && contentType.startsWith("text/html")) {
+      bytes = addBaseUri(bytes, uri);
+    }
+    return new Page(bytes, contentType);
+  }
+
+  /*
+   * Returns the given HTML page with a base URI for its relative URIs added
+   * to its head, if it does not already have a base URI.
+   */
+  private static byte[] addBaseUri(byte[] bytes, URI uri) {
+    try {
+      // Decodes each byte as one character, so that the index of a tag is
+      // also its offset in bytes for any encoding that extends ASCII.
+      String html = new String(bytes, "ISO-8859-1");
+      Matcher headMatcher = HEAD_PATTERN.matcher(html);
+      if (!headMatcher.find() || BASE_PATTERN.matcher(html).find()) {
+        return bytes;
+      }
+
+      String baseTag = "<base href=\""
+          + uri.toString().replace("&", "&amp;").replace("\"", "&quot;")
+          + "\">";
+      byte[] baseTagBytes = baseTag.getBytes("ISO-8859-1");
+      int offset = headMatcher.end();
+      byte[] rewrittenBytes = new byte[bytes.length + baseTagBytes.length];
+      System.arraycopy(bytes, 0, rewrittenBytes, 0, offset);
+      System.arraycopy(baseTagBytes, 0, rewrittenBytes, offset,
+          baseTagBytes.length);
+      System.arraycopy(bytes, offset, rewrittenBytes,
+          offset + baseTagBytes.length, bytes.length - offset);
+      return rewrittenBytes;
+    } catch (UnsupportedEncodingException e) {
+      // This should never happen.
+      throw new RuntimeException(e);
+    }
+  }
+
+  private LatencyTracker getLatencyTracker(String backendName) {
+    LatencyTracker latencyTracker = latencyTrackers.get(backendName);
+    if (latencyTracker == null) {
+      LatencyTracker newLatencyTracker = new LatencyTracker();
+      latencyTracker =
+          latencyTrackers.putIfAbsent(backendName, newLatencyTracker);
+      if (latencyTracker == null) {
+        latencyTracker = newLatencyTracker;
+      }
+    }
+    return latencyTracker;
+  }
+
+  private Page getCached(ResultListKey key) {
+    if (!isCaching()) {
+      return null;
+    }
+
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (entry.expirationTime > System.currentTimeMillis()) {
+          return entry.page;
+        }
+        // The page has expired.
+        entries.remove(key);
+        sizeBytes -= entry.page.bytes.length;
+      }
+    }
+    return null;
+  }
+
+  private void put(ResultListKey key, Page page) {
+    if (!isCaching() || (page.bytes.length > maxSizeBytes)) {
+      return;
+    }
+
+    Entry entry = new Entry(page, System.currentTimeMillis() + ttlMillis);
+    synchronized (entries) {
+      Entry prevEntry = entries.put(key, entry);
+      if (prevEntry != null) {
+        sizeBytes -= prevEntry.page.bytes.length;
+      }
+      sizeBytes += page.bytes.length;
+
+      // Evict the least recently used pages until under the maximum size.
+      Iterator<Entry> i = entries.values().iterator();
+      while ((sizeBytes > maxSizeBytes) && i.hasNext()) {
+        Entry evictedEntry = i.next();
+        i.remove();
+        sizeBytes -= evictedEntry.page.bytes.length;
+        evictionCount.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Removes all cached pages.
+   */
+  public void flush() {
+    synchronized (entries) {
+      entries.clear();
+      sizeBytes = 0L;
+    }
+  }
+
+  /**
+   * @return {@code true} if this proxy caches pages, {@code false} otherwise
+   */
+  public boolean isCaching() {
+    return (ttlMillis > 0L) && (maxSizeBytes > 0L);
+  }
+
+  /**
+   * @return the time, in milliseconds, for which a page is cached
+   */
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  /**
+   * @return the maximum size, in bytes, of all cached pages
+   */
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  /**
+   * @return the size, in bytes, of all cached pages
+   */
+  public long getSizeBytes() {
+    synchronized (entries) {
+      return sizeBytes;
+    }
+  }
+
+  /**
+   * @return the number of pages cached, including expired pages not yet
+   *         removed
+   */
+  public int getEntryCount() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the number of requests for which a cached page was returned
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of requests for which no cached page was found
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return the number of requests that shared the retrieval of a page by a
+   *         concurrent request
+   */
+  public long getSharedCount() {
+    return sharedCount.get();
+  }
+
+  /**
+   * @return the number of pages that could not be retrieved
+   */
+  public long getErrorCount() {
+    return errorCount.get();
+  }
+
+  /**
+   * @return the number of pages evicted to stay under the maximum size
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * Returns the given percentile of the recent latencies of retrievals from
+   * each host, or {@code -1} for a host with too few retrievals, ordered by
+   * host.
+   *
+   * @param percentile the percentile, between 1 and 100
+   * @return the latency at that percentile for each host, in milliseconds
+   */
+  public Map<String, Long> getLatencyPercentiles(int percentile) {
+    Map<String, Long> latencies = new TreeMap<String, Long>();
+    for (Map.Entry<String, LatencyTracker> entry :
+        latencyTrackers.entrySet()) {
+      latencies.put(entry.getKey(), entry.getValue().getPercentile(percentile));
+    }
+    return latencies;
+  }
+
+  /**
+   * A page of results retrieved from a host.
+   */
+  public static final class Page {
+    private final byte[] bytes;
+    private final String contentType;
+
+    private Page(byte[] bytes, String contentType) {
+      this.bytes = bytes;
+      this.contentType = contentType;
+    }
+
+    /**
+     * @return the bytes of the page, which must not be modified
+     */
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return the type of the page returned by the host, or {@code null} if
+     *         not known
+     */
+    public String getContentType() {
+      return contentType;
+    }
+  }
+
+  /*
+   * A cached page.
+   */
+  private static final class Entry {
+    private final Page page;
+    private final long expirationTime;
+
+    private Entry(Page page, long expirationTime) {
+      this.page = page;
+      this.expirationTime = expirationTime;
+    }
+  }
+}
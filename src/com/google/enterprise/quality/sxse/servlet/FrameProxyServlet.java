@@ -0,0 +1,175 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
+import com.google.enterprise.quality.sxse.SxseUtil;
+import com.google.enterprise.quality.sxse.QueryFormatter.QueryOptions;
+import com.google.enterprise.quality.sxse.input.EnumInputParser;
+import com.google.enterprise.quality.sxse.input.StringInputParser;
+import com.google.enterprise.quality.sxse.storage.JudgmentStorage;
+import com.google.enterprise.quality.sxse.storage.PreferencesStorage;
+import com.google.enterprise.quality.sxse.storage.StorageManager;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that returns the page of results displayed in an iframe when
+ * results are not stored, retrieving it through a {@link FrameProxy} instead
+ * of the browser of the assessor contacting the host directly. Only pages of
+ * the active scoring policy profiles can be retrieved.
+ *
+ * Each page is served with a content security policy that sandboxes it, so
+ * that although it is served by SxSE, its scripts cannot read the cookies of
+ * the assessor or make requests to SxSE as the assessor.
+ */
+public final class FrameProxyServlet extends HttpServlet {
+  private static final Logger LOGGER = Logger.getLogger(
+      FrameProxyServlet.class.getName());
+
+  /**
+   * The path for this servlet in the address.
+   */
+  public static final String PATH = "/frame";
+
+  // Gives the page a unique origin instead of the origin of SxSE, so it cannot
+  // read the cookies of SxSE, and stops it from running scripts. Links may
+  // still open in a new window.
+  private static final String CONTENT_SECURITY_POLICY = "sandbox allow-popups";
+
+  public static final class GetKeys {
+    /**
+     * The query to return the page of results for.
+     */
+    public static final String QUERY = "query";
+
+    /**
+     * Whether the page is displayed first or second, either {@code FIRST} or
+     * {@code SECOND}.
+     */
+    public static final String SIDE = "side";
+  }
+
+  private final StorageManager storageManager;
+  private final FrameProxy frameProxy;
+
+  /**
+   * Creates a new servlet that returns pages of results.
+   *
+   * @param storageManager the storage manager
+   * @param frameProxy the proxy retrieving the pages of results
+   */
+  public FrameProxyServlet(StorageManager storageManager,
+      FrameProxy frameProxy) {
+    this.storageManager = storageManager;
+    this.frameProxy = frameProxy;
+  }
+
+  /**
+   * Returns the URI of this servlet for the page of results displayed on the
+   * given side for the given query.
+   *
+   * @param query the query
+   * @param side whether the page is displayed first or second
+   * @return the URI of the page of results
+   */
+  static String getFrameUri(String query, StreamedResults.Part side) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(PATH.substring(1));
+    sb.append('?').append(GetKeys.SIDE).append('=').append(side);
+    sb.append('&').append(GetKeys.QUERY).append('=');
+    sb.append(SxseUtil.urlEncode(query));
+    return sb.toString();
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res)
+      throws ServletException, IOException {
+    EnumInputParser.ParsedInput<StreamedResults.Part> sideInput =
+        new EnumInputParser<StreamedResults.Part>(StreamedResults.Part.class)
+          .parse(GetKeys.SIDE, req.getParameterMap());
+    StringInputParser.ParsedInput queryInput =
+        StringInputParser.allowAll().parse(
+          GetKeys.QUERY, req.getParameterMap());
+    StreamedResults.Part side = sideInput.getResult();
+    String query = queryInput.getResult();
+    if ((side == null) || (query == null)) {
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+
+    FrameProxy.Page page;
+    try {
+      QueryFormatter queryFormatter = getQueryFormatter(query, side);
+      if (queryFormatter == null) {
+        // Never retrieve pages other than those of the active profiles.
+        res.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+
+      JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+      long abortTime = System.currentTimeMillis()
+          + judgmentStorage.getResultRetrievalTimeout();
+      page = frameProxy.get(queryFormatter, new QueryOptions(
+          query, judgmentStorage.getMaxResults(), abortTime));
+    } catch (SxseStorageException e) {
+      throw new ServletException(e);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "could not retrieve page of results", e);
+      res.sendError(HttpServletResponse.SC_BAD_GATEWAY,
+          "No results could be retrieved.");
+      return;
+    }
+
+    res.setHeader("Content-Security-Policy", CONTENT_SECURITY_POLICY);
+    if (page.getContentType() != null) {
+      res.setContentType(page.getContentType());
+    }
+    res.setContentLength(page.getBytes().length);
+    OutputStream out = res.getOutputStream();
+    out.write(page.getBytes());
+    out.close();
+  }
+
+  /*
+   * Returns the query formatter of the active profile displayed on the given
+   * side for the given query, or null if it is the empty profile.
+   */
+  private QueryFormatter getQueryFormatter(String query,
+      StreamedResults.Part side) throws SxseStorageException {
+    PreferencesStorage prefsStorage = storageManager.getPreferencesStorage();
+    ScoringPolicyProfile firstProfile = prefsStorage.getFirstProfile();
+    ScoringPolicyProfile secondProfile = prefsStorage.getSecondProfile();
+    // Swap the profiles as the judgment page does.
+    boolean swapped = AbstractJudgmentStrategy.shouldSwap(
+        storageManager.getJudgmentStorage(), query);
+    ScoringPolicyProfile profile =
+        ((side == StreamedResults.Part.FIRST) != swapped) ?
+          firstProfile : secondProfile;
+
+    return (profile != ScoringPolicyProfile.EMPTY_PROFILE) ?
+        profile.getQueryFormatter() : null;
+  }
+}
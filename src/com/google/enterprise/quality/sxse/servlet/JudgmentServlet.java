@@ -50,33 +50,60 @@ public class JudgmentServlet extends HttpServlet {
 
   private final JudgmentStorage judgmentStorage;
 
-  private final JudgmentServletStrategy serverStrategy;
+  private final ServerJudgmentStrategy serverStrategy;
   private final JudgmentServletStrategy clientStrategy;
 
+  /**
+   * Creates a new servlet through which an assessor makes judgments.
+   *
+   * @param banner the banner to display across the top of the page
+   * @param storageManager the storage from which this servlet can store
+   *        judgments
+   * @param queryChooser the chooser for the queries
+   * @param resultRetriever the retriever of results when results are stored
+   * @param frameProxy the proxy returning the pages displayed in iframes when
+   *        results are not stored, or {@code null} if the browser of each
+   *        assessor retrieves them directly from the hosts
+   */
   public JudgmentServlet(Banner banner, StorageManager storageManager,
-      QueryChooser queryChooser) {
+      QueryChooser queryChooser, ResultRetriever resultRetriever,
+      FrameProxy frameProxy) {
     judgmentStorage = storageManager.getJudgmentStorage();
 
     serverStrategy = new ServerJudgmentStrategy(
-        banner, storageManager, queryChooser);
+        banner, storageManager, queryChooser, resultRetriever);
     clientStrategy = new ClientJudgmentStrategy(
-        banner, storageManager, queryChooser);
+        banner, storageManager, queryChooser, frameProxy);
+  }
+
+  /**
+   * @return the strategy used when results are stored, through which pages
+   *         are prefetched or streamed
+   */
+  public ServerJudgmentStrategy getServerStrategy() {
+    return serverStrategy;
   }
 
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse res)
       throws ServletException, IOException {
-    getJudgmentStrategy().doGet(req, res);
+    getJudgmentStrategy(req).doGet(req, res);
   }
 
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse res)
       throws ServletException, IOException {
-    getJudgmentStrategy().doPost(req, res);
+    getJudgmentStrategy(req).doPost(req, res);
   }
 
-  private JudgmentServletStrategy getJudgmentStrategy()
+  private JudgmentServletStrategy getJudgmentStrategy(HttpServletRequest req)
       throws ServletException {
+    if (ServerJudgmentStrategy.isSuspended(req)
+        || ServerJudgmentStrategy.isResultsPartRequest(req)) {
+      // Finish the request even if results are no longer stored.
+      return serverStrategy;
+    }
+
     try {
       return judgmentStorage.isStoringResults() ?
           serverStrategy : clientStrategy;
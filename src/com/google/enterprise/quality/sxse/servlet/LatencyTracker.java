@@ -0,0 +1,95 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * The most recent latencies of retrieving results using a single query
+ * formatter, from which a percentile of the latency is computed.
+ *
+ * This class is thread-safe.
+ */
+public final class LatencyTracker {
+  /**
+   * The number of most recent latencies kept.
+   */
+  public static final int WINDOW_SIZE = 200;
+
+  /**
+   * The minimum number of latencies recorded before a percentile is
+   * computed.
+   */
+  public static final int MIN_SAMPLES = 20;
+
+  // All fields below are guarded by this.
+  private final long[] latencies;
+  private int nextLatency;
+  private int latencyCount;
+
+  /**
+   * Creates a new tracker with no latencies recorded.
+   */
+  public LatencyTracker() {
+    latencies = new long[WINDOW_SIZE];
+  }
+
+  /**
+   * Records the latency of a retrieval, evicting the oldest latency if the
+   * window is full.
+   *
+   * @param latencyMillis the latency, in milliseconds
+   */
+  public synchronized void record(long latencyMillis) {
+    latencies[nextLatency] = latencyMillis;
+    nextLatency = (nextLatency + 1) % latencies.length;
+    if (latencyCount < latencies.length) {
+      ++latencyCount;
+    }
+  }
+
+  /**
+   * @return the number of latencies in the window
+   */
+  public synchronized int getSampleCount() {
+    return latencyCount;
+  }
+
+  /**
+   * Returns the given percentile of the latencies in the window, or
+   * {@code -1} if fewer than {@link #MIN_SAMPLES} latencies are recorded.
+   *
+   * @param percentile the percentile, between 1 and 100
+   * @return the latency at that percentile, in milliseconds, or {@code -1}
+   */
+  public long getPercentile(int percentile) {
+    Preconditions.checkArgument((percentile > 0) && (percentile <= 100),
+        "percentile must be between 1 and 100");
+
+    long[] sortedLatencies;
+    synchronized (this) {
+      if (latencyCount < MIN_SAMPLES) {
+        return -1L;
+      }
+      sortedLatencies = Arrays.copyOf(latencies, latencyCount);
+    }
+    Arrays.sort(sortedLatencies);
+    // Use the nearest rank, so that the 100th percentile is the maximum.
+    int rank = (percentile * sortedLatencies.length + 99) / 100;
+    return sortedLatencies[Math.max(rank, 1) - 1];
+  }
+}
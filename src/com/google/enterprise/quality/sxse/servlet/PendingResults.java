@@ -0,0 +1,139 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Preconditions;
+import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
+import com.google.enterprise.quality.sxse.SearchResult;
+
+import org.mortbay.util.ajax.Continuation;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * The results being retrieved for a judgment page while its request is
+ * suspended. The request is resumed once both lists of results are retrieved,
+ * or once the abort time passes. The profiles are ordered as they will be
+ * displayed, so they are already swapped if necessary.
+ */
+final class PendingResults {
+  private final String query;
+  private final ScoringPolicyProfile firstProfile;
+  private final ScoringPolicyProfile secondProfile;
+  private final long abortTime;
+  private final Future<List<SearchResult>> firstResultsFuture;
+  private final Future<List<SearchResult>> secondResultsFuture;
+
+  // All fields below are guarded by this.
+  private int pendingCount;
+  private Continuation continuation;
+
+  /**
+   * Creates new pending results.
+   *
+   * @param query the query issued
+   * @param firstProfile the scoring policy profile displayed first
+   * @param secondProfile the scoring policy profile displayed second
+   * @param abortTime the time, in milliseconds since the epoch, after which
+   *        to stop waiting for results
+   * @param firstResultsFuture the future results of the first profile, or
+   *        {@code null} if it is the empty profile
+   * @param secondResultsFuture the future results of the second profile, or
+   *        {@code null} if it is the empty profile
+   */
+  PendingResults(String query,
+      ScoringPolicyProfile firstProfile, ScoringPolicyProfile secondProfile,
+      long abortTime, Future<List<SearchResult>> firstResultsFuture,
+      Future<List<SearchResult>> secondResultsFuture) {
+    this.query = Preconditions.checkNotNull(query);
+    this.firstProfile = Preconditions.checkNotNull(firstProfile);
+    this.secondProfile = Preconditions.checkNotNull(secondProfile);
+    this.abortTime = abortTime;
+    this.firstResultsFuture = firstResultsFuture;
+    this.secondResultsFuture = secondResultsFuture;
+
+    // Count both futures before either listener can run.
+    synchronized (this) {
+      pendingCount = ((firstResultsFuture != null) ? 1 : 0)
+          + ((secondResultsFuture != null) ? 1 : 0);
+    }
+    Runnable listener = new Runnable() {
+      public void run() {
+        resultsDone();
+      }
+    };
+    if (firstResultsFuture != null) {
+      ResultRetriever.addListener(firstResultsFuture, listener);
+    }
+    if (secondResultsFuture != null) {
+      ResultRetriever.addListener(secondResultsFuture, listener);
+    }
+  }
+
+  String getQuery() {
+    return query;
+  }
+
+  ScoringPolicyProfile getFirstProfile() {
+    return firstProfile;
+  }
+
+  ScoringPolicyProfile getSecondProfile() {
+    return secondProfile;
+  }
+
+  long getAbortTime() {
+    return abortTime;
+  }
+
+  Future<List<SearchResult>> getFirstResultsFuture() {
+    return firstResultsFuture;
+  }
+
+  Future<List<SearchResult>> getSecondResultsFuture() {
+    return secondResultsFuture;
+  }
+
+  /**
+   * Suspends the request until both lists of results are retrieved or the
+   * abort time passes. If the connector does not block, the suspended request
+   * is later handled again from the start, and this method then returns
+   * immediately; otherwise this method blocks until the request is resumed.
+   * The given continuation must use this instance as its lock.
+   *
+   * @param continuation the continuation of the request
+   */
+  void await(Continuation continuation) {
+    synchronized (this) {
+      this.continuation = continuation;
+      long timeRemaining = abortTime - System.currentTimeMillis();
+      if (continuation.isPending()
+          || ((pendingCount > 0) && (timeRemaining > 0L))) {
+        // Holding the lock, so the last listener cannot resume the request
+        // before it is suspended.
+        continuation.suspend(Math.max(timeRemaining, 1L));
+      }
+    }
+  }
+
+  private void resultsDone() {
+    synchronized (this) {
+      if ((--pendingCount == 0) && (continuation != null)) {
+        continuation.resume();
+      }
+    }
+  }
+}
@@ -76,6 +76,9 @@ public class PolicyProfilesServlet extends HttpServlet {
 
   private final Banner banner;
   private final StorageManager storageManager;
+  private final ResultRetriever resultRetriever;
+  private final ServerJudgmentStrategy serverStrategy;
+  private final FrameProxy frameProxy;
 
   /**
    * Creates a new {@code AdminPasswordServlet} that uses the given
@@ -88,11 +91,21 @@ public class PolicyProfilesServlet extends HttpServlet {
    * 
    * @param banner the banner to display across the top of the page
    * @param storageManager the storage manager
+   * @param resultRetriever the retriever of results, whose status is displayed
+   * @param serverStrategy the judgment strategy whose prefetching and
+   *        streaming is displayed
+   * @param frameProxy the proxy returning the pages displayed in iframes, or
+   *        {@code null} if there is none
    * @see com.google.enterprise.quality.sxse.storage.SynchronizedStorageManager
    */
-  public PolicyProfilesServlet(Banner banner, StorageManager storageManager) {
+  public PolicyProfilesServlet(Banner banner, StorageManager storageManager,
+      ResultRetriever resultRetriever, ServerJudgmentStrategy serverStrategy,
+      FrameProxy frameProxy) {
     this.banner = banner;
     this.storageManager = storageManager;
+    this.resultRetriever = resultRetriever;
+    this.serverStrategy = serverStrategy;
+    this.frameProxy = frameProxy;
   }
 
   @Override
@@ -135,6 +148,16 @@ public class PolicyProfilesServlet extends HttpServlet {
      * Delete the policy profile.
      */
     DELETE,
+
+    /**
+     * Flush all cached results.
+     */
+    FLUSH_RESULT_CACHE,
+
+    /**
+     * Set the rate of requests allowed to each host.
+     */
+    SET_RATE_LIMIT,
   }
 
   public static final class PostKeys {
@@ -178,6 +201,17 @@ public class PolicyProfilesServlet extends HttpServlet {
      */
     public static final String MAX_RESULTS = "maxResults";
 
+    /**
+     * The sustained number of requests per second allowed to each host, or
+     * {@code 0} if not limited.
+     */
+    public static final String MAX_QUERIES_PER_SECOND = "maxQueriesPerSecond";
+
+    /**
+     * The maximum number of requests to each host in a burst.
+     */
+    public static final String MAX_BURST = "maxBurst";
+
     /**
      * The name of the scoring policy profile to take action on. If
      * {@code EDIT}, the profile to edit. If {@code DELETE}, the profile to
@@ -220,6 +254,12 @@ public class PolicyProfilesServlet extends HttpServlet {
         case DELETE:
           fc = deletePolicyProfile(req);
           break;
+        case FLUSH_RESULT_CACHE:
+          fc = flushResultCache();
+          break;
+        case SET_RATE_LIMIT:
+          fc = setRateLimit(req);
+          break;
         default:
           // It's okay to pass through.
         }
@@ -325,6 +365,8 @@ public class PolicyProfilesServlet extends HttpServlet {
       DELETE_FAILED,
       RETRIEVAL_TIMEOUT_INVALID,
       MAX_RESULTS_INVALID,
+      MAX_QUERIES_PER_SECOND_INVALID,
+      MAX_BURST_INVALID,
     }
 
     public final InputErrors<Error> errors;
@@ -427,6 +469,26 @@ public class PolicyProfilesServlet extends HttpServlet {
             "Invalid maximum: ")
           .build();
 
+  private static final FloatInputParser MAX_QUERIES_PER_SECOND_PARSER =
+      new FloatInputParser(0f, 10000f);
+  private static final
+      ErrorTransformer<FloatInputParser.ParseError, PolicyProfilesFormContext.Error> MAX_QUERIES_PER_SECOND_TRANSFORMER =
+        ErrorTransformer.builder(FloatInputParser.ParseError.class, PolicyProfilesFormContext.Error.class)
+          .addAll(
+            FloatInputParser.ParseError.values(), PolicyProfilesFormContext.Error.MAX_QUERIES_PER_SECOND_INVALID,
+            "Invalid queries per second: ")
+          .build();
+
+  private static final IntegerInputParser MAX_BURST_PARSER =
+      new IntegerInputParser(1, 1000);
+  private static final
+      ErrorTransformer<IntegerInputParser.ParseError, PolicyProfilesFormContext.Error> MAX_BURST_TRANSFORMER =
+        ErrorTransformer.builder(IntegerInputParser.ParseError.class, PolicyProfilesFormContext.Error.class)
+          .addAll(
+            IntegerInputParser.ParseError.values(), PolicyProfilesFormContext.Error.MAX_BURST_INVALID,
+            "Invalid burst: ")
+          .build();
+
   PolicyProfilesFormContext editActivePolicyProfiles(
       HttpServletRequest req) throws SxseStorageException {
     InputErrors.Builder<PolicyProfilesFormContext.Error> errorsBuilder =
@@ -675,6 +737,50 @@ public class PolicyProfilesServlet extends HttpServlet {
     return fc;
   }
 
+  PolicyProfilesFormContext flushResultCache() throws SxseStorageException {
+    resultRetriever.getResultCache().flush();
+    if (frameProxy != null) {
+      frameProxy.flush();
+    }
+    LOGGER.info("flushed result cache");
+
+    PolicyProfilesFormContext fc = newDefaultFormContext();
+    return fc;
+  }
+
+  PolicyProfilesFormContext setRateLimit(HttpServletRequest req)
+      throws SxseStorageException {
+    InputErrors.Builder<PolicyProfilesFormContext.Error> errorsBuilder =
+        InputErrors.builder(PolicyProfilesFormContext.Error.class);
+
+    FloatInputParser.ParsedInput maxQueriesPerSecondInput =
+        MAX_QUERIES_PER_SECOND_PARSER.parse(
+          PostKeys.MAX_QUERIES_PER_SECOND, req.getParameterMap());
+    if (!maxQueriesPerSecondInput.hasResult()) {
+      MAX_QUERIES_PER_SECOND_TRANSFORMER.transform(
+          maxQueriesPerSecondInput.getErrors(), errorsBuilder);
+    }
+    IntegerInputParser.ParsedInput maxBurstInput = MAX_BURST_PARSER.parse(
+        PostKeys.MAX_BURST, req.getParameterMap());
+    if (!maxBurstInput.hasResult()) {
+      MAX_BURST_TRANSFORMER.transform(maxBurstInput.getErrors(), errorsBuilder);
+    }
+
+    InputErrors<PolicyProfilesFormContext.Error> errors = errorsBuilder.build();
+    if (!errors.isEmpty()) {
+      return new PolicyProfilesFormContext(
+          storageManager.getPreferencesStorage(),
+          storageManager.getJudgmentStorage(), errors);
+    }
+
+    // Applies to requests to every host immediately.
+    QueryFormatter.getBackendClient().setRateLimit(
+        maxQueriesPerSecondInput.getResult(), maxBurstInput.getResult());
+    LOGGER.info("set rate limit to " + maxQueriesPerSecondInput.getResult()
+        + " queries per second, burst of " + maxBurstInput.getResult());
+    return newDefaultFormContext();
+  }
+
   private void write(HttpServletRequest req, HttpServletResponse res,
       PolicyProfilesFormContext fc) throws SxseStorageException, IOException {
     PreferencesStorage prefsStorage = storageManager.getPreferencesStorage();
@@ -684,6 +790,7 @@ public class PolicyProfilesServlet extends HttpServlet {
 
     PolicyProfiles.write(
         writer, new GxpContext(req.getLocale()), User.getUser(req), banner,
-        prefsStorage.getProfiles(), fc);
+        prefsStorage.getProfiles(), fc, resultRetriever, serverStrategy,
+        frameProxy);
   }
 }
@@ -0,0 +1,179 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
+import com.google.enterprise.quality.sxse.SearchResult;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The results for the next query an assessor will judge, retrieved while the
+ * assessor judges the current query. The profiles are ordered as they will be
+ * displayed, so they are already swapped if necessary.
+ */
+final class PrefetchedResults {
+  // The time after which prefetched results are too old to display.
+  private static final long MAX_AGE_MILLIS = 10 * 60 * 1000L;
+
+  private final String query;
+  private final ScoringPolicyProfile firstProfile;
+  private final ScoringPolicyProfile secondProfile;
+  private final int maxResults;
+  private final Future<List<SearchResult>> firstResultsFuture;
+  private final Future<List<SearchResult>> secondResultsFuture;
+  private final long creationTime;
+
+  /**
+   * Creates new prefetched results.
+   *
+   * @param query the query issued
+   * @param firstProfile the scoring policy profile displayed first
+   * @param secondProfile the scoring policy profile displayed second
+   * @param maxResults the maximum number of results requested
+   * @param firstResultsFuture the future results of the first profile, or
+   *        {@code null} if it is the empty profile
+   * @param secondResultsFuture the future results of the second profile, or
+   *        {@code null} if it is the empty profile
+   */
+  PrefetchedResults(String query,
+      ScoringPolicyProfile firstProfile, ScoringPolicyProfile secondProfile,
+      int maxResults, Future<List<SearchResult>> firstResultsFuture,
+      Future<List<SearchResult>> secondResultsFuture) {
+    this.query = Preconditions.checkNotNull(query);
+    this.firstProfile = Preconditions.checkNotNull(firstProfile);
+    this.secondProfile = Preconditions.checkNotNull(secondProfile);
+    this.maxResults = maxResults;
+    this.firstResultsFuture = firstResultsFuture;
+    this.secondResultsFuture = secondResultsFuture;
+    creationTime = System.currentTimeMillis();
+  }
+
+  /**
+   * @return the query issued
+   */
+  String getQuery() {
+    return query;
+  }
+
+  /**
+   * @return the future results of the first profile, or {@code null} if it is
+   *         the empty profile
+   */
+  Future<List<SearchResult>> getFirstResultsFuture() {
+    return firstResultsFuture;
+  }
+
+  /**
+   * @return the future results of the second profile, or {@code null} if it
+   *         is the empty profile
+   */
+  Future<List<SearchResult>> getSecondResultsFuture() {
+    return secondResultsFuture;
+  }
+
+  /**
+   * Returns whether these results can be displayed for the given query and
+   * scoring policy profiles. They cannot be displayed if the query or profiles
+   * differ from those they were retrieved for, if they are too old, or if
+   * either list of results failed to be retrieved.
+   *
+   * @param query the query to display results for
+   * @param firstProfile the scoring policy profile displayed first
+   * @param secondProfile the scoring policy profile displayed second
+   * @param maxResults the maximum number of results to display
+   * @return {@code true} if these results can be displayed, {@code false}
+   *         otherwise
+   */
+  boolean isUsable(String query, ScoringPolicyProfile firstProfile,
+      ScoringPolicyProfile secondProfile, int maxResults) {
+    return (this.query.equals(query)
+        && isSameProfile(this.firstProfile, firstProfile)
+        && isSameProfile(this.secondProfile, secondProfile)
+        && (this.maxResults == maxResults)
+        && (System.currentTimeMillis() - creationTime < MAX_AGE_MILLIS)
+        && !hasFailed(firstResultsFuture)
+        && !hasFailed(secondResultsFuture));
+  }
+
+  /**
+   * Returns whether these results were retrieved for the given pair of scoring
+   * policy profiles, in either order. If not, the active profiles changed
+   * after the query was chosen, so the query may not need judging.
+   *
+   * @param profile one active scoring policy profile
+   * @param otherProfile the other active scoring policy profile
+   * @return {@code true} if these results were retrieved for the profiles,
+   *         {@code false} otherwise
+   */
+  boolean isForProfiles(ScoringPolicyProfile profile,
+      ScoringPolicyProfile otherProfile) {
+    return (isSameProfile(firstProfile, profile)
+            && isSameProfile(secondProfile, otherProfile))
+        || (isSameProfile(firstProfile, otherProfile)
+            && isSameProfile(secondProfile, profile));
+  }
+
+  /**
+   * Stops retrieving results, if not already done.
+   */
+  void cancel() {
+    if (firstResultsFuture != null) {
+      firstResultsFuture.cancel(true);
+    }
+    if (secondResultsFuture != null) {
+      secondResultsFuture.cancel(true);
+    }
+  }
+
+  /*
+   * Returns whether both profiles have the same name and query formatter, so
+   * an edited profile is not mistaken for the profile it replaced.
+   */
+  private static boolean isSameProfile(ScoringPolicyProfile first,
+      ScoringPolicyProfile second) {
+    return (first == second)
+        || (Objects.equal(first.getName(), second.getName())
+            && first.getQueryFormatter().equals(second.getQueryFormatter()));
+  }
+
+  /*
+   * Returns whether the given future finished without returning results.
+   */
+  private static boolean hasFailed(Future<List<SearchResult>> resultsFuture) {
+    if ((resultsFuture == null) || !resultsFuture.isDone()) {
+      return false;
+    } else if (resultsFuture.isCancelled()) {
+      return true;
+    }
+
+    try {
+      return (resultsFuture.get() == null);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return true;
+    } catch (ExecutionException e) {
+      return true;
+    } catch (CancellationException e) {
+      // Thrown if the retrieval was rejected.
+      return true;
+    }
+  }
+}
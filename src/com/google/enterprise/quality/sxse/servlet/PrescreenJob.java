@@ -0,0 +1,358 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Objects;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
+import com.google.enterprise.quality.sxse.SearchResult;
+import com.google.enterprise.quality.sxse.SearchResultList;
+import com.google.enterprise.quality.sxse.storage.JudgmentStorage;
+import com.google.enterprise.quality.sxse.storage.PreferencesStorage;
+import com.google.enterprise.quality.sxse.storage.StorageManager;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A batch job that retrieves the results of both active scoring policy
+ * profiles for every query in the active query sets, and finds the queries
+ * for which both profiles return identical results. Each such query is saved
+ * through {@link JudgmentStorage#addIdenticalQuery}, apart from the judgments
+ * of assessors, and {@link PrescreenedQueryChooser} no longer chooses the
+ * query for assessors, because judging it would not tell the profiles apart.
+ *
+ * Because the identical queries are saved in storage, they are found again
+ * after a restart, and starting the job again skips them. They no longer
+ * apply once either active profile changes.
+ *
+ * This class is thread-safe.
+ */
+public final class PrescreenJob extends BatchJob {
+  private static final Logger LOGGER = Logger.getLogger(
+      PrescreenJob.class.getName());
+
+  /**
+   * The default number of queries prescreened at once.
+   */
+  public static final int DEFAULT_PARALLELISM = 4;
+
+  /**
+   * The default maximum number of queries prescreened per second.
+   */
+  public static final int DEFAULT_QUERIES_PER_SECOND = 5;
+
+  private final AtomicInteger totalCount;
+  private final AtomicInteger identicalCount;
+  private final AtomicInteger differentCount;
+  private final AtomicInteger skippedCount;
+
+  /*
+   * The queries with identical results for the query formatters below. This
+   * is null until loaded from the judgment storage, and is loaded again
+   * whenever the active profiles change or the queries are removed. All are
+   * guarded by identicalLock, which is never held while calling the storage
+   * manager.
+   */
+  private final Object identicalLock;
+  private QueryFormatter identicalFirstFormatter;
+  private QueryFormatter identicalSecondFormatter;
+  private Set<String> identicalQueries;
+
+  /**
+   * Creates a new prescreening job.
+   *
+   * @param storageManager the storage manager
+   * @param resultRetriever the retriever of results from each host
+   * @param parallelism the number of queries prescreened at once
+   * @param queriesPerSecond the maximum number of queries prescreened per
+   *        second
+   */
+  public PrescreenJob(StorageManager storageManager,
+      ResultRetriever resultRetriever, int parallelism, int queriesPerSecond) {
+    super("PrescreenJob", storageManager, resultRetriever, parallelism,
+        queriesPerSecond);
+
+    totalCount = new AtomicInteger();
+    identicalCount = new AtomicInteger();
+    differentCount = new AtomicInteger();
+    skippedCount = new AtomicInteger();
+    identicalLock = new Object();
+  }
+
+  /**
+   * @return the number of queries the last run of the job must prescreen
+   */
+  public int getTotalCount() {
+    return totalCount.get();
+  }
+
+  /**
+   * @return the number of queries the last run of the job found to have
+   *         identical results
+   */
+  public int getIdenticalCount() {
+    return identicalCount.get();
+  }
+
+  /**
+   * @return the number of queries the last run of the job found to have
+   *         different results
+   */
+  public int getDifferentCount() {
+    return differentCount.get();
+  }
+
+  /**
+   * @return the number of queries skipped by the last run of the job because
+   *         they were already found to have identical results
+   */
+  public int getSkippedCount() {
+    return skippedCount.get();
+  }
+
+  /**
+   * Returns whether both active scoring policy profiles were found to return
+   * identical results for the given query.
+   *
+   * @param query the query
+   * @return {@code true} if the results are identical, {@code false} if they
+   *         differ or the query was not prescreened
+   * @throws SxseStorageException if an error occurs
+   */
+  public boolean isIdentical(String query) throws SxseStorageException {
+    return getIdenticalQueries().contains(query);
+  }
+
+  /**
+   * @return the number of queries found to have identical results for the
+   *         active profiles
+   * @throws SxseStorageException if an error occurs
+   */
+  public int getIdenticalQueryCount() throws SxseStorageException {
+    return getIdenticalQueries().size();
+  }
+
+  /**
+   * Removes all queries found to have identical results, for any profiles.
+   * Cancels the job if running, so that it does not save more.
+   *
+   * @throws SxseStorageException if an error occurs
+   */
+  public void removeIdenticalQueries() throws SxseStorageException {
+    cancel();
+    getStorageManager().getJudgmentStorage().removeIdenticalQueries();
+    synchronized (identicalLock) {
+      identicalQueries = null;
+    }
+  }
+
+  /**
+   * Returns the queries with identical results for the active profiles,
+   * loading them from the judgment storage if the profiles changed. Queries
+   * found identical later may be added to the returned set.
+   *
+   * @return the queries with identical results
+   * @throws SxseStorageException if an error occurs
+   */
+  Set<String> getIdenticalQueries() throws SxseStorageException {
+    StorageManager storageManager = getStorageManager();
+    PreferencesStorage prefsStorage = storageManager.getPreferencesStorage();
+    ScoringPolicyProfile firstProfile = prefsStorage.getFirstProfile();
+    ScoringPolicyProfile secondProfile = prefsStorage.getSecondProfile();
+    if ((firstProfile == ScoringPolicyProfile.EMPTY_PROFILE)
+        || (secondProfile == ScoringPolicyProfile.EMPTY_PROFILE)) {
+      // The empty profile never returns the same results as another.
+      return Collections.emptySet();
+    }
+
+    QueryFormatter firstFormatter = firstProfile.getQueryFormatter();
+    QueryFormatter secondFormatter = secondProfile.getQueryFormatter();
+    synchronized (identicalLock) {
+      if ((identicalQueries != null)
+          && isSamePair(firstFormatter, secondFormatter)) {
+        return identicalQueries;
+      }
+    }
+
+    JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+    Set<String> queries = Collections.synchronizedSet(new HashSet<String>(
+        judgmentStorage.getIdenticalQueries(firstFormatter, secondFormatter)));
+
+    synchronized (identicalLock) {
+      identicalFirstFormatter = firstFormatter;
+      identicalSecondFormatter = secondFormatter;
+      identicalQueries = queries;
+    }
+    return queries;
+  }
+
+  /*
+   * Adds a query found to have identical results for the given formatters.
+   */
+  private void addIdenticalQuery(QueryFormatter firstFormatter,
+      QueryFormatter secondFormatter, String query) {
+    synchronized (identicalLock) {
+      if ((identicalQueries != null)
+          && isSamePair(firstFormatter, secondFormatter)) {
+        identicalQueries.add(query);
+      }
+    }
+  }
+
+  /*
+   * Returns whether the identical queries are for the given formatters, in
+   * either order. Must be called while holding identicalLock.
+   */
+  private boolean isSamePair(QueryFormatter firstFormatter,
+      QueryFormatter secondFormatter) {
+    return (Objects.equal(identicalFirstFormatter, firstFormatter)
+          && Objects.equal(identicalSecondFormatter, secondFormatter))
+        || (Objects.equal(identicalFirstFormatter, secondFormatter)
+          && Objects.equal(identicalSecondFormatter, firstFormatter));
+  }
+
+  @Override
+  void resetCounts() {
+    totalCount.set(0);
+    identicalCount.set(0);
+    differentCount.set(0);
+    skippedCount.set(0);
+  }
+
+  @Override
+  void run(TaskScheduler scheduler)
+      throws InterruptedException, SxseStorageException {
+    StorageManager storageManager = getStorageManager();
+    JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+    PreferencesStorage prefsStorage = storageManager.getPreferencesStorage();
+    ScoringPolicyProfile firstProfile = prefsStorage.getFirstProfile();
+    ScoringPolicyProfile secondProfile = prefsStorage.getSecondProfile();
+    if ((firstProfile == ScoringPolicyProfile.EMPTY_PROFILE)
+        || (secondProfile == ScoringPolicyProfile.EMPTY_PROFILE)) {
+      addFailure(new Failure("", "",
+          "both active profiles must return results"));
+      return;
+    }
+
+    Set<String> queries = getActiveQueries();
+    Set<String> prevIdenticalQueries = getIdenticalQueries();
+    int maxResults = judgmentStorage.getMaxResults();
+    int timeout = judgmentStorage.getResultRetrievalTimeout();
+    boolean servingSnapshots = judgmentStorage.isServingSnapshots();
+    totalCount.set(queries.size());
+
+    for (String query : queries) {
+      if (prevIdenticalQueries.contains(query)) {
+        skippedCount.incrementAndGet();
+        continue;
+      }
+
+      scheduler.execute(new PrescreenTask(judgmentStorage, firstProfile,
+          secondProfile, query, maxResults, timeout, servingSnapshots));
+    }
+  }
+
+  @Override
+  String getSummary() {
+    return "found " + identicalCount.get() + " identical, "
+        + differentCount.get() + " different, skipped " + skippedCount.get()
+        + ", failed " + getFailedCount() + " of " + totalCount.get()
+        + " queries";
+  }
+
+  /*
+   * Retrieves the results of both profiles for one query, and saves the query
+   * if they are identical.
+   */
+  private final class PrescreenTask implements Runnable {
+    private final JudgmentStorage judgmentStorage;
+    private final ScoringPolicyProfile firstProfile;
+    private final ScoringPolicyProfile secondProfile;
+    private final String query;
+    private final int maxResults;
+    private final int timeout;
+    private final boolean servingSnapshots;
+
+    private PrescreenTask(JudgmentStorage judgmentStorage,
+        ScoringPolicyProfile firstProfile, ScoringPolicyProfile secondProfile,
+        String query, int maxResults, int timeout, boolean servingSnapshots) {
+      this.judgmentStorage = judgmentStorage;
+      this.firstProfile = firstProfile;
+      this.secondProfile = secondProfile;
+      this.query = query;
+      this.maxResults = maxResults;
+      this.timeout = timeout;
+      this.servingSnapshots = servingSnapshots;
+    }
+
+    public void run() {
+      try {
+        List<SearchResult> firstResults = getResults(firstProfile);
+        if (firstResults == null) {
+          return;
+        }
+        List<SearchResult> secondResults = getResults(secondProfile);
+        if (secondResults == null) {
+          return;
+        }
+
+        if (!SearchResultList.copyOf(firstResults).equals(
+            SearchResultList.copyOf(secondResults))) {
+          differentCount.incrementAndGet();
+          return;
+        }
+
+        QueryFormatter firstFormatter = firstProfile.getQueryFormatter();
+        QueryFormatter secondFormatter = secondProfile.getQueryFormatter();
+        judgmentStorage.addIdenticalQuery(
+            firstFormatter, secondFormatter, query);
+        addIdenticalQuery(firstFormatter, secondFormatter, query);
+        identicalCount.incrementAndGet();
+      } catch (SxseStorageException e) {
+        LOGGER.log(Level.SEVERE, "could not record prescreened query", e);
+        addFailure(new Failure(query, "", e.toString()));
+      } catch (InterruptedException e) {
+        // The job was cancelled.
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    /*
+     * Returns the results that assessors are shown for the given profile, or
+     * null and adds a failure if there are none.
+     */
+    private List<SearchResult> getResults(ScoringPolicyProfile profile)
+        throws SxseStorageException, InterruptedException {
+      if (!servingSnapshots) {
+        return retrieve(profile, query, maxResults, timeout);
+      }
+
+      List<SearchResult> results = judgmentStorage.getSnapshot(
+          profile.getQueryFormatter(), query, maxResults);
+      if (results == null) {
+        addFailure(new Failure(query, profile.getName(),
+            "no snapshot of results"));
+      }
+      return results;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.enterprise.quality.sxse.storage.QueryStorage;
+import com.google.enterprise.quality.sxse.storage.StorageManager;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An implementation of {@link QueryChooser} that skips the queries for which
+ * {@link PrescreenJob} found that both active scoring policy profiles return
+ * identical results. Queries are chosen by another query chooser, and if it
+ * chooses a skipped query, a query is chosen uniformly at random from the
+ * remaining queries instead. If no queries remain, the query chosen by the
+ * other query chooser is returned, so that the assessor is still shown a
+ * query.
+ */
+public final class PrescreenedQueryChooser implements QueryChooser {
+  private final QueryChooser queryChooser;
+  private final PrescreenJob prescreenJob;
+
+  /**
+   * Creates a new query chooser that skips prescreened queries.
+   *
+   * @param queryChooser the query chooser that chooses queries
+   * @param prescreenJob the job that finds queries with identical results
+   */
+  public PrescreenedQueryChooser(QueryChooser queryChooser,
+      PrescreenJob prescreenJob) {
+    this.queryChooser = Preconditions.checkNotNull(queryChooser);
+    this.prescreenJob = Preconditions.checkNotNull(prescreenJob);
+  }
+
+  public String choose(StorageManager storageManager, User user)
+      throws SxseStorageException {
+    String query = queryChooser.choose(storageManager, user);
+    Set<String> identicalQueries = prescreenJob.getIdenticalQueries();
+    if ((query == null) || !identicalQueries.contains(query)) {
+      return query;
+    }
+
+    QueryStorage queryStorage = storageManager.getQueryStorage();
+    List<List<String>> querySets = Lists.newArrayList();
+    synchronized (queryStorage) {
+      for (String setName : queryStorage.getQuerySetNames()) {
+        // Do not choose queries from inactive query sets.
+        if (queryStorage.isActive(setName)) {
+          querySets.add(queryStorage.getQuerySet(setName));
+        }
+      }
+    }
+    String remainingQuery = chooseRemaining(querySets, identicalQueries);
+    // If every query was skipped, return the query chosen from all queries.
+    return (remainingQuery != null) ? remainingQuery : query;
+  }
+
+  public String choose(StorageManager storageManager, User user,
+      String querySetName) throws SxseStorageException {
+    String query = queryChooser.choose(storageManager, user, querySetName);
+    Set<String> identicalQueries = prescreenJob.getIdenticalQueries();
+    if ((query == null) || !identicalQueries.contains(query)) {
+      return query;
+    }
+
+    List<String> queries =
+        storageManager.getQueryStorage().getQuerySet(querySetName);
+    String remainingQuery = chooseRemaining(
+        Collections.singletonList(queries), identicalQueries);
+    // If every query in the set was skipped, return the query chosen from all
+    // its queries.
+    return (remainingQuery != null) ? remainingQuery : query;
+  }
+
+  /*
+   * Returns a query chosen uniformly at random from the given query sets,
+   * skipping the identical queries, or null if every query is skipped. Each
+   * query is visited once, keeping the n-th query not skipped with
+   * probability 1/n, so no query set is copied.
+   */
+  private static String chooseRemaining(List<List<String>> querySets,
+      Set<String> identicalQueries) {
+    String chosenQuery = null;
+    int remainingCount = 0;
+    for (List<String> queries : querySets) {
+      if (queries == null) {
+        // The query set was removed.
+        continue;
+      }
+
+      for (String query : queries) {
+        if (identicalQueries.contains(query)) {
+          continue;
+        }
+        ++remainingCount;
+        if (SxseServletUtil.RNG.nextInt(remainingCount) == 0) {
+          chosenQuery = query;
+        }
+      }
+    }
+    return chosenQuery;
+  }
+}
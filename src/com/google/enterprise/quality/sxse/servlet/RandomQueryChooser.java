@@ -159,6 +159,7 @@ public class RandomQueryChooser implements QueryChooser {
         if ((lowerBound <= selection) && (selection < upperBound)) {
           return setInfo.name;
         }
+        lowerBound = upperBound;
       }
     }
   }
@@ -0,0 +1,1140 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Preconditions;
+import com.google.enterprise.quality.sxse.AbortableTask;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.ResultListKey;
+import com.google.enterprise.quality.sxse.SearchResult;
+import com.google.enterprise.quality.sxse.VirtualThreads;
+import com.google.enterprise.quality.sxse.QueryFormatter.FormatterType;
+import com.google.enterprise.quality.sxse.QueryFormatter.QueryOptions;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Retrieves lists of search results from the hosts of scoring policy profiles.
+ * Each host is given its own fixed number of threads and a bounded queue of
+ * waiting requests, so that a slow host cannot consume the threads needed to
+ * retrieve results from any other host. A request for results from a host
+ * whose queue is full is rejected immediately; its {@link Future} is returned
+ * already cancelled, which the caller should treat as if retrieval had timed
+ * out. Lists of results are also kept in a {@link SearchResultCache}, so that
+ * a query already issued by another assessor is not issued to its host again.
+ *
+ * Each host also has a {@link CircuitBreaker}. Once too many recent requests
+ * to a host failed or timed out, the breaker opens, and requests for results
+ * from that host return {@code null} immediately until a trial request
+ * succeeds.
+ *
+ * The latency of each retrieval is recorded for the query formatter that
+ * retrieved it. If adaptive timeouts are enabled, the time that a request
+ * waits for results from a formatter is a percentile of its recent latencies
+ * plus a margin, capped by the timeout set for all formatters.
+ *
+ * If hedging is enabled, a retrieval that has not finished after a percentile
+ * of the recent latencies of its formatter is retried, and the results of
+ * whichever attempt finishes first are returned. The number of such hedged
+ * attempts is capped at a percentage of all retrievals, and no attempt is
+ * hedged while the circuit breaker of its host is not closed, so that hedging
+ * cannot multiply the load on a failing host.
+ * Once one attempt finishes, the connections of the others are closed, and
+ * their failures are not recorded by the circuit breaker.
+ *
+ * Concurrent requests for the same list of results share a single retrieval
+ * from its host. Each request waits on its own {@link Future}, and so can stop
+ * waiting at its own deadline. The shared retrieval waits for its host until
+ * the latest deadline of these requests; if an attempt times out before a
+ * deadline set by a request that joined later, it is retried. Cancelling one
+ * such {@code Future} does not affect the others; the shared retrieval is only
+ * cancelled once every request waiting on it is cancelled.
+ *
+ * This class is thread-safe.
+ */
+public final class ResultRetriever {
+  private static final Logger LOGGER = Logger.getLogger(
+      ResultRetriever.class.getName());
+
+  /**
+   * The default number of threads retrieving results from any one host.
+   */
+  public static final int DEFAULT_THREADS_PER_HOST = 8;
+
+  /**
+   * The default number of requests that may wait for a thread retrieving
+   * results from any one host.
+   */
+  public static final int DEFAULT_QUEUE_DEPTH_PER_HOST = 32;
+
+  /**
+   * The default margin, in milliseconds, added to the percentile of latencies
+   * when timeouts are adaptive.
+   */
+  public static final long DEFAULT_ADAPTIVE_TIMEOUT_MARGIN_MILLIS = 250L;
+
+  /**
+   * The default maximum percentage of retrievals that are hedged.
+   */
+  public static final int DEFAULT_MAX_HEDGE_PERCENT = 5;
+
+  // The most hedged attempts that may be made in a burst.
+  private static final double MAX_HEDGE_BURST = 10.0;
+
+  /*
+   * The callable of a shared retrieval, which is never run because the
+   * retrieval is completed by its attempts.
+   */
+  private static final Callable<List<SearchResult>> ATTEMPTS_ONLY =
+      new Callable<List<SearchResult>>() {
+        public List<SearchResult> call() {
+          throw new IllegalStateException("completed by its attempts");
+        }
+      };
+
+  // The time after which an idle thread for a host exits.
+  private static final long IDLE_THREAD_TIMEOUT_SECS = 60L;
+
+  private final int threadsPerHost;
+  private final int queueDepthPerHost;
+  private final SearchResultCache resultCache;
+  private final ConcurrentMap<String, Bulkhead> bulkheads;
+  private final ConcurrentMap<ResultListKey, SharedRetrieval> retrievals;
+  private final AtomicLong coalescedCount;
+  private final ConcurrentMap<QueryFormatter, LatencyTracker> latencyTrackers;
+
+  private volatile int adaptiveTimeoutPercentile;
+  private volatile long adaptiveTimeoutMarginMillis;
+
+  private final ScheduledExecutorService hedgeTimer;
+  private volatile int hedgePercentile;
+  private volatile int maxHedgePercent;
+  // The number of hedged attempts that may be made, guarded by hedgeTimer.
+  private double hedgeTokens;
+  private final AtomicLong hedgeCount;
+  private final AtomicLong hedgeWinCount;
+  private final AtomicLong hedgeSkippedCount;
+
+  private volatile boolean usingVirtualThreads;
+
+  /**
+   * Creates a new result retriever.
+   *
+   * @param threadsPerHost the number of threads retrieving results from any
+   *        one host
+   * @param queueDepthPerHost the number of requests that may wait for a thread
+   *        retrieving results from any one host
+   * @param resultCache the cache of retrieved results
+   */
+  public ResultRetriever(int threadsPerHost, int queueDepthPerHost,
+      SearchResultCache resultCache) {
+    Preconditions.checkArgument(threadsPerHost > 0,
+        "threadsPerHost must be positive");
+    Preconditions.checkArgument(queueDepthPerHost > 0,
+        "queueDepthPerHost must be positive");
+
+    this.threadsPerHost = threadsPerHost;
+    this.queueDepthPerHost = queueDepthPerHost;
+    this.resultCache = Preconditions.checkNotNull(resultCache);
+    bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+    retrievals = new ConcurrentHashMap<ResultListKey, SharedRetrieval>();
+    coalescedCount = new AtomicLong();
+    latencyTrackers =
+        new ConcurrentHashMap<QueryFormatter, LatencyTracker>();
+    adaptiveTimeoutMarginMillis = DEFAULT_ADAPTIVE_TIMEOUT_MARGIN_MILLIS;
+
+    hedgeTimer = Executors.newSingleThreadScheduledExecutor(
+        new BackendThreadFactory("hedge"));
+    maxHedgePercent = DEFAULT_MAX_HEDGE_PERCENT;
+    hedgeCount = new AtomicLong();
+    hedgeWinCount = new AtomicLong();
+    hedgeSkippedCount = new AtomicLong();
+  }
+
+  /**
+   * @return the number of threads retrieving results from any one host
+   */
+  public int getThreadsPerHost() {
+    return threadsPerHost;
+  }
+
+  /**
+   * @return the number of requests that may wait for a thread retrieving
+   *         results from any one host
+   */
+  public int getQueueDepthPerHost() {
+    return queueDepthPerHost;
+  }
+
+  /**
+   * @return the cache of retrieved results
+   */
+  public SearchResultCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * Submits a request to retrieve results using the given query formatter.
+   * If the results are cached, the returned {@link Future} is already done.
+   * If the same results are already being retrieved, the returned
+   * {@link Future} waits on that retrieval instead. If the circuit breaker
+   * for the host of the formatter is open, the returned {@link Future} is
+   * already done and returns {@code null}. If the request cannot be queued for
+   * the host of the formatter, the returned {@link Future} is already
+   * cancelled.
+   *
+   * @param queryFormatter the query formatter
+   * @param queryOptions the options for the query
+   * @return the future list of search results
+   */
+  public Future<List<SearchResult>> submit(
+      final QueryFormatter queryFormatter, final QueryOptions queryOptions) {
+    List<SearchResult> cachedResults = resultCache.get(queryFormatter,
+        queryOptions.getQuery(), queryOptions.getNumResults());
+    if (cachedResults != null) {
+      return newDoneFuture(cachedResults);
+    }
+
+    ResultListKey key = new ResultListKey(queryFormatter,
+        queryOptions.getQuery(), queryOptions.getNumResults());
+    while (true) {
+      SharedRetrieval retrieval = retrievals.get(key);
+      if (retrieval == null) {
+        Bulkhead bulkhead = getBulkhead(getBackendName(queryFormatter));
+        CircuitBreaker.Permit permit = bulkhead.breaker.allowRetrieval();
+        if (permit == null) {
+          // The host is failing, so do not wait on it.
+          return newDoneFuture(null);
+        }
+
+        SharedRetrieval newRetrieval = new SharedRetrieval(
+            key, queryFormatter, queryOptions, bulkhead, permit);
+        retrieval = retrievals.putIfAbsent(key, newRetrieval);
+        if (retrieval == null) {
+          // Add the waiter before starting, so the retrieval cannot finish
+          // with no waiters and be cancelled.
+          Future<List<SearchResult>> waiter =
+              newRetrieval.addWaiter(queryOptions.getAbortTime());
+          newRetrieval.start();
+          return waiter;
+        }
+      }
+
+      Future<List<SearchResult>> waiter =
+          retrieval.addWaiter(queryOptions.getAbortTime());
+      if (waiter != null) {
+        coalescedCount.incrementAndGet();
+        return waiter;
+      }
+      // All waiters cancelled this retrieval, so start another.
+      retrievals.remove(key, retrieval);
+    }
+  }
+
+  /**
+   * Returns whether results can be retrieved using the given query formatter,
+   * or whether the circuit breaker for its host is open and refusing all
+   * requests.
+   *
+   * @param queryFormatter the query formatter
+   * @return {@code true} if its host is available, {@code false} otherwise
+   */
+  public boolean isBackendAvailable(QueryFormatter queryFormatter) {
+    Bulkhead bulkhead = bulkheads.get(getBackendName(queryFormatter));
+    return (bulkhead == null) || !bulkhead.breaker.isRefusing();
+  }
+
+  /**
+   * Returns a {@link Future} that is already done and returns the given list
+   * of results.
+   *
+   * @param results the list of search results, or {@code null} if none
+   * @return the future list of search results
+   */
+  static Future<List<SearchResult>> newDoneFuture(
+      final List<SearchResult> results) {
+    FutureTask<List<SearchResult>> task = new FutureTask<List<SearchResult>>(
+        new Callable<List<SearchResult>>() {
+          public List<SearchResult> call() {
+            return results;
+          }
+        });
+    task.run();
+    return task;
+  }
+
+  /**
+   * Runs the given listener once a {@link Future} returned by
+   * {@link #submit(QueryFormatter, QueryOptions)} is done. If the future is
+   * already done, the listener runs immediately in the calling thread.
+   * Otherwise it runs in the thread that retrieved the results, and so must
+   * not block. Any other future is treated as already done.
+   *
+   * @param resultsFuture the future list of search results
+   * @param listener the listener to run
+   */
+  static void addListener(Future<List<SearchResult>> resultsFuture,
+      Runnable listener) {
+    if (resultsFuture instanceof Waiter) {
+      ((Waiter) resultsFuture).retrieval.addListener(listener);
+    } else {
+      listener.run();
+    }
+  }
+
+  /**
+   * @return the percentile of recent latencies from which adaptive timeouts
+   *         are computed, or {@code 0} if timeouts are not adaptive
+   */
+  public int getAdaptiveTimeoutPercentile() {
+    return adaptiveTimeoutPercentile;
+  }
+
+  /**
+   * @return the margin, in milliseconds, added to the percentile of recent
+   *         latencies when timeouts are adaptive
+   */
+  public long getAdaptiveTimeoutMarginMillis() {
+    return adaptiveTimeoutMarginMillis;
+  }
+
+  /**
+   * Sets how long a request waits for results from each query formatter. If
+   * the given percentile is {@code 0}, every request waits for the timeout
+   * set for all formatters.
+   *
+   * @param percentile the percentile of recent latencies, between 1 and 100,
+   *        or {@code 0} if timeouts are not adaptive
+   * @param marginMillis the margin, in milliseconds, added to the percentile
+   */
+  public void setAdaptiveTimeout(int percentile, long marginMillis) {
+    Preconditions.checkArgument((percentile >= 0) && (percentile <= 100),
+        "percentile must be between 0 and 100");
+    Preconditions.checkArgument(marginMillis >= 0L,
+        "marginMillis must not be negative");
+
+    adaptiveTimeoutMarginMillis = marginMillis;
+    adaptiveTimeoutPercentile = percentile;
+  }
+
+  /**
+   * Returns the time, in milliseconds, that a request should wait for results
+   * from the given query formatter. If timeouts are adaptive and enough
+   * latencies have been recorded for the formatter, this is their percentile
+   * plus the margin; otherwise it is the given maximum timeout.
+   *
+   * @param queryFormatter the query formatter
+   * @param maxTimeoutMillis the timeout, in milliseconds, set for all
+   *        formatters
+   * @return the timeout for the formatter, in milliseconds
+   */
+  public long getTimeoutMillis(QueryFormatter queryFormatter,
+      long maxTimeoutMillis) {
+    long adaptiveTimeout = getAdaptiveTimeoutMillis(queryFormatter);
+    return (adaptiveTimeout < 0L) ?
+        maxTimeoutMillis : Math.min(adaptiveTimeout, maxTimeoutMillis);
+  }
+
+  /**
+   * Returns the adaptive timeout, in milliseconds, for the given query
+   * formatter before it is capped, or {@code -1} if timeouts are not adaptive
+   * or too few latencies have been recorded for the formatter.
+   *
+   * @param queryFormatter the query formatter
+   * @return the adaptive timeout, in milliseconds, or {@code -1}
+   */
+  public long getAdaptiveTimeoutMillis(QueryFormatter queryFormatter) {
+    int percentile = adaptiveTimeoutPercentile;
+    LatencyTracker tracker = latencyTrackers.get(queryFormatter);
+    if ((percentile == 0) || (tracker == null)) {
+      return -1L;
+    }
+    long latency = tracker.getPercentile(percentile);
+    return (latency < 0L) ? -1L : latency + adaptiveTimeoutMarginMillis;
+  }
+
+  /**
+   * Returns the number of recent latencies recorded for the given query
+   * formatter.
+   *
+   * @param queryFormatter the query formatter
+   * @return the number of latencies recorded
+   */
+  public int getLatencySampleCount(QueryFormatter queryFormatter) {
+    LatencyTracker tracker = latencyTrackers.get(queryFormatter);
+    return (tracker == null) ? 0 : tracker.getSampleCount();
+  }
+
+  /**
+   * @return the percentile of recent latencies after which a retrieval is
+   *         hedged, or {@code 0} if retrievals are not hedged
+   */
+  public int getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  /**
+   * @return the maximum percentage of retrievals that are hedged
+   */
+  public int getMaxHedgePercent() {
+    return maxHedgePercent;
+  }
+
+  /**
+   * Sets when a retrieval that has not finished is retried. If the given
+   * percentile is {@code 0}, retrievals are never retried.
+   *
+   * @param percentile the percentile of recent latencies of a formatter after
+   *        which its retrievals are retried, between 1 and 100, or {@code 0}
+   *        if retrievals are not hedged
+   * @param maxPercent the maximum percentage of retrievals that are hedged
+   */
+  public void setHedging(int percentile, int maxPercent) {
+    Preconditions.checkArgument((percentile >= 0) && (percentile <= 100),
+        "percentile must be between 0 and 100");
+    Preconditions.checkArgument((maxPercent >= 0) && (maxPercent <= 100),
+        "maxPercent must be between 0 and 100");
+
+    maxHedgePercent = maxPercent;
+    hedgePercentile = percentile;
+  }
+
+  /**
+   * @return the number of hedged attempts made
+   */
+  public long getHedgeCount() {
+    return hedgeCount.get();
+  }
+
+  /**
+   * @return the number of hedged attempts that finished before the attempt
+   *         they retried
+   */
+  public long getHedgeWinCount() {
+    return hedgeWinCount.get();
+  }
+
+  /**
+   * @return the number of hedged attempts not made because too many
+   *         retrievals were already hedged
+   */
+  public long getHedgeSkippedCount() {
+    return hedgeSkippedCount.get();
+  }
+
+  /*
+   * Returns the delay in milliseconds after which to hedge a retrieval using
+   * the given formatter, or -1 if it should not be hedged.
+   */
+  private long getHedgeDelayMillis(QueryFormatter queryFormatter,
+      long abortTime) {
+    int percentile = hedgePercentile;
+    LatencyTracker tracker = latencyTrackers.get(queryFormatter);
+    if ((percentile == 0) || (tracker == null)) {
+      return -1L;
+    }
+    long delay = tracker.getPercentile(percentile);
+    if ((delay < 0L) || ((abortTime != 0L)
+        && (System.currentTimeMillis() + delay >= abortTime))) {
+      // Too few latencies, or the hedge could not finish in time.
+      return -1L;
+    }
+    return delay;
+  }
+
+  /*
+   * Adds the share of a hedged attempt earned by starting a retrieval.
+   */
+  private void addHedgeToken() {
+    synchronized (hedgeTimer) {
+      hedgeTokens = Math.min(
+          hedgeTokens + (maxHedgePercent / 100.0), MAX_HEDGE_BURST);
+    }
+  }
+
+  /*
+   * Returns whether another retrieval may be hedged, spending its token.
+   */
+  private boolean takeHedgeToken() {
+    synchronized (hedgeTimer) {
+      if (hedgeTokens < 1.0) {
+        return false;
+      }
+      hedgeTokens -= 1.0;
+      return true;
+    }
+  }
+
+  /**
+   * @return the number of requests that waited on a retrieval already started
+   *         by another request
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * @return the number of lists of results being retrieved
+   */
+  public int getInFlightCount() {
+    return retrievals.size();
+  }
+
+  /**
+   * @return {@code true} if results are retrieved on virtual threads,
+   *         {@code false} otherwise
+   */
+  public boolean isUsingVirtualThreads() {
+    return usingVirtualThreads;
+  }
+
+  /**
+   * Retrieves results on virtual threads, which do not each hold an operating
+   * system thread while blocked on a host, if the runtime supports them. This
+   * applies to hosts first contacted afterward. Otherwise results are still
+   * retrieved on platform threads.
+   *
+   * @return {@code true} if results are now retrieved on virtual threads,
+   *         {@code false} otherwise
+   */
+  public boolean useVirtualThreads() {
+    usingVirtualThreads = VirtualThreads.isSupported();
+    return usingVirtualThreads;
+  }
+
+  /**
+   * @return the status of retrieval from each host contacted, ordered by host
+   */
+  public List<BackendStatus> getBackendStatuses() {
+    Map<String, Bulkhead> sortedBulkheads =
+        new TreeMap<String, Bulkhead>(bulkheads);
+    List<BackendStatus> statuses =
+        new ArrayList<BackendStatus>(sortedBulkheads.size());
+    for (Map.Entry<String, Bulkhead> entry : sortedBulkheads.entrySet()) {
+      statuses.add(entry.getValue().getStatus(entry.getKey()));
+    }
+    return statuses;
+  }
+
+  /**
+   * Returns the name of the host from which the given query formatter
+   * retrieves results. All formatters with the same host share the same
+   * threads, even if their query arguments differ.
+   *
+   * @param queryFormatter the query formatter
+   * @return the name of its host
+   */
+  static String getBackendName(QueryFormatter queryFormatter) {
+    if (queryFormatter.getFormatterType() == FormatterType.GSA) {
+      return queryFormatter.getHostQueryArgsPair().getHost();
+    }
+
+    String urlPrefix = queryFormatter.getUrlPrefix();
+    try {
+      String authority = URI.create(urlPrefix).getAuthority();
+      return (authority != null) ? authority : urlPrefix;
+    } catch (IllegalArgumentException e) {
+      return urlPrefix;
+    }
+  }
+
+  /*
+   * Records a failed retrieval with the circuit breaker of its host. A
+   * retrieval interrupted before its abort time because every waiter cancelled
+   * it says nothing about its host, so is not recorded. A retrieval that timed
+   * out took at least as long as its latency is recorded, so that a slow
+   * formatter is given longer.
+   */
+  private void recordFailure(CircuitBreaker breaker,
+      CircuitBreaker.Permit permit, Throwable cause,
+      QueryFormatter queryFormatter, long abortTime, long startTime) {
+    boolean abortTimePassed = (abortTime != 0L)
+        && (System.currentTimeMillis() >= abortTime);
+    if ((cause instanceof SocketTimeoutException) || abortTimePassed) {
+      breaker.recordTimeout(permit);
+      recordLatency(queryFormatter, startTime);
+    } else if (!(cause instanceof InterruptedIOException)) {
+      breaker.recordError(permit);
+    }
+  }
+
+  /*
+   * Returns the later of the given abort times, where 0 is later than any.
+   */
+  private static long getLaterAbortTime(long abortTime, long otherAbortTime) {
+    if ((abortTime == 0L) || (otherAbortTime == 0L)) {
+      return 0L;
+    }
+    return Math.max(abortTime, otherAbortTime);
+  }
+
+  private void recordLatency(QueryFormatter queryFormatter, long startTime) {
+    LatencyTracker tracker = latencyTrackers.get(queryFormatter);
+    if (tracker == null) {
+      LatencyTracker newTracker = new LatencyTracker();
+      tracker = latencyTrackers.putIfAbsent(queryFormatter, newTracker);
+      if (tracker == null) {
+        tracker = newTracker;
+      }
+    }
+    tracker.record(System.currentTimeMillis() - startTime);
+  }
+
+  private Bulkhead getBulkhead(String backendName) {
+    Bulkhead bulkhead = bulkheads.get(backendName);
+    if (bulkhead == null) {
+      Bulkhead newBulkhead = new Bulkhead(backendName);
+      bulkhead = bulkheads.putIfAbsent(backendName, newBulkhead);
+      if (bulkhead == null) {
+        bulkhead = newBulkhead;
+      } else {
+        // Lost the race, so discard the threads of the new bulkhead.
+        newBulkhead.executor.shutdown();
+      }
+    }
+    return bulkhead;
+  }
+
+  /**
+   * The status of retrieving results from a single host.
+   */
+  public static final class BackendStatus {
+    private final String backendName;
+    private final int activeCount;
+    private final int queueDepth;
+    private final int queueCapacity;
+    private final long completedCount;
+    private final long rejectedCount;
+    private final CircuitBreaker.State breakerState;
+    private final int errorPercent;
+    private final int timeoutPercent;
+    private final long refusedCount;
+
+    private BackendStatus(String backendName, int activeCount, int queueDepth,
+        int queueCapacity, long completedCount, long rejectedCount,
+        CircuitBreaker breaker) {
+      this.backendName = backendName;
+      this.activeCount = activeCount;
+      this.queueDepth = queueDepth;
+      this.queueCapacity = queueCapacity;
+      this.completedCount = completedCount;
+      this.rejectedCount = rejectedCount;
+      synchronized (breaker) {
+        breakerState = breaker.getState();
+        errorPercent = breaker.getErrorPercent();
+        timeoutPercent = breaker.getTimeoutPercent();
+        refusedCount = breaker.getRefusedCount();
+      }
+    }
+
+    /**
+     * @return the name of the host
+     */
+    public String getBackendName() {
+      return backendName;
+    }
+
+    /**
+     * @return the number of threads currently retrieving results
+     */
+    public int getActiveCount() {
+      return activeCount;
+    }
+
+    /**
+     * @return the number of requests waiting for a thread
+     */
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    /**
+     * @return the maximum number of requests that may wait for a thread
+     */
+    public int getQueueCapacity() {
+      return queueCapacity;
+    }
+
+    /**
+     * @return the number of requests that have finished
+     */
+    public long getCompletedCount() {
+      return completedCount;
+    }
+
+    /**
+     * @return the number of requests rejected because the queue was full
+     */
+    public long getRejectedCount() {
+      return rejectedCount;
+    }
+
+    /**
+     * @return the state of the circuit breaker for the host
+     */
+    public CircuitBreaker.State getBreakerState() {
+      return breakerState;
+    }
+
+    /**
+     * @return the percentage of recent requests that failed with an error
+     */
+    public int getErrorPercent() {
+      return errorPercent;
+    }
+
+    /**
+     * @return the percentage of recent requests that timed out
+     */
+    public int getTimeoutPercent() {
+      return timeoutPercent;
+    }
+
+    /**
+     * @return the number of requests refused because the circuit breaker was
+     *         open
+     */
+    public long getRefusedCount() {
+      return refusedCount;
+    }
+  }
+
+  /*
+   * The threads, queue, and circuit breaker dedicated to a single host.
+   */
+  private final class Bulkhead {
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejectedCount;
+    private final CircuitBreaker breaker;
+
+    private Bulkhead(String backendName) {
+      ThreadFactory threadFactory = usingVirtualThreads ?
+          VirtualThreads.newThreadFactory(
+            BackendThreadFactory.getNamePrefix(backendName)) : null;
+      if (threadFactory == null) {
+        threadFactory = new BackendThreadFactory(backendName);
+      }
+      // The threads and queue still bound the load placed on the host.
+      executor = new ThreadPoolExecutor(threadsPerHost, threadsPerHost,
+          IDLE_THREAD_TIMEOUT_SECS, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(queueDepthPerHost),
+          threadFactory);
+      executor.allowCoreThreadTimeOut(true);
+      rejectedCount = new AtomicLong();
+      breaker = new CircuitBreaker();
+    }
+
+    private void execute(FutureTask<?> task) {
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        rejectedCount.incrementAndGet();
+        LOGGER.fine("rejected retrieval, queue for host is full");
+        task.cancel(false);
+      }
+    }
+
+    private BackendStatus getStatus(String backendName) {
+      return new BackendStatus(backendName, executor.getActiveCount(),
+          executor.getQueue().size(), queueDepthPerHost,
+          executor.getCompletedTaskCount(), rejectedCount.get(), breaker);
+    }
+  }
+
+  /*
+   * A retrieval of a list of results shared by all requests for it. The
+   * retrieval is removed from the map of retrievals in progress once done.
+   * It is completed by the first of its attempts to succeed, or by the
+   * failure of its last attempt. Each attempt waits for the host until the
+   * latest abort time of the requests waiting when it starts.
+   */
+  private final class SharedRetrieval extends FutureTask<List<SearchResult>> {
+    private final ResultListKey key;
+    private final QueryFormatter queryFormatter;
+    private final QueryOptions queryOptions;
+    private final Bulkhead bulkhead;
+    private final CircuitBreaker.Permit permit;
+
+    // All fields below are guarded by this.
+    private long abortTime;
+    private int waiterCount;
+    private boolean abandoned;
+    private final List<Runnable> listeners;
+    private final List<Attempt> attempts;
+    private boolean completing;
+
+    private SharedRetrieval(ResultListKey key, QueryFormatter queryFormatter,
+        QueryOptions queryOptions, Bulkhead bulkhead,
+        CircuitBreaker.Permit permit) {
+      super(ATTEMPTS_ONLY);
+      this.key = key;
+      this.queryFormatter = queryFormatter;
+      this.queryOptions = queryOptions;
+      this.bulkhead = bulkhead;
+      this.permit = permit;
+      listeners = new ArrayList<Runnable>(1);
+      attempts = new ArrayList<Attempt>(2);
+      abortTime = queryOptions.getAbortTime();
+    }
+
+    private synchronized long getAbortTime() {
+      return abortTime;
+    }
+
+    /*
+     * Starts the first attempt, and schedules a hedged attempt if enabled.
+     */
+    private void start() {
+      addHedgeToken();
+      startAttempt(false);
+
+      long hedgeDelay = getHedgeDelayMillis(queryFormatter, getAbortTime());
+      if (hedgeDelay >= 0L) {
+        hedgeTimer.schedule(new Runnable() {
+          public void run() {
+            hedge();
+          }
+        }, hedgeDelay, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void hedge() {
+      if (isDone()
+          || (bulkhead.breaker.getState() != CircuitBreaker.State.CLOSED)) {
+        // Finished in time, or the host is failing.
+        return;
+      } else if (!takeHedgeToken()) {
+        hedgeSkippedCount.incrementAndGet();
+        return;
+      }
+      hedgeCount.incrementAndGet();
+      startAttempt(true);
+    }
+
+    private void startAttempt(boolean hedged) {
+      Attempt attempt;
+      synchronized (this) {
+        if (completing || isDone()) {
+          return;
+        }
+        attempt = new Attempt(this, hedged, abortTime);
+        attempts.add(attempt);
+      }
+      bulkhead.execute(attempt);
+    }
+
+    /*
+     * Retrieves the results for a single attempt that waits for the host until
+     * the given abort time. An attempt that finishes after this retrieval is
+     * done, such as a hedged attempt that lost, is not recorded.
+     */
+    private List<SearchResult> retrieve(long attemptAbortTime) {
+      long startTime = System.currentTimeMillis();
+      List<SearchResult> results;
+      try {
+        results = queryFormatter.getSearchResults(new QueryOptions(
+            queryOptions.getQuery(), queryOptions.getNumResults(),
+            attemptAbortTime));
+      } catch (RuntimeException e) {
+        if (!isDone()) {
+          recordFailure(bulkhead.breaker, permit, e.getCause(),
+              queryFormatter, attemptAbortTime, startTime);
+        }
+        throw e;
+      }
+      if (isDone()) {
+        return results;
+      }
+      bulkhead.breaker.recordSuccess(permit);
+      recordLatency(queryFormatter, startTime);
+      if (results != null) {
+        resultCache.put(queryFormatter, queryOptions.getQuery(),
+            queryOptions.getNumResults(), results);
+      }
+      return results;
+    }
+
+    /*
+     * Completes this retrieval if the given attempt succeeded, or if it was
+     * the last attempt in progress. If the last attempt failed once its abort
+     * time passed, but a request waiting on this retrieval has a later abort
+     * time, then another attempt is made instead.
+     */
+    private void attemptDone(Attempt attempt) {
+      boolean retry = false;
+      synchronized (this) {
+        attempts.remove(attempt);
+        if (completing || isDone()) {
+          // Already completed.
+          return;
+        } else if (!isSuccessful(attempt)) {
+          if (!attempts.isEmpty()) {
+            // Another attempt may yet succeed.
+            return;
+          }
+          retry = !attempt.isCancelled() && isExtended(attempt.abortTime);
+        }
+        if (!retry) {
+          completing = true;
+        }
+      }
+
+      if (retry) {
+        startAttempt(false);
+        return;
+      }
+
+      if (attempt.isCancelled()) {
+        // The attempt was rejected because the queue for its host is full.
+        cancel(false);
+        return;
+      }
+      try {
+        List<SearchResult> results = attempt.get();
+        if (attempt.hedged) {
+          hedgeWinCount.incrementAndGet();
+        }
+        set(results);
+      } catch (InterruptedException e) {
+        // Cannot happen, because the attempt is done.
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        setException(e.getCause());
+      }
+    }
+
+    /*
+     * Returns whether the abort time of this retrieval is later than the given
+     * abort time of an attempt that has passed.
+     */
+    private synchronized boolean isExtended(long attemptAbortTime) {
+      long now = System.currentTimeMillis();
+      return (attemptAbortTime != 0L) && (attemptAbortTime <= now)
+          && ((abortTime == 0L) || (abortTime > now));
+    }
+
+    private boolean isSuccessful(Attempt attempt) {
+      if (attempt.isCancelled()) {
+        return false;
+      }
+      try {
+        attempt.get();
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (ExecutionException e) {
+        return false;
+      }
+    }
+
+    /*
+     * Runs the given listener once this retrieval is done.
+     */
+    private void addListener(Runnable listener) {
+      synchronized (this) {
+        if (!isDone()) {
+          listeners.add(listener);
+          return;
+        }
+      }
+      listener.run();
+    }
+
+    /*
+     * Returns a new Future waiting on this retrieval until the given abort
+     * time, or null if every previous waiter cancelled it.
+     */
+    private synchronized Future<List<SearchResult>> addWaiter(
+        long waiterAbortTime) {
+      if (abandoned) {
+        return null;
+      }
+      ++waiterCount;
+      abortTime = getLaterAbortTime(abortTime, waiterAbortTime);
+      return new Waiter(this);
+    }
+
+    private void removeWaiter() {
+      synchronized (this) {
+        if ((--waiterCount > 0) || isDone()) {
+          return;
+        }
+        abandoned = true;
+      }
+      // No request is waiting, so stop retrieving.
+      cancel(true);
+    }
+
+    @Override
+    protected void done() {
+      retrievals.remove(key, this);
+
+      // Stop any attempts still in progress.
+      List<Attempt> remainingAttempts;
+      synchronized (this) {
+        remainingAttempts = new ArrayList<Attempt>(attempts);
+        attempts.clear();
+      }
+      for (Attempt attempt : remainingAttempts) {
+        attempt.cancel(true);
+      }
+
+      List<Runnable> doneListeners;
+      synchronized (this) {
+        doneListeners = new ArrayList<Runnable>(listeners);
+        listeners.clear();
+      }
+      for (Runnable listener : doneListeners) {
+        listener.run();
+      }
+    }
+  }
+
+  /*
+   * A single attempt to retrieve the results of a shared retrieval, run by a
+   * thread of the bulkhead for its host. Cancelling the attempt closes its
+   * connections to the host, so that the thread is freed at once.
+   */
+  private static final class Attempt
+      extends AbortableTask<List<SearchResult>> {
+    private final SharedRetrieval retrieval;
+    private final boolean hedged;
+    private final long abortTime;
+
+    private Attempt(final SharedRetrieval retrieval, boolean hedged,
+        final long abortTime) {
+      super(QueryFormatter.getBackendClient(),
+          new Callable<List<SearchResult>>() {
+            public List<SearchResult> call() {
+              return retrieval.retrieve(abortTime);
+            }
+          });
+      this.retrieval = retrieval;
+      this.hedged = hedged;
+      this.abortTime = abortTime;
+    }
+
+    @Override
+    protected void done() {
+      retrieval.attemptDone(this);
+    }
+  }
+
+  /*
+   * The Future returned to a single request waiting on a shared retrieval. It
+   * is cancelled by the request, or if the shared retrieval was cancelled
+   * because its host rejected it.
+   */
+  private static final class Waiter implements Future<List<SearchResult>> {
+    private final SharedRetrieval retrieval;
+
+    // Guarded by this.
+    private boolean cancelled;
+
+    private Waiter(SharedRetrieval retrieval) {
+      this.retrieval = retrieval;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      synchronized (this) {
+        if (cancelled || retrieval.isDone()) {
+          return false;
+        }
+        cancelled = true;
+      }
+      retrieval.removeWaiter();
+      return true;
+    }
+
+    public boolean isCancelled() {
+      synchronized (this) {
+        if (cancelled) {
+          return true;
+        }
+      }
+      return retrieval.isCancelled();
+    }
+
+    public boolean isDone() {
+      return isCancelled() || retrieval.isDone();
+    }
+
+    public List<SearchResult> get()
+        throws InterruptedException, ExecutionException {
+      checkNotCancelled();
+      return retrieval.get();
+    }
+
+    public List<SearchResult> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      checkNotCancelled();
+      return retrieval.get(timeout, unit);
+    }
+
+    private void checkNotCancelled() {
+      if (isCancelled()) {
+        throw new CancellationException();
+      }
+    }
+  }
+
+  /*
+   * Creates daemon threads named after the host they retrieve results from.
+   */
+  private static final class BackendThreadFactory implements ThreadFactory {
+    private final String namePrefix;
+    private final AtomicInteger threadCount;
+
+    private BackendThreadFactory(String backendName) {
+      namePrefix = getNamePrefix(backendName);
+      threadCount = new AtomicInteger();
+    }
+
+    private static String getNamePrefix(String backendName) {
+      return "ResultRetriever-" + backendName + "-";
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, namePrefix + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
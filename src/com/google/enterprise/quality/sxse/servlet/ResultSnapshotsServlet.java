@@ -0,0 +1,215 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.enterprise.quality.sxse.gxp.ResultSnapshots;
+import com.google.enterprise.quality.sxse.input.EnumInputParser;
+import com.google.enterprise.quality.sxse.storage.JudgmentStorage;
+import com.google.enterprise.quality.sxse.storage.StorageManager;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+import com.google.gxp.base.GxpContext;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet through which the administrator can save snapshots of the results
+ * of the active scoring policy profiles for all active queries, and choose
+ * whether assessors are shown these snapshots instead of live results. The
+ * administrator can also find the queries for which both profiles return
+ * identical results, so that assessors are not asked to judge them.
+ */
+public class ResultSnapshotsServlet extends HttpServlet {
+  /**
+   * The {@link BannerLink} for this servlet.
+   */
+  public static final BannerLink BANNER_LINK = new BannerLink() {
+    public String getName() {
+      return "Snapshots";
+    }
+
+    public String getUrl() {
+      return PATH;
+    }
+  };
+
+  /**
+   * The pathname to this servlet.
+   */
+  public static final String PATH = "/snapshots";
+
+  private static final Logger LOGGER = Logger.getLogger(
+      ResultSnapshotsServlet.class.getName());
+
+  private final Banner banner;
+  private final StorageManager storageManager;
+  private final SnapshotJob snapshotJob;
+  private final PrescreenJob prescreenJob;
+
+  /**
+   * Creates a new servlet through which the administrator can save snapshots
+   * of results.
+   *
+   * @param banner the banner to display across the top of the page
+   * @param storageManager the storage manager
+   * @param snapshotJob the job that saves snapshots of results
+   * @param prescreenJob the job that finds queries with identical results
+   */
+  public ResultSnapshotsServlet(Banner banner, StorageManager storageManager,
+      SnapshotJob snapshotJob, PrescreenJob prescreenJob) {
+    this.banner = banner;
+    this.storageManager = storageManager;
+    this.snapshotJob = snapshotJob;
+    this.prescreenJob = prescreenJob;
+  }
+
+  /**
+   * The action to take on the snapshots of results.
+   */
+  public static enum SnapshotAction {
+    /**
+     * Start saving snapshots, skipping results that already have one.
+     */
+    START,
+
+    /**
+     * Stop saving snapshots.
+     */
+    CANCEL,
+
+    /**
+     * Show assessors the snapshots of results.
+     */
+    SERVE_SNAPSHOTS,
+
+    /**
+     * Show assessors the results retrieved from the hosts.
+     */
+    SERVE_LIVE,
+
+    /**
+     * Remove all snapshots of results.
+     */
+    REMOVE_ALL,
+
+    /**
+     * Start finding queries for which both profiles return identical results.
+     */
+    START_PRESCREEN,
+
+    /**
+     * Stop finding queries with identical results.
+     */
+    CANCEL_PRESCREEN,
+
+    /**
+     * Remove all queries found to have identical results.
+     */
+    REMOVE_PRESCREENED,
+  }
+
+  public static final class PostKeys {
+    /**
+     * The action to take.
+     */
+    public static final String ACTION = "snapshotAction";
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res)
+      throws ServletException, IOException {
+    try {
+      write(req, res);
+    } catch (SxseStorageException e) {
+      throw new ServletException(e);
+    }
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse res)
+      throws ServletException, IOException {
+    EnumInputParser.ParsedInput<SnapshotAction> actionInput =
+        new EnumInputParser<SnapshotAction>(SnapshotAction.class).parse(
+          PostKeys.ACTION, req.getParameterMap());
+    SnapshotAction action = actionInput.getResult();
+
+    try {
+      JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+      if (action != null) {
+        switch (action) {
+        case START:
+          if (snapshotJob.start()) {
+            LOGGER.info("started snapshot job");
+          }
+          break;
+        case CANCEL:
+          snapshotJob.cancel();
+          break;
+        case SERVE_SNAPSHOTS:
+          judgmentStorage.setServingSnapshots(true);
+          break;
+        case SERVE_LIVE:
+          judgmentStorage.setServingSnapshots(false);
+          break;
+        case REMOVE_ALL:
+          // Do not save snapshots while removing them.
+          snapshotJob.cancel();
+          judgmentStorage.removeSnapshots();
+          LOGGER.info("removed all snapshots");
+          break;
+        case START_PRESCREEN:
+          if (prescreenJob.start()) {
+            LOGGER.info("started prescreen job");
+          }
+          break;
+        case CANCEL_PRESCREEN:
+          prescreenJob.cancel();
+          break;
+        case REMOVE_PRESCREENED:
+          prescreenJob.removeIdenticalQueries();
+          LOGGER.info("removed all prescreened queries");
+          break;
+        default:
+          // It's okay to pass through.
+        }
+      } else {
+        LOGGER.warning("doPost did not find any specified action");
+      }
+
+      write(req, res);
+    } catch (SxseStorageException e) {
+      throw new ServletException(e);
+    }
+  }
+
+  private void write(HttpServletRequest req, HttpServletResponse res)
+      throws SxseStorageException, IOException {
+    JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+
+    PreparePage.write(res);
+    Writer writer = res.getWriter();
+
+    ResultSnapshots.write(writer, new GxpContext(req.getLocale()),
+        User.getUser(req), banner, judgmentStorage.isServingSnapshots(),
+        judgmentStorage.getSnapshotCount(), snapshotJob, prescreenJob,
+        prescreenJob.getIdenticalQueryCount());
+  }
+}
@@ -0,0 +1,260 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Preconditions;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.ResultListKey;
+import com.google.enterprise.quality.sxse.SearchResult;
+import com.google.enterprise.quality.sxse.SearchResultList;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of lists of search results, shared by all assessors. A list is
+ * identified by the query formatter that retrieved it, the query, and the
+ * maximum number of results requested. Each list expires a fixed time after
+ * it was retrieved, and the least recently used lists are evicted once the
+ * estimated size of all cached lists exceeds a maximum.
+ *
+ * This class is thread-safe.
+ */
+public final class SearchResultCache {
+  /**
+   * The default time, in milliseconds, for which a list of results is cached.
+   */
+  public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000L;
+
+  /**
+   * The default maximum estimated size, in bytes, of all cached results.
+   */
+  public static final long DEFAULT_MAX_SIZE_BYTES = 32 * 1024 * 1024L;
+
+  // Estimated size in bytes of a search result, excluding its strings.
+  private static final int RESULT_OVERHEAD_BYTES = 64;
+
+  private final long ttlMillis;
+  private final long maxSizeBytes;
+
+  // The cached lists and their total size are guarded by entries.
+  private final LinkedHashMap<ResultListKey, Entry> entries;
+  private long sizeBytes;
+
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+  private final AtomicLong evictionCount;
+
+  /**
+   * Creates a new cache of search results. If either argument is {@code 0},
+   * then no results are cached.
+   *
+   * @param ttlMillis the time, in milliseconds, for which a list of results is
+   *        cached
+   * @param maxSizeBytes the maximum estimated size, in bytes, of all cached
+   *        results
+   */
+  public SearchResultCache(long ttlMillis, long maxSizeBytes) {
+    Preconditions.checkArgument(ttlMillis >= 0L,
+        "ttlMillis must not be negative");
+    Preconditions.checkArgument(maxSizeBytes >= 0L,
+        "maxSizeBytes must not be negative");
+
+    this.ttlMillis = ttlMillis;
+    this.maxSizeBytes = maxSizeBytes;
+    // Iterate in access order so the least recently used list comes first.
+    entries = new LinkedHashMap<ResultListKey, Entry>(16, 0.75f, true);
+
+    hitCount = new AtomicLong();
+    missCount = new AtomicLong();
+    evictionCount = new AtomicLong();
+  }
+
+  /**
+   * @return {@code true} if this cache stores results, {@code false} otherwise
+   */
+  public boolean isEnabled() {
+    return (ttlMillis > 0L) && (maxSizeBytes > 0L);
+  }
+
+  /**
+   * Returns the cached list of results for the given query, or {@code null}
+   * if no unexpired list is cached.
+   *
+   * @param queryFormatter the query formatter that retrieves the results
+   * @param query the query
+   * @param numResults the maximum number of results requested
+   * @return the cached list of results, or {@code null} if none
+   */
+  public List<SearchResult> get(QueryFormatter queryFormatter, String query,
+      int numResults) {
+    if (!isEnabled()) {
+      return null;
+    }
+
+    ResultListKey key = new ResultListKey(queryFormatter, query, numResults);
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (entry.expirationTime > System.currentTimeMillis()) {
+          hitCount.incrementAndGet();
+          return entry.results;
+        }
+        // The list has expired.
+        entries.remove(key);
+        sizeBytes -= entry.sizeBytes;
+      }
+    }
+    missCount.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Caches the list of results for the given query.
+   *
+   * @param queryFormatter the query formatter that retrieved the results
+   * @param query the query
+   * @param numResults the maximum number of results requested
+   * @param results the list of results
+   */
+  public void put(QueryFormatter queryFormatter, String query, int numResults,
+      List<SearchResult> results) {
+    if (!isEnabled()) {
+      return;
+    }
+
+    ResultListKey key = new ResultListKey(queryFormatter, query, numResults);
+    // Results parsed from a host are already immutable, and keep their
+    // fingerprint so that it is not computed again for each hit.
+    Entry entry = new Entry(SearchResultList.copyOf(results),
+        System.currentTimeMillis() + ttlMillis);
+    if (entry.sizeBytes > maxSizeBytes) {
+      // Caching this list would evict all others.
+      return;
+    }
+
+    synchronized (entries) {
+      Entry prevEntry = entries.put(key, entry);
+      if (prevEntry != null) {
+        sizeBytes -= prevEntry.sizeBytes;
+      }
+      sizeBytes += entry.sizeBytes;
+
+      // Evict the least recently used lists until under the maximum size.
+      Iterator<Entry> i = entries.values().iterator();
+      while ((sizeBytes > maxSizeBytes) && i.hasNext()) {
+        Entry evictedEntry = i.next();
+        i.remove();
+        sizeBytes -= evictedEntry.sizeBytes;
+        evictionCount.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Removes all cached results.
+   */
+  public void flush() {
+    synchronized (entries) {
+      entries.clear();
+      sizeBytes = 0L;
+    }
+  }
+
+  /**
+   * @return the time, in milliseconds, for which a list of results is cached
+   */
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  /**
+   * @return the maximum estimated size, in bytes, of all cached results
+   */
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  /**
+   * @return the estimated size, in bytes, of all cached results
+   */
+  public long getSizeBytes() {
+    synchronized (entries) {
+      return sizeBytes;
+    }
+  }
+
+  /**
+   * @return the number of lists of results cached, including expired lists
+   *         not yet removed
+   */
+  public int getEntryCount() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the number of requests for which a cached list was returned
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of requests for which no cached list was found
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return the number of lists evicted to stay under the maximum size
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /*
+   * Returns the estimated size in bytes of the given list of results.
+   */
+  private static long estimateSizeBytes(List<SearchResult> results) {
+    long sizeBytes = 0L;
+    for (SearchResult result : results) {
+      int numChars = result.getUrl().toString().length()
+          + result.getTitle().length() + result.getSnippet().length()
+          + result.getSize().length();
+      sizeBytes += RESULT_OVERHEAD_BYTES + (2 * numChars);
+    }
+    return sizeBytes;
+  }
+
+  /*
+   * A cached list of results.
+   */
+  private static final class Entry {
+    private final List<SearchResult> results;
+    private final long expirationTime;
+    private final long sizeBytes;
+
+    private Entry(List<SearchResult> results, long expirationTime) {
+      this.results = results;
+      this.expirationTime = expirationTime;
+      this.sizeBytes = estimateSizeBytes(results);
+    }
+  }
+}
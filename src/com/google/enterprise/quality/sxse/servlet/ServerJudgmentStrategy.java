@@ -21,7 +21,11 @@ import com.google.enterprise.quality.sxse.JudgmentDetails.Judgment;
 import com.google.enterprise.quality.sxse.QueryFormatter.QueryOptions;
 import com.google.enterprise.quality.sxse.gxp.Judge;
 import com.google.enterprise.quality.sxse.gxp.JudgeHidden;
+import com.google.enterprise.quality.sxse.gxp.JudgeResultsPart;
 import com.google.enterprise.quality.sxse.gxp.JudgeServerResults;
+import com.google.enterprise.quality.sxse.gxp.JudgeStreamedResults;
+import com.google.enterprise.quality.sxse.input.EnumInputParser;
+import com.google.enterprise.quality.sxse.input.StringInputParser;
 import com.google.enterprise.quality.sxse.storage.JudgmentStorage;
 import com.google.enterprise.quality.sxse.storage.PreferencesStorage;
 import com.google.enterprise.quality.sxse.storage.StorageManager;
@@ -30,21 +34,24 @@ import com.google.gxp.base.GxpContext;
 import com.google.gxp.html.HtmlClosure;
 import com.google.gxp.html.HtmlClosures;
 
+import org.mortbay.util.ajax.ContinuationSupport;
+
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -58,12 +65,44 @@ public final class ServerJudgmentStrategy extends AbstractJudgmentStrategy {
   private static final Logger LOGGER = Logger.getLogger(
       ServerJudgmentStrategy.class.getName());
 
-  /*
-   * A thread pool for collecting results from both scoring policy profiles in
-   * parallel.
+  // The request attribute for results retrieved while the request is
+  // suspended.
+  private static final String PENDING_RESULTS_ATTRIBUTE =
+      PendingResults.class.getName();
+
+  // The request attribute for one list of results of a streamed page,
+  // retrieved while the request is suspended.
+  private static final String PENDING_PART_ATTRIBUTE =
+      StreamedResults.class.getName();
+
+  // The response headers set once both lists of results of a streamed page
+  // are retrieved.
+  private static final String JUDGMENT_ID_HEADER = "X-Judgment-Uuid";
+  private static final String SUBMIT_ACTION_HEADER = "X-Submit-Action";
+
+  /**
+   * The parameters of a request for one list of results of a judgment page,
+   * when the page is written before its results are retrieved.
    */
-  private static final ExecutorService threadPool =
-      Executors.newCachedThreadPool();
+  public static final class StreamKeys {
+    /**
+     * The list of results, either {@code FIRST} or {@code SECOND}.
+     */
+    public static final String RESULTS_PART = "resultsPart";
+
+    /**
+     * The identifier of the judgment page.
+     */
+    public static final String STREAM_ID = "streamId";
+  }
+
+  private final ResultRetriever resultRetriever;
+
+  private volatile boolean prefetching;
+  private volatile boolean streaming;
+  private final AtomicLong prefetchHitCount;
+  private final AtomicLong prefetchMissCount;
+  private final AtomicLong prefetchDiscardCount;
 
   /**
    * Creates a new servlet through which an assessor makes judgments.
@@ -72,10 +111,142 @@ public final class ServerJudgmentStrategy extends AbstractJudgmentStrategy {
    * @param storageManager the storage from which this servlet can store
    *        judgments
    * @param queryChooser the chooser for the queries
+   * @param resultRetriever the retriever of results from both scoring policy
+   *        profiles in parallel
    */
-  public ServerJudgmentStrategy(Banner banner,
-      StorageManager storageManager, QueryChooser queryChooser) {
+  public ServerJudgmentStrategy(Banner banner, StorageManager storageManager,
+      QueryChooser queryChooser, ResultRetriever resultRetriever) {
     super(banner, storageManager, queryChooser);
+    this.resultRetriever = resultRetriever;
+
+    prefetchHitCount = new AtomicLong();
+    prefetchMissCount = new AtomicLong();
+    prefetchDiscardCount = new AtomicLong();
+  }
+
+  /**
+   * @return {@code true} if results for the next query of an assessor are
+   *         retrieved while the assessor judges the current query,
+   *         {@code false} otherwise
+   */
+  public boolean isPrefetching() {
+    return prefetching;
+  }
+
+  /**
+   * Sets whether results for the next query of an assessor are retrieved
+   * while the assessor judges the current query.
+   *
+   * @param prefetching {@code true} if results should be prefetched,
+   *        {@code false} otherwise
+   */
+  public void setPrefetching(boolean prefetching) {
+    this.prefetching = prefetching;
+  }
+
+  /**
+   * @return {@code true} if a judgment page is written before its results are
+   *         retrieved, and displays each list of results once retrieved,
+   *         {@code false} otherwise
+   */
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+   * Sets whether a judgment page is written before its results are retrieved,
+   * and displays each list of results once retrieved. Otherwise the page is
+   * written once both lists of results are retrieved.
+   *
+   * @param streaming {@code true} if results should be streamed,
+   *        {@code false} otherwise
+   */
+  public void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  /**
+   * @return the number of judgment pages displayed using prefetched results
+   */
+  public long getPrefetchHitCount() {
+    return prefetchHitCount.get();
+  }
+
+  /**
+   * @return the number of judgment pages displayed with no prefetched results
+   */
+  public long getPrefetchMissCount() {
+    return prefetchMissCount.get();
+  }
+
+  /**
+   * @return the number of prefetched results discarded because the query,
+   *         the active profiles, or the maximum number of results changed, or
+   *         because retrieval failed
+   */
+  public long getPrefetchDiscardCount() {
+    return prefetchDiscardCount.get();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse res)
+      throws ServletException, IOException {
+    if (!resumeWriteResults(req, res) && !writeResultsPart(req, res)) {
+      super.doGet(req, res);
+    }
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res)
+      throws ServletException, IOException {
+    // Do not save the judgment again if the request was suspended.
+    if (!resumeWriteResults(req, res)) {
+      super.doPost(req, res);
+    }
+  }
+
+  /**
+   * Returns whether the given request was suspended while its results were
+   * retrieved, and so must be handled by this strategy when resumed.
+   * 
+   * @param req the request the client made of the servlet
+   * @return {@code true} if the request was suspended, {@code false}
+   *         otherwise
+   */
+  static boolean isSuspended(HttpServletRequest req) {
+    return (req.getAttribute(PENDING_RESULTS_ATTRIBUTE) != null);
+  }
+
+  /**
+   * Returns whether the given request is for one list of results of a
+   * judgment page, and so must be handled by this strategy.
+   *
+   * @param req the request the client made of the servlet
+   * @return {@code true} if the request is for one list of results,
+   *         {@code false} otherwise
+   */
+  static boolean isResultsPartRequest(HttpServletRequest req) {
+    return (req.getParameter(StreamKeys.RESULTS_PART) != null);
+  }
+
+  /*
+   * Finishes writing the results if the request was suspended while they were
+   * retrieved, returning false if the request was not suspended.
+   */
+  private boolean resumeWriteResults(HttpServletRequest req,
+      HttpServletResponse res) throws ServletException, IOException {
+    PendingResults pending =
+        (PendingResults) req.getAttribute(PENDING_RESULTS_ATTRIBUTE);
+    if (pending == null) {
+      return false;
+    }
+
+    try {
+      writeResults(req, res, pending);
+    } catch (SxseStorageException e) {
+      throw new ServletException(e);
+    }
+    return true;
   }
 
   protected void writeResults(HttpServletRequest req, HttpServletResponse res,
@@ -85,62 +256,272 @@ public final class ServerJudgmentStrategy extends AbstractJudgmentStrategy {
     ScoringPolicyProfile firstProfile = prefsStorage.getFirstProfile();
     ScoringPolicyProfile secondProfile = prefsStorage.getSecondProfile();
 
-    Judgment lastJudgment = null;
-    List<SearchResult> firstResults = null;
-    List<SearchResult> secondResults = null;
+    StreamedResults prevStreamed = User.getStreamedResults(req);
+    if (prevStreamed != null) {
+      // The assessor left the last page before all its results were shown.
+      User.setStreamedResults(req, null);
+      prevStreamed.cancel();
+    }
+
+    if (!allowJudgment(firstProfile, secondProfile, query)) {
+      // Both profiles are empty, so we cannot judge this query.
+      User.setSideBySideResults(req, null);
+      // Automatically pass on judgment since cannot judge.
+      String nextAction = judgmentStorage.isSubmittingAutomatically() ?
+          quoteAction(JudgmentAction.PASS) : null;
+      writePage(req, res, query, null, null, null, null, nextAction, null);
+      return;
+    }
+
+    if (shouldSwap(judgmentStorage, query)) {
+      // Swap the profiles so they are displayed in reverse order.
+      ScoringPolicyProfile temp = firstProfile;
+      firstProfile = secondProfile;
+      secondProfile = temp;
+    }
+
+    // Use results retrieved while the assessor judged the last query, or
+    // else submit tasks to retrieve results to the result retriever.
+    int maxResults = judgmentStorage.getMaxResults();
+    long startTime = System.currentTimeMillis();
+    long firstAbortTime = getAbortTime(firstProfile, startTime);
+    long secondAbortTime = getAbortTime(secondProfile, startTime);
+    Future<List<SearchResult>> firstResultsFuture;
+    Future<List<SearchResult>> secondResultsFuture;
+    PrefetchedResults prefetched = takePrefetchedResults(req, query,
+        firstProfile, secondProfile, maxResults);
+    if (prefetched != null) {
+      firstResultsFuture = prefetched.getFirstResultsFuture();
+      secondResultsFuture = prefetched.getSecondResultsFuture();
+    } else {
+      firstResultsFuture =
+          issueQuery(firstProfile, query, maxResults, firstAbortTime);
+      secondResultsFuture =
+          issueQuery(secondProfile, query, maxResults, secondAbortTime);
+    }
+
+    if (streaming) {
+      // Write the page now, which then requests each list of results.
+      StreamedResults streamed = new StreamedResults(query,
+          firstProfile, secondProfile, firstAbortTime, secondAbortTime,
+          firstResultsFuture, secondResultsFuture);
+      User.setStreamedResults(req, streamed);
+      User.setSideBySideResults(req, null);
+      writeStreamedPage(req, res, streamed);
+      return;
+    }
+
+    // Each retrieval stops by its own abort time, so wait for the later one.
+    PendingResults pending = new PendingResults(query,
+        firstProfile, secondProfile, Math.max(firstAbortTime, secondAbortTime),
+        firstResultsFuture, secondResultsFuture);
+    req.setAttribute(PENDING_RESULTS_ATTRIBUTE, pending);
+    writeResults(req, res, pending);
+  }
+
+  /*
+   * Writes the results once they are retrieved, suspending the request
+   * instead of blocking a thread until then.
+   */
+  private void writeResults(HttpServletRequest req, HttpServletResponse res,
+      PendingResults pending) throws SxseStorageException, IOException {
+    // If the request is suspended, this throws an exception that returns the
+    // thread to the pool, and the request is later handled again.
+    pending.await(ContinuationSupport.getContinuation(req, pending));
+
+    JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+    String query = pending.getQuery();
+    ScoringPolicyProfile firstProfile = pending.getFirstProfile();
+    ScoringPolicyProfile secondProfile = pending.getSecondProfile();
     String nextAction = null;
 
+    // Get the previous judgment for this query if one exists.
+    Judgment lastJudgment = getLastJudgment(
+        User.getUser(req).getAssessorName(), query,
+        firstProfile, secondProfile);
+
+    // Get the results, which are retrieved unless the abort time passed.
+    long abortTime = pending.getAbortTime();
+    List<SearchResult> firstResults =
+        getSearchResults(pending.getFirstResultsFuture(), abortTime);
+    List<SearchResult> secondResults =
+        getSearchResults(pending.getSecondResultsFuture(), abortTime);
+
+    // Find the hosts that could not be contacted because they are failing.
+    List<String> unavailableBackends = new ArrayList<String>(2);
+    if (!judgmentStorage.isServingSnapshots()) {
+      addIfUnavailable(unavailableBackends, firstProfile, firstResults);
+      addIfUnavailable(unavailableBackends, secondProfile, secondResults);
+    }
+
     SideBySideResults results = null;
-    if (allowJudgment(firstProfile, secondProfile, query)) {
-      if (shouldSwap(judgmentStorage, query)) {
-        // Swap the profiles so they are displayed in reverse order.
-        ScoringPolicyProfile temp = firstProfile;
-        firstProfile = secondProfile;
-        secondProfile = temp;
+    if (allowJudgment(firstResults, secondResults)) {
+      results = new SideBySideResults(query,
+          firstProfile, secondProfile, firstResults, secondResults);
+      User.setSideBySideResults(req, results);
+      // Automatically submit judgment if results are equal, which compares
+      // only their fingerprints if both were retrieved from hosts.
+      if (judgmentStorage.isSubmittingAutomatically() &&
+          firstResults.equals(secondResults)) {
+        nextAction = quoteAction(JudgmentAction.RATE_EQUAL);
+      }
+    } else {
+      // Have invalid results, so we cannot judge this query.
+      User.setSideBySideResults(req, null);
+      // Automatically pass on judgment since invalid, unless a host is
+      // unavailable, in which case every query would be passed.
+      if (judgmentStorage.isSubmittingAutomatically()
+          && unavailableBackends.isEmpty()) {
+        nextAction = quoteAction(JudgmentAction.PASS);
       }
+    }
 
-      // Submit tasks to retrieve results to the thread pool.
-      int maxResults = judgmentStorage.getMaxResults();
-      long abortTime = System.currentTimeMillis() +
-          judgmentStorage.getResultRetrievalTimeout();
-      Future<List<SearchResult>> firstResultsFuture =
-          issueQuery(firstProfile, query, maxResults);
-      Future<List<SearchResult>> secondResultsFuture =
-          issueQuery(secondProfile, query, maxResults);
+    writePage(req, res, query, lastJudgment, results,
+        firstResults, secondResults, nextAction, unavailableBackends);
+  }
 
-      // Get the previous judgment for this query if one exists.
-      lastJudgment = getLastJudgment(User.getUser(req).getAssessorName(),
-          query, firstProfile, secondProfile);
+  /*
+   * Writes a judgment page whose results are not yet retrieved.
+   */
+  private void writeStreamedPage(HttpServletRequest req,
+      HttpServletResponse res, StreamedResults streamed)
+      throws SxseStorageException, IOException {
+    String query = streamed.getQuery();
+    Judgment lastJudgment = getLastJudgment(
+        User.getUser(req).getAssessorName(), query,
+        streamed.getFirstProfile(), streamed.getSecondProfile());
+
+    prefetchNextQuery(req, query);
+    Set<String> querySetNames = getDisplayedQuerySetNames();
 
-      // Get the results.
-      firstResults = getSearchResults(firstResultsFuture, abortTime);
-      secondResults = getSearchResults(secondResultsFuture, abortTime);
+    PreparePage.write(res);
+    Writer writer = res.getWriter();
+    Judge.write(writer, new GxpContext(req.getLocale()),
+        User.getUser(req), banner, query, lastJudgment,
+        new StreamedServletDetails(streamed.getId()),
+        querySetNames, null, null);
+  }
+
+  /*
+   * Writes one list of results of a streamed judgment page once it is
+   * retrieved, returning false if the request is not for such a list.
+   */
+  private boolean writeResultsPart(HttpServletRequest req,
+      HttpServletResponse res) throws ServletException, IOException {
+    if (!isResultsPartRequest(req)) {
+      return false;
+    }
+
+    EnumInputParser.ParsedInput<StreamedResults.Part> partInput =
+        new EnumInputParser<StreamedResults.Part>(StreamedResults.Part.class)
+          .parse(StreamKeys.RESULTS_PART, req.getParameterMap());
+    StringInputParser.ParsedInput streamIdInput =
+        StringInputParser.allowAll().parse(
+          StreamKeys.STREAM_ID, req.getParameterMap());
+    StreamedResults.Part part = partInput.getResult();
+    String streamId = streamIdInput.getResult();
+    StreamedResults streamed = User.getStreamedResults(req);
+    if ((part == null) || (streamed == null)
+        || !streamed.getId().equals(streamId)) {
+      // The assessor has since left the page requesting these results.
+      res.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return true;
+    }
+
+    PendingResults pending =
+        (PendingResults) req.getAttribute(PENDING_PART_ATTRIBUTE);
+    if (pending == null) {
+      pending = streamed.newPendingResults(part);
+      req.setAttribute(PENDING_PART_ATTRIBUTE, pending);
+    }
+    // If the request is suspended, this throws an exception that returns the
+    // thread to the pool, and the request is later handled again.
+    pending.await(ContinuationSupport.getContinuation(req, pending));
+
+    Future<List<SearchResult>> resultsFuture =
+        (part == StreamedResults.Part.FIRST) ?
+          pending.getFirstResultsFuture() : pending.getSecondResultsFuture();
+    List<SearchResult> results =
+        getSearchResults(resultsFuture, pending.getAbortTime());
+    try {
+      writeResultsPart(req, res, streamed, part, results);
+    } catch (SxseStorageException e) {
+      throw new ServletException(e);
+    }
+    return true;
+  }
+
+  /*
+   * Writes the given list of results of a streamed judgment page, allowing
+   * judgment if both lists are now retrieved.
+   */
+  private void writeResultsPart(HttpServletRequest req,
+      HttpServletResponse res, StreamedResults streamed,
+      StreamedResults.Part part, List<SearchResult> results)
+      throws SxseStorageException, IOException {
+    JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+    List<String> unavailableBackends = new ArrayList<String>(1);
+    if (!judgmentStorage.isServingSnapshots()) {
+      addIfUnavailable(unavailableBackends, streamed.getProfile(part), results);
+    }
 
+    if (streamed.setResults(part, results, !unavailableBackends.isEmpty())) {
+      // Both lists are retrieved, so the page may now allow judgment.
+      List<SearchResult> firstResults = streamed.getFirstResults();
+      List<SearchResult> secondResults = streamed.getSecondResults();
+      JudgmentAction nextAction = null;
       if (allowJudgment(firstResults, secondResults)) {
-        results = new SideBySideResults(query,
-            firstProfile, secondProfile, firstResults, secondResults);
-        User.setSideBySideResults(req, results);
-        // Automatically submit judgment if results are equal.
+        SideBySideResults sideBySideResults = new SideBySideResults(
+            streamed.getQuery(), streamed.getFirstProfile(),
+            streamed.getSecondProfile(), firstResults, secondResults);
+        User.setSideBySideResults(req, sideBySideResults);
+        res.setHeader(JUDGMENT_ID_HEADER,
+            sideBySideResults.getUuid().toString());
         if (judgmentStorage.isSubmittingAutomatically() &&
             firstResults.equals(secondResults)) {
-          nextAction = quoteAction(JudgmentAction.RATE_EQUAL);
-        }
-      } else {
-        // Have invalid results, so we cannot judge this query.
-        User.setSideBySideResults(req, null);
-        // Automatically pass on judgment since invalid.
-        if (judgmentStorage.isSubmittingAutomatically()) {
-          nextAction = quoteAction(JudgmentAction.PASS);
+          nextAction = JudgmentAction.RATE_EQUAL;
         }
+      } else if (judgmentStorage.isSubmittingAutomatically()
+          && !streamed.isBackendUnavailable()) {
+        nextAction = JudgmentAction.PASS;
       }
-    } else {
-      // Both profiles are empty, so we cannot judge this query.
-      User.setSideBySideResults(req, null);
-      // Automatically pass on judgment since cannot judge.
-      if (judgmentStorage.isSubmittingAutomatically()) {
-        nextAction = quoteAction(JudgmentAction.PASS);
+      if (nextAction != null) {
+        res.setHeader(SUBMIT_ACTION_HEADER, nextAction.toString());
+      }
+    }
+
+    // Write only the list of results, which the page inserts.
+    res.setContentType("text/html; charset=UTF-8");
+    res.setHeader("Cache-control", "no-cache");
+    JudgeResultsPart.write(res.getWriter(), new GxpContext(req.getLocale()),
+        results, unavailableBackends);
+  }
+
+  /*
+   * Adds the host of the given profile to the given list if no results were
+   * retrieved because its circuit breaker is open.
+   */
+  private void addIfUnavailable(List<String> unavailableBackends,
+      ScoringPolicyProfile profile, List<SearchResult> results) {
+    if ((results != null) || (profile == ScoringPolicyProfile.EMPTY_PROFILE)) {
+      return;
+    }
+    QueryFormatter queryFormatter = profile.getQueryFormatter();
+    if (!resultRetriever.isBackendAvailable(queryFormatter)) {
+      String backendName = ResultRetriever.getBackendName(queryFormatter);
+      if (!unavailableBackends.contains(backendName)) {
+        unavailableBackends.add(backendName);
       }
     }
+  }
+
+  private void writePage(HttpServletRequest req, HttpServletResponse res,
+      String query, Judgment lastJudgment, SideBySideResults results,
+      List<SearchResult> firstResults, List<SearchResult> secondResults,
+      String nextAction, List<String> unavailableBackends)
+      throws SxseStorageException, IOException {
+    // Retrieve results for the next query while the assessor judges this one.
+    prefetchNextQuery(req, query);
 
     // Get the query set names to display, if allowed.
     Set<String> querySetNames = getDisplayedQuerySetNames();
@@ -153,17 +534,132 @@ public final class ServerJudgmentStrategy extends AbstractJudgmentStrategy {
     
     Judge.write(writer, new GxpContext(req.getLocale()),
         User.getUser(req), banner, query, lastJudgment, servletDetails,
-        querySetNames, nextAction);
+        querySetNames, nextAction, unavailableBackends);
   }
 
-  private Future<List<SearchResult>> issueQuery(
-      ScoringPolicyProfile profile, String query, int maxResults) {
+  @Override
+  protected String chooseNextQuery(HttpServletRequest req)
+      throws SxseStorageException {
+    PrefetchedResults prefetched = User.getPrefetchedResults(req);
+    if (prefetched == null) {
+      return super.chooseNextQuery(req);
+    }
+
+    PreferencesStorage prefsStorage = storageManager.getPreferencesStorage();
+    if (!prefetched.isForProfiles(prefsStorage.getFirstProfile(),
+        prefsStorage.getSecondProfile())) {
+      // The active profiles changed, so choose a query for the new profiles.
+      User.setPrefetchedResults(req, null);
+      prefetched.cancel();
+      prefetchDiscardCount.incrementAndGet();
+      return super.chooseNextQuery(req);
+    }
+    return prefetched.getQuery();
+  }
+
+  /*
+   * Removes the prefetched results from the session, returning them if they
+   * can be displayed for the given query and profiles, or null otherwise.
+   */
+  private PrefetchedResults takePrefetchedResults(HttpServletRequest req,
+      String query, ScoringPolicyProfile firstProfile,
+      ScoringPolicyProfile secondProfile, int maxResults) {
+    PrefetchedResults prefetched = User.getPrefetchedResults(req);
+    if (prefetched == null) {
+      if (prefetching) {
+        prefetchMissCount.incrementAndGet();
+      }
+      return null;
+    }
+
+    User.setPrefetchedResults(req, null);
+    if (!prefetched.isUsable(query, firstProfile, secondProfile, maxResults)) {
+      // The query, the active profiles, or the maximum results changed.
+      prefetched.cancel();
+      prefetchDiscardCount.incrementAndGet();
+      return null;
+    }
+    prefetchHitCount.incrementAndGet();
+    return prefetched;
+  }
+
+  /*
+   * Chooses the next query for the assessor and starts retrieving its results,
+   * saving them in the session until the assessor judges the given query.
+   */
+  private void prefetchNextQuery(HttpServletRequest req, String query)
+      throws SxseStorageException {
+    PrefetchedResults prevPrefetched = User.getPrefetchedResults(req);
+    if (prevPrefetched != null) {
+      // The assessor did not use the last results prefetched.
+      User.setPrefetchedResults(req, null);
+      prevPrefetched.cancel();
+    }
+    if (!prefetching) {
+      return;
+    }
+
+    String nextQuery = chooseQuery(req);
+    if ((nextQuery == null) || nextQuery.equals(query)) {
+      // The current query is not yet judged, so may be chosen again.
+      return;
+    }
+
+    JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+    PreferencesStorage prefsStorage = storageManager.getPreferencesStorage();
+    ScoringPolicyProfile firstProfile = prefsStorage.getFirstProfile();
+    ScoringPolicyProfile secondProfile = prefsStorage.getSecondProfile();
+    if (!allowJudgment(firstProfile, secondProfile, nextQuery)) {
+      return;
+    }
+    if (shouldSwap(judgmentStorage, nextQuery)) {
+      ScoringPolicyProfile temp = firstProfile;
+      firstProfile = secondProfile;
+      secondProfile = temp;
+    }
+
+    int maxResults = judgmentStorage.getMaxResults();
+    long startTime = System.currentTimeMillis();
+    User.setPrefetchedResults(req, new PrefetchedResults(nextQuery,
+        firstProfile, secondProfile, maxResults,
+        issueQuery(firstProfile, nextQuery, maxResults,
+            getAbortTime(firstProfile, startTime)),
+        issueQuery(secondProfile, nextQuery, maxResults,
+            getAbortTime(secondProfile, startTime))));
+  }
+
+  /*
+   * Returns the time after which to stop waiting for results from the given
+   * profile, which is adapted to the latency of its host if enabled.
+   */
+  private long getAbortTime(ScoringPolicyProfile profile, long startTime)
+      throws SxseStorageException {
+    JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+    long maxTimeout = judgmentStorage.getResultRetrievalTimeout();
+    if (profile == ScoringPolicyProfile.EMPTY_PROFILE) {
+      return startTime;
+    }
+    return startTime + resultRetriever.getTimeoutMillis(
+        profile.getQueryFormatter(), maxTimeout);
+  }
+
+  private Future<List<SearchResult>> issueQuery(ScoringPolicyProfile profile,
+      String query, int maxResults, long abortTime)
+      throws SxseStorageException {
     if (profile == ScoringPolicyProfile.EMPTY_PROFILE) {
       // Do not issue query against the blank profile.
       return null;
     }
-    // Issue a query against the given scoring policy profile.
-    return threadPool.submit(new ResultListFuture(query, profile, maxResults));
+    JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+    if (judgmentStorage.isServingSnapshots()) {
+      // Never contact the host; if there is no snapshot, the query is passed.
+      return ResultRetriever.newDoneFuture(judgmentStorage.getSnapshot(
+          profile.getQueryFormatter(), query, maxResults));
+    }
+    // Issue a query against the given scoring policy profile. The host stops
+    // waiting at the same time the servlet does.
+    return resultRetriever.submit(profile.getQueryFormatter(),
+        new QueryOptions(query, maxResults, abortTime));
   }
 
   private List<SearchResult> getSearchResults(
@@ -185,6 +681,9 @@ public final class ServerJudgmentStrategy extends AbstractJudgmentStrategy {
       LOGGER.log(Level.SEVERE, "getResults caught InterruptedException", e);
     } catch (ExecutionException e) {
       LOGGER.log(Level.SEVERE, "getResults caught ExecutionException", e);
+    } catch (CancellationException e) {
+      // Retrieval was rejected because the host is overloaded.
+      LOGGER.fine("getResults found retrieval cancelled");
     } catch (TimeoutException e) {
       // Interrupt if the thread if necessary; the GSA can handle it.
       resultsFuture.cancel(true);
@@ -214,26 +713,29 @@ public final class ServerJudgmentStrategy extends AbstractJudgmentStrategy {
     return url;
   }
 
-  /*
-   * Class implementing Callable, allowing results to be retrieved.
-   */
-  private static class ResultListFuture
-      implements Callable<List<SearchResult>> {
-    private final String query;
-    private final ScoringPolicyProfile profile;
-    private final int maxResults;
-
-    public ResultListFuture(
-        String query, ScoringPolicyProfile profile, int numResults) {
-      this.query = query;
-      this.profile = profile;
-      this.maxResults = numResults;
-    }
-
-    public List<SearchResult> call() throws Exception {
-      QueryFormatter queryFormatter = profile.getQueryFormatter();
-      return queryFormatter.getSearchResults(
-          new QueryOptions(query, maxResults));
+  private static class StreamedServletDetails
+      implements JudgmentServletDetails {
+    private final String streamId;
+
+    private StreamedServletDetails(String streamId) {
+      this.streamId = streamId;
+    }
+
+    public boolean allowJudgment() {
+      // The page allows judgment once it retrieves both lists of results.
+      return false;
+    }
+
+    public HtmlClosure writeHeader() {
+      return HtmlClosures.EMPTY;
+    }
+
+    public HtmlClosure writeFooter() {
+      return HtmlClosures.EMPTY;
+    }
+
+    public HtmlClosure writeResults() {
+      return JudgeStreamedResults.getGxpClosure(streamId);
     }
   }
 
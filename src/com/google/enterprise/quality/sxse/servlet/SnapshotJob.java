@@ -0,0 +1,192 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
+import com.google.enterprise.quality.sxse.SearchResult;
+import com.google.enterprise.quality.sxse.storage.JudgmentStorage;
+import com.google.enterprise.quality.sxse.storage.PreferencesStorage;
+import com.google.enterprise.quality.sxse.storage.StorageManager;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A batch job that saves a snapshot of the results of both active scoring
+ * policy profiles for every query in the active query sets. While
+ * {@link JudgmentStorage#isServingSnapshots()} returns {@code true}, assessors
+ * are shown these snapshots instead of results retrieved from the hosts.
+ *
+ * Snapshots are saved as each list of results is retrieved, and lists that
+ * already have a snapshot are skipped, so starting the job again, including
+ * after a restart, resumes where it stopped and retries the lists that failed.
+ *
+ * This class is thread-safe.
+ */
+public final class SnapshotJob extends BatchJob {
+  private static final Logger LOGGER = Logger.getLogger(
+      SnapshotJob.class.getName());
+
+  /**
+   * The default number of lists of results retrieved at once.
+   */
+  public static final int DEFAULT_PARALLELISM = 4;
+
+  /**
+   * The default maximum number of lists of results retrieved per second.
+   */
+  public static final int DEFAULT_QUERIES_PER_SECOND = 10;
+
+  private final AtomicInteger totalCount;
+  private final AtomicInteger savedCount;
+  private final AtomicInteger skippedCount;
+
+  /**
+   * Creates a new snapshot job.
+   *
+   * @param storageManager the storage manager
+   * @param resultRetriever the retriever of results from each host
+   * @param parallelism the number of lists of results retrieved at once
+   * @param queriesPerSecond the maximum number of lists of results retrieved
+   *        per second
+   */
+  public SnapshotJob(StorageManager storageManager,
+      ResultRetriever resultRetriever, int parallelism, int queriesPerSecond) {
+    super("SnapshotJob", storageManager, resultRetriever, parallelism,
+        queriesPerSecond);
+
+    totalCount = new AtomicInteger();
+    savedCount = new AtomicInteger();
+    skippedCount = new AtomicInteger();
+  }
+
+  /**
+   * @return the number of lists of results the last run of the job must have
+   *         a snapshot of
+   */
+  public int getTotalCount() {
+    return totalCount.get();
+  }
+
+  /**
+   * @return the number of snapshots saved by the last run of the job
+   */
+  public int getSavedCount() {
+    return savedCount.get();
+  }
+
+  /**
+   * @return the number of lists of results skipped by the last run of the job
+   *         because a snapshot was already saved
+   */
+  public int getSkippedCount() {
+    return skippedCount.get();
+  }
+
+  @Override
+  void resetCounts() {
+    totalCount.set(0);
+    savedCount.set(0);
+    skippedCount.set(0);
+  }
+
+  @Override
+  void run(TaskScheduler scheduler)
+      throws InterruptedException, SxseStorageException {
+    StorageManager storageManager = getStorageManager();
+    JudgmentStorage judgmentStorage = storageManager.getJudgmentStorage();
+    PreferencesStorage prefsStorage = storageManager.getPreferencesStorage();
+    List<ScoringPolicyProfile> profiles =
+        new ArrayList<ScoringPolicyProfile>();
+    for (ScoringPolicyProfile profile : new ScoringPolicyProfile[] {
+        prefsStorage.getFirstProfile(), prefsStorage.getSecondProfile() }) {
+      if (profile != ScoringPolicyProfile.EMPTY_PROFILE) {
+        profiles.add(profile);
+      }
+    }
+    Set<String> queries = getActiveQueries();
+    int maxResults = judgmentStorage.getMaxResults();
+    int timeout = judgmentStorage.getResultRetrievalTimeout();
+    totalCount.set(profiles.size() * queries.size());
+
+    for (String query : queries) {
+      for (ScoringPolicyProfile profile : profiles) {
+        QueryFormatter queryFormatter = profile.getQueryFormatter();
+        if (judgmentStorage.hasSnapshot(queryFormatter, query, maxResults)) {
+          skippedCount.incrementAndGet();
+          continue;
+        }
+
+        scheduler.execute(new SnapshotTask(judgmentStorage, profile, query,
+            maxResults, timeout));
+      }
+    }
+  }
+
+  @Override
+  String getSummary() {
+    return "saved " + savedCount.get() + ", skipped " + skippedCount.get()
+        + ", failed " + getFailedCount() + " of " + totalCount.get()
+        + " result lists";
+  }
+
+  /*
+   * Retrieves the results of one profile for one query, and saves them as a
+   * snapshot.
+   */
+  private final class SnapshotTask implements Runnable {
+    private final JudgmentStorage judgmentStorage;
+    private final ScoringPolicyProfile profile;
+    private final String query;
+    private final int maxResults;
+    private final int timeout;
+
+    private SnapshotTask(JudgmentStorage judgmentStorage,
+        ScoringPolicyProfile profile, String query, int maxResults,
+        int timeout) {
+      this.judgmentStorage = judgmentStorage;
+      this.profile = profile;
+      this.query = query;
+      this.maxResults = maxResults;
+      this.timeout = timeout;
+    }
+
+    public void run() {
+      try {
+        List<SearchResult> results =
+            retrieve(profile, query, maxResults, timeout);
+        if (results == null) {
+          return;
+        }
+
+        judgmentStorage.addSnapshot(profile.getQueryFormatter(), query,
+            maxResults, results);
+        savedCount.incrementAndGet();
+      } catch (SxseStorageException e) {
+        LOGGER.log(Level.SEVERE, "could not save snapshot", e);
+        addFailure(new Failure(query, profile.getName(), e.toString()));
+      } catch (InterruptedException e) {
+        // The job was cancelled.
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
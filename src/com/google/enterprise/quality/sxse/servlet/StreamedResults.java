@@ -0,0 +1,191 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import com.google.common.base.Preconditions;
+import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
+import com.google.enterprise.quality.sxse.SearchResult;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+/**
+ * The results for a judgment page that is written before they are retrieved.
+ * The page requests each list of results separately, and displays it as soon
+ * as it is retrieved. The assessor can judge the results only once both lists
+ * are retrieved. The profiles are ordered as they will be displayed, so they
+ * are already swapped if necessary.
+ */
+final class StreamedResults {
+  /**
+   * A list of results requested separately by the judgment page.
+   */
+  static enum Part {
+    /**
+     * The results of the profile displayed first.
+     */
+    FIRST,
+
+    /**
+     * The results of the profile displayed second.
+     */
+    SECOND,
+  }
+
+  private final String id;
+  private final String query;
+  private final ScoringPolicyProfile firstProfile;
+  private final ScoringPolicyProfile secondProfile;
+  private final long firstAbortTime;
+  private final long secondAbortTime;
+  private final Future<List<SearchResult>> firstResultsFuture;
+  private final Future<List<SearchResult>> secondResultsFuture;
+
+  // All fields below are guarded by this.
+  private boolean firstRetrieved;
+  private boolean secondRetrieved;
+  private List<SearchResult> firstResults;
+  private List<SearchResult> secondResults;
+  private boolean backendUnavailable;
+
+  /**
+   * Creates new streamed results.
+   *
+   * @param query the query issued
+   * @param firstProfile the scoring policy profile displayed first
+   * @param secondProfile the scoring policy profile displayed second
+   * @param firstAbortTime the time, in milliseconds since the epoch, after
+   *        which to stop waiting for results of the first profile
+   * @param secondAbortTime the time, in milliseconds since the epoch, after
+   *        which to stop waiting for results of the second profile
+   * @param firstResultsFuture the future results of the first profile, or
+   *        {@code null} if it is the empty profile
+   * @param secondResultsFuture the future results of the second profile, or
+   *        {@code null} if it is the empty profile
+   */
+  StreamedResults(String query,
+      ScoringPolicyProfile firstProfile, ScoringPolicyProfile secondProfile,
+      long firstAbortTime, long secondAbortTime,
+      Future<List<SearchResult>> firstResultsFuture,
+      Future<List<SearchResult>> secondResultsFuture) {
+    this.query = Preconditions.checkNotNull(query);
+    this.firstProfile = Preconditions.checkNotNull(firstProfile);
+    this.secondProfile = Preconditions.checkNotNull(secondProfile);
+    this.firstAbortTime = firstAbortTime;
+    this.secondAbortTime = secondAbortTime;
+    this.firstResultsFuture = firstResultsFuture;
+    this.secondResultsFuture = secondResultsFuture;
+    // Identifies the page, so that a request from a page no longer displayed
+    // is not mistaken for a request from the current page.
+    id = UUID.randomUUID().toString();
+  }
+
+  String getId() {
+    return id;
+  }
+
+  String getQuery() {
+    return query;
+  }
+
+  ScoringPolicyProfile getFirstProfile() {
+    return firstProfile;
+  }
+
+  ScoringPolicyProfile getSecondProfile() {
+    return secondProfile;
+  }
+
+  /**
+   * @param part the list of results
+   * @return the scoring policy profile that retrieves the given list
+   */
+  ScoringPolicyProfile getProfile(Part part) {
+    return (part == Part.FIRST) ? firstProfile : secondProfile;
+  }
+
+  /**
+   * Returns new pending results that suspend a request for the given list of
+   * results until it is retrieved or its abort time passes.
+   *
+   * @param part the list of results
+   * @return the pending results
+   */
+  PendingResults newPendingResults(Part part) {
+    return (part == Part.FIRST) ?
+        new PendingResults(query, firstProfile, secondProfile,
+            firstAbortTime, firstResultsFuture, null) :
+        new PendingResults(query, firstProfile, secondProfile,
+            secondAbortTime, null, secondResultsFuture);
+  }
+
+  /**
+   * Records the given list of results as retrieved.
+   *
+   * @param part the list of results
+   * @param results the results, or {@code null} if they could not be
+   *        retrieved
+   * @param unavailable {@code true} if the results could not be retrieved
+   *        because the host is failing
+   * @return {@code true} if this retrieved both lists of results, and the
+   *         page may now allow judgment, {@code false} otherwise
+   */
+  synchronized boolean setResults(Part part, List<SearchResult> results,
+      boolean unavailable) {
+    if ((part == Part.FIRST) ? firstRetrieved : secondRetrieved) {
+      // The page requested the same list again, and already has both.
+      return false;
+    }
+
+    if (part == Part.FIRST) {
+      firstRetrieved = true;
+      firstResults = results;
+    } else {
+      secondRetrieved = true;
+      secondResults = results;
+    }
+    backendUnavailable |= unavailable;
+    return (firstRetrieved && secondRetrieved);
+  }
+
+  synchronized List<SearchResult> getFirstResults() {
+    return firstResults;
+  }
+
+  synchronized List<SearchResult> getSecondResults() {
+    return secondResults;
+  }
+
+  /**
+   * @return {@code true} if either list of results could not be retrieved
+   *         because its host is failing, {@code false} otherwise
+   */
+  synchronized boolean isBackendUnavailable() {
+    return backendUnavailable;
+  }
+
+  /**
+   * Stops retrieving results, if not already done.
+   */
+  void cancel() {
+    if (firstResultsFuture != null) {
+      firstResultsFuture.cancel(true);
+    }
+    if (secondResultsFuture != null) {
+      secondResultsFuture.cancel(true);
+    }
+  }
+}
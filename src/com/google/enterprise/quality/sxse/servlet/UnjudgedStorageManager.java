@@ -15,6 +15,7 @@
 package com.google.enterprise.quality.sxse.servlet;
 
 import com.google.enterprise.quality.sxse.JudgmentDetails;
+import com.google.enterprise.quality.sxse.QueryFormatter;
 import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
 import com.google.enterprise.quality.sxse.SearchResult;
 import com.google.enterprise.quality.sxse.servlet.JudgedQueries.ChosenQueryDetails;
@@ -419,6 +420,54 @@ public class UnjudgedStorageManager implements StorageManager {
       return wrappedJudgmentStorage.isSubmittingAutomatically();
     }
 
+    public boolean isServingSnapshots() throws SxseStorageException {
+      return wrappedJudgmentStorage.isServingSnapshots();
+    }
+
+    public void addSnapshot(QueryFormatter queryFormatter, String query,
+        int maxResults, List<SearchResult> results)
+        throws SxseStorageException {
+      wrappedJudgmentStorage.addSnapshot(
+          queryFormatter, query, maxResults, results);
+    }
+
+    public List<SearchResult> getSnapshot(QueryFormatter queryFormatter,
+        String query, int maxResults) throws SxseStorageException {
+      return wrappedJudgmentStorage.getSnapshot(
+          queryFormatter, query, maxResults);
+    }
+
+    public boolean hasSnapshot(QueryFormatter queryFormatter, String query,
+        int maxResults) throws SxseStorageException {
+      return wrappedJudgmentStorage.hasSnapshot(
+          queryFormatter, query, maxResults);
+    }
+
+    public int getSnapshotCount() throws SxseStorageException {
+      return wrappedJudgmentStorage.getSnapshotCount();
+    }
+
+    public void removeSnapshots() throws SxseStorageException {
+      wrappedJudgmentStorage.removeSnapshots();
+    }
+
+    public void addIdenticalQuery(QueryFormatter firstQueryFormatter,
+        QueryFormatter secondQueryFormatter, String query)
+        throws SxseStorageException {
+      wrappedJudgmentStorage.addIdenticalQuery(
+          firstQueryFormatter, secondQueryFormatter, query);
+    }
+
+    public Set<String> getIdenticalQueries(QueryFormatter firstQueryFormatter,
+        QueryFormatter secondQueryFormatter) throws SxseStorageException {
+      return wrappedJudgmentStorage.getIdenticalQueries(
+          firstQueryFormatter, secondQueryFormatter);
+    }
+
+    public void removeIdenticalQueries() throws SxseStorageException {
+      wrappedJudgmentStorage.removeIdenticalQueries();
+    }
+
     public boolean removeUsers(Set<String> users) throws SxseStorageException {
       if (!wrappedJudgmentStorage.removeUsers(users)) {
         return false;
@@ -454,6 +503,11 @@ public class UnjudgedStorageManager implements StorageManager {
         throws SxseStorageException {
       wrappedJudgmentStorage.setSubmittingAutomatically(submitAutomatically);
     }
+
+    public void setServingSnapshots(boolean serveSnapshots)
+        throws SxseStorageException {
+      wrappedJudgmentStorage.setServingSnapshots(serveSnapshots);
+    }
   }
   
   /*
@@ -22,6 +22,8 @@ import javax.servlet.http.HttpSession;
  */
 public class User {
   private static final String RESULTS_ATTRIBUTE = "sxse.results";
+  private static final String PREFETCHED_ATTRIBUTE = "sxse.prefetched";
+  private static final String STREAMED_ATTRIBUTE = "sxse.streamed";
   private static final String USER_ATTRIBUTE = "sxse.user";
 
   public static SideBySideResults getSideBySideResults(HttpServletRequest req) {
@@ -104,6 +106,34 @@ public class User {
     }
   }
   
+  static PrefetchedResults getPrefetchedResults(HttpServletRequest req) {
+    HttpSession session = req.getSession(false);
+    return (session != null) ?
+        (PrefetchedResults) session.getAttribute(PREFETCHED_ATTRIBUTE) : null;
+  }
+
+  static void setPrefetchedResults(HttpServletRequest req,
+      PrefetchedResults results) {
+    HttpSession session = req.getSession(false);
+    if (session != null) {
+      session.setAttribute(PREFETCHED_ATTRIBUTE, results);
+    }
+  }
+
+  static StreamedResults getStreamedResults(HttpServletRequest req) {
+    HttpSession session = req.getSession(false);
+    return (session != null) ?
+        (StreamedResults) session.getAttribute(STREAMED_ATTRIBUTE) : null;
+  }
+
+  static void setStreamedResults(HttpServletRequest req,
+      StreamedResults results) {
+    HttpSession session = req.getSession(false);
+    if (session != null) {
+      session.setAttribute(STREAMED_ATTRIBUTE, results);
+    }
+  }
+
   /**
    * A {@link User} instance representing a logged out user.
    */
@@ -23,6 +23,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.enterprise.quality.sxse.JudgmentDetails;
+import com.google.enterprise.quality.sxse.QueryFormatter;
 import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
 import com.google.enterprise.quality.sxse.SearchResult;
 
@@ -389,6 +390,7 @@ public class CachingStorageManager implements StorageManager {
     private boolean submittingAutomatically;
     private int maxResults;
     private int retrievalTimeout;
+    private boolean servingSnapshots;
 
     private CachingJudgmentStorage(JudgmentStorage judgmentStorage,
         int judgmentCapacity) throws SxseStorageException {
@@ -402,6 +404,7 @@ public class CachingStorageManager implements StorageManager {
       submittingAutomatically = judgmentStorage.isSubmittingAutomatically();
       maxResults = judgmentStorage.getMaxResults();
       retrievalTimeout = judgmentStorage.getResultRetrievalTimeout();
+      servingSnapshots = judgmentStorage.isServingSnapshots();
     }
 
     public JudgmentDetails addJudgment(
@@ -441,13 +444,9 @@ public class CachingStorageManager implements StorageManager {
             Iterables.filter(judgmentDetails, new QueryFilter(query)));
       }
 
-      // We get all judgments because the user may call this method again soon
-      // with a different query.
-      judgmentDetails = judgmentStorage.getJudgments(user);
-      // The list from storage is immutable, so copy it to a linked list.
-      judgmentCache.put(user, Lists.newLinkedList(judgmentDetails));
-      return ImmutableList.copyOf(
-          Iterables.filter(judgmentDetails, new QueryFilter(query)));
+      // Storage reads only the judgments for the query, so do not read all
+      // judgments of the user to cache them.
+      return judgmentStorage.getJudgments(user, query);
     }
 
     public boolean hasResult(String resultsId) throws SxseStorageException {
@@ -460,6 +459,47 @@ public class CachingStorageManager implements StorageManager {
       return judgmentStorage.getResults(resultsId, firstResults, secondResults);
     }
 
+    public void addSnapshot(QueryFormatter queryFormatter, String query,
+        int maxResults, List<SearchResult> results)
+        throws SxseStorageException {
+      judgmentStorage.addSnapshot(queryFormatter, query, maxResults, results);
+    }
+
+    public List<SearchResult> getSnapshot(QueryFormatter queryFormatter,
+        String query, int maxResults) throws SxseStorageException {
+      return judgmentStorage.getSnapshot(queryFormatter, query, maxResults);
+    }
+
+    public boolean hasSnapshot(QueryFormatter queryFormatter, String query,
+        int maxResults) throws SxseStorageException {
+      return judgmentStorage.hasSnapshot(queryFormatter, query, maxResults);
+    }
+
+    public int getSnapshotCount() throws SxseStorageException {
+      return judgmentStorage.getSnapshotCount();
+    }
+
+    public void removeSnapshots() throws SxseStorageException {
+      judgmentStorage.removeSnapshots();
+    }
+
+    public void addIdenticalQuery(QueryFormatter firstQueryFormatter,
+        QueryFormatter secondQueryFormatter, String query)
+        throws SxseStorageException {
+      judgmentStorage.addIdenticalQuery(
+          firstQueryFormatter, secondQueryFormatter, query);
+    }
+
+    public Set<String> getIdenticalQueries(QueryFormatter firstQueryFormatter,
+        QueryFormatter secondQueryFormatter) throws SxseStorageException {
+      return judgmentStorage.getIdenticalQueries(
+          firstQueryFormatter, secondQueryFormatter);
+    }
+
+    public void removeIdenticalQueries() throws SxseStorageException {
+      judgmentStorage.removeIdenticalQueries();
+    }
+
     public Set<String> getUsers() throws SxseStorageException {
       return ImmutableSortedSet.copyOf(allUsers);
     }
@@ -495,6 +535,10 @@ public class CachingStorageManager implements StorageManager {
       return submittingAutomatically;
     }
 
+    public boolean isServingSnapshots() throws SxseStorageException {
+      return servingSnapshots;
+    }
+
     public void setMaxResults(int maxResults) throws SxseStorageException {
       if (this.maxResults != maxResults) {
         judgmentStorage.setMaxResults(maxResults);
@@ -531,6 +575,14 @@ public class CachingStorageManager implements StorageManager {
         this.submittingAutomatically = submitAutomatically;
       }
     }
+
+    public void setServingSnapshots(boolean serveSnapshots)
+        throws SxseStorageException {
+      if (servingSnapshots != serveSnapshots) {
+        judgmentStorage.setServingSnapshots(serveSnapshots);
+        this.servingSnapshots = serveSnapshots;
+      }
+    }
   }
   
   public File getRootDirectory() {
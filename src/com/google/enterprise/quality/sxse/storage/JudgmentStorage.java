@@ -15,6 +15,7 @@
 package com.google.enterprise.quality.sxse.storage;
 
 import com.google.enterprise.quality.sxse.JudgmentDetails;
+import com.google.enterprise.quality.sxse.QueryFormatter;
 import com.google.enterprise.quality.sxse.SearchResult;
 
 import java.util.List;
@@ -171,6 +172,9 @@ public interface JudgmentStorage {
    * Populates the given lists with the results having the given identifier. If
    * no such results exist in storage, this method returns {@code false}.
    * 
+   * Implementations must allow this method to be invoked concurrently with any
+   * other method, so that it needs no external synchronization.
+   * 
    * @param resultsId the identifier of the search results to return
    * @param firstResults the first list of search results, which must be empty
    * @param secondResults the second list of search results, which must be empty
@@ -183,6 +187,7 @@ public interface JudgmentStorage {
 
   /**
    * Returns whether storage contains results having the given identifier.
+   * Like {@link #getResults}, this method needs no external synchronization.
    * 
    * @param resultsId the identifier of the search results
    * @return {@code true} if search results having the given identifier are in
@@ -190,4 +195,110 @@ public interface JudgmentStorage {
    * @throws SxseStorageException if an error occurs
    */
   public boolean hasResult(String resultsId) throws SxseStorageException;
+
+  /**
+   * @return {@code true} if assessors are shown the snapshots of results in
+   *         storage instead of results retrieved from the hosts, {@code false}
+   *         otherwise
+   * @throws SxseStorageException if an error occurs
+   */
+  public boolean isServingSnapshots() throws SxseStorageException;
+
+  /**
+   * Sets whether assessors are shown the snapshots of results in storage
+   * instead of results retrieved from the hosts.
+   * 
+   * @param serveSnapshots {@code true} if snapshots of results should be
+   *        shown, {@code false} otherwise
+   * @throws SxseStorageException if an error occurs
+   */
+  public void setServingSnapshots(boolean serveSnapshots)
+      throws SxseStorageException;
+
+  /**
+   * Saves a snapshot of the results returned by a query formatter for a query,
+   * replacing any snapshot saved earlier for the same query formatter, query,
+   * and maximum number of results.
+   * 
+   * @param queryFormatter the query formatter that retrieved the results
+   * @param query the query
+   * @param maxResults the maximum number of results requested
+   * @param results the list of search results
+   * @throws SxseStorageException if an error occurs
+   */
+  public void addSnapshot(QueryFormatter queryFormatter, String query,
+      int maxResults, List<SearchResult> results) throws SxseStorageException;
+
+  /**
+   * Returns the snapshot of the results returned by a query formatter for a
+   * query, or {@code null} if no snapshot is saved.
+   * 
+   * @param queryFormatter the query formatter that retrieved the results
+   * @param query the query
+   * @param maxResults the maximum number of results requested
+   * @return an immutable list of search results, or {@code null} if none
+   * @throws SxseStorageException if an error occurs
+   */
+  public List<SearchResult> getSnapshot(QueryFormatter queryFormatter,
+      String query, int maxResults) throws SxseStorageException;
+
+  /**
+   * Returns whether a snapshot of the results returned by a query formatter
+   * for a query is saved.
+   * 
+   * @param queryFormatter the query formatter that retrieved the results
+   * @param query the query
+   * @param maxResults the maximum number of results requested
+   * @return {@code true} if a snapshot is saved, {@code false} otherwise
+   * @throws SxseStorageException if an error occurs
+   */
+  public boolean hasSnapshot(QueryFormatter queryFormatter, String query,
+      int maxResults) throws SxseStorageException;
+
+  /**
+   * @return the number of snapshots of results saved
+   * @throws SxseStorageException if an error occurs
+   */
+  public int getSnapshotCount() throws SxseStorageException;
+
+  /**
+   * Removes all snapshots of results from storage. Results that are also
+   * saved with a judgment remain in storage.
+   * 
+   * @throws SxseStorageException if an error occurs
+   */
+  public void removeSnapshots() throws SxseStorageException;
+
+  /**
+   * Saves a query for which two query formatters were found to return
+   * identical results, so that assessors need not judge it. These queries are
+   * kept apart from the judgments of users.
+   * 
+   * @param firstQueryFormatter the first query formatter
+   * @param secondQueryFormatter the second query formatter
+   * @param query the query
+   * @throws SxseStorageException if an error occurs
+   */
+  public void addIdenticalQuery(QueryFormatter firstQueryFormatter,
+      QueryFormatter secondQueryFormatter, String query)
+      throws SxseStorageException;
+
+  /**
+   * Returns the queries for which two query formatters were found to return
+   * identical results. The query formatters may be given in either order.
+   * 
+   * @param firstQueryFormatter the first query formatter
+   * @param secondQueryFormatter the second query formatter
+   * @return an immutable set of queries
+   * @throws SxseStorageException if an error occurs
+   */
+  public Set<String> getIdenticalQueries(QueryFormatter firstQueryFormatter,
+      QueryFormatter secondQueryFormatter) throws SxseStorageException;
+
+  /**
+   * Removes all queries found to return identical results from storage.
+   * 
+   * @throws SxseStorageException if an error occurs
+   */
+  public void removeIdenticalQueries() throws SxseStorageException;
 }
@@ -60,6 +60,11 @@ public class SxseStorageConstants {
      * {@link JudgmentStorage#getResultRetrievalTimeout()}.
      */
     public static final int RESULT_RETRIEVAL_TIMEOUT = 5000;
+
+    /**
+     * Default value returned by {@link JudgmentStorage#isServingSnapshots()}.
+     */
+    public static final boolean IS_SERVING_SNAPSHOTS = false;
   }
 
   /**
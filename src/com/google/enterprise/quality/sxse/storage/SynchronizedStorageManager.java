@@ -16,6 +16,7 @@ package com.google.enterprise.quality.sxse.storage;
 
 import com.google.common.base.Preconditions;
 import com.google.enterprise.quality.sxse.JudgmentDetails;
+import com.google.enterprise.quality.sxse.QueryFormatter;
 import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
 import com.google.enterprise.quality.sxse.SearchResult;
 
@@ -235,9 +236,10 @@ public final class SynchronizedStorageManager implements StorageManager {
       return wrappedJudgmentStorage.getResultRetrievalTimeout();
     }
 
-    public synchronized boolean getResults(String resultsId,
+    public boolean getResults(String resultsId,
         List<SearchResult> firstResults, List<SearchResult> secondResults)
         throws SxseStorageException {
+      // Don't synchronize, so stored results are read in parallel.
       return wrappedJudgmentStorage.getResults(resultsId, firstResults,
           secondResults);
     }
@@ -246,8 +248,56 @@ public final class SynchronizedStorageManager implements StorageManager {
       return wrappedJudgmentStorage.getUsers();
     }
 
-    public synchronized boolean hasResult(String resultsId)
+    public synchronized void addSnapshot(QueryFormatter queryFormatter,
+        String query, int maxResults, List<SearchResult> results)
         throws SxseStorageException {
+      wrappedJudgmentStorage.addSnapshot(
+          queryFormatter, query, maxResults, results);
+    }
+
+    public synchronized List<SearchResult> getSnapshot(
+        QueryFormatter queryFormatter, String query, int maxResults)
+        throws SxseStorageException {
+      return wrappedJudgmentStorage.getSnapshot(
+          queryFormatter, query, maxResults);
+    }
+
+    public synchronized boolean hasSnapshot(QueryFormatter queryFormatter,
+        String query, int maxResults) throws SxseStorageException {
+      return wrappedJudgmentStorage.hasSnapshot(
+          queryFormatter, query, maxResults);
+    }
+
+    public synchronized int getSnapshotCount() throws SxseStorageException {
+      return wrappedJudgmentStorage.getSnapshotCount();
+    }
+
+    public synchronized void removeSnapshots() throws SxseStorageException {
+      wrappedJudgmentStorage.removeSnapshots();
+    }
+
+    public synchronized void addIdenticalQuery(
+        QueryFormatter firstQueryFormatter,
+        QueryFormatter secondQueryFormatter, String query)
+        throws SxseStorageException {
+      wrappedJudgmentStorage.addIdenticalQuery(
+          firstQueryFormatter, secondQueryFormatter, query);
+    }
+
+    public synchronized Set<String> getIdenticalQueries(
+        QueryFormatter firstQueryFormatter,
+        QueryFormatter secondQueryFormatter) throws SxseStorageException {
+      return wrappedJudgmentStorage.getIdenticalQueries(
+          firstQueryFormatter, secondQueryFormatter);
+    }
+
+    public synchronized void removeIdenticalQueries()
+        throws SxseStorageException {
+      wrappedJudgmentStorage.removeIdenticalQueries();
+    }
+
+    public boolean hasResult(String resultsId) throws SxseStorageException {
+      // Don't synchronize, like getResults.
       return wrappedJudgmentStorage.hasResult(resultsId);
     }
 
@@ -266,6 +316,11 @@ public final class SynchronizedStorageManager implements StorageManager {
       return wrappedJudgmentStorage.isSubmittingAutomatically();
     }
 
+    public synchronized boolean isServingSnapshots()
+        throws SxseStorageException {
+      return wrappedJudgmentStorage.isServingSnapshots();
+    }
+
     public synchronized boolean removeUsers(Set<String> users)
         throws SxseStorageException {
       return wrappedJudgmentStorage.removeUsers(users);
@@ -295,6 +350,11 @@ public final class SynchronizedStorageManager implements StorageManager {
         boolean submitAutomatically) throws SxseStorageException {
       wrappedJudgmentStorage.setSubmittingAutomatically(submitAutomatically);
     }
+
+    public synchronized void setServingSnapshots(boolean serveSnapshots)
+        throws SxseStorageException {
+      wrappedJudgmentStorage.setServingSnapshots(serveSnapshots);
+    }
   }
 
   /**
@@ -0,0 +1,129 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.storage.textstorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a text file through a buffer, tracking the offset in
+ * bytes of the next line, so that a record found by scanning a file can later
+ * be read from its offset. Lines are decoded by {@link TextUtil#decode}.
+ */
+final class LineScanner {
+  // The size of the buffer used to scan a file.
+  private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream in;
+  private final byte[] buffer;
+  private int bufferIndex;
+  private int bufferLength;
+  private long position;
+  private byte[] lineBytes;
+
+  /**
+   * Creates a scanner of the given stream.
+   *
+   * @param in the stream to read from
+   * @param position the offset in bytes of the stream in its file
+   */
+  LineScanner(InputStream in, long position) {
+    this.in = in;
+    this.position = position;
+    buffer = new byte[SCAN_BUFFER_SIZE];
+    lineBytes = new byte[256];
+  }
+
+  /*
+   * Returns the next byte, or -1 if at the end of the stream.
+   */
+  private int read() throws IOException {
+    if (bufferIndex == bufferLength) {
+      int numRead = in.read(buffer);
+      if (numRead <= 0) {
+        return -1;
+      }
+      bufferIndex = 0;
+      bufferLength = numRead;
+    }
+    return buffer[bufferIndex++] & 0xFF;
+  }
+
+  /**
+   * @return the offset in bytes of the next line
+   */
+  long getPosition() {
+    return position;
+  }
+
+  /**
+   * Returns the next line without its terminating newline.
+   *
+   * @return the next line, or {@code null} if at the end of the stream
+   * @throws IOException if an error occurs
+   */
+  String readLine() throws IOException {
+    int length = 0;
+    int b;
+    while (((b = read()) != -1) && (b != '\n')) {
+      ++position;
+      if (length == lineBytes.length) {
+        lineBytes = Arrays.copyOf(lineBytes, 2 * length);
+      }
+      lineBytes[length++] = (byte) b;
+    }
+    if (b == -1) {
+      if (length == 0) {
+        return null;
+      }
+    } else {
+      ++position;
+    }
+    return TextUtil.decode(lineBytes, 0, length);
+  }
+
+  /**
+   * Skips the next line without decoding it.
+   *
+   * @return {@code false} if at the end of the stream, {@code true} otherwise
+   * @throws IOException if an error occurs
+   */
+  boolean skipLine() throws IOException {
+    int b = read();
+    if (b == -1) {
+      return false;
+    }
+    while ((b != -1) && (b != '\n')) {
+      ++position;
+      b = read();
+    }
+    if (b != -1) {
+      ++position;
+    }
+    return true;
+  }
+
+  /**
+   * Closes the stream.
+   */
+  void close() {
+    try {
+      in.close();
+    } catch (IOException e) {
+      // Only read from the stream, so ignore.
+    }
+  }
+}
@@ -16,12 +16,16 @@ package com.google.enterprise.quality.sxse.storage.textstorage;
 
 import com.google.common.collect.Maps;
 import com.google.enterprise.quality.sxse.JudgmentDetails;
+import com.google.enterprise.quality.sxse.QueryFormatter;
 import com.google.enterprise.quality.sxse.SearchResult;
+import com.google.enterprise.quality.sxse.SearchResultList;
 import com.google.enterprise.quality.sxse.hashers.Hasher;
 import com.google.enterprise.quality.sxse.storage.JudgmentStorage;
 import com.google.enterprise.quality.sxse.storage.SxseStorageException;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,14 +38,19 @@ import java.util.Set;
 public class TextJudgmentStorage implements JudgmentStorage {
   private final TextResultStorage resultStorage;
   private final TextUserStorage userStorage;
+  private final TextSnapshotStorage snapshotStorage;
+  private final TextPrescreenStorage prescreenStorage;
 
   public TextJudgmentStorage(File resultsDir, Hasher resultsHasher,
       File usersDir) throws SxseStorageException {
     HashMap<String, Integer> hashRefCounts = Maps.newHashMap();
     userStorage = new TextUserStorage(
         usersDir, resultsHasher.getHashSize(), hashRefCounts);
+    // Snapshots also reference results, so read them before the results.
+    snapshotStorage = new TextSnapshotStorage(resultsDir, hashRefCounts);
     resultStorage = new TextResultStorage(
         resultsDir, resultsHasher, hashRefCounts);
+    prescreenStorage = new TextPrescreenStorage(resultsDir);
   }
 
   public boolean isStoringResults() throws SxseStorageException {
@@ -86,6 +95,15 @@ public class TextJudgmentStorage implements JudgmentStorage {
     resultStorage.setResultRetrievalTimeout(timeout);
   }
 
+  public boolean isServingSnapshots() throws SxseStorageException {
+    return resultStorage.isServingSnapshots();
+  }
+
+  public void setServingSnapshots(boolean serveSnapshots)
+      throws SxseStorageException {
+    resultStorage.setServingSnapshots(serveSnapshots);
+  }
+
   public boolean hasResult(String resultsId) throws SxseStorageException {
     return resultStorage.hasResult(resultsId);
   }
@@ -123,8 +141,82 @@ public class TextJudgmentStorage implements JudgmentStorage {
     return removedAny;
   }
 
+  public void addSnapshot(QueryFormatter queryFormatter, String query,
+      int maxResults, List<SearchResult> results) throws SxseStorageException {
+    String resultsHash = resultStorage.addResultList(results);
+    String prevResultsHash = null;
+    boolean added = false;
+    try {
+      prevResultsHash = snapshotStorage.addResultsHash(
+          queryFormatter, query, maxResults, resultsHash);
+      added = true;
+    } finally {
+      if (!added) {
+        // Release the reference taken for the snapshot that was not saved.
+        resultStorage.updateHashRefCounts(
+            Collections.singletonMap(resultsHash, 1));
+      }
+    }
+    if (prevResultsHash != null) {
+      // Release the reference held by the replaced snapshot.
+      resultStorage.updateHashRefCounts(
+          Collections.singletonMap(prevResultsHash, 1));
+    }
+  }
+
+  public List<SearchResult> getSnapshot(QueryFormatter queryFormatter,
+      String query, int maxResults) throws SxseStorageException {
+    String resultsHash = snapshotStorage.getResultsHash(
+        queryFormatter, query, maxResults);
+    if (resultsHash == null) {
+      return null;
+    }
+
+    List<SearchResult> results = new ArrayList<SearchResult>();
+    if (!resultStorage.getResultList(resultsHash, results)) {
+      return null;
+    }
+    return SearchResultList.copyOf(results);
+  }
+
+  public boolean hasSnapshot(QueryFormatter queryFormatter, String query,
+      int maxResults) throws SxseStorageException {
+    return (snapshotStorage.getResultsHash(
+        queryFormatter, query, maxResults) != null);
+  }
+
+  public int getSnapshotCount() throws SxseStorageException {
+    return snapshotStorage.size();
+  }
+
+  public void removeSnapshots() throws SxseStorageException {
+    Map<String, Integer> removedHashRefCounts = snapshotStorage.removeAll();
+    if (!removedHashRefCounts.isEmpty()) {
+      resultStorage.updateHashRefCounts(removedHashRefCounts);
+    }
+  }
+
+  public void addIdenticalQuery(QueryFormatter firstQueryFormatter,
+      QueryFormatter secondQueryFormatter, String query)
+      throws SxseStorageException {
+    prescreenStorage.addIdenticalQuery(
+        firstQueryFormatter, secondQueryFormatter, query);
+  }
+
+  public Set<String> getIdenticalQueries(QueryFormatter firstQueryFormatter,
+      QueryFormatter secondQueryFormatter) throws SxseStorageException {
+    return prescreenStorage.getIdenticalQueries(
+        firstQueryFormatter, secondQueryFormatter);
+  }
+
+  public void removeIdenticalQueries() throws SxseStorageException {
+    prescreenStorage.removeAll();
+  }
+
   void tryDelete() {
     resultStorage.tryDelete();
+    snapshotStorage.tryDelete();
+    prescreenStorage.tryDelete();
     userStorage.tryDelete();
   }
 }
@@ -0,0 +1,240 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.storage.textstorage;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+import com.google.enterprise.quality.sxse.storage.textstorage.TextUtil.PrematureEofException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores in text format the queries for which two query formatters were found
+ * to return identical results. Each query is saved with both query formatters,
+ * so the queries found for other formatters are kept when the active profiles
+ * change.
+ *
+ * Queries are only ever appended to the file.
+ */
+class TextPrescreenStorage {
+  private static final Logger LOGGER = Logger.getLogger(
+      TextPrescreenStorage.class.getName());
+
+  private final File prescreenFile;
+  private final boolean existed;
+  private final Map<FormatterPair, Set<String>> identicalQueries;
+
+  /**
+   * Keys associated with values in the saved text file.
+   */
+  private static final class TextPrescreenKeys {
+    static final String QUERY = "query";
+  }
+
+  /**
+   * Creates storage for queries with identical results in the given
+   * directory.
+   *
+   * @param resultDir the directory containing all results
+   * @throws SxseStorageException if an error occurs
+   */
+  protected TextPrescreenStorage(File resultDir) throws SxseStorageException {
+    if (!resultDir.exists()) {
+      // Make empty directory for results if it does not exist yet.
+      resultDir.mkdir();
+    }
+
+    prescreenFile = new File(resultDir, "prescreened");
+    existed = prescreenFile.exists();
+    identicalQueries = new HashMap<FormatterPair, Set<String>>();
+
+    int count = 0;
+    if (existed && (prescreenFile.length() > 0)) {
+      count = readAllQueries();
+    }
+    LOGGER.info(count + " existing prescreened queries found");
+  }
+
+  /**
+   * Returns the queries for which the given query formatters return identical
+   * results, in either order.
+   *
+   * @param firstQueryFormatter the first query formatter
+   * @param secondQueryFormatter the second query formatter
+   * @return an immutable set of queries
+   */
+  public Set<String> getIdenticalQueries(QueryFormatter firstQueryFormatter,
+      QueryFormatter secondQueryFormatter) {
+    Set<String> queries = identicalQueries.get(
+        new FormatterPair(firstQueryFormatter, secondQueryFormatter));
+    if (queries == null) {
+      return ImmutableSet.of();
+    }
+    return ImmutableSet.copyOf(queries);
+  }
+
+  /**
+   * Saves a query for which the given query formatters return identical
+   * results.
+   *
+   * @param firstQueryFormatter the first query formatter
+   * @param secondQueryFormatter the second query formatter
+   * @param query the query
+   * @throws SxseStorageException if an error occurs
+   */
+  public void addIdenticalQuery(QueryFormatter firstQueryFormatter,
+      QueryFormatter secondQueryFormatter, String query)
+      throws SxseStorageException {
+    FormatterPair key =
+        new FormatterPair(firstQueryFormatter, secondQueryFormatter);
+    Set<String> queries = identicalQueries.get(key);
+    if ((queries != null) && queries.contains(query)) {
+      // Already saved.
+      return;
+    }
+
+    try {
+      BufferedWriter out = new BufferedWriter(
+          new FileWriter(prescreenFile, true));
+      TextUtil.writeValue(TextPrescreenKeys.QUERY, query, out);
+      TextUtil.writeQueryFormatter(firstQueryFormatter, out);
+      TextUtil.writeQueryFormatter(secondQueryFormatter, out);
+      out.close();
+    } catch (IOException e) {
+      LOGGER.severe("addIdenticalQuery caught IOException, "
+          + "partial query written");
+      throw new SxseStorageException(e);
+    }
+
+    addToMap(key, query);
+  }
+
+  /**
+   * Removes all queries with identical results.
+   *
+   * @throws SxseStorageException if an error occurs
+   */
+  public void removeAll() throws SxseStorageException {
+    try {
+      // Truncate the file.
+      new FileWriter(prescreenFile, false).close();
+    } catch (IOException e) {
+      throw new SxseStorageException(e);
+    }
+    identicalQueries.clear();
+  }
+
+  private boolean addToMap(FormatterPair key, String query) {
+    Set<String> queries = identicalQueries.get(key);
+    if (queries == null) {
+      queries = new HashSet<String>();
+      identicalQueries.put(key, queries);
+    }
+    return queries.add(query);
+  }
+
+  private int readAllQueries() throws SxseStorageException {
+    int count = 0;
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(prescreenFile));
+      try {
+        while (true) {
+          String nextLine = in.readLine();
+          if (nextLine == null) {
+            // Reached end of file.
+            break;
+          }
+
+          String query = TextUtil.readValue(TextPrescreenKeys.QUERY, nextLine);
+          if (query == null) {
+            // Okay if null, reached end of file.
+            break;
+          }
+          QueryFormatter firstQueryFormatter = TextUtil.readQueryFormatter(in);
+          QueryFormatter secondQueryFormatter =
+              TextUtil.readQueryFormatter(in);
+
+          if (addToMap(new FormatterPair(
+              firstQueryFormatter, secondQueryFormatter), query)) {
+            ++count;
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (PrematureEofException e) {
+      // The last query was only partially written, so discard it.
+      LOGGER.log(Level.WARNING, "Discarding partially written query", e);
+    } catch (IOException e) {
+      throw new SxseStorageException(e);
+    }
+    return count;
+  }
+
+  protected void tryDelete() {
+    // Only delete the file if we created it.
+    if (!existed) {
+      prescreenFile.delete();
+    }
+  }
+
+  /*
+   * Two query formatters, which are equal to another pair of the same query
+   * formatters in either order.
+   */
+  private static final class FormatterPair {
+    private final QueryFormatter first;
+    private final QueryFormatter second;
+
+    private FormatterPair(QueryFormatter first, QueryFormatter second) {
+      this.first = first;
+      this.second = second;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      } else if (!(obj instanceof FormatterPair)) {
+        return false;
+      }
+
+      FormatterPair pair = (FormatterPair) obj;
+      return (Objects.equal(first, pair.first)
+            && Objects.equal(second, pair.second))
+          || (Objects.equal(first, pair.second)
+            && Objects.equal(second, pair.first));
+    }
+
+    @Override
+    public int hashCode() {
+      // Addition is commutative, so the order of the formatters is ignored.
+      return Objects.hashCode(first) + Objects.hashCode(second);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.storage.textstorage;
+
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An index of the records in the file of {@link TextResultStorage}, so that
+ * the records need not be scanned when storage is created. Each entry holds
+ * the hash of a record and its offset and length in the results file, and is
+ * appended in binary format when the record is appended. Each entry also holds
+ * a checksum, so that an entry only partially written is detected.
+ *
+ * Entries are in the order of their records in the results file, so only a
+ * prefix of the entries is read in which each record immediately follows the
+ * previous one. The records following this prefix must be scanned.
+ */
+class TextResultIndex {
+  private static final Logger LOGGER = Logger.getLogger(
+      TextResultIndex.class.getName());
+
+  // Identifies an index file in this format.
+  private static final int MAGIC = 0x53785349;
+
+  // The size of the header, namely the magic number and the hash size.
+  private static final int HEADER_SIZE = 4 + 4;
+
+  private final File indexFile;
+  private final boolean existed;
+  private final int hashSize;
+  // The size of each entry: the hash, offset, length, and checksum.
+  private final int entrySize;
+  private final RandomAccessFile indexAccess;
+
+  /**
+   * An entry of the index.
+   */
+  static final class Entry {
+    final String hash;
+    final long offset;
+    final int length;
+
+    Entry(String hash, long offset, int length) {
+      this.hash = hash;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Creates the index of results in the given directory.
+   *
+   * @param resultDir the directory containing all results
+   * @param hashSize the number of characters in the hash of a record
+   * @throws SxseStorageException if an error occurs
+   */
+  protected TextResultIndex(File resultDir, int hashSize)
+      throws SxseStorageException {
+    indexFile = new File(resultDir, "resultsIndex");
+    existed = indexFile.exists();
+    this.hashSize = hashSize;
+    entrySize = hashSize + 8 + 4 + 4;
+    try {
+      indexAccess = new RandomAccessFile(indexFile, "rw");
+    } catch (FileNotFoundException e) {
+      throw new SxseStorageException(e);
+    }
+  }
+
+  /**
+   * Returns the entries for the longest prefix of the results file in which
+   * each record immediately follows the previous one, and discards all other
+   * entries from the index.
+   *
+   * @param resultsLength the length of the results file
+   * @return the valid entries of the index
+   * @throws SxseStorageException if an error occurs
+   */
+  List<Entry> read(long resultsLength) throws SxseStorageException {
+    List<Entry> entries = new ArrayList<Entry>();
+    try {
+      if (indexAccess.length() < HEADER_SIZE) {
+        clear();
+        return entries;
+      }
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(indexFile)));
+      try {
+        if ((in.readInt() != MAGIC) || (in.readInt() != hashSize)) {
+          LOGGER.warning("Index of results has wrong format, discarding");
+          clear();
+          return entries;
+        }
+
+        byte[] entryBytes = new byte[entrySize];
+        CRC32 crc = new CRC32();
+        long nextOffset = 0L;
+        while (true) {
+          try {
+            in.readFully(entryBytes);
+          } catch (EOFException e) {
+            // Reached the end of the index, or a partially written entry.
+            break;
+          }
+
+          ByteBuffer entryBuffer = ByteBuffer.wrap(entryBytes);
+          entryBuffer.position(hashSize);
+          long offset = entryBuffer.getLong();
+          int length = entryBuffer.getInt();
+          crc.reset();
+          crc.update(entryBytes, 0, entrySize - 4);
+          if ((entryBuffer.getInt() != (int) crc.getValue())
+              || (offset != nextOffset) || (length <= 0)
+              || (offset + length > resultsLength)) {
+            // The entry is corrupt, or its record is not the next one.
+            break;
+          }
+
+          String hash = new String(entryBytes, 0, hashSize, "US-ASCII");
+          entries.add(new Entry(hash, offset, length));
+          nextOffset = offset + length;
+        }
+      } finally {
+        in.close();
+      }
+
+      // Discard all entries that follow.
+      indexAccess.setLength(HEADER_SIZE + ((long) entries.size() * entrySize));
+    } catch (IOException e) {
+      throw new SxseStorageException(e);
+    }
+    return entries;
+  }
+
+  /**
+   * Appends an entry to the index.
+   *
+   * @param hash the hash of the record
+   * @param offset the offset of the record in the results file
+   * @param length the length of the record in bytes
+   * @throws SxseStorageException if an error occurs
+   */
+  void append(String hash, long offset, int length)
+      throws SxseStorageException {
+    List<Entry> entries = new ArrayList<Entry>(1);
+    entries.add(new Entry(hash, offset, length));
+    append(entries);
+  }
+
+  /**
+   * Appends the given entries to the index with a single write. The entries
+   * must be in the order of their records in the results file.
+   *
+   * @param entries the entries to append
+   * @throws SxseStorageException if an error occurs
+   */
+  void append(List<Entry> entries) throws SxseStorageException {
+    ByteBuffer buffer = ByteBuffer.allocate(entries.size() * entrySize);
+    try {
+      for (Entry entry : entries) {
+        buffer.put(makeEntry(entry.hash, entry.offset, entry.length));
+      }
+      indexAccess.seek(indexAccess.length());
+      indexAccess.write(buffer.array());
+    } catch (IOException e) {
+      throw new SxseStorageException(e);
+    }
+  }
+
+  /**
+   * Replaces all entries of the index with the given entries, which must be in
+   * the order of their records in the results file.
+   *
+   * @param entries the entries of the index
+   * @throws SxseStorageException if an error occurs
+   */
+  void write(List<Entry> entries) throws SxseStorageException {
+    clear();
+    append(entries);
+  }
+
+  /**
+   * Removes all entries from the index.
+   *
+   * @throws SxseStorageException if an error occurs
+   */
+  void clear() throws SxseStorageException {
+    try {
+      indexAccess.setLength(0L);
+      indexAccess.seek(0L);
+      indexAccess.writeInt(MAGIC);
+      indexAccess.writeInt(hashSize);
+    } catch (IOException e) {
+      throw new SxseStorageException(e);
+    }
+  }
+
+  private byte[] makeEntry(String hash, long offset, int length)
+      throws IOException {
+    ByteBuffer entryBuffer = ByteBuffer.allocate(entrySize);
+    entryBuffer.put(hash.getBytes("US-ASCII"), 0, hashSize);
+    entryBuffer.putLong(offset);
+    entryBuffer.putInt(length);
+    CRC32 crc = new CRC32();
+    crc.update(entryBuffer.array(), 0, entrySize - 4);
+    entryBuffer.putInt((int) crc.getValue());
+    return entryBuffer.array();
+  }
+
+  protected void tryDelete() {
+    // Only delete the file we created.
+    if (!existed) {
+      indexFile.delete();
+    }
+  }
+}
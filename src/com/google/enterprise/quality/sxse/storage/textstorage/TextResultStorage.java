@@ -16,29 +16,46 @@ package com.google.enterprise.quality.sxse.storage.textstorage;
 
 import com.google.common.base.Preconditions;
 import com.google.enterprise.quality.sxse.SearchResult;
+import com.google.enterprise.quality.sxse.SearchResultList;
 import com.google.enterprise.quality.sxse.hashers.Hasher;
 import com.google.enterprise.quality.sxse.storage.SxseStorageConstants;
 import com.google.enterprise.quality.sxse.storage.SxseStorageException;
 import com.google.enterprise.quality.sxse.storage.textstorage.TextUtil.KeyValuePair;
 import com.google.enterprise.quality.sxse.storage.textstorage.TextUtil.PrematureEofException;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Stores all search results in text format.
+ * Stores all search results in text format. Each list of results is written
+ * as one record of UTF-8 encoded lines, and its offset and length in the file
+ * are kept in memory, so that it is read back with a single read.
+ *
+ * Records are read with positional reads of the file channel, so that
+ * {@link #hasResult}, {@link #getResults}, and {@link #getResultList} may be
+ * invoked by many threads at once, and concurrently with a thread adding
+ * results. All other methods must still be invoked by one thread at a time.
  */
 class TextResultStorage {
   private static final Logger LOGGER = Logger.getLogger(
@@ -49,17 +66,32 @@ class TextResultStorage {
   private final boolean resultsExisted;
   private final boolean prefsExisted;
   private final RandomAccessFile prefsAccess;
+  // Replaced only while holding the write lock of fileLock.
   private RandomAccessFile resultsAccess;
+  private FileChannel resultsChannel;
 
   private boolean randomSwapping;
   private boolean storingResults;
   private boolean submittingAutomatically;
   private int resultRetrievalTimeout;
   private int maxResults;
+  private boolean servingSnapshots;
+
+  // The number of lines written for each result.
+  private static final int LINES_PER_RESULT = 5;
 
   private final Hasher resultsHasher;
   private final int resultHashSize;
+  // Whether the fingerprint of a SearchResultList is its hash by resultsHasher.
+  private final boolean fingerprintIsHash;
   private final Map<String, HashDetails> hashOffsetMap;
+  // Guarded by appendLock.
+  private final TextResultIndex resultIndex;
+
+  // Held to read or append a record, or exclusively to replace the file.
+  private final ReadWriteLock fileLock;
+  // Serializes appending records and updating reference counts.
+  private final Object appendLock;
 
   /**
    * Keys associated with values in the text file saving results.
@@ -83,19 +115,25 @@ class TextResultStorage {
     static final String SUBMITTING_AUTOMATICALLY = "submittingAutomatically";
     static final String RESULT_RETRIEVAL_TIMEOUT = "resultRetrievalTimeout";
     static final String MAX_RESULTS = "maxResults";
+    static final String SERVING_SNAPSHOTS = "servingSnapshots";
   }
 
   /**
    * The details of a hash, namely its reference count in {@link UserStorage},
-   * and its offset in the file.
+   * and the offset and length in bytes of its results in the file. The
+   * reference count is guarded by the append lock, while the offset and length
+   * never change once the details are published in the map.
    */
   private static final class HashDetails {
     public int referenceCount;
-    public long fileOffset;
+    public final long fileOffset;
+    public final int recordLength;
 
-    public HashDetails(int referenceCount, long fileOffset) {
+    public HashDetails(int referenceCount, long fileOffset,
+        int recordLength) {
       this.referenceCount = referenceCount;
       this.fileOffset = fileOffset;
+      this.recordLength = recordLength;
     }
   }
 
@@ -106,6 +144,9 @@ class TextResultStorage {
       resultDir.mkdir();
     }
 
+    fileLock = new ReentrantReadWriteLock();
+    appendLock = new Object();
+
     this.prefsFile = new File(resultDir, "resultPrefs");
     this.resultsFile = new File(resultDir, "results");
     prefsExisted = prefsFile.exists();
@@ -119,13 +160,17 @@ class TextResultStorage {
 
     this.resultsHasher = resultsHasher;
     resultHashSize = 2 * this.resultsHasher.getHashSize();
-    hashOffsetMap = new TreeMap<String, HashDetails>();
+    fingerprintIsHash = isFingerprintHash(resultsHasher);
+    hashOffsetMap = new ConcurrentHashMap<String, HashDetails>();
+    resultIndex = new TextResultIndex(resultDir, resultHashSize);
 
     // Initialize all members.
     resetState();
     // Read in any saved results and saved preferences.
     if (resultsExisted && (this.resultsFile.length() > 0)) {
       readAllResults(hashRefCounts);
+    } else {
+      resultIndex.clear();
     }
     if (prefsExisted && (this.prefsFile.length() > 0)) {
       readPreferences();
@@ -134,6 +179,23 @@ class TextResultStorage {
 
   private void openResultsFile() throws FileNotFoundException {
     resultsAccess = new RandomAccessFile(resultsFile, "rw");
+    resultsChannel = resultsAccess.getChannel();
+  }
+
+  /*
+   * Closes the results file if open, and then opens it again.
+   */
+  private void reopenResultsFile() throws SxseStorageException {
+    try {
+      resultsAccess.close();
+    } catch (IOException e) {
+      // The channel is already closed, so ignore.
+    }
+    try {
+      openResultsFile();
+    } catch (FileNotFoundException e) {
+      throw new SxseStorageException(e);
+    }
   }
 
   private void resetState() {
@@ -144,6 +206,8 @@ class TextResultStorage {
     resultRetrievalTimeout =
         SxseStorageConstants.JudgmentStorageDefaults.RESULT_RETRIEVAL_TIMEOUT;
     maxResults = SxseStorageConstants.JudgmentStorageDefaults.MAX_RESULTS;
+    servingSnapshots =
+        SxseStorageConstants.JudgmentStorageDefaults.IS_SERVING_SNAPSHOTS;
   }
 
   /**
@@ -165,57 +229,147 @@ class TextResultStorage {
     return firstHashString + secondHashString;
   }
 
+  /**
+   * Adds a single list of results to storage, and returns its hash. If the
+   * list is already in storage, its reference count is incremented.
+   *
+   * @param results the list of results to add to storage
+   * @return the hash of the results
+   * @throws SxseStorageException if an error occurs
+   */
+  String addResultList(List<SearchResult> results)
+      throws SxseStorageException {
+    return addResult(results);
+  }
+
+  /**
+   * Populates the given list with the results having the given hash. If no
+   * such results exist in storage, this method returns {@code false}.
+   *
+   * @param resultsHash the hash of the results
+   * @param results the list of results to populate, which must be empty
+   * @return {@code true} if the list is now populated with results,
+   *         {@code false} otherwise
+   * @throws SxseStorageException if an error occurs
+   */
+  boolean getResultList(String resultsHash, List<SearchResult> results)
+      throws SxseStorageException {
+    return getResult(resultsHash, results);
+  }
+
   private String addResult(List<SearchResult> results)
       throws SxseStorageException{
     String resultsHash = hashSearchResults(results);
-    HashDetails hashDetails = hashOffsetMap.get(resultsHash);
-    if (hashDetails != null) {
-      // Results already exist on disk, so simply increment reference count.
-      ++hashDetails.referenceCount;
-      return resultsHash;
+    synchronized (appendLock) {
+      HashDetails hashDetails = hashOffsetMap.get(resultsHash);
+      if (hashDetails != null) {
+        // Results already exist on disk, so simply increment reference count.
+        ++hashDetails.referenceCount;
+        return resultsHash;
+      }
+
+      byte[] record = makeRecord(resultsHash, results);
+      long fileEnd = -1L;
+      boolean interrupted = false;
+      try {
+        while (true) {
+          FileChannel channel;
+          fileLock.readLock().lock();
+          try {
+            channel = resultsChannel;
+            try {
+              // Write the result past the end of file, where no reader looks.
+              if (fileEnd < 0L) {
+                fileEnd = channel.size();
+              }
+              writeFully(channel, ByteBuffer.wrap(record), fileEnd);
+
+              // Results written, now publish mapping from hash to offset.
+              hashDetails = new HashDetails(1, fileEnd, record.length);
+              hashOffsetMap.put(resultsHash, hashDetails);
+              appendToIndex(resultsHash, fileEnd, record.length);
+              return resultsHash;
+            } catch (ClosedByInterruptException e) {
+              // Finish writing the record so the file is not left corrupt.
+              Thread.interrupted();
+              interrupted = true;
+            } catch (ClosedChannelException e) {
+              // Another thread was interrupted, so reopen it and retry.
+            }
+          } catch (IOException e) {
+            LOGGER.severe(
+                "addResult caught IOException, partial results written");
+            throw new SxseStorageException(e);
+          } finally {
+            fileLock.readLock().unlock();
+          }
+
+          // Overwrite any partial record at the same offset.
+          reopenResultsFile(channel);
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
     }
+  }
 
+  /*
+   * Appends an entry for a record to the index. If this fails, the record is
+   * scanned when storage is next created, so the results are still stored.
+   */
+  private void appendToIndex(String resultsHash, long offset, int length) {
     try {
-      // Seek to end of file, then write result.
-      final long fileEnd = resultsAccess.length();
-      resultsAccess.seek(fileEnd);
-      writeResult(resultsAccess, resultsHash, results);
-
-      // Results written, now update mapping from hash to offset in file.
-      hashDetails = new HashDetails(1, fileEnd);
-      hashOffsetMap.put(resultsHash, hashDetails);
-      return resultsHash;
-    } catch (IOException e) {
-      LOGGER.severe("addResult caught IOException, partial results written");
-      throw new SxseStorageException(e);
+      resultIndex.append(resultsHash, offset, length);
+    } catch (SxseStorageException e) {
+      LOGGER.log(Level.WARNING, "Could not append to index of results", e);
     }
   }
 
-  private static void writeResult(RandomAccessFile raf,
-      String resultsHashString, List<SearchResult> results) throws IOException {
+  /*
+   * Returns the results as a single record of UTF-8 encoded lines.
+   */
+  private static byte[] makeRecord(String resultsHashString,
+      List<SearchResult> results) {
+    // Append hash of all results, number of results.
     StringBuilder sb = new StringBuilder();
     TextUtil.writeValue(TextResultKeys.RESULTS_HASH, resultsHashString, sb);
     TextUtil.writeValue(TextResultKeys.RESULTS_SIZE, results.size(), sb);
 
-    // Write hash of all results, number of results.
-    raf.writeBytes(sb.toString());
-
-    // For each result, write title, snippet, url, size, and whether crowded.
+    // For each result, append title, snippet, url, size, and whether crowded.
     for (SearchResult result : results) {
-      StringBuilder resultSb = new StringBuilder();
+      TextUtil.writeValue(TextResultKeys.TITLE, result.getTitle(), sb);
+      TextUtil.writeValue(TextResultKeys.SNIPPET, result.getSnippet(), sb);
+      TextUtil.writeValue(TextResultKeys.URL, result.getUrl(), sb);
+      TextUtil.writeValue(TextResultKeys.SIZE, result.getSize(), sb);
+      TextUtil.writeValue(TextResultKeys.CROWDED, result.isCrowded(), sb);
+    }
+
+    return TextUtil.encode(sb.toString());
+  }
 
-      TextUtil.writeValue(TextResultKeys.TITLE,
-          result.getTitle(), resultSb);
-      TextUtil.writeValue(TextResultKeys.SNIPPET,
-          result.getSnippet(), resultSb);
-      TextUtil.writeValue(TextResultKeys.URL,
-          result.getUrl(), resultSb);
-      TextUtil.writeValue(TextResultKeys.SIZE,
-          result.getSize(), resultSb);
-      TextUtil.writeValue(TextResultKeys.CROWDED,
-          result.isCrowded(), resultSb);
+  /*
+   * Writes all remaining bytes of the buffer to the channel, starting at the
+   * given position, without changing the position of the channel.
+   */
+  private static void writeFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
 
-      raf.writeBytes(resultSb.toString());
+  /*
+   * Fills the buffer from the channel, starting at the given position, without
+   * changing the position of the channel.
+   */
+  private static void readFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
     }
   }
 
@@ -242,37 +396,114 @@ class TextResultStorage {
         !hashOffsetMap.containsKey(secondHash)) {
       return false;
     }
-    getResult(firstHash, firstResults);
-    getResult(secondHash, secondResults);
-    return true;
+    return (getResult(firstHash, firstResults) &&
+        getResult(secondHash, secondResults));
   }
 
-  private void getResult(String resultHash, List<SearchResult> results)
+  /*
+   * Populates the given list with the results having the given hash, returning
+   * false if no such results exist in storage.
+   */
+  private boolean getResult(String resultHash, List<SearchResult> results)
       throws SxseStorageException {
-    try {
-      // Seek to results in file.
-      long offset = hashOffsetMap.get(resultHash).fileOffset;
-      resultsAccess.seek(offset);
-
-      // Ensure that offset is not EOF.
-      String resultsHashString = TextUtil.readValue(
-          TextResultKeys.RESULTS_HASH, resultsAccess);
-      String numResultsString = TextUtil.readValue(
-          TextResultKeys.RESULTS_SIZE, resultsAccess);
-      if ((resultsHashString == null) || (numResultsString == null)) {
+    byte[] record = readRecord(resultHash);
+    if (record == null) {
+      return false;
+    }
+
+    String[] lines =
+        TextUtil.decode(record, 0, record.length).split("\n", -1);
+    if (lines.length < 2) {
+      throw new PrematureEofException("getResult");
+    }
+    TextUtil.readValue(TextResultKeys.RESULTS_HASH, lines[0]);
+    int numResults = Integer.valueOf(
+        TextUtil.readValue(TextResultKeys.RESULTS_SIZE, lines[1]));
+    readResultsList(lines, 2, results, numResults);
+    return true;
+  }
+
+  /*
+   * Returns the record of results having the given hash, or null if no such
+   * results exist in storage.
+   */
+  private byte[] readRecord(String resultHash) throws SxseStorageException {
+    while (true) {
+      FileChannel channel;
+      fileLock.readLock().lock();
+      try {
+        HashDetails details = hashOffsetMap.get(resultHash);
+        if (details == null) {
+          return null;
+        }
+
+        // Read the whole record at once.
+        channel = resultsChannel;
+        ByteBuffer record = ByteBuffer.allocate(details.recordLength);
+        try {
+          readFully(channel, record, details.fileOffset);
+          return record.array();
+        } catch (ClosedByInterruptException e) {
+          // Fall through to reopen the channel, then fail.
+        } catch (ClosedChannelException e) {
+          // Another thread was interrupted, so reopen the channel and retry.
+        }
+      } catch (EOFException e) {
         LOGGER.severe("getResult read EOF prematurely");
         throw new PrematureEofException("getResult");
+      } catch (IOException e) {
+        LOGGER.severe("getResult caught IOException, no results read");
+        throw new SxseStorageException(e);
+      } finally {
+        fileLock.readLock().unlock();
       }
 
-      int numResults = Integer.valueOf(numResultsString);
-      readResultsList(results, numResults);
-    } catch (IOException e) {
-      LOGGER.severe("getResult caught IOException, no results read");
-      throw new SxseStorageException(e);
+      reopenResultsFile(channel);
+      if (Thread.currentThread().isInterrupted()) {
+        throw new SxseStorageException("getResult interrupted");
+      }
+    }
+  }
+
+  /*
+   * Reopens the results file if the given channel, closed because a thread
+   * using it was interrupted, was not already replaced by another thread.
+   */
+  private void reopenResultsFile(FileChannel closedChannel)
+      throws SxseStorageException {
+    fileLock.writeLock().lock();
+    try {
+      if (resultsChannel == closedChannel) {
+        reopenResultsFile();
+      }
+    } finally {
+      fileLock.writeLock().unlock();
     }
   }
 
+  /**
+   * Returns whether the fingerprint of a {@link SearchResultList} is equal to
+   * its hash by the given {@link Hasher}, by comparing the two for a probe list.
+   */
+  private static boolean isFingerprintHash(Hasher resultsHasher) {
+    SearchResultList.Builder builder = new SearchResultList.Builder(1);
+    builder.add(new SearchResult(URI.create("http://www.google.com/"),
+        "title", "snippet", "1k", false));
+    SearchResultList probe = builder.build();
+
+    for (SearchResult result : probe) {
+      result.updateHasher(resultsHasher);
+    }
+    String probeHash = TextUtil.bytesToHexString(resultsHasher.finish());
+    return probeHash.equals(probe.getFingerprint());
+  }
+
   private String hashSearchResults(List<SearchResult> resultList) {
+    if (fingerprintIsHash && (resultList instanceof SearchResultList)) {
+      // Reuse the fingerprint computed when the results were parsed.
+      return ((SearchResultList) resultList).getFingerprint();
+    }
+
     for (Iterator<SearchResult> i = resultList.iterator(); i.hasNext(); ) {
       SearchResult nextResult = i.next();
       nextResult.updateHasher(resultsHasher);
@@ -333,30 +564,46 @@ class TextResultStorage {
     writePreferences();
   }
 
+  public boolean isServingSnapshots() {
+    return servingSnapshots;
+  }
+
+  public void setServingSnapshots(boolean serveSnapshots)
+      throws SxseStorageException {
+    servingSnapshots = serveSnapshots;
+    writePreferences();
+  }
+
   public void updateHashRefCounts(Map<String, Integer> removedHashRefCounts)
       throws SxseStorageException {
-    int numOrphaned = 0;
-    for (Map.Entry<String, Integer> removedHashRefCount :
-        removedHashRefCounts.entrySet()) {
-      HashDetails hashDetails = hashOffsetMap.get(removedHashRefCount.getKey());
-      if (hashDetails == null) {
-        LOGGER.severe("ResultStorage missing hash from UserStorage, "
-            + "possible data corruption");
-        continue;
-      }
+    synchronized (appendLock) {
+      int numOrphaned = 0;
+      for (Map.Entry<String, Integer> removedHashRefCount :
+          removedHashRefCounts.entrySet()) {
+        HashDetails hashDetails =
+            hashOffsetMap.get(removedHashRefCount.getKey());
+        if (hashDetails == null) {
+          LOGGER.severe("ResultStorage missing hash from UserStorage, "
+              + "possible data corruption");
+          continue;
+        }
 
-      hashDetails.referenceCount -= removedHashRefCount.getValue();
-      if (hashDetails.referenceCount <= 0) {
-        ++numOrphaned;
+        hashDetails.referenceCount -= removedHashRefCount.getValue();
+        if (hashDetails.referenceCount <= 0) {
+          ++numOrphaned;
+        }
       }
-    }
 
-    discardOrphanedHashes(numOrphaned);
+      discardOrphanedHashes(numOrphaned);
+    }
   }
 
   private void discardOrphanedHashes(int numOrphaned)
       throws SxseStorageException {
-    if (numOrphaned == hashOffsetMap.size()) {
+    if ((numOrphaned == 0) && !hashOffsetMap.isEmpty()) {
+      // Nothing to discard, so do not rewrite the file.
+      return;
+    } else if (numOrphaned == hashOffsetMap.size()) {
       // We're discarding all hashes, so clear the map and delete the file.
       discardAllHashes();
       return;
@@ -370,10 +617,14 @@ class TextResultStorage {
       throw new SxseStorageException(e);
     }
 
+    // Readers must not read the old file at the offsets in the new file.
+    fileLock.writeLock().lock();
     try {
       Iterator<Map.Entry<String, HashDetails>> offsetIterator =
           hashOffsetMap.entrySet().iterator();
       List<SearchResult> results = new LinkedList<SearchResult>();
+      List<TextResultIndex.Entry> indexEntries =
+          new ArrayList<TextResultIndex.Entry>();
 
       while (offsetIterator.hasNext()) {
         Map.Entry<String, HashDetails> entry = offsetIterator.next();
@@ -384,10 +635,15 @@ class TextResultStorage {
           // Copy the results to the new file.
           final long newEntryPos = newResultsAccess.length();
           getResult(resultHash, results);
-          writeResult(newResultsAccess, resultHash, results);
+          byte[] record = makeRecord(resultHash, results);
+          newResultsAccess.seek(newEntryPos);
+          newResultsAccess.write(record);
           results.clear();
-          // Update its file offset mapping.
-          details.fileOffset = newEntryPos;
+          // Replace its file offset mapping.
+          entry.setValue(new HashDetails(
+              details.referenceCount, newEntryPos, record.length));
+          indexEntries.add(new TextResultIndex.Entry(
+              resultHash, newEntryPos, record.length));
         } else {
           // Results not copied to new file, so remove its offset mapping.
           offsetIterator.remove();
@@ -400,40 +656,53 @@ class TextResultStorage {
       resultsFile.delete();
       newResultsFile.renameTo(resultsFile);
       openResultsFile();
+      resultIndex.write(indexEntries);
     } catch (IOException e) {
       throw new SxseStorageException(e);
+    } finally {
+      fileLock.writeLock().unlock();
     }
   }
 
   private void discardAllHashes() throws SxseStorageException {
+    fileLock.writeLock().lock();
     try {
       resultsAccess.close();
       resultsFile.delete();
       openResultsFile();
 
       hashOffsetMap.clear();
+      resultIndex.clear();
     } catch (IOException e) {
       throw new SxseStorageException(e);
+    } finally {
+      fileLock.writeLock().unlock();
     }
   }
 
-  private void readResultsList(List<SearchResult> results, int numResults)
+  /*
+   * Parses the given number of results from the lines of a record, starting
+   * at the given line.
+   */
+  private static void readResultsList(String[] lines, int firstLine,
+      List<SearchResult> results, int numResults)
       throws SxseStorageException {
+    if (firstLine + (numResults * LINES_PER_RESULT) > lines.length) {
+      // The record is shorter than the number of results it declares.
+      throw new PrematureEofException("readResultsList");
+    }
+
     // Read title, snippet, url, size, and whether crowded for each result.
+    int line = firstLine;
     for (int i = 0; i < numResults; ++i) {
-      String title = TextUtil.readValue(TextResultKeys.TITLE, resultsAccess);
+      String title = TextUtil.readValue(TextResultKeys.TITLE, lines[line++]);
       String snippet = TextUtil.readValue(
-          TextResultKeys.SNIPPET, resultsAccess);
-      String urlString = TextUtil.readValue(TextResultKeys.URL, resultsAccess);
-      String size = TextUtil.readValue(TextResultKeys.SIZE, resultsAccess);
+          TextResultKeys.SNIPPET, lines[line++]);
+      String urlString = TextUtil.readValue(TextResultKeys.URL, lines[line++]);
+      String size = TextUtil.readValue(TextResultKeys.SIZE, lines[line++]);
       String isCrowdedString = TextUtil.readValue(
-          TextResultKeys.CROWDED, resultsAccess);
+          TextResultKeys.CROWDED, lines[line++]);
 
-      // Do not construct new result if have reached end of file.
-      if ((title == null) || (snippet == null) || (urlString == null)
-          || (size == null)) {
-        throw new PrematureEofException("readResultsList");
-      }
       URI url = null;
       try {
         url = new URI(urlString);
@@ -453,52 +722,132 @@ class TextResultStorage {
 
   private void readAllResults(HashMap<String, Integer> hashRefCounts)
       throws SxseStorageException {
-    long resultsOffset = 0L;
-    List<SearchResult> results = new LinkedList<SearchResult>();
     int numOrphaned = 0;
 
-    while (true) {
-      String nextLine;
-      try {
-        nextLine = resultsAccess.readLine();
-      } catch (IOException e) {
-        throw new SxseStorageException(e);
-      }
-      if (nextLine == null) {
-        break;
+    // Read the offsets of the indexed records, so that they are not scanned.
+    long resultsLength = resultsFile.length();
+    List<TextResultIndex.Entry> indexEntries =
+        resultIndex.read(resultsLength);
+    if (!indexEntries.isEmpty() &&
+        !isIndexedRecord(indexEntries.get(indexEntries.size() - 1))) {
+      LOGGER.warning("Index of results is stale, scanning all results");
+      indexEntries.clear();
+      resultIndex.clear();
+    }
+    long scanOffset = 0L;
+    for (TextResultIndex.Entry indexEntry : indexEntries) {
+      if (addReadResult(indexEntry.hash, indexEntry.offset, indexEntry.length,
+          hashRefCounts)) {
+        ++numOrphaned;
       }
+      scanOffset = indexEntry.offset + indexEntry.length;
+    }
 
-      String resultsHash =
-          TextUtil.readValue(TextResultKeys.RESULTS_HASH, nextLine);
-      String numResultsString =
-          TextUtil.readValue(TextResultKeys.RESULTS_SIZE, resultsAccess);
-      if ((resultsHash == null) || (numResultsString == null)) {
-        // Have reached EOF, so no more results.
-        break;
-      }
+    if (scanOffset < resultsLength) {
+      numOrphaned += scanResults(scanOffset, hashRefCounts);
+    }
+    discardOrphanedHashes(numOrphaned);
+  }
 
-      // Read in results, but discard.
-      int numResults = Integer.valueOf(numResultsString);
-      readResultsList(results, numResults);
-      results.clear();
-      // Assign a reference count of 0 if missing in UserStorage.
-      Integer referenceCount = hashRefCounts.get(resultsHash);
-      if (referenceCount == null) {
-        referenceCount = 0;
-        ++numOrphaned;
-      }
-      // Add mapping from hash to offset and reference count in file.
-      hashOffsetMap.put(resultsHash,
-          new HashDetails(referenceCount, resultsOffset));
-      try {
-        // Update offset for next results.
-        resultsOffset = resultsAccess.getFilePointer();
-      } catch (IOException e) {
-        throw new SxseStorageException(e);
+  /*
+   * Returns whether the record at the offset of the given index entry has the
+   * hash and length of the entry, which is not so if the index was not updated
+   * when the results file was rewritten.
+   */
+  private boolean isIndexedRecord(TextResultIndex.Entry indexEntry) {
+    ByteBuffer record = ByteBuffer.allocate(indexEntry.length);
+    try {
+      readFully(resultsChannel, record, indexEntry.offset);
+      String recordString =
+          TextUtil.decode(record.array(), 0, indexEntry.length);
+      String resultsHash = TextUtil.readValue(TextResultKeys.RESULTS_HASH,
+          recordString.substring(0, Math.max(recordString.indexOf('\n'), 0)));
+      return (resultsHash.equals(indexEntry.hash) &&
+          recordString.endsWith("\n"));
+    } catch (IOException e) {
+      return false;
+    } catch (SxseStorageException e) {
+      return false;
+    }
+  }
+
+  /*
+   * Scans the records from the given offset to the end of the results file,
+   * adds them to the index, and returns the number orphaned.
+   */
+  private int scanResults(long scanOffset,
+      HashMap<String, Integer> hashRefCounts) throws SxseStorageException {
+    int numOrphaned = 0;
+    List<TextResultIndex.Entry> indexEntries =
+        new ArrayList<TextResultIndex.Entry>();
+
+    LineScanner scanner;
+    try {
+      FileInputStream in = new FileInputStream(resultsFile);
+      in.getChannel().position(scanOffset);
+      scanner = new LineScanner(in, scanOffset);
+    } catch (IOException e) {
+      throw new SxseStorageException(e);
+    }
+    try {
+      while (true) {
+        long resultsOffset = scanner.getPosition();
+        String nextLine = scanner.readLine();
+        if (nextLine == null) {
+          break;
+        }
+
+        String resultsHash =
+            TextUtil.readValue(TextResultKeys.RESULTS_HASH, nextLine);
+        String numResultsString = scanner.readLine();
+        if (numResultsString == null) {
+          // Have reached EOF, so no more results.
+          break;
+        }
+
+        // Skip over results, which are parsed only when they are read.
+        int numResults = Integer.valueOf(TextUtil.readValue(
+            TextResultKeys.RESULTS_SIZE, numResultsString));
+        for (int i = 0; i < numResults * LINES_PER_RESULT; ++i) {
+          if (!scanner.skipLine()) {
+            throw new PrematureEofException("readAllResults");
+          }
+        }
+        int recordLength = (int) (scanner.getPosition() - resultsOffset);
+
+        if (addReadResult(
+            resultsHash, resultsOffset, recordLength, hashRefCounts)) {
+          ++numOrphaned;
+        }
+        indexEntries.add(new TextResultIndex.Entry(
+            resultsHash, resultsOffset, recordLength));
       }
+    } catch (IOException e) {
+      throw new SxseStorageException(e);
+    } finally {
+      scanner.close();
     }
 
-    discardOrphanedHashes(numOrphaned);
+    resultIndex.append(indexEntries);
+    return numOrphaned;
+  }
+
+  /*
+   * Adds the mapping for a record read from the results file, and returns
+   * whether it is orphaned because its hash is missing in UserStorage.
+   */
+  private boolean addReadResult(String resultsHash, long resultsOffset,
+      int recordLength, HashMap<String, Integer> hashRefCounts) {
+    // Assign a reference count of 0 if missing in UserStorage.
+    Integer referenceCount = hashRefCounts.get(resultsHash);
+    boolean orphaned = (referenceCount == null);
+    if (orphaned) {
+      referenceCount = 0;
+    }
+    // Add mapping from hash to offset and reference count in file.
+    hashOffsetMap.put(resultsHash,
+        new HashDetails(referenceCount, resultsOffset, recordLength));
+    return orphaned;
   }
 
   private void readPreferences() throws SxseStorageException {
@@ -532,6 +881,8 @@ class TextResultStorage {
         resultRetrievalTimeout = Integer.valueOf(kvp.value);
       } else if (kvp.key.equals(TextResultPrefKeys.MAX_RESULTS)) {
         maxResults = Integer.valueOf(kvp.value);
+      } else if (kvp.key.equals(TextResultPrefKeys.SERVING_SNAPSHOTS)) {
+        servingSnapshots = Boolean.valueOf(kvp.value);
       }
     }
   }
@@ -560,6 +911,9 @@ class TextResultStorage {
       // Append the maximum number of results each policy should return.
       TextUtil.writeValue(TextResultPrefKeys.MAX_RESULTS,
           String.valueOf(maxResults), sb);
+      // Append whether assessors are shown snapshots of results.
+      TextUtil.writeValue(TextResultPrefKeys.SERVING_SNAPSHOTS,
+          String.valueOf(servingSnapshots), sb);
 
       // Flush buffer to file.
       prefsAccess.writeBytes(sb.toString());
@@ -576,5 +930,6 @@ class TextResultStorage {
     if (!prefsExisted) {
       prefsFile.delete();
     }
+    resultIndex.tryDelete();
   }
 }
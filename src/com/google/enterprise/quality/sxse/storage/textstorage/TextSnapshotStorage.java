@@ -0,0 +1,217 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.storage.textstorage;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.ResultListKey;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+import com.google.enterprise.quality.sxse.storage.textstorage.TextUtil.PrematureEofException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the hashes of snapshots of search results in text format. The results
+ * themselves are stored in {@link TextResultStorage}, so each snapshot counts
+ * as a reference to its hash.
+ *
+ * Snapshots are only ever appended to the file, so a later snapshot for the
+ * same query formatter, query, and maximum number of results replaces an
+ * earlier one when the file is read.
+ */
+class TextSnapshotStorage {
+  private static final Logger LOGGER = Logger.getLogger(
+      TextSnapshotStorage.class.getName());
+
+  private final File snapshotsFile;
+  private final boolean existed;
+  private final Map<ResultListKey, String> snapshotHashes;
+
+  /**
+   * Keys associated with values in the saved text file.
+   */
+  private static final class TextSnapshotKeys {
+    static final String QUERY = "query";
+    static final String MAX_RESULTS = "maxResults";
+    static final String RESULTS_HASH = "resultsHash";
+  }
+
+  /**
+   * Creates storage for snapshots in the given directory, and increments the
+   * reference count of the hash of each snapshot read.
+   *
+   * @param resultDir the directory containing all results
+   * @param hashRefCounts the reference counts of all hashes
+   * @throws SxseStorageException if an error occurs
+   */
+  protected TextSnapshotStorage(File resultDir,
+      Map<String, Integer> hashRefCounts) throws SxseStorageException {
+    if (!resultDir.exists()) {
+      // Make empty directory for results if it does not exist yet.
+      resultDir.mkdir();
+    }
+
+    snapshotsFile = new File(resultDir, "snapshots");
+    existed = snapshotsFile.exists();
+    snapshotHashes = new HashMap<ResultListKey, String>();
+
+    if (existed && (snapshotsFile.length() > 0)) {
+      readAllSnapshots();
+    }
+    for (String resultsHash : snapshotHashes.values()) {
+      Integer refCount = hashRefCounts.get(resultsHash);
+      hashRefCounts.put(resultsHash, (refCount == null) ? 1 : refCount + 1);
+    }
+    LOGGER.info(snapshotHashes.size() + " existing snapshots found");
+  }
+
+  /**
+   * Returns the hash of the snapshot for the given query, or {@code null} if
+   * there is no snapshot.
+   *
+   * @param queryFormatter the query formatter that retrieved the results
+   * @param query the query
+   * @param maxResults the maximum number of results requested
+   * @return the hash of the results, or {@code null} if none
+   */
+  public String getResultsHash(QueryFormatter queryFormatter, String query,
+      int maxResults) {
+    return snapshotHashes.get(
+        new ResultListKey(queryFormatter, query, maxResults));
+  }
+
+  /**
+   * Saves the hash of the snapshot for the given query.
+   *
+   * @param queryFormatter the query formatter that retrieved the results
+   * @param query the query
+   * @param maxResults the maximum number of results requested
+   * @param resultsHash the hash of the results
+   * @return the hash of the snapshot replaced, or {@code null} if none
+   * @throws SxseStorageException if an error occurs
+   */
+  public String addResultsHash(QueryFormatter queryFormatter, String query,
+      int maxResults, String resultsHash) throws SxseStorageException {
+    Preconditions.checkNotNull(resultsHash);
+
+    try {
+      BufferedWriter out = new BufferedWriter(
+          new FileWriter(snapshotsFile, true));
+      TextUtil.writeValue(TextSnapshotKeys.QUERY, query, out);
+      TextUtil.writeValue(TextSnapshotKeys.MAX_RESULTS, maxResults, out);
+      TextUtil.writeQueryFormatter(queryFormatter, out);
+      TextUtil.writeValue(TextSnapshotKeys.RESULTS_HASH, resultsHash, out);
+      out.close();
+    } catch (IOException e) {
+      LOGGER.severe("addResultsHash caught IOException, "
+          + "partial snapshot written");
+      throw new SxseStorageException(e);
+    }
+
+    return snapshotHashes.put(
+        new ResultListKey(queryFormatter, query, maxResults), resultsHash);
+  }
+
+  /**
+   * @return the number of snapshots saved
+   */
+  public int size() {
+    return snapshotHashes.size();
+  }
+
+  /**
+   * Removes all snapshots, and returns how many references to each hash were
+   * removed.
+   *
+   * @return the number of references removed for each hash
+   * @throws SxseStorageException if an error occurs
+   */
+  public Map<String, Integer> removeAll() throws SxseStorageException {
+    Map<String, Integer> removedHashRefCounts = Maps.newHashMap();
+    for (String resultsHash : snapshotHashes.values()) {
+      Integer refCount = removedHashRefCounts.get(resultsHash);
+      removedHashRefCounts.put(resultsHash,
+          (refCount == null) ? 1 : refCount + 1);
+    }
+
+    try {
+      // Truncate the file.
+      new FileWriter(snapshotsFile, false).close();
+    } catch (IOException e) {
+      throw new SxseStorageException(e);
+    }
+    snapshotHashes.clear();
+    return removedHashRefCounts;
+  }
+
+  private void readAllSnapshots() throws SxseStorageException {
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(snapshotsFile));
+      try {
+        while (true) {
+          String nextLine = in.readLine();
+          if (nextLine == null) {
+            // Reached end of file.
+            break;
+          }
+
+          String query = TextUtil.readValue(TextSnapshotKeys.QUERY, nextLine);
+          if (query == null) {
+            // Okay if null, reached end of file.
+            break;
+          }
+          String maxResultsString = TextUtil.readValue(
+              TextSnapshotKeys.MAX_RESULTS, in);
+          if (maxResultsString == null) {
+            throw new PrematureEofException("readAllSnapshots");
+          }
+          QueryFormatter queryFormatter = TextUtil.readQueryFormatter(in);
+          String resultsHash = TextUtil.readValue(
+              TextSnapshotKeys.RESULTS_HASH, in);
+          if (resultsHash == null) {
+            throw new PrematureEofException("readAllSnapshots");
+          }
+
+          snapshotHashes.put(new ResultListKey(queryFormatter, query,
+              Integer.valueOf(maxResultsString)), resultsHash);
+        }
+      } finally {
+        in.close();
+      }
+    } catch (PrematureEofException e) {
+      // The last snapshot was only partially written, so discard it.
+      LOGGER.log(Level.WARNING, "Discarding partially written snapshot", e);
+    } catch (IOException e) {
+      throw new SxseStorageException(e);
+    }
+  }
+
+  protected void tryDelete() {
+    // Only delete the file if we created it.
+    if (!existed) {
+      snapshotsFile.delete();
+    }
+  }
+}
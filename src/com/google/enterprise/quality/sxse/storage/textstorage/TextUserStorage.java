@@ -23,25 +23,45 @@ import com.google.enterprise.quality.sxse.JudgmentDetails.Judgment;
 import com.google.enterprise.quality.sxse.storage.SxseStorageException;
 import com.google.enterprise.quality.sxse.storage.textstorage.TextUtil.PrematureEofException;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 /**
  * Implementation of the {@code UserStorage} interface where all data is
  * saved in text format.
+ *
+ * When created, the judgments of all users are read in parallel to count the
+ * references to each hash of results. The counts for each user are saved in a
+ * summary with a checksum of the user file, so that a user file that is
+ * unchanged is not read again, and only the judgments appended to a user file
+ * since are read.
+ *
+ * For the most recently used users, the offsets of the judgments for each
+ * query are indexed, so that the judgments for a query are read directly.
  */
 class TextUserStorage {
   private static final Logger LOGGER = Logger.getLogger(
@@ -49,9 +69,15 @@ class TextUserStorage {
 
   private final boolean existed;
   private final File usersSubdir;
+  // Not a user file, as only files in the users directory are users.
+  private final File summariesSubdir;
 
   private final Set<String> userNames;
   private final int resultHashSize;
+  private final Map<String, QueryIndex> queryIndexes;
+
+  // The maximum number of users whose judgments are indexed by query.
+  private static final int MAX_INDEXED_USERS = 64;
 
   /**
    * Keys associated with values in the saved text file.
@@ -63,6 +89,61 @@ class TextUserStorage {
     static final String RESULTS_HASH = "resultsHash";
   }
 
+  /**
+   * Keys associated with values in the summary of a user file.
+   */
+  private static final class TextUserSummaryKeys {
+    static final String LENGTH = "length";
+    static final String LAST_MODIFIED = "lastModified";
+    static final String CHECKSUM = "checksum";
+    static final String NUM_JUDGMENTS = "numJudgments";
+    static final String NUM_HASHES = "numHashes";
+    static final String RESULTS_HASH = "resultsHash";
+    static final String REF_COUNT = "refCount";
+  }
+
+  /**
+   * The number of judgments in a user file, and the number of references to
+   * each hash of results by those judgments, when the file had the given
+   * length, time of last modification, and CRC-32 checksum of its bytes.
+   */
+  private static final class UserSummary {
+    private final long length;
+    private final long lastModified;
+    private long checksum;
+    private int numJudgments;
+    private final Map<String, Integer> hashRefCounts;
+
+    private UserSummary(long length, long lastModified) {
+      this.length = length;
+      this.lastModified = lastModified;
+      hashRefCounts = new HashMap<String, Integer>();
+    }
+  }
+
+  /**
+   * The offsets in bytes of the judgments for each query, for the judgments in
+   * a user file of the given length. Each query is the key of the index as
+   * returned by {@link TextUserStorage#getIndexKey}.
+   */
+  private static final class QueryIndex {
+    private long length;
+    private final Map<String, List<Long>> queryOffsets;
+
+    private QueryIndex() {
+      queryOffsets = new HashMap<String, List<Long>>();
+    }
+
+    private void add(String indexKey, long offset) {
+      List<Long> offsets = queryOffsets.get(indexKey);
+      if (offsets == null) {
+        offsets = new ArrayList<Long>(1);
+        queryOffsets.put(indexKey, offsets);
+      }
+      offsets.add(offset);
+    }
+  }
+
   public TextUserStorage(File userSubdir, int resultHashSize,
       Map<String, Integer> hashRefCounts) throws SxseStorageException {
     this.usersSubdir = userSubdir;
@@ -71,10 +152,21 @@ class TextUserStorage {
       // Make empty directory for users if it does not exist yet.
       usersSubdir.mkdir();
     }
+    summariesSubdir = new File(usersSubdir, ".summaries");
+    if (!summariesSubdir.exists()) {
+      summariesSubdir.mkdir();
+    }
 
     // Create unmodifiable list of users backed by the real list.
     userNames = new TreeSet<String>();
     this.resultHashSize = 2 * resultHashSize;
+    queryIndexes = new LinkedHashMap<String, QueryIndex>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, QueryIndex> eldest) {
+        return size() > MAX_INDEXED_USERS;
+      }
+    };
     buildUsers(hashRefCounts);
   }
 
@@ -84,36 +176,278 @@ class TextUserStorage {
     File[] userFiles = this.usersSubdir.listFiles(
         TextUtil.getFilesOnlyFilter());
     for (File userFile : userFiles) {
-      String userName = userFile.getName();
-      userNames.add(userName);
-      buildHashRefCounts(userName, hashRefCounts);
+      userNames.add(userFile.getName());
+    }
+    if (userFiles.length > 0) {
+      buildHashRefCounts(hashRefCounts);
+    }
+
+    // Discard the summaries of users whose files no longer exist.
+    for (File summaryFile : summariesSubdir.listFiles(
+        TextUtil.getFilesOnlyFilter())) {
+      if (!userNames.contains(summaryFile.getName())) {
+        summaryFile.delete();
+      }
     }
     LOGGER.info(userFiles.length + " existing users found");
   }
 
-  private void buildHashRefCounts(String userName,
-      Map<String, Integer> hashRefCounts) throws SxseStorageException {
+  /*
+   * Counts the references to each hash by all users, reading the judgments of
+   * each user in parallel.
+   */
+  private void buildHashRefCounts(Map<String, Integer> hashRefCounts)
+      throws SxseStorageException {
+    ForkJoinPool pool = new ForkJoinPool(Math.min(
+        userNames.size(), Runtime.getRuntime().availableProcessors()));
     try {
-      BufferedReader userReader = createReaderForUser(userName);
+      addRefCounts(pool.invoke(new SummarizeTask(
+          new ArrayList<String>(userNames))), hashRefCounts);
+    } catch (UncheckedStorageException e) {
+      // May be a copy of the exception thrown by another thread.
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+        if (cause instanceof SxseStorageException) {
+          throw (SxseStorageException) cause;
+        }
+      }
+      throw e;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /*
+   * Returns the references to each hash by the given users, summarizing each
+   * user in its own task and merging the counts as the tasks are joined. The
+   * counts are merged into the maps of the summaries, which are not used once
+   * saved.
+   */
+  private final class SummarizeTask
+      extends RecursiveTask<Map<String, Integer>> {
+    private final List<String> userNames;
+
+    private SummarizeTask(List<String> userNames) {
+      this.userNames = userNames;
+    }
+
+    @Override
+    protected Map<String, Integer> compute() {
+      if (userNames.size() == 1) {
+        try {
+          return summarizeUser(userNames.get(0), true).hashRefCounts;
+        } catch (SxseStorageException e) {
+          throw new UncheckedStorageException(e);
+        }
+      }
+
+      int middle = userNames.size() / 2;
+      SummarizeTask firstTask = new SummarizeTask(userNames.subList(0, middle));
+      firstTask.fork();
+      Map<String, Integer> hashRefCounts = new SummarizeTask(
+          userNames.subList(middle, userNames.size())).compute();
+      addRefCounts(firstTask.join(), hashRefCounts);
+      return hashRefCounts;
+    }
+  }
+
+  /*
+   * Thrown by a SummarizeTask when a user cannot be summarized.
+   */
+  private static final class UncheckedStorageException
+      extends RuntimeException {
+    private UncheckedStorageException(SxseStorageException cause) {
+      super(cause);
+    }
+  }
+
+  /*
+   * Returns the summary of the given user. If the user file is unchanged since
+   * its saved summary, that summary is returned. If the file still starts with
+   * the bytes summarized, as checked by their checksum, only the judgments
+   * appended since are read, and otherwise all judgments are read.
+   */
+  private UserSummary summarizeUser(String userName, boolean saveSummary)
+      throws SxseStorageException {
+    File userFile = new File(usersSubdir, userName);
+    long length = userFile.length();
+    long lastModified = userFile.lastModified();
+    UserSummary savedSummary = readSummary(userName);
+    if ((savedSummary != null) && (savedSummary.length == length) &&
+        (savedSummary.lastModified == lastModified)) {
+      return savedSummary;
+    }
+
+    UserSummary summary = new UserSummary(length, lastModified);
+    try {
+      if ((savedSummary != null) && (savedSummary.length <= length)) {
+        // Only read the judgments appended since the saved summary.
+        summary.numJudgments = savedSummary.numJudgments;
+        summary.hashRefCounts.putAll(savedSummary.hashRefCounts);
+        boolean appended;
+        try {
+          appended = readJudgmentCounts(userFile, savedSummary, summary);
+        } catch (SxseStorageException e) {
+          appended = false;
+        }
+        if (!appended) {
+          // Not appended to the summarized judgments, so read all judgments.
+          LOGGER.warning("Summary of user " + userName + " is stale");
+          summary = new UserSummary(length, lastModified);
+          readJudgmentCounts(userFile, null, summary);
+        }
+      } else {
+        readJudgmentCounts(userFile, null, summary);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE,
+          "Could not read data for user " + userName, e);
+      return summary;
+    }
+
+    if (saveSummary) {
+      writeSummary(userName, summary);
+    }
+    return summary;
+  }
+
+  /*
+   * Adds the judgments in the user file to the given summary, and sets its
+   * checksum to that of the file. If the saved summary is not null, the bytes
+   * it summarizes are only checksummed, and if that checksum differs from the
+   * saved one, this returns false without adding any judgments.
+   */
+  private boolean readJudgmentCounts(File userFile, UserSummary savedSummary,
+      UserSummary summary) throws IOException, SxseStorageException {
+    CRC32 crc = new CRC32();
+    InputStream in = new CheckedInputStream(
+        new BufferedInputStream(new FileInputStream(userFile)), crc);
+    BufferedReader userReader =
+        new BufferedReader(new InputStreamReader(in));
+    try {
+      if (savedSummary != null) {
+        // Skipping still updates the checksum with the skipped bytes.
+        long numSkipped = 0L;
+        while (numSkipped < savedSummary.length) {
+          long skipped = in.skip(savedSummary.length - numSkipped);
+          if (skipped <= 0L) {
+            return false;
+          }
+          numSkipped += skipped;
+        }
+        if (crc.getValue() != savedSummary.checksum) {
+          return false;
+        }
+      }
+
       while (true) {
         JudgmentDetails judgment = readNextJudgment(userReader);
         if (judgment == null) {
           break;
         }
 
+        ++summary.numJudgments;
         String resultsId = judgment.getResultsId();
         if (resultsId != null) {
           String firstHash = resultsId.substring(0, resultHashSize);
-          increaseRefCount(firstHash, hashRefCounts);
+          increaseRefCount(firstHash, summary.hashRefCounts);
           String secondHash = resultsId.substring(resultHashSize,
               2 * resultHashSize);
-          increaseRefCount(secondHash, hashRefCounts);
+          increaseRefCount(secondHash, summary.hashRefCounts);
         }
       }
+      summary.checksum = crc.getValue();
+      return true;
+    } finally {
       userReader.close();
+    }
+  }
+
+  /*
+   * Returns the saved summary of the given user, or null if it is missing or
+   * cannot be read.
+   */
+  private UserSummary readSummary(String userName) {
+    File summaryFile = new File(summariesSubdir, userName);
+    if (!summaryFile.exists()) {
+      return null;
+    }
+
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(summaryFile));
+      try {
+        UserSummary summary = new UserSummary(
+            Long.valueOf(readSummaryValue(TextUserSummaryKeys.LENGTH, in)),
+            Long.valueOf(
+                readSummaryValue(TextUserSummaryKeys.LAST_MODIFIED, in)));
+        summary.checksum = Long.valueOf(
+            readSummaryValue(TextUserSummaryKeys.CHECKSUM, in));
+        summary.numJudgments = Integer.valueOf(
+            readSummaryValue(TextUserSummaryKeys.NUM_JUDGMENTS, in));
+        int numHashes = Integer.valueOf(
+            readSummaryValue(TextUserSummaryKeys.NUM_HASHES, in));
+        for (int i = 0; i < numHashes; ++i) {
+          String hash = readSummaryValue(TextUserSummaryKeys.RESULTS_HASH, in);
+          int refCount = Integer.valueOf(
+              readSummaryValue(TextUserSummaryKeys.REF_COUNT, in));
+          summary.hashRefCounts.put(hash, refCount);
+        }
+        return summary;
+      } finally {
+        in.close();
+      }
     } catch (IOException e) {
-      LOGGER.log(Level.SEVERE,
-          "Could not read data for user " + userName, e);
+      LOGGER.log(Level.WARNING, "Could not read summary of " + userName, e);
+    } catch (SxseStorageException e) {
+      LOGGER.log(Level.WARNING, "Could not read summary of " + userName, e);
+    } catch (NumberFormatException e) {
+      LOGGER.log(Level.WARNING, "Could not read summary of " + userName, e);
+    }
+    return null;
+  }
+
+  private static String readSummaryValue(String expectedKey,
+      BufferedReader in) throws IOException, SxseStorageException {
+    String line = in.readLine();
+    if (line == null) {
+      throw new PrematureEofException("readSummary");
+    }
+    return TextUtil.readValue(expectedKey, line);
+  }
+
+  /*
+   * Saves the summary of the given user, which is only logged if it fails
+   * because the summary is read again from the user file.
+   */
+  private void writeSummary(String userName, UserSummary summary) {
+    File summaryFile = new File(summariesSubdir, userName);
+    try {
+      BufferedWriter out = new BufferedWriter(new FileWriter(summaryFile));
+      try {
+        TextUtil.writeValue(TextUserSummaryKeys.LENGTH, summary.length, out);
+        TextUtil.writeValue(TextUserSummaryKeys.LAST_MODIFIED,
+            summary.lastModified, out);
+        TextUtil.writeValue(TextUserSummaryKeys.CHECKSUM, summary.checksum,
+            out);
+        TextUtil.writeValue(TextUserSummaryKeys.NUM_JUDGMENTS,
+            summary.numJudgments, out);
+        TextUtil.writeValue(TextUserSummaryKeys.NUM_HASHES,
+            summary.hashRefCounts.size(), out);
+        for (Map.Entry<String, Integer> hashRefCount :
+            summary.hashRefCounts.entrySet()) {
+          TextUtil.writeValue(TextUserSummaryKeys.RESULTS_HASH,
+              hashRefCount.getKey(), out);
+          TextUtil.writeValue(TextUserSummaryKeys.REF_COUNT,
+              hashRefCount.getValue(), out);
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Could not save summary of " + userName, e);
+      summaryFile.delete();
+    } catch (SxseStorageException e) {
+      LOGGER.log(Level.WARNING, "Could not save summary of " + userName, e);
+      summaryFile.delete();
     }
   }
 
@@ -126,6 +460,17 @@ class TextUserStorage {
     }
   }
 
+  private static void addRefCounts(Map<String, Integer> addedHashRefCounts,
+      Map<String, Integer> hashRefCounts) {
+    for (Map.Entry<String, Integer> addedHashRefCount :
+        addedHashRefCounts.entrySet()) {
+      Integer refCount = hashRefCounts.get(addedHashRefCount.getKey());
+      hashRefCounts.put(addedHashRefCount.getKey(), (refCount == null) ?
+          addedHashRefCount.getValue() :
+          refCount + addedHashRefCount.getValue());
+    }
+  }
+
   public JudgmentDetails addJudgment(String userName, JudgmentDetails judgment,
       String resultsId) throws SxseStorageException {
     if (!userNames.contains(userName)) {
@@ -134,6 +479,7 @@ class TextUserStorage {
 
     // Append to list of judgments on disk.
     File addedSet = new File(usersSubdir, userName);
+    final long offset = addedSet.length();
     try {
       BufferedWriter out = new BufferedWriter(new FileWriter(addedSet, true));
       TextUtil.writeValue(TextUserKeys.QUERY,
@@ -154,6 +500,13 @@ class TextUserStorage {
       writeResultList(out, new ResultListDetails(
           judgment.getSecondQueryFormatter(), secondHash));
       out.close();
+
+      QueryIndex queryIndex = queryIndexes.get(userName);
+      if ((queryIndex != null) && (queryIndex.length == offset)) {
+        // Add the judgment to the index, which was up to date.
+        queryIndex.add(getIndexKey(judgment.getQuery()), offset);
+        queryIndex.length = addedSet.length();
+      }
     } catch (IOException e) {
       LOGGER.severe("addJudgment caught IOException, partial judgment written");
       throw new SxseStorageException(e);
@@ -183,15 +536,96 @@ class TextUserStorage {
   }
 
   public List<JudgmentDetails> getJudgments(String userName,
-      final String query) throws SxseStorageException {
-    Predicate<JudgmentDetails> queryPredicate =
-        new Predicate<JudgmentDetails>() {
-      public boolean apply(JudgmentDetails judgment) {
-        // Only accumulate judgments for the given query.
-        return query.equals(judgment.getQuery());
+      String query) throws SxseStorageException {
+    if (!userNames.contains(userName)) {
+      return Collections.emptyList();
+    }
+
+    List<Long> offsets =
+        getQueryIndex(userName).queryOffsets.get(getIndexKey(query));
+    if (offsets == null) {
+      return Collections.emptyList();
+    }
+
+    // Read only the judgments at the indexed offsets.
+    FileInputStream in = createStreamForUser(userName);
+    List<JudgmentDetails> judgments =
+        new ArrayList<JudgmentDetails>(offsets.size());
+    try {
+      for (long offset : offsets) {
+        in.getChannel().position(offset);
+        BufferedReader userReader =
+            new BufferedReader(new InputStreamReader(in));
+        JudgmentDetails judgment = readNextJudgment(userReader);
+        if ((judgment != null) && query.equals(judgment.getQuery())) {
+          judgments.add(judgment);
+        }
       }
-    };
-    return getJudgments(userName, queryPredicate);
+    } catch (IOException e) {
+      LOGGER.severe("getJudgments caught IOException, no results read");
+      throw new SxseStorageException(e);
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // Only read from the stream, so ignore.
+      }
+    }
+
+    return Collections.unmodifiableList(judgments);
+  }
+
+  /*
+   * Returns the index of judgments by query for the given user, first
+   * indexing any judgments not yet in the index.
+   */
+  private QueryIndex getQueryIndex(String userName)
+      throws SxseStorageException {
+    long length = new File(usersSubdir, userName).length();
+    QueryIndex queryIndex = queryIndexes.get(userName);
+    if ((queryIndex == null) || (queryIndex.length > length)) {
+      queryIndex = new QueryIndex();
+      queryIndexes.put(userName, queryIndex);
+    }
+    if (queryIndex.length == length) {
+      return queryIndex;
+    }
+
+    // Find each judgment by the line for its query, which no other line of
+    // a judgment begins with.
+    String queryPrefix = getIndexKey(TextUserKeys.QUERY + '=');
+    FileInputStream in = createStreamForUser(userName);
+    LineScanner scanner = new LineScanner(in, queryIndex.length);
+    try {
+      in.getChannel().position(queryIndex.length);
+      while (true) {
+        long offset = scanner.getPosition();
+        String line = scanner.readLine();
+        if (line == null) {
+          break;
+        } else if (line.startsWith(queryPrefix)) {
+          queryIndex.add(line.substring(queryPrefix.length()), offset);
+        }
+      }
+      queryIndex.length = scanner.getPosition();
+    } catch (IOException e) {
+      queryIndexes.remove(userName);
+      LOGGER.severe("getQueryIndex caught IOException, no index built");
+      throw new SxseStorageException(e);
+    } finally {
+      scanner.close();
+    }
+    return queryIndex;
+  }
+
+  /*
+   * Returns the key of the given query in an index. The index is built from the
+   * bytes of a user file, which is written in the default charset but decoded
+   * like all scanned files, so the query is encoded and decoded the same way.
+   */
+  private static String getIndexKey(String query) {
+    byte[] queryBytes = query.getBytes(Charset.defaultCharset());
+    return TextUtil.decode(queryBytes, 0, queryBytes.length);
   }
 
   private List<JudgmentDetails> getJudgments(String userName,
@@ -224,6 +658,20 @@ class TextUserStorage {
     return Collections.unmodifiableList(judgments);
   }
   
+  private FileInputStream createStreamForUser(String userName)
+      throws SxseStorageException {
+    File userFile = new File(usersSubdir, userName);
+    try {
+      return new FileInputStream(userFile);
+    } catch (FileNotFoundException e) {
+      // Judgments for user are not on disk, attempt to sync in-memory list.
+      LOGGER.log(Level.WARNING, "judgments for user not found", e);
+      userNames.remove(userName);
+      queryIndexes.remove(userName);
+      throw new SxseStorageException(e);
+    }
+  }
+
   private BufferedReader createReaderForUser(String userName)
       throws SxseStorageException {
     File userFile = new File(usersSubdir, userName);
@@ -295,10 +743,13 @@ class TextUserStorage {
         continue;
       }
 
-      buildHashRefCounts(userName, removedHashRefCounts);
+      addRefCounts(summarizeUser(userName, false).hashRefCounts,
+          removedHashRefCounts);
       File userFile = new File(usersSubdir, userName);
       userFile.delete();
+      new File(summariesSubdir, userName).delete();
       userNames.remove(userName);
+      queryIndexes.remove(userName);
 
       removedAny = true;
     }
@@ -334,6 +785,10 @@ class TextUserStorage {
   protected void tryDelete() {
     // Only delete the directory if we created it.
     if (!existed) {
+      for (File summaryFile : summariesSubdir.listFiles()) {
+        summaryFile.delete();
+      }
+      summariesSubdir.delete();
       usersSubdir.delete();
     }
   }
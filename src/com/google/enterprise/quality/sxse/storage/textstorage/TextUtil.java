@@ -27,6 +27,9 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
 
 /**
  * Static utility methods for the text implementation of storage.
@@ -113,6 +116,41 @@ class TextUtil {
     }
   }
 
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  /**
+   * Encodes the given string as UTF-8, so that it can be decoded by
+   * {@link #decode(byte[], int, int)}.
+   * 
+   * @param str the string to encode
+   * @return the UTF-8 bytes of the string
+   */
+  public static byte[] encode(String str) {
+    return str.getBytes(UTF_8);
+  }
+
+  /**
+   * Decodes the given bytes as UTF-8. Files written by
+   * {@link RandomAccessFile#writeBytes(String)} contain only the low byte of
+   * each character, so if the bytes are not valid UTF-8, they are decoded as
+   * ISO-8859-1 instead, as {@link RandomAccessFile#readLine()} decodes them.
+   * 
+   * @param bytes the array containing the bytes to decode
+   * @param offset the index of the first byte to decode
+   * @param length the number of bytes to decode
+   * @return the decoded string
+   */
+  public static String decode(byte[] bytes, int offset, int length) {
+    try {
+      // Unlike new String(), the decoder reports malformed input.
+      return UTF_8.newDecoder().decode(
+          ByteBuffer.wrap(bytes, offset, length)).toString();
+    } catch (CharacterCodingException e) {
+      return new String(bytes, offset, length, ISO_8859_1);
+    }
+  }
+
   /*
    * The delimiter for key-value pairs in storage.
    */
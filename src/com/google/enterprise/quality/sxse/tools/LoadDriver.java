@@ -0,0 +1,493 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.quality.sxse.tools;
+
+import com.google.enterprise.quality.sxse.SxseUtil;
+import com.google.enterprise.quality.sxse.servlet.JudgmentServlet;
+import com.google.enterprise.quality.sxse.servlet.LoginServlet;
+import com.google.enterprise.quality.sxse.servlet.ServerJudgmentStrategy;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * A load driver that measures SxSE end to end. It logs in a number of
+ * simulated assessors through {@link LoginServlet}, and each assessor
+ * repeatedly judges the results shown by {@link JudgmentServlet}, choosing a
+ * judgment at random. Streamed judgment pages are supported, in which case a
+ * page is complete once both lists of results are retrieved.
+ *
+ * SxSE must already have two active profiles, such as profiles of
+ * {@link StubBackend}. Queries are chosen by SxSE from its active query sets,
+ * or, if a file of queries is given, from that file whenever SxSE shows no
+ * results to judge.
+ *
+ * At the end of the run, the driver reports the number of judgments per
+ * second and the percentiles of page latency. If SxSE was started with remote
+ * JMX enabled, the driver also samples its threads and heap usage.
+ */
+public class LoadDriver {
+  public static void main(String[] args) throws Exception {
+    String sxseUrl = "http://localhost:8000";
+    int assessors = 10;
+    long durationMillis = 60 * 1000L;
+    long thinkMillis = 0L;
+    String queriesFile = null;
+    String jmxHostPort = null;
+
+    for (String arg : args) {
+      String[] tokens = arg.split("=", 2);
+      if (tokens[0].equals("--sxse_url")) {
+        sxseUrl = tokens[1];
+      } else if (tokens[0].equals("--assessors")) {
+        assessors = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--duration_secs")) {
+        durationMillis = 1000L * Long.valueOf(tokens[1]).longValue();
+      } else if (tokens[0].equals("--think_ms")) {
+        thinkMillis = Long.valueOf(tokens[1]).longValue();
+      } else if (tokens[0].equals("--queries")) {
+        queriesFile = tokens[1];
+      } else if (tokens[0].equals("--jmx")) {
+        jmxHostPort = tokens[1];
+      } else {
+        printUsage();
+        return;
+      }
+    }
+
+    List<String> queries = (queriesFile != null) ?
+        readQueries(queriesFile) : Collections.<String>emptyList();
+    LoadDriver driver = new LoadDriver(sxseUrl, assessors, durationMillis,
+        thinkMillis, queries, jmxHostPort);
+    driver.run();
+  }
+
+  private static void printUsage() {
+    System.err.println("Command line arguments:\n"
+        + "--sxse_url: URL of the SxSE server\n"
+        + "--assessors: number of simulated assessors judging at once\n"
+        + "--duration_secs: seconds for which assessors judge results\n"
+        + "--think_ms: milliseconds each assessor waits before each judgment\n"
+        + "--queries: file of queries, one per line, judged when SxSE does "
+        + "not choose a query\n"
+        + "--jmx: host:port of the remote JMX agent of the SxSE server, to "
+        + "report its threads and heap usage\n");
+  }
+
+  // The prefix of the name of each simulated assessor.
+  private static final String ASSESSOR_NAME_PREFIX = "load_";
+
+  // The milliseconds between samples of the threads and heap of the server.
+  private static final long SAMPLE_INTERVAL_MILLIS = 1000L;
+
+  private static final Pattern JUDGMENT_ID_PATTERN = Pattern.compile(
+      "name=[\"']" + ServerJudgmentStrategy.PostKeys.JUDGMENT_ID
+      + "[\"'][^>]*?value=[\"']([^\"']+)[\"']");
+  private static final Pattern STREAM_ID_PATTERN = Pattern.compile(
+      "id=[\"']" + ServerJudgmentStrategy.StreamKeys.STREAM_ID
+      + "[\"'][^>]*?value=[\"']([^\"']+)[\"']");
+
+  // The header of a streamed list of results that contains the judgment ID.
+  private static final String JUDGMENT_ID_HEADER = "X-Judgment-Uuid";
+
+  private static final ServerJudgmentStrategy.JudgmentAction[] RATINGS = {
+    ServerJudgmentStrategy.JudgmentAction.RATE_A,
+    ServerJudgmentStrategy.JudgmentAction.RATE_EQUAL,
+    ServerJudgmentStrategy.JudgmentAction.RATE_B };
+
+  private final String sxseUrl;
+  private final int assessors;
+  private final long durationMillis;
+  private final long thinkMillis;
+  private final List<String> queries;
+  private final String jmxHostPort;
+
+  private final AtomicLong judgmentCount;
+  private final AtomicLong errorCount;
+  // The latency of every page, guarded by itself.
+  private final List<Long> pageLatencies;
+
+  // Written by the sampler thread, and read once it is joined.
+  private int maxServerThreads;
+  private long maxServerHeapUsed;
+  private long serverHeapMax;
+  private String samplerError;
+
+  /**
+   * Creates a new load driver.
+   *
+   * @param sxseUrl the URL of the SxSE server
+   * @param assessors the number of simulated assessors
+   * @param durationMillis the milliseconds for which assessors judge results
+   * @param thinkMillis the milliseconds each assessor waits before judging
+   * @param queries the queries judged when SxSE does not choose a query
+   * @param jmxHostPort the host and port of the remote JMX agent of the SxSE
+   *        server, or {@code null} if none
+   */
+  public LoadDriver(String sxseUrl, int assessors, long durationMillis,
+      long thinkMillis, List<String> queries, String jmxHostPort) {
+    this.sxseUrl = sxseUrl.endsWith("/") ?
+        sxseUrl.substring(0, sxseUrl.length() - 1) : sxseUrl;
+    this.assessors = assessors;
+    this.durationMillis = durationMillis;
+    this.thinkMillis = thinkMillis;
+    this.queries = queries;
+    this.jmxHostPort = jmxHostPort;
+
+    judgmentCount = new AtomicLong();
+    errorCount = new AtomicLong();
+    pageLatencies = new ArrayList<Long>();
+  }
+
+  /**
+   * Runs the simulated assessors for the configured duration, and then prints
+   * a report of the results.
+   *
+   * @throws InterruptedException if interrupted while waiting for assessors
+   */
+  public void run() throws InterruptedException {
+    final long endTime = System.currentTimeMillis() + durationMillis;
+    Thread sampler = null;
+    if (jmxHostPort != null) {
+      sampler = new Thread(new Runnable() {
+        public void run() {
+          sampleServer(endTime);
+        }
+      }, "LoadDriver-sampler");
+      sampler.setDaemon(true);
+      sampler.start();
+    }
+
+    long startTime = System.currentTimeMillis();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < assessors; ++i) {
+      final String assessorName = ASSESSOR_NAME_PREFIX + i;
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          new Assessor(assessorName).judgeUntil(endTime);
+        }
+      }, "LoadDriver-" + assessorName);
+      thread.setDaemon(true);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsedMillis = System.currentTimeMillis() - startTime;
+    if (sampler != null) {
+      sampler.join();
+    }
+
+    report(elapsedMillis);
+  }
+
+  private void report(long elapsedMillis) {
+    List<Long> latencies;
+    synchronized (pageLatencies) {
+      latencies = new ArrayList<Long>(pageLatencies);
+    }
+    Collections.sort(latencies);
+
+    long judgments = judgmentCount.get();
+    System.out.println("assessors: " + assessors + ", seconds: "
+        + (elapsedMillis / 1000.0));
+    System.out.println("judgments: " + judgments + ", judgments/sec: "
+        + String.format("%.1f", 1000.0 * judgments / elapsedMillis));
+    System.out.println("pages: " + latencies.size() + ", errors: "
+        + errorCount.get());
+    if (!latencies.isEmpty()) {
+      System.out.println("page latency ms: p50="
+          + getPercentile(latencies, 50) + ", p90="
+          + getPercentile(latencies, 90) + ", p99="
+          + getPercentile(latencies, 99) + ", max="
+          + latencies.get(latencies.size() - 1));
+    }
+    if (jmxHostPort == null) {
+      System.out.println("server threads and heap: not sampled, use --jmx");
+    } else if (samplerError != null) {
+      System.out.println("server threads and heap: " + samplerError);
+    } else {
+      System.out.println("server threads: max=" + maxServerThreads
+          + ", heap used MB: max=" + (maxServerHeapUsed / (1024 * 1024))
+          + " of " + (serverHeapMax / (1024 * 1024)));
+    }
+  }
+
+  /*
+   * Returns the given percentile of the sorted latencies.
+   */
+  private static long getPercentile(List<Long> sortedLatencies,
+      int percentile) {
+    int index = (int) Math.ceil(sortedLatencies.size() * percentile / 100.0);
+    return sortedLatencies.get(Math.max(index - 1, 0));
+  }
+
+  /*
+   * Samples the threads and heap usage of the server until the end time.
+   */
+  private void sampleServer(long endTime) {
+    JMXConnector connector = null;
+    try {
+      connector = JMXConnectorFactory.connect(new JMXServiceURL(
+          "service:jmx:rmi:///jndi/rmi://" + jmxHostPort + "/jmxrmi"));
+      MBeanServerConnection connection =
+          connector.getMBeanServerConnection();
+      ThreadMXBean threadBean = ManagementFactory.newPlatformMXBeanProxy(
+          connection, ManagementFactory.THREAD_MXBEAN_NAME,
+          ThreadMXBean.class);
+      MemoryMXBean memoryBean = ManagementFactory.newPlatformMXBeanProxy(
+          connection, ManagementFactory.MEMORY_MXBEAN_NAME,
+          MemoryMXBean.class);
+
+      serverHeapMax = memoryBean.getHeapMemoryUsage().getMax();
+      while (System.currentTimeMillis() < endTime) {
+        maxServerThreads =
+            Math.max(maxServerThreads, threadBean.getThreadCount());
+        maxServerHeapUsed = Math.max(maxServerHeapUsed,
+            memoryBean.getHeapMemoryUsage().getUsed());
+        Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+      }
+    } catch (IOException e) {
+      samplerError = "could not sample: " + e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (connector != null) {
+        try {
+          connector.close();
+        } catch (IOException e) {
+          // Already have the samples, so ignore.
+        }
+      }
+    }
+  }
+
+  private static List<String> readQueries(String filename) throws IOException {
+    List<String> queries = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0) {
+          queries.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return queries;
+  }
+
+  /*
+   * A simulated assessor, with its own session.
+   */
+  private final class Assessor {
+    private final String name;
+    private final Random random;
+    private String sessionCookie;
+
+    private Assessor(String name) {
+      this.name = name;
+      this.random = new Random();
+    }
+
+    private void judgeUntil(long endTime) {
+      try {
+        login();
+        String judgmentId = loadPage("GET", nextQueryPath(), null);
+        while (System.currentTimeMillis() < endTime) {
+          if (thinkMillis > 0L) {
+            Thread.sleep(thinkMillis);
+          }
+
+          if (judgmentId != null) {
+            ServerJudgmentStrategy.JudgmentAction rating =
+                RATINGS[random.nextInt(RATINGS.length)];
+            judgmentId = loadPage("POST", JudgmentServlet.PATH,
+                ServerJudgmentStrategy.CommonKeys.ACTION + "=" + rating
+                + "&" + ServerJudgmentStrategy.PostKeys.JUDGMENT_ID + "="
+                + judgmentId);
+            judgmentCount.incrementAndGet();
+          } else if (!queries.isEmpty()) {
+            // No results were shown, so judge a query from the file.
+            judgmentId = loadPage("GET", nextQueryPath(), null);
+          } else {
+            judgmentId = loadPage("POST", JudgmentServlet.PATH,
+                ServerJudgmentStrategy.CommonKeys.ACTION + "="
+                + ServerJudgmentStrategy.JudgmentAction.PASS);
+          }
+        }
+      } catch (IOException e) {
+        errorCount.incrementAndGet();
+        System.err.println(name + " stopped: " + e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void login() throws IOException {
+      HttpURLConnection conn = open("POST", LoginServlet.PATH);
+      writeBody(conn, LoginServlet.PostKeys.USER_TYPE + "=ASSESSOR&"
+          + LoginServlet.PostKeys.USERNAME + "=" + name);
+      readBody(conn);
+      String cookie = conn.getHeaderField("Set-Cookie");
+      if (cookie == null) {
+        throw new IOException("login did not create a session");
+      }
+      // Keep only the name and value of the session cookie.
+      int semicolon = cookie.indexOf(';');
+      sessionCookie =
+          (semicolon >= 0) ? cookie.substring(0, semicolon) : cookie;
+    }
+
+    /*
+     * Returns the path of the judgment page for the next query, which is
+     * chosen by SxSE unless queries were given.
+     */
+    private String nextQueryPath() {
+      if (queries.isEmpty()) {
+        return JudgmentServlet.PATH;
+      }
+      String query = queries.get(random.nextInt(queries.size()));
+      return JudgmentServlet.PATH + "?"
+          + ServerJudgmentStrategy.CommonKeys.ACTION + "="
+          + ServerJudgmentStrategy.JudgmentAction.COMPARE_QUERY + "&"
+          + ServerJudgmentStrategy.CommonKeys.NEXT_QUERY + "="
+          + SxseUtil.urlEncode(query);
+    }
+
+    /*
+     * Loads a judgment page and, if it is streamed, both lists of results on
+     * it. Records its latency and returns the ID of the judgment it allows,
+     * or null if it shows no results to judge.
+     */
+    private String loadPage(String method, String path, String body)
+        throws IOException {
+      long startTime = System.currentTimeMillis();
+      HttpURLConnection conn = open(method, path);
+      if (body != null) {
+        writeBody(conn, body);
+      }
+      String page = readBody(conn);
+
+      String judgmentId = null;
+      Matcher streamIdMatcher = STREAM_ID_PATTERN.matcher(page);
+      if (streamIdMatcher.find()) {
+        String streamId = streamIdMatcher.group(1);
+        for (String part : new String[] { "FIRST", "SECOND" }) {
+          HttpURLConnection partConn = open("GET", JudgmentServlet.PATH + "?"
+              + ServerJudgmentStrategy.StreamKeys.RESULTS_PART + "=" + part
+              + "&" + ServerJudgmentStrategy.StreamKeys.STREAM_ID + "="
+              + SxseUtil.urlEncode(streamId));
+          readBody(partConn);
+          String partJudgmentId = partConn.getHeaderField(JUDGMENT_ID_HEADER);
+          if (partJudgmentId != null) {
+            judgmentId = partJudgmentId;
+          }
+        }
+      } else {
+        Matcher judgmentIdMatcher = JUDGMENT_ID_PATTERN.matcher(page);
+        if (judgmentIdMatcher.find()) {
+          judgmentId = judgmentIdMatcher.group(1);
+        }
+      }
+
+      long latency = System.currentTimeMillis() - startTime;
+      synchronized (pageLatencies) {
+        pageLatencies.add(latency);
+      }
+      return judgmentId;
+    }
+
+    private HttpURLConnection open(String method, String path)
+        throws IOException {
+      HttpURLConnection conn =
+          (HttpURLConnection) new URL(sxseUrl + path).openConnection();
+      conn.setRequestMethod(method);
+      conn.setInstanceFollowRedirects(false);
+      if (sessionCookie != null) {
+        conn.setRequestProperty("Cookie", sessionCookie);
+      }
+      return conn;
+    }
+
+    private void writeBody(HttpURLConnection conn, String body)
+        throws IOException {
+      conn.setDoOutput(true);
+      conn.setRequestProperty("Content-Type",
+          "application/x-www-form-urlencoded");
+      OutputStream out = conn.getOutputStream();
+      try {
+        out.write(body.getBytes("UTF-8"));
+      } finally {
+        out.close();
+      }
+    }
+
+    /*
+     * Reads the body of the response, counting an error if its status is not
+     * a success or a redirect.
+     */
+    private String readBody(HttpURLConnection conn) throws IOException {
+      int status = conn.getResponseCode();
+      boolean isError = (status >= 400);
+      if (isError) {
+        errorCount.incrementAndGet();
+      }
+      InputStream in = isError ? conn.getErrorStream() : conn.getInputStream();
+      if (in == null) {
+        return "";
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try {
+        byte[] buffer = new byte[8192];
+        int numRead;
+        while ((numRead = in.read(buffer)) != -1) {
+          bytes.write(buffer, 0, numRead);
+        }
+      } finally {
+        in.close();
+      }
+      return bytes.toString("UTF-8");
+    }
+  }
+}
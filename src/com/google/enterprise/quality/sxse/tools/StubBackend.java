@@ -0,0 +1,331 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.quality.sxse.tools;
+
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A stub search backend for load testing SxSE without a search appliance.
+ *
+ * Requests to {@code /search} are answered as a GSA would: with XML results
+ * if the {@code output} parameter is {@code xml_no_dtd} and no
+ * {@code proxystylesheet} is given, and with an HTML page of results
+ * otherwise. A profile for this backend has host {@code localhost:<port>}.
+ * Requests to any other path are answered with an HTML page, so that the
+ * backend can also serve profiles that are URL prefixes, such as
+ * {@code http://localhost:<port>/page?q=}.
+ *
+ * For each query, results are drawn from a fixed pool of documents, and
+ * ordered by the {@code client} parameter. So two profiles with the same
+ * frontend return identical results, and profiles with different frontends
+ * return the same documents in a different order.
+ *
+ * The latency of each response follows a log-normal distribution with the
+ * given median and 99th percentile, and a given percentage of responses are
+ * errors.
+ */
+public class StubBackend {
+  public static void main(String[] args) throws Exception {
+    int port = 8081;
+    int threads = 200;
+    long medianLatencyMillis = 50L;
+    long p99LatencyMillis = 400L;
+    double errorPercent = 0.0;
+    int resultsPerQuery = 100;
+    int snippetChars = 160;
+
+    for (String arg : args) {
+      String[] tokens = arg.split("=", 2);
+      if (tokens[0].equals("--port")) {
+        port = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--threads")) {
+        threads = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--median_latency_ms")) {
+        medianLatencyMillis = Long.valueOf(tokens[1]).longValue();
+      } else if (tokens[0].equals("--p99_latency_ms")) {
+        p99LatencyMillis = Long.valueOf(tokens[1]).longValue();
+      } else if (tokens[0].equals("--error_percent")) {
+        errorPercent = Double.valueOf(tokens[1]).doubleValue();
+      } else if (tokens[0].equals("--results_per_query")) {
+        resultsPerQuery = Integer.valueOf(tokens[1]).intValue();
+      } else if (tokens[0].equals("--snippet_chars")) {
+        snippetChars = Integer.valueOf(tokens[1]).intValue();
+      } else {
+        printUsage();
+        return;
+      }
+    }
+
+    StubBackend backend = new StubBackend(port, threads, medianLatencyMillis,
+        p99LatencyMillis, errorPercent, resultsPerQuery, snippetChars);
+    backend.start();
+  }
+
+  private static void printUsage() {
+    System.err.println("Command line arguments:\n"
+        + "--port: port number to listen for HTTP requests on\n"
+        + "--threads: maximum number of threads handling HTTP requests\n"
+        + "--median_latency_ms: median milliseconds before each response\n"
+        + "--p99_latency_ms: 99th percentile of milliseconds before each "
+        + "response\n"
+        + "--error_percent: percentage of requests answered with an error\n"
+        + "--results_per_query: number of results for each query\n"
+        + "--snippet_chars: number of characters in the snippet of each "
+        + "result\n");
+  }
+
+  // The z-score of the 99th percentile of a standard normal distribution.
+  private static final double P99_Z_SCORE = 2.3263;
+
+  // The words that snippets are made of.
+  private static final String[] WORDS = { "search", "quality", "result",
+    "document", "enterprise", "policy", "appliance", "relevance", "index",
+    "query", "collection", "frontend", "ranking", "content", "crawl" };
+
+  private final Server server;
+  private final int threads;
+  private final long medianLatencyMillis;
+  private final double latencySigma;
+  private final long maxLatencyMillis;
+  private final double errorPercent;
+  private final int resultsPerQuery;
+  private final int snippetChars;
+
+  /**
+   * Creates a new stub backend.
+   *
+   * @param port the port number to listen for HTTP requests on
+   * @param threads the maximum number of threads handling HTTP requests
+   * @param medianLatencyMillis the median latency of responses
+   * @param p99LatencyMillis the 99th percentile of the latency of responses
+   * @param errorPercent the percentage of requests answered with an error
+   * @param resultsPerQuery the number of results for each query
+   * @param snippetChars the number of characters in each snippet
+   */
+  public StubBackend(int port, int threads, long medianLatencyMillis,
+      long p99LatencyMillis, double errorPercent, int resultsPerQuery,
+      int snippetChars) {
+    this.threads = threads;
+    this.medianLatencyMillis = medianLatencyMillis;
+    this.latencySigma = ((medianLatencyMillis > 0L)
+        && (p99LatencyMillis > medianLatencyMillis)) ?
+        Math.log((double) p99LatencyMillis / medianLatencyMillis)
+          / P99_Z_SCORE : 0.0;
+    // Bound the tail, so that no request waits much past the 99th percentile.
+    this.maxLatencyMillis = 4 * Math.max(medianLatencyMillis, p99LatencyMillis);
+    this.errorPercent = errorPercent;
+    this.resultsPerQuery = resultsPerQuery;
+    this.snippetChars = snippetChars;
+
+    server = new Server(port);
+    server.setThreadPool(new QueuedThreadPool(threads));
+    Context rootContext = new Context(server, "/", Context.NO_SESSIONS);
+    rootContext.addServlet(new ServletHolder(new StubServlet()), "/*");
+  }
+
+  /**
+   * Starts the backend, and waits until it stops.
+   *
+   * @throws Exception if the backend could not be started
+   */
+  public void start() throws Exception {
+    server.start();
+    System.out.println("stub backend handling requests on "
+        + threads + " threads");
+    server.join();
+  }
+
+  /*
+   * Returns the number of milliseconds to wait before responding.
+   */
+  private long nextLatencyMillis(Random random) {
+    if (latencySigma == 0.0) {
+      return medianLatencyMillis;
+    }
+    double latency =
+        medianLatencyMillis * Math.exp(latencySigma * random.nextGaussian());
+    return Math.min((long) latency, maxLatencyMillis);
+  }
+
+  /*
+   * Returns the results for the given query, ordered for the given frontend.
+   */
+  private List<Result> getResults(String query, String frontend) {
+    List<Result> results = new ArrayList<Result>(resultsPerQuery);
+    Random random = new Random(query.hashCode());
+    for (int i = 0; i < resultsPerQuery; ++i) {
+      results.add(new Result(query, i, random));
+    }
+    Collections.shuffle(results, new Random(frontend.hashCode()));
+    return results;
+  }
+
+  /*
+   * Returns the value of the given parameter, or the default value if absent.
+   */
+  private static String getParameter(HttpServletRequest req, String name,
+      String defaultValue) {
+    String value = req.getParameter(name);
+    return (value != null) ? value : defaultValue;
+  }
+
+  /*
+   * Returns the value of the given integer parameter, or the default value if
+   * absent or invalid.
+   */
+  private static int getIntParameter(HttpServletRequest req, String name,
+      int defaultValue) {
+    try {
+      return Integer.parseInt(getParameter(req, name, ""));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private static String escape(String s) {
+    StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '<':
+        sb.append("&lt;");
+        break;
+      case '>':
+        sb.append("&gt;");
+        break;
+      case '&':
+        sb.append("&amp;");
+        break;
+      case '"':
+        sb.append("&quot;");
+        break;
+      default:
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /*
+   * A document in the results of a query.
+   */
+  private final class Result {
+    private final String url;
+    private final String title;
+    private final String snippet;
+    private final String size;
+
+    private Result(String query, int index, Random random) {
+      url = "http://stub.example.com/doc/" + Math.abs(query.hashCode())
+          + "/" + index + ".html";
+      title = query + " document " + index;
+      StringBuilder sb = new StringBuilder(snippetChars + 16);
+      while (sb.length() < snippetChars) {
+        sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      sb.setLength(snippetChars);
+      snippet = sb.toString();
+      size = (1 + random.nextInt(100)) + "k";
+    }
+  }
+
+  /*
+   * Answers every request to the backend.
+   */
+  private final class StubServlet extends HttpServlet {
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse res)
+        throws ServletException, IOException {
+      Random random = new Random();
+      try {
+        Thread.sleep(nextLatencyMillis(random));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (random.nextDouble() * 100.0 < errorPercent) {
+        res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        return;
+      }
+
+      String query = getParameter(req, "q", "");
+      String frontend = getParameter(req, "client", "");
+      List<Result> results = getResults(query, frontend);
+      int start = Math.min(
+          Math.max(getIntParameter(req, "start", 0), 0), results.size());
+      int num = Math.max(getIntParameter(req, "num", 10), 0);
+      results = results.subList(start, Math.min(start + num, results.size()));
+
+      boolean isSearch = "/search".equals(req.getPathInfo());
+      if (isSearch && "xml_no_dtd".equals(req.getParameter("output"))
+          && (req.getParameter("proxystylesheet") == null)) {
+        writeXml(res, start, results);
+      } else {
+        writeHtml(res, query, results);
+      }
+    }
+
+    private void writeXml(HttpServletResponse res, int start,
+        List<Result> results) throws IOException {
+      res.setContentType("text/xml; charset=UTF-8");
+      Writer writer = res.getWriter();
+      writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      writer.write("<GSP VER=\"3.2\">");
+      if (!results.isEmpty()) {
+        writer.write("<RES SN=\"" + (start + 1) + "\" EN=\""
+            + (start + results.size()) + "\">");
+        int n = start;
+        for (Result result : results) {
+          writer.write("<R N=\"" + (++n) + "\"><U>" + escape(result.url)
+              + "</U><T>" + escape(result.title) + "</T><S>"
+              + escape(result.snippet) + "</S><HAS><C SZ=\"" + result.size
+              + "\" CID=\"" + n + "\"/></HAS></R>");
+        }
+        writer.write("</RES>");
+      }
+      writer.write("</GSP>\n");
+    }
+
+    private void writeHtml(HttpServletResponse res, String query,
+        List<Result> results) throws IOException {
+      res.setContentType("text/html; charset=UTF-8");
+      Writer writer = res.getWriter();
+      writer.write("<html><head><title>" + escape(query)
+          + "</title></head><body>");
+      for (Result result : results) {
+        writer.write("<p><a href=\"" + escape(result.url) + "\">"
+            + escape(result.title) + "</a><br>" + escape(result.snippet)
+            + "<br>" + result.size + "</p>");
+      }
+      writer.write("</body></html>\n");
+    }
+  }
+}
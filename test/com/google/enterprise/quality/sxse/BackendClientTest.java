@@ -0,0 +1,311 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.quality.sxse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests for {@link BackendClient}.
+ */
+public class BackendClientTest {
+  private static final int NUM_CHUNKS = 20;
+  private static final long CHUNK_DELAY_MILLIS = 100L;
+  // The content sent in each encoding, which compresses well.
+  private static final byte[] CONTENT;
+  static {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      sb.append("<R N=\"").append(i).append("\"><U>http://host/</U></R>\n");
+    }
+    CONTENT = sb.toString().getBytes();
+  }
+
+  private HttpServer server;
+  private BackendClient client;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    // Sends each chunk well within the read timeout of any request.
+    server.createContext("/slow", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, NUM_CHUNKS);
+        OutputStream out = exchange.getResponseBody();
+        try {
+          for (int i = 0; i < NUM_CHUNKS; ++i) {
+            out.write('x');
+            out.flush();
+            Thread.sleep(CHUNK_DELAY_MILLIS);
+          }
+          out.close();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (IOException e) {
+          // The client closed the connection.
+        }
+      }
+    });
+    server.createContext("/fast", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, 1);
+        OutputStream out = exchange.getResponseBody();
+        out.write('x');
+        out.close();
+      }
+    });
+    // Sends the content in the encoding named by the query.
+    server.createContext("/encoded", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String encoding = exchange.getRequestURI().getQuery();
+        byte[] encoded = encode(encoding);
+        if (!encoding.equals("identity")) {
+          exchange.getResponseHeaders().set("Content-Encoding",
+              encoding.equals("raw") ? "deflate" : encoding);
+        }
+        exchange.sendResponseHeaders(200, encoded.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(encoded);
+        out.close();
+      }
+    });
+    server.start();
+    client = new BackendClient(2);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private URI getUri(String path) {
+    return URI.create(
+        "http://localhost:" + server.getAddress().getPort() + path);
+  }
+
+  /*
+   * Returns the content in the given encoding, where raw is deflate data
+   * without the zlib header and checksum.
+   */
+  private static byte[] encode(String encoding) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out;
+    if (encoding.equals("gzip")) {
+      out = new GZIPOutputStream(bytes);
+    } else if (encoding.equals("deflate")) {
+      out = new DeflaterOutputStream(bytes);
+    } else if (encoding.equals("raw")) {
+      out = new DeflaterOutputStream(bytes,
+          new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    } else {
+      out = bytes;
+    }
+    out.write(CONTENT);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /*
+   * Reads the content in the given encoding, and asserts that it is decoded
+   * and its transfer recorded.
+   */
+  private void assertDecodes(String encoding, boolean compressed)
+      throws IOException {
+    URI uri = getUri("/encoded?" + encoding);
+    BackendClient.Content content =
+        client.read(uri, System.currentTimeMillis() + 10000L, 1024 * 1024);
+    assertArrayEquals(CONTENT, content.getBytes());
+
+    BackendClient.TransferStats stats =
+        client.getTransferStats().get(uri.getAuthority());
+    assertEquals(1L, stats.getResponseCount());
+    assertEquals(compressed ? 1L : 0L, stats.getCompressedCount());
+    assertEquals(encode(encoding).length, stats.getTransferredBytes());
+    assertEquals(CONTENT.length, stats.getContentBytes());
+  }
+
+  @Test
+  public void testDecodesGzip() throws IOException {
+    assertDecodes("gzip", true);
+  }
+
+  @Test
+  public void testDecodesZlibDeflate() throws IOException {
+    assertDecodes("deflate", true);
+  }
+
+  @Test
+  public void testDecodesRawDeflate() throws IOException {
+    assertDecodes("raw", true);
+  }
+
+  @Test
+  public void testReadsIdentity() throws IOException {
+    assertDecodes("identity", false);
+  }
+
+  @Test
+  public void testReadsBeforeAbortTime() throws IOException {
+    long abortTime = System.currentTimeMillis() + 10000L;
+    BackendClient.Content content =
+        client.read(getUri("/slow"), abortTime, 1024);
+    byte[] expected = new byte[NUM_CHUNKS];
+    Arrays.fill(expected, (byte) 'x');
+    assertArrayEquals(expected, content.getBytes());
+  }
+
+  @Test
+  public void testAbortTimeBoundsAllReads() throws IOException {
+    // The response takes 2 seconds, but each read takes only 100 ms.
+    long startTime = System.currentTimeMillis();
+    long abortTime = startTime + 500L;
+    try {
+      client.read(getUri("/slow"), abortTime, 1024);
+      fail("read past the abort time");
+    } catch (SocketTimeoutException e) {
+      // Expected.
+    }
+    long elapsed = System.currentTimeMillis() - startTime;
+    assertTrue("took " + elapsed + " ms", elapsed < 1000L);
+  }
+
+  @Test
+  public void testReleasesConnectionAfterAbortTime() throws IOException {
+    // Both connections time out, and are then available to later requests.
+    for (int i = 0; i < 2; ++i) {
+      try {
+        client.read(getUri("/slow"),
+            System.currentTimeMillis() + 200L, 1024);
+        fail("read past the abort time");
+      } catch (SocketTimeoutException e) {
+        // Expected.
+      }
+    }
+    long abortTime = System.currentTimeMillis() + 10000L;
+    client.read(getUri("/slow"), abortTime, 1024);
+  }
+
+  @Test
+  public void testBoundsPageThreadsPerHost()
+      throws InterruptedException, ExecutionException {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    List<Future<Integer>> pages = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 6; ++i) {
+      final int page = i;
+      pages.add(client.submitPage(getUri("/page"), new Callable<Integer>() {
+        public Integer call() throws InterruptedException {
+          int nowRunning = running.incrementAndGet();
+          synchronized (maxRunning) {
+            maxRunning.set(Math.max(maxRunning.get(), nowRunning));
+          }
+          Thread.sleep(100L);
+          running.decrementAndGet();
+          return page;
+        }
+      }));
+    }
+    for (int i = 0; i < pages.size(); ++i) {
+      assertEquals(Integer.valueOf(i), pages.get(i).get());
+    }
+    // No more pages are retrieved at once than there are connections.
+    assertEquals(2, maxRunning.get());
+  }
+
+  @Test
+  public void testCancellingPageClosesConnection()
+      throws InterruptedException {
+    final CountDownLatch failed = new CountDownLatch(1);
+    final AtomicReference<IOException> failure =
+        new AtomicReference<IOException>();
+    // Without an abort time, only closing the connection stops the read.
+    Future<BackendClient.Content> page = client.submitPage(getUri("/slow"),
+        new Callable<BackendClient.Content>() {
+          public BackendClient.Content call() throws IOException {
+            try {
+              return client.read(getUri("/slow"), 0L, 1024);
+            } catch (IOException e) {
+              failure.set(e);
+              failed.countDown();
+              throw e;
+            }
+          }
+        });
+    Thread.sleep(300L);
+    assertTrue(page.cancel(true));
+
+    // The response takes 2 seconds, but the read fails at once.
+    assertTrue(failed.await(1L, TimeUnit.SECONDS));
+    assertTrue(failure.get() instanceof InterruptedIOException);
+    assertFalse(failure.get() instanceof SocketTimeoutException);
+  }
+
+  @Test
+  public void testLimitsRateOfRequests() throws IOException {
+    client.setRateLimit(2.0, 1);
+    URI uri = getUri("/fast");
+    client.read(uri, System.currentTimeMillis() + 10000L, 1024);
+
+    // The next token is added after 500 ms, which is past the abort time.
+    try {
+      client.read(uri, System.currentTimeMillis() + 100L, 1024);
+      fail("read past the rate limit");
+    } catch (SocketTimeoutException e) {
+      // Expected.
+    }
+    // A later abort time waits for the token.
+    long startTime = System.currentTimeMillis();
+    client.read(uri, startTime + 10000L, 1024);
+    assertTrue(System.currentTimeMillis() - startTime >= 300L);
+
+    BackendClient.TransferStats stats =
+        client.getTransferStats().get(uri.getAuthority());
+    assertEquals(1L, stats.getRateLimitedCount());
+    assertEquals(1L, stats.getDelayedCount());
+  }
+}
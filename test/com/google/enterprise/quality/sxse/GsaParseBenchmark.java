@@ -0,0 +1,248 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.quality.sxse;
+
+import org.jdom.Attribute;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A repeatable micro-benchmark that compares parsing GSA results with
+ * {@link QueryFormatter#parseGsaResults} against the JDOM parsing it replaced,
+ * which is copied here verbatim. Run it with {@code ant benchmark}.
+ */
+public class GsaParseBenchmark {
+  private static final int WARMUP_ITERATIONS = 2000;
+  private static final int ITERATIONS = 5000;
+
+  private interface Parser {
+    List<SearchResult> parse(byte[] xml, int numResults) throws Exception;
+  }
+
+  private static final Parser STAX_PARSER = new Parser() {
+    public List<SearchResult> parse(byte[] xml, int numResults)
+        throws Exception {
+      return QueryFormatter.parseGsaResults(
+          new ByteArrayInputStream(xml), numResults);
+    }
+  };
+
+  private static final Parser JDOM_PARSER = new Parser() {
+    public List<SearchResult> parse(byte[] xml, int numResults)
+        throws Exception {
+      String xmlResults = readXml(new ByteArrayInputStream(xml));
+      Document doc = new SAXBuilder(false).build(new StringReader(xmlResults));
+      return buildResultList(doc);
+    }
+  };
+
+  public static void main(String[] args) throws Exception {
+    for (int numResults : new int[] { 10, 100 }) {
+      byte[] xml = createXml(numResults);
+      if (!STAX_PARSER.parse(xml, numResults).equals(
+          JDOM_PARSER.parse(xml, numResults))) {
+        throw new AssertionError("parsers disagree");
+      }
+      // Alternate the parsers so that neither benefits from running last.
+      for (int round = 0; round < 3; ++round) {
+        run("jdom", numResults, xml, JDOM_PARSER);
+        run("stax", numResults, xml, STAX_PARSER);
+      }
+    }
+  }
+
+  private static void run(String name, int numResults, byte[] xml,
+      Parser parser) throws Exception {
+    int count = 0;
+    for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+      count += parser.parse(xml, numResults).size();
+    }
+    long startBytes = allocatedBytes();
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; ++i) {
+      count += parser.parse(xml, numResults).size();
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    long bytes = allocatedBytes() - startBytes;
+    System.out.printf("%s results=%d: %8.1f us/op %10d B/op (%d)%n",
+        name, numResults, elapsedNanos / 1000.0 / ITERATIONS,
+        (startBytes < 0) ? -1 : bytes / ITERATIONS, count);
+  }
+
+  /*
+   * Returns the bytes allocated by the current thread, or -1 if the JVM does
+   * not report it.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    try {
+      Method method = Class.forName("com.sun.management.ThreadMXBean")
+          .getMethod("getThreadAllocatedBytes", long.class);
+      return (Long) method.invoke(bean, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  private static byte[] createXml(int numResults) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>")
+        .append("<GSP VER=\"3.2\"><TM>0.052</TM><Q>benchmark query</Q>")
+        .append("<PARAM name=\"q\" value=\"benchmark query\"/>")
+        .append("<RES SN=\"1\" EN=\"").append(numResults).append("\">")
+        .append("<M>").append(numResults * 10).append("</M>");
+    for (int i = 0; i < numResults; ++i) {
+      sb.append("<R N=\"").append(i + 1).append("\"")
+          .append((i % 3 == 2) ? " L=\"2\"" : "").append(">")
+          .append("<U>http://www.example.com/docs/page").append(i)
+          .append(".html</U><UE>http://www.example.com/docs/page").append(i)
+          .append(".html</UE><T>Example &lt;b&gt;page&lt;/b&gt; ").append(i)
+          .append("</T><RK>8</RK><FS NAME=\"date\" VALUE=\"\"/>")
+          .append("<S>This is the &lt;b&gt;snippet&lt;/b&gt; for result ")
+          .append(i).append(", which is long enough to be realistic ")
+          .append("for a search appliance&lt;br&gt; response.</S>")
+          .append("<LANG>en</LANG><HAS><L/><C SZ=\"").append(i + 10)
+          .append("k\" CID=\"abc").append(i).append("\" ENC=\"UTF-8\"/>")
+          .append("</HAS></R>");
+    }
+    sb.append("</RES></GSP>");
+    return sb.toString().getBytes("UTF-8");
+  }
+
+  // What follows is the JDOM implementation that the StAX parser replaced.
+
+  private static final String RESULTS = "RES";
+  private static final String RESULT = "R";
+  private static final String HAS = "HAS";
+  private static final String CACHE = "C";
+  private static final String TITLE = "T";
+  private static final String URL = "U";
+  private static final String SNIPPET = "S";
+  private static final String SIZE = "SZ";
+  private static final String INDENT = "L";
+
+  private static String readXml(InputStream in) throws Exception {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+    StringWriter writer = new StringWriter();
+
+    CharBuffer buffer = CharBuffer.allocate(16 * 1024);
+    while (true) {
+      int bytesRead = reader.read(buffer);
+      if (bytesRead == -1) {
+        break;
+      }
+      buffer.flip();
+      writer.append(buffer, 0, bytesRead);
+    }
+
+    return writer.toString();
+  }
+
+  private static List<SearchResult> buildResultList(Document doc) {
+    Element rootElement = doc.getRootElement().getChild(RESULTS);
+    if (rootElement == null) {
+      // If no RES tag, no results.
+      return Collections.emptyList();
+    }
+
+    List<?> resElements = rootElement.getChildren(RESULT);
+    if (resElements.isEmpty()) {
+      // No results.
+      return Collections.emptyList();
+    }
+
+    // Build results elements.
+    List<SearchResult> results =
+        new ArrayList<SearchResult>(resElements.size());
+    for (Iterator<?> i = resElements.iterator(); i.hasNext(); ) {
+      SearchResult nextResult = buildResult((Element) i.next());
+      if (nextResult != null) {
+        results.add(nextResult);
+      }
+    }
+    return results;
+  }
+
+  private static SearchResult buildResult(Element resElement) {
+    // Get title.
+    String title = null;
+    Element titleChild = resElement.getChild(TITLE);
+    if (titleChild != null) {
+      title = titleChild.getValue();
+    }
+
+    // Get snippet.
+    String snippet = null;
+    Element snippetChild = resElement.getChild(SNIPPET);
+    if (snippetChild != null) {
+      snippet = snippetChild.getValue();
+    } else {
+      snippet = "";
+    }
+
+    // Get URL.
+    String urlString = resElement.getChild(URL).getValue();
+    URI url = null;
+    try {
+      url = new URI(urlString);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    if (title == null) {
+      title = urlString;
+    }
+
+    // Get size.
+    String size = null;
+    Element hasChild = resElement.getChild(HAS);
+    if (hasChild != null) {
+      Element cacheChild = hasChild.getChild(CACHE);
+      if (cacheChild != null) {
+        size = cacheChild.getAttributeValue(SIZE);
+      }
+    }
+    if (size == null) {
+      size = "Size unknown";
+    }
+
+    // Get whether crowded or not.
+    boolean crowded = false;
+    Attribute indentAttr = resElement.getAttribute(INDENT);
+    if (indentAttr != null) {
+      String indentValue = indentAttr.getValue();
+      crowded = (indentValue != null) && (Integer.valueOf(indentValue) > 1);
+    }
+
+    return new SearchResult(url, title, snippet, size, crowded);
+  }
+}
@@ -0,0 +1,120 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.quality.sxse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Tests for parsing the XML results returned by a GSA.
+ */
+public class QueryFormatterTest {
+  private static InputStream xml(String body)
+      throws UnsupportedEncodingException {
+    String doc = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        "<GSP VER=\"3.2\"><TM>0.01</TM><Q>q</Q>" + body + "</GSP>";
+    return new ByteArrayInputStream(doc.getBytes("UTF-8"));
+  }
+
+  private static String result(int i, String extra) {
+    return "<R N=\"" + i + "\"" + extra + "><U>http://host/" + i + "</U>" +
+        "<T>title " + i + "</T><RK>8</RK><S>snippet " + i + "</S>" +
+        "<HAS><L/><C SZ=\"" + i + "k\" CID=\"x\"/></HAS></R>";
+  }
+
+  @Test
+  public void testParsesResults() throws Exception {
+    List<SearchResult> results = QueryFormatter.parseGsaResults(
+        xml("<RES SN=\"1\" EN=\"2\"><M>2</M>" + result(1, "") +
+            result(2, " L=\"2\"") + "</RES>"), 10);
+    assertEquals(2, results.size());
+    SearchResult first = results.get(0);
+    assertEquals(new URI("http://host/1"), first.getUrl());
+    assertEquals("title 1", first.getTitle());
+    assertEquals("snippet 1", first.getSnippet());
+    assertEquals("1k", first.getSize());
+    assertFalse(first.isCrowded());
+    assertTrue(results.get(1).isCrowded());
+  }
+
+  @Test
+  public void testStopsAtMaxResults() throws Exception {
+    StringBuilder sb = new StringBuilder("<RES>");
+    for (int i = 0; i < 5; ++i) {
+      sb.append(result(i, ""));
+    }
+    // Malformed past the last result read, which must not be parsed.
+    sb.append("<R><U>");
+    List<SearchResult> results =
+        QueryFormatter.parseGsaResults(xml(sb.toString()), 5);
+    assertEquals(5, results.size());
+    assertEquals("title 4", results.get(4).getTitle());
+  }
+
+  @Test
+  public void testDefaults() throws Exception {
+    List<SearchResult> results = QueryFormatter.parseGsaResults(
+        xml("<RES><R><U>http://host/a</U></R></RES>"), 10);
+    assertEquals(1, results.size());
+    SearchResult result = results.get(0);
+    assertEquals("http://host/a", result.getTitle());
+    assertEquals("", result.getSnippet());
+    assertEquals("Size unknown", result.getSize());
+  }
+
+  @Test
+  public void testNoResults() throws Exception {
+    assertTrue(QueryFormatter.parseGsaResults(xml(""), 10).isEmpty());
+    assertTrue(QueryFormatter.parseGsaResults(
+        xml("<RES></RES>"), 10).isEmpty());
+  }
+
+  @Test
+  public void testIgnoresNestedResults() throws Exception {
+    // Only R elements directly beneath RES are results.
+    List<SearchResult> results = QueryFormatter.parseGsaResults(
+        xml("<RES><X>" + result(1, "") + "</X>" + result(2, "") + "</RES>"),
+        10);
+    assertEquals(1, results.size());
+    assertEquals("title 2", results.get(0).getTitle());
+  }
+
+  @Test(expected = XMLStreamException.class)
+  public void testMissingUrl() throws Exception {
+    QueryFormatter.parseGsaResults(xml("<RES><R><T>t</T></R></RES>"), 10);
+  }
+
+  @Test
+  public void testDoesNotResolveDtd() throws Exception {
+    String doc = "<?xml version=\"1.0\"?>" +
+        "<!DOCTYPE GSP SYSTEM \"http://localhost:1/gsp.dtd\">" +
+        "<GSP><RES>" + result(1, "") + "</RES></GSP>";
+    List<SearchResult> results = QueryFormatter.parseGsaResults(
+        new ByteArrayInputStream(doc.getBytes("UTF-8")), 10);
+    assertEquals(1, results.size());
+  }
+}
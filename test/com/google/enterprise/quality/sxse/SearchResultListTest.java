@@ -0,0 +1,112 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link SearchResultList}.
+ */
+public class SearchResultListTest {
+  private static SearchResult createResult(String title, String snippet) {
+    return new SearchResult(
+        URI.create("http://host/doc"), title, snippet, "1k", false);
+  }
+
+  @Test
+  public void testFingerprintIsSha1OfResults() throws Exception {
+    SearchResult first = createResult("title", "snippet");
+    SearchResult second = new SearchResult(
+        URI.create("http://host/other"), "t\u00e9", "s", "2k", true);
+    SearchResultList results =
+        SearchResultList.copyOf(Arrays.asList(first, second));
+
+    // Fingerprints must not change, since stored results are keyed by them.
+    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    for (SearchResult result : results) {
+      digest.update(result.getUrl().toString().getBytes());
+      digest.update(result.getTitle().getBytes());
+      digest.update(result.getSnippet().getBytes());
+      digest.update(result.getSize().getBytes());
+      digest.update(String.valueOf(result.isCrowded()).getBytes());
+    }
+    StringBuilder expected = new StringBuilder();
+    for (byte b : digest.digest()) {
+      expected.append(String.format("%02x", b));
+    }
+    assertEquals(expected.toString(), results.getFingerprint());
+  }
+
+  @Test
+  public void testEqualFingerprintsCompareResults() {
+    SearchResultList first = SearchResultList.copyOf(
+        Arrays.asList(createResult("ab", "c")));
+    SearchResultList second = SearchResultList.copyOf(
+        Arrays.asList(createResult("a", "bc")));
+    assertEquals(first.getFingerprint(), second.getFingerprint());
+    assertFalse(first.equals(second));
+
+    SearchResultList third = SearchResultList.copyOf(
+        Arrays.asList(createResult("ab", "c")));
+    assertTrue(first.equals(third));
+    assertEquals(first.hashCode(), third.hashCode());
+  }
+
+  @Test
+  public void testEqualsOtherLists() {
+    List<SearchResult> list = new ArrayList<SearchResult>();
+    list.add(createResult("a", "b"));
+    SearchResultList results = SearchResultList.copyOf(list);
+    assertEquals(list, results);
+    assertEquals(results, list);
+    assertEquals(list.hashCode(), results.hashCode());
+    assertEquals(SearchResultList.getFingerprint(list),
+        results.getFingerprint());
+  }
+
+  @Test
+  public void testCopyOfReturnsList() {
+    SearchResultList results = SearchResultList.copyOf(
+        Arrays.asList(createResult("a", "b")));
+    assertSame(results, SearchResultList.copyOf(results));
+  }
+
+  @Test
+  public void testBuilder() {
+    SearchResultList.Builder builder = new SearchResultList.Builder(1);
+    builder.add(createResult("a", "b")).add(createResult("c", "d"));
+    assertEquals(2, builder.size());
+    SearchResultList results = builder.build();
+    assertEquals(2, results.size());
+    assertEquals("c", results.get(1).getTitle());
+    try {
+      builder.add(createResult("e", "f"));
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.enterprise.quality.sxse.BackendClient.TokenBucket;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link TokenBucket} limiting the rate of requests to a host.
+ */
+public class TokenBucketTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1L);
+
+  @Test
+  public void testAllowsBurst() {
+    TokenBucket bucket = new TokenBucket(3, 0L);
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(0L, bucket.reserve(2.0, 3, Long.MAX_VALUE, 0L));
+    }
+    // The next token is added after half a second.
+    assertEquals(SECOND / 2, bucket.reserve(2.0, 3, Long.MAX_VALUE, 0L));
+  }
+
+  @Test
+  public void testWaitingRequestsTakeTokensInOrder() {
+    TokenBucket bucket = new TokenBucket(1, 0L);
+    assertEquals(0L, bucket.reserve(4.0, 1, Long.MAX_VALUE, 0L));
+    assertEquals(SECOND / 4, bucket.reserve(4.0, 1, Long.MAX_VALUE, 0L));
+    assertEquals(SECOND / 2, bucket.reserve(4.0, 1, Long.MAX_VALUE, 0L));
+    assertEquals(3 * SECOND / 4, bucket.reserve(4.0, 1, Long.MAX_VALUE, 0L));
+  }
+
+  @Test
+  public void testRefillsAtRate() {
+    TokenBucket bucket = new TokenBucket(2, 0L);
+    bucket.reserve(2.0, 2, Long.MAX_VALUE, 0L);
+    bucket.reserve(2.0, 2, Long.MAX_VALUE, 0L);
+
+    // Two tokens are added in a second, and no more.
+    assertEquals(0L, bucket.reserve(2.0, 2, Long.MAX_VALUE, SECOND));
+    assertEquals(0L, bucket.reserve(2.0, 2, Long.MAX_VALUE, SECOND));
+    assertEquals(SECOND / 2, bucket.reserve(2.0, 2, Long.MAX_VALUE, SECOND));
+  }
+
+  @Test
+  public void testRefillIsCappedByBurst() {
+    TokenBucket bucket = new TokenBucket(2, 0L);
+    bucket.reserve(10.0, 2, Long.MAX_VALUE, 0L);
+
+    // Idle for a minute, but only two tokens are kept.
+    long now = 60 * SECOND;
+    assertEquals(0L, bucket.reserve(10.0, 2, Long.MAX_VALUE, now));
+    assertEquals(0L, bucket.reserve(10.0, 2, Long.MAX_VALUE, now));
+    assertEquals(SECOND / 10, bucket.reserve(10.0, 2, Long.MAX_VALUE, now));
+  }
+
+  @Test
+  public void testDoesNotReservePastMaxWait() {
+    TokenBucket bucket = new TokenBucket(1, 0L);
+    bucket.reserve(1.0, 1, Long.MAX_VALUE, 0L);
+
+    // The next token is a second away, so is not reserved.
+    assertEquals(-1L, bucket.reserve(1.0, 1, SECOND / 2, 0L));
+    assertEquals(-1L, bucket.reserve(1.0, 1, SECOND / 2, 0L));
+    assertEquals(SECOND, bucket.reserve(1.0, 1, SECOND, 0L));
+  }
+
+  @Test
+  public void testAppliesNewRate() {
+    TokenBucket bucket = new TokenBucket(1, 0L);
+    bucket.reserve(1.0, 1, Long.MAX_VALUE, 0L);
+
+    // A faster rate applies to the tokens still to be added.
+    assertEquals(SECOND / 10, bucket.reserve(10.0, 1, Long.MAX_VALUE, 0L));
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link VirtualThreadPool}, which only run if the runtime supports
+ * virtual threads.
+ */
+public class VirtualThreadPoolTest {
+  @Test
+  public void testRunsJobs() throws Exception {
+    VirtualThreadPool pool = VirtualThreadPool.create();
+    assumeNotNull(pool);
+    pool.start();
+
+    final CountDownLatch ran = new CountDownLatch(1);
+    assertTrue(pool.dispatch(new Runnable() {
+      public void run() {
+        ran.countDown();
+      }
+    }));
+    assertTrue(ran.await(5L, TimeUnit.SECONDS));
+    assertFalse(pool.isLowOnThreads());
+    pool.stop();
+  }
+
+  @Test
+  public void testStopReleasesJoin() throws Exception {
+    final VirtualThreadPool pool = VirtualThreadPool.create();
+    assumeNotNull(pool);
+    pool.start();
+
+    final CountDownLatch joined = new CountDownLatch(1);
+    Thread joiner = new Thread(new Runnable() {
+      public void run() {
+        try {
+          pool.join();
+          joined.countDown();
+        } catch (InterruptedException e) {
+          // The test fails.
+        }
+      }
+    });
+    joiner.start();
+    assertFalse(joined.await(200L, TimeUnit.MILLISECONDS));
+    pool.stop();
+    assertTrue(joined.await(5L, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.enterprise.quality.sxse.servlet.CircuitBreaker.Permit;
+import com.google.enterprise.quality.sxse.servlet.CircuitBreaker.State;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest {
+  // The time for which a breaker under test stays open.
+  private static final long OPEN_MILLIS = 50L;
+
+  /*
+   * Returns a breaker that opens once half of at least two recent retrievals
+   * failed.
+   */
+  private static CircuitBreaker createBreaker() {
+    return new CircuitBreaker(4, 2, 50, OPEN_MILLIS);
+  }
+
+  /*
+   * Opens the given breaker, and waits until it allows a trial retrieval.
+   */
+  private static void openAndWait(CircuitBreaker breaker)
+      throws InterruptedException {
+    breaker.recordError(breaker.allowRetrieval());
+    breaker.recordTimeout(breaker.allowRetrieval());
+    assertEquals(State.OPEN, breaker.getState());
+    Thread.sleep(2 * OPEN_MILLIS);
+  }
+
+  @Test
+  public void testOpensAtFailurePercent() {
+    CircuitBreaker breaker = new CircuitBreaker(10, 4, 50, 60 * 1000L);
+    breaker.recordError(breaker.allowRetrieval());
+    breaker.recordError(breaker.allowRetrieval());
+    breaker.recordSuccess(breaker.allowRetrieval());
+    // All but one retrieval failed, but too few were made to open.
+    assertEquals(State.CLOSED, breaker.getState());
+    breaker.recordSuccess(breaker.allowRetrieval());
+    breaker.recordSuccess(breaker.allowRetrieval());
+    // Two of five retrievals failed, which is below half.
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(40, breaker.getErrorPercent());
+
+    breaker.recordTimeout(breaker.allowRetrieval());
+    // Three of six retrievals failed.
+    assertEquals(State.OPEN, breaker.getState());
+    assertEquals(16, breaker.getTimeoutPercent());
+    assertNull(breaker.allowRetrieval());
+    assertEquals(1L, breaker.getRefusedCount());
+  }
+
+  @Test
+  public void testAllowsSingleTrialWhenHalfOpen()
+      throws InterruptedException {
+    CircuitBreaker breaker = createBreaker();
+    openAndWait(breaker);
+    assertNotNull(breaker.allowRetrieval());
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    // Other retrievals are refused while the trial is in progress.
+    assertNull(breaker.allowRetrieval());
+    assertNull(breaker.allowRetrieval());
+    assertEquals(2L, breaker.getRefusedCount());
+  }
+
+  @Test
+  public void testReopensWhenTrialFails() throws InterruptedException {
+    CircuitBreaker breaker = createBreaker();
+    openAndWait(breaker);
+    breaker.recordError(breaker.allowRetrieval());
+    assertEquals(State.OPEN, breaker.getState());
+    assertNull(breaker.allowRetrieval());
+
+    // Once open long enough, another trial is allowed.
+    Thread.sleep(2 * OPEN_MILLIS);
+    assertNotNull(breaker.allowRetrieval());
+  }
+
+  @Test
+  public void testClosesWhenTrialSucceeds() throws InterruptedException {
+    CircuitBreaker breaker = createBreaker();
+    openAndWait(breaker);
+    breaker.recordSuccess(breaker.allowRetrieval());
+    assertEquals(State.CLOSED, breaker.getState());
+    // The failures before the breaker opened are forgotten.
+    assertEquals(0, breaker.getErrorPercent());
+    assertEquals(0, breaker.getTimeoutPercent());
+    assertNotNull(breaker.allowRetrieval());
+    assertNotNull(breaker.allowRetrieval());
+  }
+
+  @Test
+  public void testIgnoresLateOutcomesWhenHalfOpen()
+      throws InterruptedException {
+    CircuitBreaker breaker = createBreaker();
+    // Allowed while closed, but finishes only once the breaker is half-open.
+    Permit latePermit = breaker.allowRetrieval();
+    openAndWait(breaker);
+    Permit trialPermit = breaker.allowRetrieval();
+
+    breaker.recordSuccess(latePermit);
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    breaker.recordError(latePermit);
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    // Neither outcome ended the trial, so no other trial is allowed.
+    assertNull(breaker.allowRetrieval());
+
+    breaker.recordTimeout(trialPermit);
+    assertEquals(State.OPEN, breaker.getState());
+  }
+}
@@ -0,0 +1,207 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.QueryFormatter.QueryOptions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the cache of pages kept by {@link FrameProxy}, which retrieves
+ * pages from a local host.
+ */
+public class FrameProxyTest {
+  // The size of each plain text page.
+  private static final int PAGE_BYTES = 100;
+
+  private HttpServer server;
+  private ExecutorService executor;
+  private volatile long delayMillis;
+  private AtomicInteger requestCount;
+  private QueryFormatter queryFormatter;
+
+  @Before
+  public void setUp() throws IOException {
+    requestCount = new AtomicInteger();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/search", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        String query = exchange.getRequestURI().getQuery();
+        try {
+          Thread.sleep(delayMillis);
+          byte[] response;
+          if (query.endsWith("html")) {
+            exchange.getResponseHeaders().set("Content-Type", "text/html");
+            response = "<html><head><title>t</title></head></html>"
+                .getBytes("UTF-8");
+          } else {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            response = new byte[PAGE_BYTES];
+          }
+          exchange.sendResponseHeaders(200, response.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(response);
+          out.close();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (IOException e) {
+          // The client closed the connection.
+        }
+      }
+    });
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+
+    queryFormatter = QueryFormatter.createUrlPrefixFormatter(
+        "http://localhost:" + server.getAddress().getPort() + "/search?q=");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private FrameProxy.Page get(FrameProxy frameProxy, String query,
+      long timeoutMillis) throws IOException {
+    return frameProxy.get(queryFormatter, new QueryOptions(
+        query, 10, System.currentTimeMillis() + timeoutMillis));
+  }
+
+  @Test
+  public void testCachesPages() throws IOException {
+    FrameProxy frameProxy = new FrameProxy(60000L, 10000L);
+    FrameProxy.Page page = get(frameProxy, "a", 5000L);
+    assertEquals(PAGE_BYTES, page.getBytes().length);
+    assertEquals("text/plain", page.getContentType());
+    assertEquals(page, get(frameProxy, "a", 5000L));
+
+    assertEquals(1, requestCount.get());
+    assertEquals(1L, frameProxy.getHitCount());
+    assertEquals(1L, frameProxy.getMissCount());
+    assertEquals(1, frameProxy.getEntryCount());
+    assertEquals(PAGE_BYTES, frameProxy.getSizeBytes());
+  }
+
+  @Test
+  public void testExpiresPages() throws Exception {
+    FrameProxy frameProxy = new FrameProxy(200L, 10000L);
+    get(frameProxy, "a", 5000L);
+    Thread.sleep(300L);
+    get(frameProxy, "a", 5000L);
+
+    assertEquals(2, requestCount.get());
+    assertEquals(0L, frameProxy.getHitCount());
+    assertEquals(PAGE_BYTES, frameProxy.getSizeBytes());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedPages() throws IOException {
+    // Only two pages fit.
+    FrameProxy frameProxy = new FrameProxy(60000L, 2 * PAGE_BYTES + 50L);
+    get(frameProxy, "a", 5000L);
+    get(frameProxy, "b", 5000L);
+    // Using the first page makes the second page least recently used.
+    get(frameProxy, "a", 5000L);
+    get(frameProxy, "c", 5000L);
+    assertEquals(1L, frameProxy.getEvictionCount());
+    assertEquals(2, frameProxy.getEntryCount());
+    assertEquals(2 * PAGE_BYTES, frameProxy.getSizeBytes());
+
+    get(frameProxy, "a", 5000L);
+    assertEquals(3, requestCount.get());
+    get(frameProxy, "b", 5000L);
+    assertEquals(4, requestCount.get());
+  }
+
+  @Test
+  public void testDoesNotCacheLargerPages() throws IOException {
+    FrameProxy frameProxy = new FrameProxy(60000L, PAGE_BYTES - 1);
+    get(frameProxy, "a", 5000L);
+    get(frameProxy, "a", 5000L);
+    assertEquals(2, requestCount.get());
+    assertEquals(0, frameProxy.getEntryCount());
+  }
+
+  @Test
+  public void testFlushesPages() throws IOException {
+    FrameProxy frameProxy = new FrameProxy(60000L, 10000L);
+    get(frameProxy, "a", 5000L);
+    frameProxy.flush();
+    assertEquals(0, frameProxy.getEntryCount());
+    assertEquals(0L, frameProxy.getSizeBytes());
+    get(frameProxy, "a", 5000L);
+    assertEquals(2, requestCount.get());
+  }
+
+  @Test
+  public void testAddsBaseUri() throws IOException {
+    FrameProxy frameProxy = new FrameProxy(60000L, 10000L);
+    String html = new String(get(frameProxy, "html", 5000L).getBytes(),
+        "UTF-8");
+    assertTrue(html, html.startsWith("<html><head><base href=\"http://"));
+    assertTrue(html, html.contains("/search?q=html\"><title>"));
+  }
+
+  @Test
+  public void testSharedRetrievalWaitsUntilAbortTime() throws Exception {
+    delayMillis = 2000L;
+    final FrameProxy frameProxy = new FrameProxy(60000L, 10000L);
+    Future<FrameProxy.Page> first = executor.submit(
+        new Callable<FrameProxy.Page>() {
+          public FrameProxy.Page call() throws IOException {
+            return get(frameProxy, "a", 5000L);
+          }
+        });
+    while (requestCount.get() == 0) {
+      Thread.sleep(10L);
+    }
+
+    // Shares the retrieval, but stops waiting at its own abort time.
+    long startTime = System.currentTimeMillis();
+    try {
+      get(frameProxy, "a", 300L);
+      fail("waited past the abort time");
+    } catch (SocketTimeoutException e) {
+      // Expected.
+    }
+    assertTrue(System.currentTimeMillis() - startTime < 1000L);
+    assertEquals(1L, frameProxy.getSharedCount());
+    assertEquals(PAGE_BYTES, first.get(5L, TimeUnit.SECONDS).getBytes().length);
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyTracker}.
+ */
+public class LatencyTrackerTest {
+  @Test
+  public void testRequiresMinimumSamples() {
+    LatencyTracker tracker = new LatencyTracker();
+    for (int i = 1; i < LatencyTracker.MIN_SAMPLES; ++i) {
+      tracker.record(i);
+    }
+    assertEquals(LatencyTracker.MIN_SAMPLES - 1, tracker.getSampleCount());
+    assertEquals(-1L, tracker.getPercentile(50));
+
+    tracker.record(LatencyTracker.MIN_SAMPLES);
+    assertEquals(LatencyTracker.MIN_SAMPLES, tracker.getSampleCount());
+    assertEquals(LatencyTracker.MIN_SAMPLES, tracker.getPercentile(100));
+  }
+
+  @Test
+  public void testUsesNearestRank() {
+    LatencyTracker tracker = new LatencyTracker();
+    // Record the latencies 1 to 40 out of order.
+    for (int i = 0; i < 40; ++i) {
+      tracker.record(((i * 7) % 40) + 1);
+    }
+    // The rank is the percentile of the sample count, rounded up.
+    assertEquals(1L, tracker.getPercentile(1));
+    assertEquals(14L, tracker.getPercentile(33));
+    assertEquals(20L, tracker.getPercentile(50));
+    assertEquals(38L, tracker.getPercentile(95));
+    assertEquals(40L, tracker.getPercentile(99));
+    assertEquals(40L, tracker.getPercentile(100));
+  }
+
+  @Test
+  public void testEvictsOldestLatencies() {
+    LatencyTracker tracker = new LatencyTracker();
+    for (int i = 0; i < LatencyTracker.WINDOW_SIZE; ++i) {
+      tracker.record(1000L);
+    }
+    // Replace all but one of the slow latencies.
+    for (int i = 1; i < LatencyTracker.WINDOW_SIZE; ++i) {
+      tracker.record(10L);
+    }
+    assertEquals(LatencyTracker.WINDOW_SIZE, tracker.getSampleCount());
+    assertEquals(1000L, tracker.getPercentile(100));
+    assertEquals(10L, tracker.getPercentile(99));
+
+    tracker.record(10L);
+    assertEquals(LatencyTracker.WINDOW_SIZE, tracker.getSampleCount());
+    assertEquals(10L, tracker.getPercentile(100));
+  }
+
+  @Test
+  public void testRejectsInvalidPercentile() {
+    LatencyTracker tracker = new LatencyTracker();
+    for (int percentile : new int[] { 0, 101 }) {
+      try {
+        tracker.getPercentile(percentile);
+        fail("accepted percentile " + percentile);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
+import com.google.enterprise.quality.sxse.SearchResult;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link PrefetchedResults}.
+ */
+public class PrefetchedResultsTest {
+  private static final ScoringPolicyProfile FIRST = createProfile("a");
+  private static final ScoringPolicyProfile SECOND = createProfile("b");
+  private static final ScoringPolicyProfile OTHER = createProfile("c");
+
+  private static ScoringPolicyProfile createProfile(String name) {
+    return new ScoringPolicyProfile(name,
+        QueryFormatter.createUrlPrefixFormatter("http://" + name + "/?q="));
+  }
+
+  private static PrefetchedResults createPrefetched(
+      List<SearchResult> firstResults, List<SearchResult> secondResults) {
+    return new PrefetchedResults("q", FIRST, SECOND, 10,
+        ResultRetriever.newDoneFuture(firstResults),
+        ResultRetriever.newDoneFuture(secondResults));
+  }
+
+  @Test
+  public void testIsForProfilesInEitherOrder() {
+    PrefetchedResults prefetched = createPrefetched(
+        Collections.<SearchResult>emptyList(),
+        Collections.<SearchResult>emptyList());
+    assertTrue(prefetched.isForProfiles(FIRST, SECOND));
+    assertTrue(prefetched.isForProfiles(SECOND, FIRST));
+    // A copy of a profile is the same profile, but an edited one is not.
+    assertTrue(prefetched.isForProfiles(createProfile("a"), SECOND));
+    assertFalse(prefetched.isForProfiles(new ScoringPolicyProfile("a",
+        QueryFormatter.createUrlPrefixFormatter("http://x/?q=")), SECOND));
+    assertFalse(prefetched.isForProfiles(FIRST, OTHER));
+    assertFalse(prefetched.isForProfiles(OTHER, SECOND));
+    assertFalse(prefetched.isForProfiles(FIRST, FIRST));
+  }
+
+  @Test
+  public void testIsUsable() {
+    PrefetchedResults prefetched = createPrefetched(
+        Collections.<SearchResult>emptyList(),
+        Collections.<SearchResult>emptyList());
+    assertTrue(prefetched.isUsable("q", FIRST, SECOND, 10));
+    assertFalse(prefetched.isUsable("r", FIRST, SECOND, 10));
+    assertFalse(prefetched.isUsable("q", FIRST, SECOND, 20));
+    // The profiles are displayed in the order they were prefetched.
+    assertFalse(prefetched.isUsable("q", SECOND, FIRST, 10));
+    assertFalse(prefetched.isUsable("q", FIRST, OTHER, 10));
+  }
+
+  @Test
+  public void testFailedRetrievalIsNotUsable() {
+    PrefetchedResults prefetched =
+        createPrefetched(Collections.<SearchResult>emptyList(), null);
+    assertFalse(prefetched.isUsable("q", FIRST, SECOND, 10));
+  }
+}
@@ -0,0 +1,120 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.ScoringPolicyProfile;
+import com.google.enterprise.quality.sxse.storage.PreferencesStorage;
+import com.google.enterprise.quality.sxse.storage.QueryStorage;
+import com.google.enterprise.quality.sxse.storage.StorageManager;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+import com.google.enterprise.quality.sxse.storage.textstorage.TextStorage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link PrescreenedQueryChooser}.
+ */
+public class PrescreenedQueryChooserTest {
+  private static final QueryFormatter FIRST_FORMATTER =
+      QueryFormatter.createUrlPrefixFormatter("http://first/search?q=");
+  private static final QueryFormatter SECOND_FORMATTER =
+      QueryFormatter.createUrlPrefixFormatter("http://second/search?q=");
+
+  // The number of queries chosen by each test.
+  private static final int CHOICES = 50;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private StorageManager storageManager;
+  private PrescreenedQueryChooser queryChooser;
+
+  @Before
+  public void setUp() throws SxseStorageException {
+    storageManager = new TextStorage(folder.getRoot());
+    PreferencesStorage prefsStorage = storageManager.getPreferencesStorage();
+    prefsStorage.addProfile(new ScoringPolicyProfile("first", FIRST_FORMATTER));
+    prefsStorage.addProfile(
+        new ScoringPolicyProfile("second", SECOND_FORMATTER));
+    prefsStorage.setFirstProfile("first");
+    prefsStorage.setSecondProfile("second");
+
+    QueryStorage queryStorage = storageManager.getQueryStorage();
+    queryStorage.addQuerySet("s", ImmutableSortedSet.of("a", "b", "c"));
+    queryStorage.addQuerySet("t", ImmutableSortedSet.of("x"));
+    queryStorage.setActive("s", true);
+    queryStorage.setActive("t", true);
+
+    PrescreenJob prescreenJob = new PrescreenJob(storageManager,
+        new ResultRetriever(1, 1, new SearchResultCache(0L, 0L)), 1, 1);
+    queryChooser = new PrescreenedQueryChooser(new RandomQueryChooser(),
+        prescreenJob);
+  }
+
+  /*
+   * Saves the given queries as having identical results, as PrescreenJob does.
+   */
+  private void markIdentical(String... queries) throws SxseStorageException {
+    for (String query : queries) {
+      storageManager.getJudgmentStorage().addIdenticalQuery(
+          FIRST_FORMATTER, SECOND_FORMATTER, query);
+    }
+  }
+
+  @Test
+  public void testSkipsIdenticalQueries() throws SxseStorageException {
+    markIdentical("a", "b", "x");
+    for (int i = 0; i < CHOICES; ++i) {
+      // The set t is left empty, so only c can be chosen.
+      assertEquals("c", queryChooser.choose(storageManager, null));
+      assertEquals("c", queryChooser.choose(storageManager, null, "s"));
+    }
+  }
+
+  @Test
+  public void testChoosesAllQueriesWhenNoneRemain()
+      throws SxseStorageException {
+    storageManager.getQueryStorage().setActive("t", false);
+    markIdentical("a", "b", "c");
+    List<String> queries = Arrays.asList("a", "b", "c");
+    for (int i = 0; i < CHOICES; ++i) {
+      // No active query remains, so all active queries are chosen from.
+      assertTrue(queries.contains(queryChooser.choose(storageManager, null)));
+    }
+  }
+
+  @Test
+  public void testChoosesFromRemainingQueriesOfSet()
+      throws SxseStorageException {
+    markIdentical("a", "b", "c");
+    for (int i = 0; i < CHOICES; ++i) {
+      assertEquals("x", queryChooser.choose(storageManager, null));
+      // Every query in the set s is identical, so all of them are chosen from.
+      String query = queryChooser.choose(storageManager, null, "s");
+      assertTrue(Arrays.asList("a", "b", "c").contains(query));
+    }
+  }
+}
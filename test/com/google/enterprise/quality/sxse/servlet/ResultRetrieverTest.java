@@ -0,0 +1,257 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.quality.sxse.HostQueryArgsPair;
+import com.google.enterprise.quality.sxse.QueryArguments;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.SearchResult;
+import com.google.enterprise.quality.sxse.servlet.ResultRetriever.BackendStatus;
+import com.google.enterprise.quality.sxse.QueryFormatter.QueryOptions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ResultRetriever}, which retrieves results from a local
+ * host that responds like a search appliance after a set delay.
+ */
+public class ResultRetrieverTest {
+  private static final String RESPONSE = "<?xml version=\"1.0\"?><GSP><RES>" +
+      "<R N=\"1\"><U>http://host/1</U><T>one</T></R>" +
+      "<R N=\"2\"><U>http://host/2</U><T>two</T></R></RES></GSP>";
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private volatile long delayMillis;
+  // The number of the request that is delayed by slowDelayMillis instead.
+  private volatile int slowRequest;
+  private volatile long slowDelayMillis;
+  private AtomicInteger requestCount;
+  private QueryFormatter queryFormatter;
+
+  @Before
+  public void setUp() throws IOException {
+    requestCount = new AtomicInteger();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/search", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        int request = requestCount.incrementAndGet();
+        try {
+          Thread.sleep(
+              (request == slowRequest) ? slowDelayMillis : delayMillis);
+          byte[] response = RESPONSE.getBytes("UTF-8");
+          exchange.sendResponseHeaders(200, response.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(response);
+          out.close();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (IOException e) {
+          // The client closed the connection.
+        }
+      }
+    });
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    server.start();
+
+    queryFormatter = QueryFormatter.createGsaFormatter(new HostQueryArgsPair(
+        "localhost:" + server.getAddress().getPort(),
+        new QueryArguments("", "", "")));
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  private static ResultRetriever createRetriever(int threads, int queueDepth) {
+    return new ResultRetriever(threads, queueDepth,
+        new SearchResultCache(0L, 0L));
+  }
+
+  private static QueryOptions createOptions(String query, long timeoutMillis) {
+    return new QueryOptions(query, 10,
+        System.currentTimeMillis() + timeoutMillis);
+  }
+
+  @Test
+  public void testRetrievesResults() throws Exception {
+    ResultRetriever retriever = createRetriever(2, 2);
+    List<SearchResult> results = retriever.submit(queryFormatter,
+        createOptions("q", 5000L)).get(5L, TimeUnit.SECONDS);
+    assertEquals(2, results.size());
+    assertEquals("one", results.get(0).getTitle());
+  }
+
+  @Test
+  public void testCoalescesConcurrentRequests() throws Exception {
+    delayMillis = 300L;
+    ResultRetriever retriever = createRetriever(2, 2);
+    Future<List<SearchResult>> first =
+        retriever.submit(queryFormatter, createOptions("q", 5000L));
+    Future<List<SearchResult>> second =
+        retriever.submit(queryFormatter, createOptions("q", 5000L));
+    assertEquals(1L, retriever.getCoalescedCount());
+    assertEquals(first.get(5L, TimeUnit.SECONDS),
+        second.get(5L, TimeUnit.SECONDS));
+    assertEquals(1, requestCount.get());
+  }
+
+  @Test
+  public void testCancellingOneWaiterDoesNotCancelOthers() throws Exception {
+    delayMillis = 300L;
+    ResultRetriever retriever = createRetriever(2, 2);
+    Future<List<SearchResult>> first =
+        retriever.submit(queryFormatter, createOptions("q", 5000L));
+    Future<List<SearchResult>> second =
+        retriever.submit(queryFormatter, createOptions("q", 5000L));
+    assertTrue(first.cancel(true));
+    assertTrue(first.isCancelled());
+    assertFalse(second.isCancelled());
+    assertEquals(2, second.get(5L, TimeUnit.SECONDS).size());
+  }
+
+  @Test
+  public void testRetrievesUntilLatestDeadline() throws Exception {
+    delayMillis = 600L;
+    ResultRetriever retriever = createRetriever(2, 2);
+    Future<List<SearchResult>> early =
+        retriever.submit(queryFormatter, createOptions("q", 200L));
+    Future<List<SearchResult>> late =
+        retriever.submit(queryFormatter, createOptions("q", 5000L));
+
+    // The early request still stops waiting at its own deadline.
+    try {
+      early.get(200L, TimeUnit.MILLISECONDS);
+      fail("waited past the deadline");
+    } catch (TimeoutException e) {
+      // Expected.
+    }
+    // The attempt timed out at the early deadline, and was retried.
+    assertEquals(2, late.get(5L, TimeUnit.SECONDS).size());
+    assertEquals(2, requestCount.get());
+  }
+
+  @Test
+  public void testRejectedWaiterIsCancelled() throws Exception {
+    delayMillis = 500L;
+    // One thread and one queued request, so a third request is rejected.
+    ResultRetriever retriever = createRetriever(1, 1);
+    Future<List<SearchResult>> running =
+        retriever.submit(queryFormatter, createOptions("a", 5000L));
+    Future<List<SearchResult>> queued =
+        retriever.submit(queryFormatter, createOptions("b", 5000L));
+    Future<List<SearchResult>> rejected =
+        retriever.submit(queryFormatter, createOptions("c", 5000L));
+
+    assertTrue(rejected.isCancelled());
+    assertTrue(rejected.isDone());
+    try {
+      rejected.get();
+      fail("got results of a rejected request");
+    } catch (CancellationException e) {
+      // Expected.
+    }
+    assertEquals(1L, retriever.getBackendStatuses().get(0).getRejectedCount());
+    assertFalse(running.isCancelled());
+    assertEquals(2, queued.get(5L, TimeUnit.SECONDS).size());
+  }
+
+  @Test
+  public void testAdaptiveTimeoutIsCappedByTimeout() throws Exception {
+    ResultRetriever retriever = createRetriever(2, 2);
+    retriever.setAdaptiveTimeout(95, 1000L);
+    // Too few latencies are recorded, so the timeout for all formatters
+    // applies.
+    assertEquals(-1L, retriever.getAdaptiveTimeoutMillis(queryFormatter));
+    assertEquals(3000L, retriever.getTimeoutMillis(queryFormatter, 3000L));
+
+    for (int i = 0; i < LatencyTracker.MIN_SAMPLES; ++i) {
+      retriever.submit(queryFormatter, createOptions("q" + i, 5000L))
+          .get(5L, TimeUnit.SECONDS);
+    }
+    // The host responds at once, so the timeout is mostly the margin.
+    long adaptiveTimeout = retriever.getAdaptiveTimeoutMillis(queryFormatter);
+    assertTrue((adaptiveTimeout >= 1000L) && (adaptiveTimeout < 3000L));
+    assertEquals(adaptiveTimeout,
+        retriever.getTimeoutMillis(queryFormatter, 3000L));
+    // The adaptive timeout never exceeds the timeout for all formatters.
+    assertEquals(500L, retriever.getTimeoutMillis(queryFormatter, 500L));
+
+    retriever.setAdaptiveTimeout(0, 1000L);
+    assertEquals(-1L, retriever.getAdaptiveTimeoutMillis(queryFormatter));
+    assertEquals(3000L, retriever.getTimeoutMillis(queryFormatter, 3000L));
+  }
+
+  @Test
+  public void testAbortsLosingHedge() throws Exception {
+    ResultRetriever retriever = createRetriever(2, 2);
+    // Record enough latencies for the hedge delay to be known.
+    for (int i = 0; i < LatencyTracker.MIN_SAMPLES; ++i) {
+      retriever.submit(queryFormatter, createOptions("q" + i, 5000L))
+          .get(5L, TimeUnit.SECONDS);
+    }
+    retriever.setHedging(50, 100);
+
+    // The first attempt is slow, so the hedged attempt wins.
+    slowDelayMillis = 5000L;
+    slowRequest = requestCount.get() + 1;
+    long startTime = System.currentTimeMillis();
+    List<SearchResult> results = retriever.submit(queryFormatter,
+        createOptions("slow", 10000L)).get(5L, TimeUnit.SECONDS);
+    assertEquals(2, results.size());
+    assertTrue(System.currentTimeMillis() - startTime < 2000L);
+    assertEquals(1L, retriever.getHedgeCount());
+    assertEquals(1L, retriever.getHedgeWinCount());
+
+    // The connection of the losing attempt was closed, freeing its thread
+    // long before the host responds to it.
+    BackendStatus status = retriever.getBackendStatuses().get(0);
+    for (int i = 0; (status.getActiveCount() > 0) && (i < 20); ++i) {
+      Thread.sleep(50L);
+      status = retriever.getBackendStatuses().get(0);
+    }
+    assertEquals(0, status.getActiveCount());
+    assertTrue(System.currentTimeMillis() - startTime < 3000L);
+    // The aborted attempt is not recorded as a failure of the host.
+    assertEquals(0, status.getErrorPercent());
+    assertEquals(0, status.getTimeoutPercent());
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.quality.sxse.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.SearchResult;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link SearchResultCache}.
+ */
+public class SearchResultCacheTest {
+  private static final QueryFormatter FORMATTER =
+      QueryFormatter.createUrlPrefixFormatter("http://host/search?q=");
+  private static final QueryFormatter OTHER_FORMATTER =
+      QueryFormatter.createUrlPrefixFormatter("http://other/search?q=");
+
+  private static List<SearchResult> createResults(int numResults) {
+    List<SearchResult> results = new ArrayList<SearchResult>(numResults);
+    for (int i = 0; i < numResults; ++i) {
+      results.add(new SearchResult(URI.create("http://host/" + i),
+          "title", "snippet", "1k", false));
+    }
+    return results;
+  }
+
+  @Test
+  public void testGetsCachedResults() {
+    SearchResultCache cache = new SearchResultCache(60000L, 1024 * 1024L);
+    List<SearchResult> results = createResults(3);
+    cache.put(FORMATTER, "q", 10, results);
+    assertEquals(results, cache.get(FORMATTER, "q", 10));
+    assertEquals(1L, cache.getHitCount());
+
+    // Each of the formatter, query and number of results identifies the list.
+    assertNull(cache.get(OTHER_FORMATTER, "q", 10));
+    assertNull(cache.get(FORMATTER, "r", 10));
+    assertNull(cache.get(FORMATTER, "q", 20));
+    assertEquals(3L, cache.getMissCount());
+  }
+
+  @Test
+  public void testExpires() throws InterruptedException {
+    SearchResultCache cache = new SearchResultCache(50L, 1024 * 1024L);
+    cache.put(FORMATTER, "q", 10, createResults(3));
+    Thread.sleep(100L);
+    assertNull(cache.get(FORMATTER, "q", 10));
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0L, cache.getSizeBytes());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    List<SearchResult> results = createResults(10);
+    SearchResultCache sizingCache =
+        new SearchResultCache(60000L, Long.MAX_VALUE);
+    sizingCache.put(FORMATTER, "q", 10, results);
+    long listBytes = sizingCache.getSizeBytes();
+
+    // Holds two lists, but not three.
+    SearchResultCache cache = new SearchResultCache(60000L, 2 * listBytes);
+    cache.put(FORMATTER, "a", 10, results);
+    cache.put(FORMATTER, "b", 10, results);
+    // Makes b the least recently used list.
+    cache.get(FORMATTER, "a", 10);
+    cache.put(FORMATTER, "c", 10, results);
+
+    assertEquals(1L, cache.getEvictionCount());
+    assertEquals(2, cache.getEntryCount());
+    assertEquals(2 * listBytes, cache.getSizeBytes());
+    assertNull(cache.get(FORMATTER, "b", 10));
+    assertEquals(results, cache.get(FORMATTER, "a", 10));
+    assertEquals(results, cache.get(FORMATTER, "c", 10));
+  }
+
+  @Test
+  public void testReplacesList() {
+    SearchResultCache cache = new SearchResultCache(60000L, 1024 * 1024L);
+    cache.put(FORMATTER, "q", 10, createResults(10));
+    List<SearchResult> results = createResults(2);
+    cache.put(FORMATTER, "q", 10, results);
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(results, cache.get(FORMATTER, "q", 10));
+
+    SearchResultCache sizingCache =
+        new SearchResultCache(60000L, Long.MAX_VALUE);
+    sizingCache.put(FORMATTER, "q", 10, results);
+    assertEquals(sizingCache.getSizeBytes(), cache.getSizeBytes());
+  }
+
+  @Test
+  public void testDoesNotCacheListLargerThanMaximum() {
+    SearchResultCache cache = new SearchResultCache(60000L, 100L);
+    cache.put(FORMATTER, "q", 10, createResults(10));
+    assertNull(cache.get(FORMATTER, "q", 10));
+    assertEquals(0L, cache.getEvictionCount());
+  }
+
+  @Test
+  public void testDisabled() {
+    SearchResultCache cache = new SearchResultCache(0L, 1024 * 1024L);
+    assertFalse(cache.isEnabled());
+    cache.put(FORMATTER, "q", 10, createResults(3));
+    assertNull(cache.get(FORMATTER, "q", 10));
+  }
+
+  @Test
+  public void testFlush() {
+    SearchResultCache cache = new SearchResultCache(60000L, 1024 * 1024L);
+    cache.put(FORMATTER, "q", 10, createResults(3));
+    cache.flush();
+    assertNull(cache.get(FORMATTER, "q", 10));
+    assertEquals(0L, cache.getSizeBytes());
+  }
+}
@@ -0,0 +1,150 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.quality.sxse.storage.textstorage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.SearchResult;
+import com.google.enterprise.quality.sxse.SearchResultList;
+import com.google.enterprise.quality.sxse.hashers.HasherFactorySha1;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the snapshots and identical queries kept by
+ * {@link TextJudgmentStorage}.
+ */
+public class TextJudgmentStorageTest {
+  private static final QueryFormatter FORMATTER =
+      QueryFormatter.createUrlPrefixFormatter("http://host/search?q=");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private TextJudgmentStorage createStorage() throws SxseStorageException {
+    File root = folder.getRoot();
+    return new TextJudgmentStorage(root, HasherFactorySha1.INSTANCE.getHasher(),
+        new File(root, "users"));
+  }
+
+  private static List<SearchResult> createResults(String title) {
+    return SearchResultList.copyOf(Arrays.asList(
+        new SearchResult(URI.create("http://host/1"), title, "s", "1k", false),
+        new SearchResult(URI.create("http://host/2"), title, "s", "2k", true)));
+  }
+
+  private static String getId(List<SearchResult> results) {
+    String hash = ((SearchResultList) results).getFingerprint();
+    return hash + hash;
+  }
+
+  @Test
+  public void testSavesSnapshots() throws SxseStorageException {
+    TextJudgmentStorage storage = createStorage();
+    List<SearchResult> results = createResults("a");
+    storage.addSnapshot(FORMATTER, "q", 10, results);
+    assertTrue(storage.hasSnapshot(FORMATTER, "q", 10));
+    assertFalse(storage.hasSnapshot(FORMATTER, "q", 20));
+    assertEquals(results, storage.getSnapshot(FORMATTER, "q", 10));
+
+    // Snapshots read again are found by an equal formatter.
+    TextJudgmentStorage reopened = createStorage();
+    assertEquals(1, reopened.getSnapshotCount());
+    assertEquals(results, reopened.getSnapshot(
+        QueryFormatter.createUrlPrefixFormatter("http://host/search?q="),
+        "q", 10));
+  }
+
+  @Test
+  public void testReplacedSnapshotReleasesResults()
+      throws SxseStorageException {
+    TextJudgmentStorage storage = createStorage();
+    List<SearchResult> oldResults = createResults("a");
+    List<SearchResult> newResults = createResults("b");
+    storage.addSnapshot(FORMATTER, "q", 10, oldResults);
+    storage.addSnapshot(FORMATTER, "r", 10, newResults);
+    storage.addSnapshot(FORMATTER, "q", 10, newResults);
+
+    assertEquals(2, storage.getSnapshotCount());
+    assertFalse(storage.hasResult(getId(oldResults)));
+    assertTrue(storage.hasResult(getId(newResults)));
+    assertNull(storage.getSnapshot(FORMATTER, "s", 10));
+  }
+
+  @Test
+  public void testFailedSnapshotReleasesResults()
+      throws SxseStorageException, IOException {
+    TextJudgmentStorage storage = createStorage();
+    List<SearchResult> results = createResults("a");
+    // The snapshots file cannot be appended to once it is a directory.
+    File snapshotsFile = new File(folder.getRoot(), "snapshots");
+    snapshotsFile.delete();
+    assertTrue(snapshotsFile.mkdir());
+    try {
+      storage.addSnapshot(FORMATTER, "q", 10, results);
+      fail("saved a snapshot that could not be written");
+    } catch (SxseStorageException e) {
+      // Expected.
+    }
+
+    assertFalse(storage.hasSnapshot(FORMATTER, "q", 10));
+    // No reference to the results is left behind.
+    assertFalse(storage.hasResult(getId(results)));
+  }
+
+  @Test
+  public void testSavesIdenticalQueries() throws SxseStorageException {
+    QueryFormatter otherFormatter =
+        QueryFormatter.createUrlPrefixFormatter("http://other/search?q=");
+    TextJudgmentStorage storage = createStorage();
+    storage.addIdenticalQuery(FORMATTER, otherFormatter, "q");
+    storage.addIdenticalQuery(otherFormatter, FORMATTER, "r");
+    storage.addIdenticalQuery(FORMATTER, FORMATTER, "s");
+    assertEquals(ImmutableSet.of("q", "r"),
+        storage.getIdenticalQueries(otherFormatter, FORMATTER));
+    // Identical queries are not judgments of any user.
+    assertTrue(storage.getUsers().isEmpty());
+
+    // Queries read again are found by equal formatters in either order.
+    TextJudgmentStorage reopened = createStorage();
+    assertEquals(ImmutableSet.of("q", "r"), reopened.getIdenticalQueries(
+        FORMATTER,
+        QueryFormatter.createUrlPrefixFormatter("http://other/search?q=")));
+    assertEquals(ImmutableSet.of("s"),
+        reopened.getIdenticalQueries(FORMATTER, FORMATTER));
+
+    reopened.removeIdenticalQueries();
+    assertTrue(reopened.getIdenticalQueries(
+        FORMATTER, otherFormatter).isEmpty());
+    assertTrue(createStorage().getIdenticalQueries(
+        FORMATTER, FORMATTER).isEmpty());
+  }
+}
@@ -0,0 +1,343 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.storage.textstorage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.quality.sxse.SearchResult;
+import com.google.enterprise.quality.sxse.SearchResultList;
+import com.google.enterprise.quality.sxse.hashers.Hasher;
+import com.google.enterprise.quality.sxse.hashers.HasherFactorySha1;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link TextResultStorage}.
+ */
+public class TextResultStorageTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  // The size of the header and of each entry of the index for SHA-1 hashes.
+  private static final int INDEX_HEADER_SIZE = 8;
+  private static final int INDEX_ENTRY_SIZE = 40 + 8 + 4 + 4;
+
+  private TextResultStorage createStorage(Hasher hasher)
+      throws SxseStorageException {
+    return createStorage(hasher, new HashMap<String, Integer>());
+  }
+
+  private TextResultStorage createStorage(Hasher hasher,
+      HashMap<String, Integer> hashRefCounts) throws SxseStorageException {
+    return new TextResultStorage(getResultDir(), hasher, hashRefCounts);
+  }
+
+  /*
+   * Creates storage again, with each of the given hashes referenced once.
+   */
+  private TextResultStorage reopenStorage(List<String> hashes)
+      throws SxseStorageException {
+    HashMap<String, Integer> hashRefCounts = new HashMap<String, Integer>();
+    for (String hash : hashes) {
+      hashRefCounts.put(hash, 1);
+    }
+    return createStorage(HasherFactorySha1.INSTANCE.getHasher(),
+        hashRefCounts);
+  }
+
+  private File getResultDir() {
+    return new File(folder.getRoot(), "results");
+  }
+
+  private File getIndexFile() {
+    return new File(getResultDir(), "resultsIndex");
+  }
+
+  /*
+   * Creates the given number of results, whose titles and snippets contain
+   * characters encoded as several bytes in UTF-8.
+   */
+  private static SearchResultList createResults(String title, int numResults) {
+    List<SearchResult> results = new ArrayList<SearchResult>();
+    for (int i = 0; i < numResults; ++i) {
+      results.add(new SearchResult(URI.create("http://host/" + i),
+          title + " caf\u00e9 " + i, "\u65e5\u672c\u8a9e " + i, i + "k",
+          (i % 2) == 1));
+    }
+    return SearchResultList.copyOf(results);
+  }
+
+  /*
+   * Adds lists of results of different lengths, and returns their hashes.
+   */
+  private static List<String> addResultLists(TextResultStorage storage,
+      int numLists) throws SxseStorageException {
+    List<String> hashes = new ArrayList<String>();
+    for (int i = 0; i < numLists; ++i) {
+      hashes.add(storage.addResultList(createResults("list " + i, i + 1)));
+    }
+    return hashes;
+  }
+
+  /*
+   * Asserts that each list added by addResultLists is read back unchanged.
+   */
+  private static void assertResultLists(TextResultStorage storage,
+      List<String> hashes) throws SxseStorageException {
+    for (int i = 0; i < hashes.size(); ++i) {
+      List<SearchResult> read = new ArrayList<SearchResult>();
+      assertTrue(storage.getResultList(hashes.get(i), read));
+      assertEquals(createResults("list " + i, i + 1), read);
+    }
+  }
+
+  private static String hash(Hasher hasher, List<SearchResult> results) {
+    for (SearchResult result : results) {
+      result.updateHasher(hasher);
+    }
+    return TextUtil.bytesToHexString(hasher.finish());
+  }
+
+  @Test
+  public void testReusesSha1Fingerprint() throws SxseStorageException {
+    TextResultStorage storage =
+        createStorage(HasherFactorySha1.INSTANCE.getHasher());
+    SearchResultList results = createResults("a", 2);
+    String resultsHash = storage.addResultList(results);
+    assertEquals(results.getFingerprint(), resultsHash);
+    assertEquals(
+        hash(HasherFactorySha1.INSTANCE.getHasher(), results), resultsHash);
+
+    List<SearchResult> read = new ArrayList<SearchResult>();
+    assertTrue(storage.getResultList(resultsHash, read));
+    assertEquals(results, read);
+  }
+
+  @Test
+  public void testHashesWithConfiguredHasher() throws SxseStorageException {
+    TextResultStorage storage = createStorage(new Md5Hasher());
+    SearchResultList results = createResults("a", 2);
+    String resultsHash = storage.addResultList(results);
+    assertEquals(hash(new Md5Hasher(), results), resultsHash);
+    assertFalse(results.getFingerprint().equals(resultsHash));
+
+    // Results without a fingerprint are stored under the same hash.
+    List<SearchResult> copy = new ArrayList<SearchResult>(results);
+    assertEquals(resultsHash, storage.addResultList(copy));
+
+    List<SearchResult> read = new ArrayList<SearchResult>();
+    assertTrue(storage.getResultList(resultsHash, read));
+    assertEquals(results, read);
+  }
+
+  @Test
+  public void testReadsMultiByteCharacters() throws SxseStorageException {
+    TextResultStorage storage =
+        createStorage(HasherFactorySha1.INSTANCE.getHasher());
+    // Each record starts at the byte offset following the last record.
+    List<String> hashes = addResultLists(storage, 5);
+    assertResultLists(storage, hashes);
+
+    assertResultLists(reopenStorage(hashes), hashes);
+  }
+
+  @Test
+  public void testReadsConcurrentlyWithAppends() throws Exception {
+    final TextResultStorage storage =
+        createStorage(HasherFactorySha1.INSTANCE.getHasher());
+    final List<String> hashes = addResultLists(storage, 10);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Void>> readers = new ArrayList<Future<Void>>();
+      for (int i = 0; i < 4; ++i) {
+        readers.add(executor.submit(new Callable<Void>() {
+          public Void call() throws SxseStorageException {
+            for (int j = 0; j < 50; ++j) {
+              assertResultLists(storage, hashes);
+            }
+            return null;
+          }
+        }));
+      }
+      for (int i = 0; i < 50; ++i) {
+        storage.addResultList(createResults("appended " + i, 3));
+      }
+      for (Future<Void> reader : readers) {
+        reader.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testIndexesAppendedRecords() throws SxseStorageException {
+    TextResultStorage storage =
+        createStorage(HasherFactorySha1.INSTANCE.getHasher());
+    List<String> hashes = addResultLists(storage, 3);
+    // Adding the same results again does not append a record.
+    storage.addResultList(createResults("list 0", 1));
+    assertEquals(INDEX_HEADER_SIZE + 3 * INDEX_ENTRY_SIZE,
+        getIndexFile().length());
+
+    assertResultLists(reopenStorage(hashes), hashes);
+  }
+
+  @Test
+  public void testScansResultsWithoutIndex() throws SxseStorageException {
+    List<String> hashes = addResultLists(
+        createStorage(HasherFactorySha1.INSTANCE.getHasher()), 3);
+    assertTrue(getIndexFile().delete());
+
+    assertResultLists(reopenStorage(hashes), hashes);
+    // The scanned records are indexed again.
+    assertEquals(INDEX_HEADER_SIZE + 3 * INDEX_ENTRY_SIZE,
+        getIndexFile().length());
+  }
+
+  @Test
+  public void testScansRecordsFollowingIndex()
+      throws SxseStorageException, IOException {
+    List<String> hashes = addResultLists(
+        createStorage(HasherFactorySha1.INSTANCE.getHasher()), 3);
+    // Lose the last entry, and write only part of it again.
+    truncateIndex(INDEX_HEADER_SIZE + 2 * INDEX_ENTRY_SIZE + 10);
+
+    assertResultLists(reopenStorage(hashes), hashes);
+    assertEquals(INDEX_HEADER_SIZE + 3 * INDEX_ENTRY_SIZE,
+        getIndexFile().length());
+  }
+
+  @Test
+  public void testIgnoresCorruptIndexEntry()
+      throws SxseStorageException, IOException {
+    List<String> hashes = addResultLists(
+        createStorage(HasherFactorySha1.INSTANCE.getHasher()), 3);
+    // Change the length of the second entry, so its checksum is wrong.
+    RandomAccessFile indexAccess = new RandomAccessFile(getIndexFile(), "rw");
+    try {
+      indexAccess.seek(INDEX_HEADER_SIZE + 2 * INDEX_ENTRY_SIZE - 5);
+      indexAccess.write(0x7f);
+    } finally {
+      indexAccess.close();
+    }
+
+    assertResultLists(reopenStorage(hashes), hashes);
+  }
+
+  @Test
+  public void testDiscardsStaleIndex() throws SxseStorageException {
+    List<String> hashes = addResultLists(
+        createStorage(HasherFactorySha1.INSTANCE.getHasher()), 3);
+    // Index the records under each other's hashes, as a stale index would.
+    TextResultIndex index = new TextResultIndex(getResultDir(), 40);
+    List<TextResultIndex.Entry> entries = index.read(Long.MAX_VALUE);
+    List<TextResultIndex.Entry> staleEntries =
+        new ArrayList<TextResultIndex.Entry>();
+    for (int i = 0; i < entries.size(); ++i) {
+      TextResultIndex.Entry entry = entries.get(i);
+      staleEntries.add(new TextResultIndex.Entry(
+          hashes.get((i + 1) % hashes.size()), entry.offset, entry.length));
+    }
+    index.write(staleEntries);
+
+    assertResultLists(reopenStorage(hashes), hashes);
+  }
+
+  @Test
+  public void testReindexesRewrittenResults() throws SxseStorageException {
+    TextResultStorage storage =
+        createStorage(HasherFactorySha1.INSTANCE.getHasher());
+    List<String> hashes = addResultLists(storage, 3);
+    // Orphan the first list, so the others move to new offsets.
+    HashMap<String, Integer> removedHashRefCounts =
+        new HashMap<String, Integer>();
+    removedHashRefCounts.put(hashes.get(0), 1);
+    storage.updateHashRefCounts(removedHashRefCounts);
+
+    List<String> remaining = hashes.subList(1, hashes.size());
+    List<SearchResult> read = new ArrayList<SearchResult>();
+    assertFalse(storage.getResultList(hashes.get(0), read));
+    assertEquals(INDEX_HEADER_SIZE + 2 * INDEX_ENTRY_SIZE,
+        getIndexFile().length());
+
+    TextResultStorage reopened = reopenStorage(remaining);
+    for (int i = 1; i < hashes.size(); ++i) {
+      read.clear();
+      assertTrue(reopened.getResultList(hashes.get(i), read));
+      assertEquals(createResults("list " + i, i + 1), read);
+    }
+  }
+
+  private void truncateIndex(long length) throws IOException {
+    RandomAccessFile indexAccess = new RandomAccessFile(getIndexFile(), "rw");
+    try {
+      indexAccess.setLength(length);
+    } finally {
+      indexAccess.close();
+    }
+  }
+
+  /**
+   * A {@link Hasher} computing MD5 hashes, which differ from fingerprints.
+   */
+  private static final class Md5Hasher implements Hasher {
+    private final MessageDigest digest;
+
+    Md5Hasher() {
+      try {
+        digest = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    public void reset() {
+      digest.reset();
+    }
+
+    public byte[] finish() {
+      return digest.digest();
+    }
+
+    public void update(byte[] input) {
+      digest.update(input);
+    }
+
+    public int getHashSize() {
+      return digest.getDigestLength();
+    }
+  }
+}
@@ -0,0 +1,308 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.quality.sxse.storage.textstorage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.quality.sxse.JudgmentDetails;
+import com.google.enterprise.quality.sxse.QueryFormatter;
+import com.google.enterprise.quality.sxse.JudgmentDetails.Judgment;
+import com.google.enterprise.quality.sxse.storage.SxseStorageException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link TextUserStorage}.
+ */
+public class TextUserStorageTest {
+  private static final QueryFormatter FIRST_FORMATTER =
+      QueryFormatter.createUrlPrefixFormatter("http://first/search?q=");
+  private static final QueryFormatter SECOND_FORMATTER =
+      QueryFormatter.createUrlPrefixFormatter("http://second/search?q=");
+
+  // The size in bytes of a SHA-1 hash of results.
+  private static final int RESULT_HASH_SIZE = 20;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File getUsersDir() {
+    return new File(folder.getRoot(), "users");
+  }
+
+  private TextUserStorage createStorage() throws SxseStorageException {
+    return createStorage(getUsersDir(), new HashMap<String, Integer>());
+  }
+
+  private static TextUserStorage createStorage(File usersDir,
+      Map<String, Integer> hashRefCounts) throws SxseStorageException {
+    return new TextUserStorage(usersDir, RESULT_HASH_SIZE, hashRefCounts);
+  }
+
+  /*
+   * Returns the references to each hash counted when storage is created again.
+   */
+  private Map<String, Integer> reopenStorage() throws SxseStorageException {
+    Map<String, Integer> hashRefCounts = new HashMap<String, Integer>();
+    createStorage(getUsersDir(), hashRefCounts);
+    return hashRefCounts;
+  }
+
+  /*
+   * Returns a hash of results consisting of the given character.
+   */
+  private static String hash(char c) {
+    char[] hash = new char[2 * RESULT_HASH_SIZE];
+    Arrays.fill(hash, c);
+    return new String(hash);
+  }
+
+  /*
+   * Adds a judgment of the given query by the given user, whose results have
+   * the hashes consisting of the given characters.
+   */
+  private static void addJudgment(TextUserStorage storage, String userName,
+      String query, char firstHash, char secondHash)
+      throws SxseStorageException {
+    addJudgment(storage, userName, query, 1000L, firstHash, secondHash);
+  }
+
+  private static void addJudgment(TextUserStorage storage, String userName,
+      String query, long timestamp, char firstHash, char secondHash)
+      throws SxseStorageException {
+    String resultsId = hash(firstHash) + hash(secondHash);
+    storage.addJudgment(userName, new JudgmentDetails(query, Judgment.EQUAL,
+        timestamp, FIRST_FORMATTER, SECOND_FORMATTER, resultsId), resultsId);
+  }
+
+  /*
+   * Returns the timestamps of the judgments of the given query by the given
+   * user, read through the index of the user's judgments by query.
+   */
+  private static List<Long> getTimestamps(TextUserStorage storage,
+      String userName, String query) throws SxseStorageException {
+    List<Long> timestamps = new ArrayList<Long>();
+    for (JudgmentDetails judgment : storage.getJudgments(userName, query)) {
+      assertEquals(query, judgment.getQuery());
+      timestamps.add(judgment.getTimestamp());
+    }
+    return timestamps;
+  }
+
+  @Test
+  public void testCountsReferencesOfAllUsers() throws SxseStorageException {
+    TextUserStorage storage = createStorage();
+    for (int i = 0; i < 8; ++i) {
+      addJudgment(storage, "user" + i, "q", 'a', (char) ('b' + (i % 2)));
+    }
+    addJudgment(storage, "user0", "r", 'c', 'd');
+
+    Map<String, Integer> expected = ImmutableMap.of(
+        hash('a'), 8, hash('b'), 4, hash('c'), 5, hash('d'), 1);
+    // Counted by reading all user files, and then from their summaries.
+    assertEquals(expected, reopenStorage());
+    assertEquals(expected, reopenStorage());
+  }
+
+  @Test
+  public void testReadsAppendedJudgments() throws SxseStorageException {
+    addJudgment(createStorage(), "user", "q", 'a', 'b');
+    reopenStorage();
+
+    addJudgment(createStorage(), "user", "r", 'a', 'c');
+    assertEquals(ImmutableMap.of(hash('a'), 2, hash('b'), 1, hash('c'), 1),
+        reopenStorage());
+  }
+
+  @Test
+  public void testRereadsFileNotAppendedTo()
+      throws SxseStorageException, IOException {
+    addJudgment(createStorage(), "user", "q", 'a', 'b');
+    reopenStorage();
+
+    // Replace the summarized judgment by one of the same length, and append.
+    File otherUsersDir = new File(folder.getRoot(), "otherUsers");
+    TextUserStorage otherStorage =
+        createStorage(otherUsersDir, new HashMap<String, Integer>());
+    addJudgment(otherStorage, "user", "q", 'c', 'd');
+    addJudgment(otherStorage, "user", "r", 'e', 'f');
+    replaceUserFile(new File(otherUsersDir, "user"));
+
+    assertEquals(ImmutableMap.of(hash('c'), 1, hash('d'), 1, hash('e'), 1,
+        hash('f'), 1), reopenStorage());
+  }
+
+  @Test
+  public void testRereadsRewrittenFileOfSameLength()
+      throws SxseStorageException, IOException {
+    addJudgment(createStorage(), "user", "q", 'a', 'b');
+    reopenStorage();
+
+    File otherUsersDir = new File(folder.getRoot(), "otherUsers");
+    addJudgment(createStorage(otherUsersDir, new HashMap<String, Integer>()),
+        "user", "q", 'c', 'd');
+    replaceUserFile(new File(otherUsersDir, "user"));
+
+    assertEquals(ImmutableMap.of(hash('c'), 1, hash('d'), 1),
+        reopenStorage());
+  }
+
+  @Test
+  public void testRereadsFileWithoutSummary() throws SxseStorageException {
+    TextUserStorage storage = createStorage();
+    addJudgment(storage, "user", "q", 'a', 'b');
+    addJudgment(storage, "user", "r", 'a', 'c');
+    reopenStorage();
+    assertTrue(new File(new File(getUsersDir(), ".summaries"), "user")
+        .delete());
+
+    assertEquals(ImmutableMap.of(hash('a'), 2, hash('b'), 1, hash('c'), 1),
+        reopenStorage());
+  }
+
+  @Test
+  public void testRemovesUserWithSummary() throws SxseStorageException {
+    TextUserStorage storage = createStorage();
+    addJudgment(storage, "user", "q", 'a', 'b');
+    addJudgment(storage, "other", "q", 'a', 'c');
+    reopenStorage();
+
+    storage = createStorage();
+    addJudgment(storage, "user", "r", 'a', 'd');
+    Map<String, Integer> removedHashRefCounts =
+        new HashMap<String, Integer>();
+    assertTrue(storage.removeUsers(ImmutableSet.of("user"),
+        removedHashRefCounts));
+    assertEquals(ImmutableMap.of(hash('a'), 2, hash('b'), 1, hash('d'), 1),
+        removedHashRefCounts);
+    assertFalse(new File(new File(getUsersDir(), ".summaries"), "user")
+        .exists());
+
+    assertEquals(ImmutableMap.of(hash('a'), 1, hash('c'), 1),
+        reopenStorage());
+  }
+
+  @Test
+  public void testGetsJudgmentsOfQuery() throws SxseStorageException {
+    TextUserStorage storage = createStorage();
+    addJudgment(storage, "user", "q", 1L, 'a', 'b');
+    addJudgment(storage, "user", "qq", 2L, 'a', 'b');
+    addJudgment(storage, "user", "q", 4L, 'a', 'b');
+    addJudgment(storage, "user", "query=q", 5L, 'a', 'b');
+    addJudgment(storage, "other", "q", 6L, 'a', 'b');
+
+    assertEquals(Arrays.asList(1L, 4L), getTimestamps(storage, "user", "q"));
+    assertEquals(Arrays.asList(2L), getTimestamps(storage, "user", "qq"));
+    assertEquals(Arrays.asList(5L),
+        getTimestamps(storage, "user", "query=q"));
+    assertEquals(Collections.emptyList(),
+        getTimestamps(storage, "user", "missing"));
+    assertEquals(Collections.emptyList(),
+        getTimestamps(storage, "missing", "q"));
+  }
+
+  @Test
+  public void testGetsJudgmentsOfNonAsciiQuery() throws SxseStorageException {
+    String query = "caf\u00e9 \u65e5\u672c";
+    // User files are written in the default charset.
+    assumeTrue(Charset.defaultCharset().newEncoder().canEncode(query));
+
+    TextUserStorage storage = createStorage();
+    addJudgment(storage, "user", "caf\u00e9", 1L, 'a', 'b');
+    addJudgment(storage, "user", query, 2L, 'a', 'b');
+    addJudgment(storage, "user", query, 3L, 'a', 'b');
+    assertEquals(Arrays.asList(2L, 3L),
+        getTimestamps(storage, "user", query));
+    assertEquals(Arrays.asList(1L),
+        getTimestamps(storage, "user", "caf\u00e9"));
+  }
+
+  @Test
+  public void testIndexesAddedJudgments() throws SxseStorageException {
+    TextUserStorage storage = createStorage();
+    addJudgment(storage, "user", "q", 1L, 'a', 'b');
+    assertEquals(Arrays.asList(1L), getTimestamps(storage, "user", "q"));
+
+    // Added to the index, which is up to date.
+    addJudgment(storage, "user", "r", 2L, 'a', 'b');
+    addJudgment(storage, "user", "q", 3L, 'a', 'b');
+    assertEquals(Arrays.asList(1L, 3L), getTimestamps(storage, "user", "q"));
+    assertEquals(Arrays.asList(2L), getTimestamps(storage, "user", "r"));
+  }
+
+  @Test
+  public void testIndexesJudgmentsAppendedByOthers()
+      throws SxseStorageException {
+    TextUserStorage storage = createStorage();
+    addJudgment(storage, "user", "q", 1L, 'a', 'b');
+    assertEquals(Arrays.asList(1L), getTimestamps(storage, "user", "q"));
+
+    // Only the appended judgments are scanned.
+    TextUserStorage otherStorage = createStorage();
+    addJudgment(otherStorage, "user", "r", 2L, 'a', 'b');
+    addJudgment(otherStorage, "user", "q", 3L, 'a', 'b');
+    assertEquals(Arrays.asList(1L, 3L), getTimestamps(storage, "user", "q"));
+    assertEquals(Arrays.asList(2L), getTimestamps(storage, "user", "r"));
+  }
+
+  @Test
+  public void testReindexesShrunkFile()
+      throws SxseStorageException, IOException {
+    TextUserStorage storage = createStorage();
+    addJudgment(storage, "user", "q", 1L, 'a', 'b');
+    addJudgment(storage, "user", "q", 2L, 'a', 'b');
+    assertEquals(Arrays.asList(1L, 2L), getTimestamps(storage, "user", "q"));
+
+    File otherUsersDir = new File(folder.getRoot(), "otherUsers");
+    addJudgment(createStorage(otherUsersDir, new HashMap<String, Integer>()),
+        "user", "r", 3L, 'a', 'b');
+    replaceUserFile(new File(otherUsersDir, "user"));
+
+    assertEquals(Collections.emptyList(),
+        getTimestamps(storage, "user", "q"));
+    assertEquals(Arrays.asList(3L), getTimestamps(storage, "user", "r"));
+  }
+
+  /*
+   * Replaces the file of the user named user with the given file, and changes
+   * its time of last modification.
+   */
+  private void replaceUserFile(File newUserFile) throws IOException {
+    File userFile = new File(getUsersDir(), "user");
+    long lastModified = userFile.lastModified();
+    Files.copy(newUserFile.toPath(), userFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    assertTrue(userFile.setLastModified(lastModified + 10000L));
+  }
+}